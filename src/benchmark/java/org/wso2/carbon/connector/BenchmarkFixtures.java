@@ -0,0 +1,206 @@
+/*
+*  Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+package org.wso2.carbon.connector;
+
+import org.apache.synapse.MessageContext;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Realistic template parameter values shared by the benchmarks.
+ */
+final class BenchmarkFixtures {
+    static final String TO_RECIPIENTS = "<ToRecipients>\n" +
+            "    <Mailbox>\n" +
+            "        <Name>John Doe</Name>\n" +
+            "        <EmailAddress>john.doe@example.com</EmailAddress>\n" +
+            "        <RoutingType>SMTP</RoutingType>\n" +
+            "    </Mailbox>\n" +
+            "    <Mailbox>\n" +
+            "        <Name>Jane Roe</Name>\n" +
+            "        <EmailAddress>jane.roe@example.com</EmailAddress>\n" +
+            "        <RoutingType>SMTP</RoutingType>\n" +
+            "    </Mailbox>\n" +
+            "</ToRecipients>";
+    static final String RESTRICTION = "<Restriction>\n" +
+            "    <IsEqualTo>\n" +
+            "        <FieldURI FieldURI=\"message:IsRead\"/>\n" +
+            "        <FieldURIOrConstant>\n" +
+            "            <Constant Value=\"false\"/>\n" +
+            "        </FieldURIOrConstant>\n" +
+            "    </IsEqualTo>\n" +
+            "</Restriction>";
+    static final String ADDITIONAL_PROPERTIES = "<AdditionalProperties>\n" +
+            "    <FieldURI FieldURI=\"item:Subject\"/>\n" +
+            "    <FieldURI FieldURI=\"item:DateTimeReceived\"/>\n" +
+            "    <FieldURI FieldURI=\"message:From\"/>\n" +
+            "    <ExtendedFieldURI PropertyTag=\"0x1000\" PropertyType=\"String\"/>\n" +
+            "</AdditionalProperties>";
+    static final String MAILBOX = "<Mailbox>\n" +
+            "    <EmailAddress>shared.box@example.com</EmailAddress>\n" +
+            "</Mailbox>";
+    static final String ATTACHMENTS = "<Attachments>\n" +
+            "    <FileAttachment>\n" +
+            "        <Name>report.txt</Name>\n" +
+            "        <ContentType>text/plain</ContentType>\n" +
+            "        <Content>VGhpcyBpcyBhIHNhbXBsZSBhdHRhY2htZW50IHVzZWQgYnkgdGhlIGJlbmNobWFya3Mu</Content>\n" +
+            "    </FileAttachment>\n" +
+            "</Attachments>";
+    static final String CC_RECIPIENTS = "<CcRecipients>\n" +
+            "    <Mailbox>\n" +
+            "        <EmailAddress>team@example.com</EmailAddress>\n" +
+            "    </Mailbox>\n" +
+            "</CcRecipients>";
+    static final String ITEM_ID = "<itemId><Id>AAMkAGI2TG93AAA=</Id><ChangeKey>CQAAABYAAAA</ChangeKey></itemId>";
+    static final String DISTINGUISHED_FOLDER_ID = "<distinguishedFolderId><Id>sentitems</Id></distinguishedFolderId>";
+    static final String BODY = "<body><BodyType>HTML</BodyType><Content>&lt;html&gt;&lt;body&gt;&lt;p&gt;Quarterly " +
+            "report attached.&lt;/p&gt;&lt;/body&gt;&lt;/html&gt;</Content></body>";
+    static final String TIME_ZONE_DEFINITION = "<timeZoneDefinition><Id>GMT Standard Time</Id>" +
+            "<Name>(UTC) Dublin, Edinburgh, Lisbon, London</Name></timeZoneDefinition>";
+    static final String PERIODS = "<Periods>\n" +
+            "    <Period Bias=\"-PT0M\" Name=\"Standard\" Id=\"trule:Microsoft/Registry/GMT Standard Time/2006-Standard\"/>\n" +
+            "    <Period Bias=\"-PT1H\" Name=\"Daylight\" Id=\"trule:Microsoft/Registry/GMT Standard Time/2006-Daylight\"/>\n" +
+            "</Periods>";
+    static final String TRANSITIONS_GROUPS = "<TransitionsGroups>\n" +
+            "    <TransitionsGroup Id=\"0\">\n" +
+            "        <RecurringDayTransition>\n" +
+            "            <To Kind=\"Period\">trule:Microsoft/Registry/GMT Standard Time/2006-Daylight</To>\n" +
+            "            <TimeOffset>PT1H</TimeOffset>\n" +
+            "            <Month>3</Month>\n" +
+            "            <DayOfWeek>Sunday</DayOfWeek>\n" +
+            "            <Occurrence>-1</Occurrence>\n" +
+            "        </RecurringDayTransition>\n" +
+            "        <RecurringDayTransition>\n" +
+            "            <To Kind=\"Period\">trule:Microsoft/Registry/GMT Standard Time/2006-Standard</To>\n" +
+            "            <TimeOffset>PT2H</TimeOffset>\n" +
+            "            <Month>10</Month>\n" +
+            "            <DayOfWeek>Sunday</DayOfWeek>\n" +
+            "            <Occurrence>-1</Occurrence>\n" +
+            "        </RecurringDayTransition>\n" +
+            "    </TransitionsGroup>\n" +
+            "</TransitionsGroups>";
+    static final String TRANSITIONS = "<Transitions>\n" +
+            "    <Transition>\n" +
+            "        <To Kind=\"Group\">0</To>\n" +
+            "    </Transition>\n" +
+            "</Transitions>";
+    static final String PARENT_FOLDER_IDS = "<ParentFolderIds>\n" +
+            "    <DistinguishedFolderId Id=\"inbox\"/>\n" +
+            "</ParentFolderIds>";
+    static final String INDEXED_PAGE_ITEM_VIEW = "<IndexedPageItemView MaxEntriesReturned=\"50\" Offset=\"0\" " +
+            "BasePoint=\"Beginning\"/>";
+
+    private BenchmarkFixtures() {
+    }
+
+    /**
+     * Returns the largest fragment the given mediator rewrites per message.
+     *
+     * @param mediator operation name
+     * @return xml fragment
+     */
+    static String namespaceFragment(String mediator) {
+        if ("createItem".equals(mediator)) {
+            return TO_RECIPIENTS;
+        } else if ("findItem".equals(mediator)) {
+            return RESTRICTION;
+        } else if ("getItem".equals(mediator) || "getAttachment".equals(mediator)) {
+            return ADDITIONAL_PROPERTIES;
+        } else if ("sendItem".equals(mediator)) {
+            return MAILBOX;
+        } else if ("createAttachment".equals(mediator)) {
+            return ATTACHMENTS;
+        }
+        throw new IllegalArgumentException("Unknown mediator " + mediator);
+    }
+
+    /**
+     * Returns the template parameters wired by a typical invocation of the given operation.
+     *
+     * @param operation operation name, createItemMinimal and createItemFull select the CreateItem variants
+     * @return template parameter values
+     */
+    static Map<String, Object> parameters(String operation) {
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put(EWSConstants.REQUESTED_SERVER_VERSION, "Exchange2010_SP2");
+        if ("getItem".equals(operation)) {
+            parameters.put(EWSConstants.BASE_SHAPE, "IdOnly");
+            parameters.put(EWSConstants.ITEM_ID, ITEM_ID);
+        } else if ("findItem".equals(operation)) {
+            parameters.put(EWSConstants.TRAVERSAL, "Shallow");
+            parameters.put(EWSConstants.BASE_SHAPE, "Default");
+            parameters.put(EWSConstants.ADDITIONAL_PROPERTIES, ADDITIONAL_PROPERTIES);
+            parameters.put(EWSConstants.INDEXED_PAGE_ITEM_VIEW, INDEXED_PAGE_ITEM_VIEW);
+            parameters.put(EWSConstants.RESTRICTION, RESTRICTION);
+            parameters.put(EWSConstants.PARENT_FOLDER_IDS, PARENT_FOLDER_IDS);
+        } else if ("sendItem".equals(operation)) {
+            parameters.put(EWSConstants.SAVE_ITEM_TO_FOLDER, "true");
+            parameters.put(EWSConstants.ITEM_ID, ITEM_ID);
+            parameters.put(EWSConstants.DISTINGUISHED_FOLDER_ID, DISTINGUISHED_FOLDER_ID);
+            parameters.put(EWSConstants.MAIL_BOX, MAILBOX);
+        } else if ("getAttachment".equals(operation)) {
+            parameters.put(EWSConstants.ATTACHMENT_ID_, "AAMkAGI2TG93AAABEgAQAMW=");
+            parameters.put(EWSConstants.INCLUDE_MIME_CONTENT, "false");
+            parameters.put(EWSConstants.ADDITIONAL_PROPERTIES, ADDITIONAL_PROPERTIES);
+        } else if ("createAttachment".equals(operation)) {
+            parameters.put(EWSConstants.PARENT_ITEM_ID, ITEM_ID);
+            parameters.put(EWSConstants.ATTACHMENTS, ATTACHMENTS);
+        } else if ("createItemMinimal".equals(operation)) {
+            parameters.put(EWSConstants.MESSAGE_DISPOSITION, "SendAndSaveCopy");
+            parameters.put(EWSConstants.SUBJECT, "Quarterly report");
+            parameters.put(EWSConstants.BODY, BODY);
+            parameters.put(EWSConstants.TO_RECIPIENTS, TO_RECIPIENTS);
+        } else if ("createItemFull".equals(operation)) {
+            parameters.put(EWSConstants.MESSAGE_DISPOSITION, "SendAndSaveCopy");
+            parameters.put(EWSConstants.DISTINGUISHED_FOLDER_ID, DISTINGUISHED_FOLDER_ID);
+            parameters.put(EWSConstants.MAIL_BOX, MAILBOX);
+            parameters.put(EWSConstants.TIME_ZONE_DEFINITION, TIME_ZONE_DEFINITION);
+            parameters.put(EWSConstants.PERIODS, PERIODS);
+            parameters.put(EWSConstants.TRANSITION_GROUPS, TRANSITIONS_GROUPS);
+            parameters.put(EWSConstants.TRANSITIONS, TRANSITIONS);
+            parameters.put(EWSConstants.MAIL_BOX_CULTURE, "en-GB");
+            parameters.put(EWSConstants.PRIMARY_SMTP_ADDRESS, "reports@example.com");
+            parameters.put(EWSConstants.ITEM_CLASS, "IPM.Note");
+            parameters.put(EWSConstants.SUBJECT, "Quarterly report");
+            parameters.put(EWSConstants.SENSITIVITY, "Normal");
+            parameters.put(EWSConstants.BODY, BODY);
+            parameters.put(EWSConstants.ATTACHMENTS, ATTACHMENTS);
+            parameters.put(EWSConstants.IMPORTANCE, "High");
+            parameters.put(EWSConstants.TO_RECIPIENTS, TO_RECIPIENTS);
+            parameters.put(EWSConstants.CC_RECIPIENTS, CC_RECIPIENTS);
+            parameters.put(EWSConstants.FROM, "<From>" + MAILBOX + "</From>");
+            parameters.put(EWSConstants.IS_READ_RECEIPT_REQUESTED, "true");
+            parameters.put(EWSConstants.IS_DELIVERY_RECEIPT_REQUESTED, "false");
+        } else {
+            throw new IllegalArgumentException("Unknown operation " + operation);
+        }
+        return parameters;
+    }
+
+    /**
+     * Creates an in memory synapse message context holding the given template parameters on its function stack.
+     *
+     * @param templateName name of the template the parameters belong to
+     * @param parameters template parameter values
+     * @return message context
+     */
+    static MessageContext messageContext(String templateName, Map<String, Object> parameters) {
+        return TemplateMessageContexts.create(templateName, parameters);
+    }
+}
@@ -0,0 +1,242 @@
+/*
+*  Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+package org.wso2.carbon.connector;
+
+import org.apache.axiom.om.OMXMLBuilderFactory;
+import org.apache.axiom.soap.SOAPEnvelope;
+import org.apache.http.entity.BasicHttpEntity;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compares the CPU cost of gzip, deflate and identity encoded EWS traffic with the bytes each saves on the wire.
+ * The response benchmarks decode and build a FindItem AllProperties page and a GetItem with a large HTML body, the
+ * request benchmarks serialize and optionally gzip a CreateItem of the same body. The wireBytes and savedBytes
+ * counters are per operation, so the extra time per operation against identity divided by savedBytes is the CPU
+ * spent per byte saved; compression pays off while that is below the time the link needs to carry a byte.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompressionBenchmark {
+    private static final String ENVELOPE_START = "<?xml version=\"1.0\" encoding=\"utf-8\"?><s:Envelope xmlns:s=\"" +
+            "http://schemas.xmlsoap.org/soap/envelope/\"><s:Header><h:ServerVersionInfo MajorVersion=\"15\" " +
+            "MinorVersion=\"1\" MajorBuildNumber=\"1034\" MinorBuildNumber=\"26\" Version=\"V2017_07_11\" " +
+            "xmlns:h=\"" + EWSConstants.TYPE_NAME_SPACE + "\"/></s:Header><s:Body>";
+    private static final String ENVELOPE_END = "</s:Body></s:Envelope>";
+    private static final String WORDS = "quarterly report budget review meeting the of and to for project team " +
+            "schedule update please find attached regarding customer proposal contract invoice draft final";
+
+    /**
+     * Holds one response as it arrives on the wire in the given encoding.
+     */
+    @State(Scope.Benchmark)
+    public static class Response {
+        @Param({"findItemAllProperties", "getItemHtml"})
+        public String response;
+
+        @Param({"identity", "gzip", "deflate"})
+        public String responseEncoding;
+
+        private byte[] wire;
+        private int size;
+
+        @Setup
+        public void setUp() throws Exception {
+            byte[] plain = ("findItemAllProperties".equals(response) ? findItemResponse(250) : getItemResponse(
+                    200 * 1024)).getBytes(StandardCharsets.UTF_8);
+            size = plain.length;
+            wire = encode(plain, responseEncoding);
+        }
+    }
+
+    /**
+     * Holds a CreateItem request and whether it is gzip compressed before it is sent; the client never sends
+     * deflate.
+     */
+    @State(Scope.Thread)
+    public static class Request {
+        @Param({"identity", "gzip"})
+        public String requestEncoding;
+
+        private SOAPEnvelope envelope;
+
+        @Setup
+        public void setUp() {
+            envelope = OMXMLBuilderFactory.createSOAPModelBuilder(new ByteArrayInputStream(createItemRequest(
+                    200 * 1024).getBytes(StandardCharsets.UTF_8)), "UTF-8").getSOAPEnvelope();
+            envelope.build();
+        }
+    }
+
+    /**
+     * Reports the bytes sent on the wire and the bytes compression saved, per operation.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Bytes {
+        public long wireBytes;
+        public long savedBytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            wireBytes = 0;
+            savedBytes = 0;
+        }
+    }
+
+    @Benchmark
+    public SOAPEnvelope response(Response response, Bytes bytes) throws Exception {
+        BasicHttpEntity entity = new BasicHttpEntity();
+        if (!"identity".equals(response.responseEncoding)) {
+            entity.setContentEncoding(response.responseEncoding);
+        }
+        SOAPEnvelope envelope = OMXMLBuilderFactory.createSOAPModelBuilder(EWSClient.decode(entity,
+                new ByteArrayInputStream(response.wire)), "UTF-8").getSOAPEnvelope();
+        envelope.build();
+        bytes.wireBytes += response.wire.length;
+        bytes.savedBytes += response.size - response.wire.length;
+        return envelope;
+    }
+
+    @Benchmark
+    public byte[] request(Request request, Bytes bytes) throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        request.envelope.serialize(output);
+        byte[] wire = "gzip".equals(request.requestEncoding) ? EWSClient.gzip(output) : output.toByteArray();
+        bytes.wireBytes += wire.length;
+        bytes.savedBytes += output.size() - wire.length;
+        return wire;
+    }
+
+    private static byte[] encode(byte[] plain, String encoding) throws Exception {
+        if ("identity".equals(encoding)) {
+            return plain;
+        }
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        OutputStream output = "gzip".equals(encoding) ? new GZIPOutputStream(compressed) :
+                new DeflaterOutputStream(compressed);
+        output.write(plain);
+        output.close();
+        return compressed.toByteArray();
+    }
+
+    /**
+     * A FindItem page with AllProperties, whose ids, change keys and dates differ per item as they do in a mailbox.
+     */
+    static String findItemResponse(int items) {
+        Random random = new Random(items);
+        StringBuilder builder = new StringBuilder(ENVELOPE_START);
+        builder.append("<m:FindItemResponse xmlns:m=\"").append(EWSConstants.MESSAGES_NAME_SPACE)
+                .append("\" xmlns:t=\"").append(EWSConstants.TYPE_NAME_SPACE).append("\"><m:ResponseMessages>")
+                .append("<m:FindItemResponseMessage ResponseClass=\"Success\"><m:ResponseCode>NoError")
+                .append("</m:ResponseCode><m:RootFolder IndexedPagingOffset=\"").append(items)
+                .append("\" TotalItemsInView=\"4811\" IncludesLastItemInRange=\"false\"><t:Items>");
+        for (int i = 0; i < items; i++) {
+            String date = String.format("2017-%02d-%02dT%02d:%02d:%02dZ", 1 + random.nextInt(12),
+                    1 + random.nextInt(28), random.nextInt(24), random.nextInt(60), random.nextInt(60));
+            builder.append("<t:Message><t:ItemId Id=\"").append(token(random, 114)).append("\" ChangeKey=\"")
+                    .append(token(random, 40)).append("\"/><t:ParentFolderId Id=\"").append(token(random, 62))
+                    .append("\" ChangeKey=\"AQAAAA==\"/><t:ItemClass>IPM.Note</t:ItemClass><t:Subject>")
+                    .append(text(random, 8)).append("</t:Subject><t:Sensitivity>Normal</t:Sensitivity><t:Size>")
+                    .append(2000 + random.nextInt(80000)).append("</t:Size><t:DateTimeSent>").append(date)
+                    .append("</t:DateTimeSent><t:DateTimeCreated>").append(date)
+                    .append("</t:DateTimeCreated><t:HasAttachments>").append(random.nextBoolean())
+                    .append("</t:HasAttachments><t:Culture>en-US</t:Culture><t:ConversationId Id=\"")
+                    .append(token(random, 62)).append("\"/><t:From><t:Mailbox><t:Name>").append(text(random, 2))
+                    .append("</t:Name><t:EmailAddress>user").append(random.nextInt(500))
+                    .append("@example.com</t:EmailAddress><t:RoutingType>SMTP</t:RoutingType></t:Mailbox>")
+                    .append("</t:From><t:IsRead>").append(random.nextBoolean()).append("</t:IsRead></t:Message>");
+        }
+        return builder.append("</t:Items></m:RootFolder></m:FindItemResponseMessage></m:ResponseMessages>")
+                .append("</m:FindItemResponse>").append(ENVELOPE_END).toString();
+    }
+
+    /**
+     * A GetItem response carrying an escaped HTML body of about the given size.
+     */
+    static String getItemResponse(int bodySize) {
+        Random random = new Random(bodySize);
+        return ENVELOPE_START + "<m:GetItemResponse xmlns:m=\"" + EWSConstants.MESSAGES_NAME_SPACE + "\" xmlns:t=\"" +
+                EWSConstants.TYPE_NAME_SPACE + "\"><m:ResponseMessages><m:GetItemResponseMessage ResponseClass=\"" +
+                "Success\"><m:ResponseCode>NoError</m:ResponseCode><m:Items><t:Message><t:ItemId Id=\"" +
+                token(random, 114) + "\" ChangeKey=\"" + token(random, 40) + "\"/><t:Subject>" + text(random, 8) +
+                "</t:Subject><t:Body BodyType=\"HTML\">" + html(random, bodySize) + "</t:Body></t:Message>" +
+                "</m:Items></m:GetItemResponseMessage></m:ResponseMessages></m:GetItemResponse>" + ENVELOPE_END;
+    }
+
+    /**
+     * A CreateItem request carrying an escaped HTML body of about the given size.
+     */
+    static String createItemRequest(int bodySize) {
+        Random random = new Random(bodySize + 1);
+        return ENVELOPE_START + "<m:CreateItem xmlns:m=\"" + EWSConstants.MESSAGES_NAME_SPACE + "\" xmlns:t=\"" +
+                EWSConstants.TYPE_NAME_SPACE + "\" MessageDisposition=\"SaveOnly\"><m:Items><t:Message><t:Subject>" +
+                text(random, 8) + "</t:Subject><t:Body BodyType=\"HTML\">" + html(random, bodySize) +
+                "</t:Body><t:ToRecipients><t:Mailbox><t:EmailAddress>user@example.com</t:EmailAddress></t:Mailbox>" +
+                "</t:ToRecipients></t:Message></m:Items></m:CreateItem>" + ENVELOPE_END;
+    }
+
+    private static String html(Random random, int size) {
+        StringBuilder builder = new StringBuilder("&lt;html&gt;&lt;head&gt;&lt;meta http-equiv=\"Content-Type\" " +
+                "content=\"text/html; charset=utf-8\"&gt;&lt;/head&gt;&lt;body&gt;");
+        while (builder.length() < size) {
+            builder.append("&lt;p style=\"font-family:Calibri,sans-serif;font-size:11pt\"&gt;")
+                    .append(text(random, 20 + random.nextInt(40))).append("&lt;/p&gt;");
+        }
+        return builder.append("&lt;/body&gt;&lt;/html&gt;").toString();
+    }
+
+    private static String text(Random random, int words) {
+        String[] dictionary = WORDS.split(" ");
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < words; i++) {
+            builder.append(i == 0 ? "" : " ").append(dictionary[random.nextInt(dictionary.length)]);
+        }
+        return builder.toString();
+    }
+
+    private static String token(Random random, int length) {
+        byte[] bytes = new byte[length * 3 / 4];
+        random.nextBytes(bytes);
+        return Base64.getEncoder().encodeToString(bytes);
+    }
+}
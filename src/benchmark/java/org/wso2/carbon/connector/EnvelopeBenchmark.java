@@ -0,0 +1,87 @@
+/*
+*  Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+package org.wso2.carbon.connector;
+
+import org.apache.axiom.soap.SOAPEnvelope;
+import org.apache.synapse.MessageContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.wso2.carbon.connector.core.AbstractConnector;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures envelope construction of every operation mediator against an in memory message context.
+ * <p>
+ * Throughput and sampled latency are reported per operation; run with -prof gc (the default jmh.args of the
+ * benchmark profile) to get the allocation rate per operation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EnvelopeBenchmark {
+
+    @Param({"getItem", "findItem", "sendItem", "getAttachment", "createAttachment", "createItemMinimal",
+            "createItemFull"})
+    public String operation;
+
+    private AbstractConnector mediator;
+    private MessageContext messageContext;
+
+    @Setup
+    public void setUp() throws Exception {
+        mediator = createMediator(operation);
+        messageContext = BenchmarkFixtures.messageContext(operation, BenchmarkFixtures.parameters(operation));
+        mediator.connect(messageContext);
+    }
+
+    @Benchmark
+    public SOAPEnvelope connect() throws Exception {
+        mediator.connect(messageContext);
+        return messageContext.getEnvelope();
+    }
+
+    private static AbstractConnector createMediator(String operation) {
+        if ("getItem".equals(operation)) {
+            return new GetItemMediator();
+        } else if ("findItem".equals(operation)) {
+            return new FindItemMediator();
+        } else if ("sendItem".equals(operation)) {
+            return new SendItemMediator();
+        } else if ("getAttachment".equals(operation)) {
+            return new GetAttachmentMediator();
+        } else if ("createAttachment".equals(operation)) {
+            return new CreateAttachmentMediator();
+        } else if (operation.startsWith("createItem")) {
+            return new CreateItemMediator();
+        }
+        throw new IllegalArgumentException("Unknown operation " + operation);
+    }
+}
@@ -0,0 +1,112 @@
+/*
+*  Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+package org.wso2.carbon.connector;
+
+import org.apache.axiom.om.OMAbstractFactory;
+import org.apache.axiom.om.OMElement;
+import org.apache.axiom.soap.SOAPFactory;
+import org.apache.synapse.MessageContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares rebuilding the RequestServerVersion, MailboxCulture, ExchangeImpersonation, TimeZoneContext and
+ * ManagementRoles header blocks on every request with copying them out of the {@link EWSHeaderCache}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HeaderBenchmark {
+    private static final String USER_ROLES = "<UserRoles>\n" +
+            "  <Role><Name>MailboxSearch</Name></Role>\n" +
+            "</UserRoles>";
+
+    private final SOAPFactory soapFactory = OMAbstractFactory.getSOAP11Factory();
+    private Map<String, Object> parameters;
+    private MessageContext messageContext;
+
+    @Setup
+    public void setUp() throws Exception {
+        parameters = BenchmarkFixtures.parameters("createItemFull");
+        parameters.put(EWSConstants.USER_ROLES, USER_ROLES);
+        messageContext = BenchmarkFixtures.messageContext("createItemFull", parameters);
+        String rebuilt = rebuilt().toString();
+        String cached = cached().toString();
+        if (!rebuilt.equals(cached)) {
+            throw new IllegalStateException("Cached headers differ from rebuilt headers: " + rebuilt + " != " +
+                    cached);
+        }
+    }
+
+    /**
+     * Header blocks built from the parameter values on every request, as before the cache.
+     */
+    @Benchmark
+    public OMElement rebuilt() throws Exception {
+        OMElement soapHeader = soapFactory.createOMElement("Header", null);
+        add(soapHeader, EWSUtils.buildRequestedServerVersionHeader(value(EWSConstants.REQUESTED_SERVER_VERSION)));
+        add(soapHeader, EWSUtils.buildMailboxCultureHeader(value(EWSConstants.MAIL_BOX_CULTURE)));
+        add(soapHeader, EWSUtils.buildExchangeImpersonationHeader(value(EWSConstants.PRINCIPAL_NAME),
+                value(EWSConstants.SID), value(EWSConstants.PRIMARY_SMTP_ADDRESS), value(EWSConstants
+                        .SMTP_ADDRESS)));
+        add(soapHeader, EWSUtils.buildTimeZoneContextHeader(value(EWSConstants.TIME_ZONE_DEFINITION),
+                value(EWSConstants.PERIODS), value(EWSConstants.TRANSITION_GROUPS), value(EWSConstants
+                        .TRANSITIONS)));
+        add(soapHeader, EWSUtils.buildManagementRolesHeader(value(EWSConstants.USER_ROLES),
+                value(EWSConstants.APPLICATION_ROLES)));
+        return soapHeader;
+    }
+
+    /**
+     * Header blocks as populated by the mediators, copied out of the header cache.
+     */
+    @Benchmark
+    public OMElement cached() throws Exception {
+        OMElement soapHeader = soapFactory.createOMElement("Header", null);
+        EWSUtils.populateRequestedServerVersionHeader(soapHeader, messageContext);
+        EWSUtils.populateMailboxCulture(soapHeader, messageContext);
+        EWSUtils.populateExchangeImpersonationHeader(soapHeader, messageContext);
+        EWSUtils.populateTimeZoneContextHeader(soapHeader, messageContext);
+        EWSUtils.populateManagementRolesHeader(soapHeader, messageContext);
+        return soapHeader;
+    }
+
+    private String value(String parameterName) {
+        return (String) parameters.get(parameterName);
+    }
+
+    private static void add(OMElement soapHeader, OMElement headerBlock) {
+        if (headerBlock != null) {
+            soapHeader.addChild(headerBlock);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+*  Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+package org.wso2.carbon.connector;
+
+import org.apache.axiom.om.OMElement;
+import org.apache.axiom.om.util.AXIOMUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the former per call XSLT namespace rewrite with {@link EWSNamespaceRewriter} using the parameter
+ * fragments each mediator pushes through populateDirectElements.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NamespaceRewriteBenchmark {
+    @Param({"createItem", "findItem", "getItem", "sendItem", "getAttachment", "createAttachment"})
+    public String mediator;
+
+    private String fragment;
+
+    @Setup
+    public void setUp() throws Exception {
+        fragment = BenchmarkFixtures.namespaceFragment(mediator);
+        String expected = XsltNamespaceRewrite.canonical(XsltNamespaceRewrite.rewrite(AXIOMUtil.stringToOM(
+                fragment)));
+        String actual = XsltNamespaceRewrite.canonical(EWSNamespaceRewriter.rewrite(fragment));
+        if (!expected.equals(actual)) {
+            throw new IllegalStateException("Streaming rewrite differs from XSLT for " + mediator + ": " +
+                    expected + " != " + actual);
+        }
+    }
+
+    @Benchmark
+    public OMElement xslt() throws Exception {
+        return XsltNamespaceRewrite.rewrite(AXIOMUtil.stringToOM(fragment));
+    }
+
+    @Benchmark
+    public OMElement streaming() throws Exception {
+        return EWSNamespaceRewriter.rewrite(fragment);
+    }
+}
@@ -0,0 +1,67 @@
+/*
+*  Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+package org.wso2.carbon.connector;
+
+import org.apache.synapse.MessageContext;
+import org.wso2.carbon.connector.core.AbstractConnector;
+import org.wso2.carbon.connector.core.ConnectException;
+import org.wso2.carbon.connector.core.util.ConnectorUtils;
+import org.wso2.carbon.utils.xml.StringUtils;
+
+import java.io.IOException;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * This class used to store the SyncState a syncFolderItems invocation returned, once its changes have been
+ * processed. The sync key and state default to the EWS_SYNC_KEY and EWS_SYNC_STATE properties set by
+ * syncFolderItems.
+ */
+public class CommitSyncStateMediator extends AbstractConnector {
+
+    public void connect(MessageContext messageContext) throws ConnectException {
+        String syncKey = lookup(messageContext, EWSConstants.SYNC_KEY, EWSConstants.EWS_SYNC_KEY);
+        String syncState = lookup(messageContext, EWSConstants.SYNC_STATE, EWSConstants.EWS_SYNC_STATE);
+        if (StringUtils.isEmpty(syncKey) || StringUtils.isEmpty(syncState)) {
+            String msg = "No sync state to commit, syncFolderItems didn't run or returned no SyncState";
+            log.error(msg);
+            throw new ConnectException(msg);
+        }
+        EWSSyncStateStore store = EWSSyncStateStore.forDirectory((String) ConnectorUtils.lookupTemplateParamater(
+                messageContext, EWSConstants.SYNC_STATE_DIRECTORY));
+        Lock lock = store.lock(syncKey);
+        lock.lock();
+        try {
+            store.write(syncKey, syncState);
+        } catch (IOException e) {
+            String msg = "Couldn't store sync state";
+            log.error(msg, e);
+            throw new ConnectException(e, msg);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static String lookup(MessageContext messageContext, String templateParameter, String property) {
+        String value = (String) ConnectorUtils.lookupTemplateParamater(messageContext, templateParameter);
+        if (StringUtils.isEmpty(value)) {
+            Object propertyValue = messageContext.getProperty(property);
+            value = propertyValue == null ? null : propertyValue.toString();
+        }
+        return value;
+    }
+}
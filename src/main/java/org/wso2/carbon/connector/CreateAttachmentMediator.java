@@ -33,9 +33,14 @@ import org.wso2.carbon.connector.core.ConnectException;
 import org.wso2.carbon.connector.core.util.ConnectorUtils;
 import org.wso2.carbon.utils.xml.StringUtils;
 
+import javax.activation.DataHandler;
 import javax.xml.namespace.QName;
 import javax.xml.stream.XMLStreamException;
-import javax.xml.transform.TransformerException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.DateTimeException;
 
 /**
  * Class used to Create CreateAttachment Soap Request
@@ -51,8 +56,12 @@ public class CreateAttachmentMediator extends AbstractConnector {
         soapEnvelope.declareNamespace(message);
 
         try {
+            EWSMetrics.Operation metrics = EWSMetrics.get("CreateAttachment");
+            long start = metrics.startBuild();
             soapEnvelope.addChild(populateSoapHeader(messageContext));
+            start = metrics.headerBuilt(start);
             soapEnvelope.addChild(populateBody(messageContext));
+            metrics.bodyBuilt(start);
             messageContext.setEnvelope(soapEnvelope);
         } catch (XMLStreamException e) {
             String msg = "Couldn't convert Element Body";
@@ -62,8 +71,12 @@ public class CreateAttachmentMediator extends AbstractConnector {
             String msg = "Couldn't set SOAPEnvelope to MessageContext";
             log.error(msg, axisFault);
             throw new ConnectException(axisFault, msg);
-        } catch (TransformerException e) {
-            String msg = "Couldn't transform message";
+        } catch (DateTimeException e) {
+            String msg = "Couldn't resolve time zone";
+            log.error(msg, e);
+            throw new ConnectException(e, msg);
+        } catch (IOException e) {
+            String msg = "Couldn't read attachment content";
             log.error(msg, e);
             throw new ConnectException(e, msg);
         }
@@ -75,10 +88,8 @@ public class CreateAttachmentMediator extends AbstractConnector {
      * @param messageContext message context of request
      * @return Soap Header
      * @throws XMLStreamException
-     * @throws TransformerException
      */
-    private SOAPHeader populateSoapHeader(MessageContext messageContext) throws XMLStreamException,
-            TransformerException {
+    private SOAPHeader populateSoapHeader(MessageContext messageContext) throws XMLStreamException {
         SOAPHeader soapHeader = soapFactory.createSOAPHeader();
         EWSUtils.populateTimeZoneContextHeader(soapHeader, messageContext);
         EWSUtils.populateRequestedServerVersionHeader(soapHeader, messageContext);
@@ -92,9 +103,9 @@ public class CreateAttachmentMediator extends AbstractConnector {
      * @param messageContext message context of request
      * @return Soap Body
      * @throws XMLStreamException
-     * @throws TransformerException
+     * @throws IOException when the streamed attachment couldn't be opened
      */
-    private SOAPBody populateBody(MessageContext messageContext) throws XMLStreamException, TransformerException {
+    private SOAPBody populateBody(MessageContext messageContext) throws XMLStreamException, IOException {
         SOAPBody soapBody = soapFactory.createSOAPBody();
         OMElement createAttachment = soapFactory.createOMElement(EWSConstants.CREATE_ATTACHMENT_ELEMENT, message);
         OMElement parentItemIdElement = soapFactory.createOMElement(EWSConstants.PARENT_ITEM_ID_ELEMENT, message);
@@ -110,9 +121,99 @@ public class CreateAttachmentMediator extends AbstractConnector {
                     changeKey));
         }
         createAttachment.addChild(parentItemIdElement);
-        EWSUtils.populateDirectElements(messageContext, createAttachment, EWSConstants.ATTACHMENTS, message);
+        String attachmentFile = (String) ConnectorUtils.lookupTemplateParamater(messageContext, EWSConstants
+                .ATTACHMENT_FILE);
+        String attachmentStreamProperty = (String) ConnectorUtils.lookupTemplateParamater(messageContext,
+                EWSConstants.ATTACHMENT_STREAM_PROPERTY);
+        if (StringUtils.isEmpty(attachmentFile) && StringUtils.isEmpty(attachmentStreamProperty)) {
+            EWSUtils.populateDirectElements(messageContext, createAttachment, EWSConstants.ATTACHMENTS, message);
+            messageContext.setProperty(EWSConstants.EWS_ATTACHMENT_STREAMING, "false");
+        } else {
+            createAttachment.addChild(populateStreamedAttachments(messageContext, attachmentFile,
+                    attachmentStreamProperty));
+            messageContext.setProperty(EWSConstants.EWS_ATTACHMENT_STREAMING, "true");
+        }
         soapBody.addChild(createAttachment);
         return soapBody;
     }
 
+    /**
+     * Used to populate <Attachments></Attachments> element with a single FileAttachment whose content is read
+     * from a local file or from a stream held in a message context property while the request is written
+     *
+     * @param messageContext message context of request
+     * @param attachmentFile path of the attachment file
+     * @param attachmentStreamProperty name of the property holding an InputStream or DataHandler
+     * @return Attachments element
+     * @throws IOException when neither the file nor the stream is available
+     */
+    private OMElement populateStreamedAttachments(MessageContext messageContext, String attachmentFile, String
+            attachmentStreamProperty) throws IOException {
+        String attachmentName = (String) ConnectorUtils.lookupTemplateParamater(messageContext, EWSConstants
+                .ATTACHMENT_NAME);
+        EWSAttachmentDataSource dataSource;
+        if (!StringUtils.isEmpty(attachmentFile)) {
+            File file = resolveAttachmentFile((String) messageContext.getProperty(EWSConstants
+                    .EWS_ATTACHMENT_DIRECTORY), attachmentFile);
+            if (StringUtils.isEmpty(attachmentName)) {
+                attachmentName = file.getName();
+            }
+            dataSource = EWSAttachmentDataSource.forFile(type, file);
+        } else {
+            Object source = messageContext.getProperty(attachmentStreamProperty);
+            if (source instanceof DataHandler) {
+                source = ((DataHandler) source).getInputStream();
+            }
+            if (!(source instanceof InputStream)) {
+                throw new IOException("Property " + attachmentStreamProperty + " doesn't hold an attachment stream");
+            }
+            dataSource = EWSAttachmentDataSource.forStream(type, (InputStream) source);
+        }
+        OMElement attachmentsElement = soapFactory.createOMElement(EWSConstants.ATTACHMENTS_ELEMENT, message);
+        OMElement fileAttachmentElement = soapFactory.createOMElement(EWSConstants.FILE_ATTACHMENT_ELEMENT, type,
+                attachmentsElement);
+        if (!StringUtils.isEmpty(attachmentName)) {
+            soapFactory.createOMElement(EWSConstants.NAME_ELEMENT, type, fileAttachmentElement).setText
+                    (attachmentName);
+        }
+        String contentType = (String) ConnectorUtils.lookupTemplateParamater(messageContext, EWSConstants
+                .ATTACHMENT_CONTENT_TYPE);
+        if (!StringUtils.isEmpty(contentType)) {
+            soapFactory.createOMElement(EWSConstants.CONTENT_TYPE_ELEMENT, type, fileAttachmentElement).setText
+                    (contentType);
+        }
+        fileAttachmentElement.addChild(soapFactory.createOMElement(dataSource, EWSConstants.CONTENT, type));
+        return attachmentsElement;
+    }
+
+    /**
+     * Used to resolve the attachmentFile against the attachmentDirectory of the config operation, so that a path
+     * taken from a message can't read other files of the server
+     *
+     * @param attachmentDirectory directory attachment files have to be in
+     * @param attachmentFile path of the attachment file, relative to the directory or absolute
+     * @return readable attachment file
+     * @throws IOException when no directory is configured, the file is outside of it or isn't readable
+     */
+    static File resolveAttachmentFile(String attachmentDirectory, String attachmentFile) throws IOException {
+        if (StringUtils.isEmpty(attachmentDirectory)) {
+            throw new IOException("attachmentFile can only be used with an attachmentDirectory set in the config " +
+                    "operation");
+        }
+        File directory = new File(attachmentDirectory).getCanonicalFile();
+        File file = new File(attachmentFile);
+        if (!file.isAbsolute()) {
+            file = new File(directory, attachmentFile);
+        }
+        // the canonical path resolves .. and symbolic links which could lead out of the directory
+        file = file.getCanonicalFile();
+        if (!file.getPath().startsWith(directory.getPath() + File.separator)) {
+            throw new IOException("Attachment file " + attachmentFile + " is outside of the attachment directory");
+        }
+        if (!file.isFile() || !file.canRead()) {
+            throw new FileNotFoundException("Attachment file " + attachmentFile + " is not readable");
+        }
+        return file;
+    }
+
 }
@@ -21,29 +21,115 @@ package org.wso2.carbon.connector;
 import org.apache.axiom.om.OMAbstractFactory;
 import org.apache.axiom.om.OMElement;
 import org.apache.axiom.om.OMNamespace;
-import org.apache.axiom.om.util.AXIOMUtil;
 import org.apache.axiom.soap.SOAPBody;
 import org.apache.axiom.soap.SOAPEnvelope;
 import org.apache.axiom.soap.SOAPFactory;
 import org.apache.axiom.soap.SOAPHeader;
 import org.apache.axis2.AxisFault;
 import org.apache.synapse.MessageContext;
+import org.json.JSONException;
 import org.wso2.carbon.connector.core.AbstractConnector;
 import org.wso2.carbon.connector.core.ConnectException;
 import org.wso2.carbon.connector.core.util.ConnectorUtils;
 import org.wso2.carbon.utils.xml.StringUtils;
 
-import javax.xml.namespace.QName;
 import javax.xml.stream.XMLStreamException;
-import javax.xml.transform.TransformerException;
+import java.io.IOException;
+import java.time.DateTimeException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 
-import static org.wso2.carbon.connector.EWSUtils.populateDirectElements;
 import static org.wso2.carbon.connector.EWSUtils.populateSaveItemFolderIdElement;
 
 /**
- * used to generate CreateItem Soap Request
+ * used to generate CreateItem Soap Request. When a list of messages is given, the messages are created here in
+ * CreateItem requests of batchSize messages, batchParallelism requests at a time, and the merged response with one
+ * ResponseMessage per message is set as the message envelope.
  */
 public class CreateItemMediator extends AbstractConnector {
+    private static final int DEFAULT_BATCH_SIZE = 50;
+    private static final int DEFAULT_BATCH_PARALLELISM = 4;
+
+    /**
+     * Message fields in the order of the EWS MessageType schema
+     */
+    private static final EWSEnvelopePlan MESSAGE_PLAN = new EWSEnvelopePlan(
+            EWSEnvelopePlan.fragment(EWSConstants.MIME_CONTENT),
+            EWSEnvelopePlan.fragment(EWSConstants.ITEM_ID),
+            EWSEnvelopePlan.fragment(EWSConstants.PARENT_FOLDER_ID),
+            EWSEnvelopePlan.element(EWSConstants.ITEM_CLASS, EWSConstants.ITEM_CLASS_ELEMENT),
+            EWSEnvelopePlan.element(EWSConstants.SUBJECT, EWSConstants.SUBJECT_ELEMENT),
+            EWSEnvelopePlan.element(EWSConstants.SENSITIVITY, EWSConstants.SENSITIVITY_ELEMENT),
+            EWSEnvelopePlan.body(EWSConstants.BODY),
+            EWSEnvelopePlan.fragment(EWSConstants.ATTACHMENTS),
+            EWSEnvelopePlan.element(EWSConstants.DATE_TIME_RECEIVED, EWSConstants.DATE_TIME_RECEIVED_ELEMENT),
+            EWSEnvelopePlan.element(EWSConstants.SIZE, EWSConstants.SIZE_ELEMENT),
+            EWSEnvelopePlan.fragment(EWSConstants.CATEGORIES),
+            EWSEnvelopePlan.element(EWSConstants.IMPORTANCE, EWSConstants.IMPORTANCE_ELEMENT),
+            EWSEnvelopePlan.element(EWSConstants.IN_REPLY_TO, EWSConstants.IN_REPLY_TO_ELEMENT),
+            EWSEnvelopePlan.element(EWSConstants.IS_SUBMITTED, EWSConstants.IS_SUBMITTED_ELEMENT),
+            EWSEnvelopePlan.element(EWSConstants.IS_DRAFT, EWSConstants.IS_DRAFT_ELEMENT),
+            EWSEnvelopePlan.element(EWSConstants.IS_FROM_ME, EWSConstants.IS_FROM_ME_ELEMENT),
+            EWSEnvelopePlan.element(EWSConstants.IS_RESEND, EWSConstants.IS_RESEND_ELEMENT),
+            EWSEnvelopePlan.element(EWSConstants.IS_UNMODIFIED, EWSConstants.IS_UNMODIFIED_ELEMENT),
+            EWSEnvelopePlan.fragment(EWSConstants.INTERNET_MESSAGE_HEADERS),
+            EWSEnvelopePlan.element(EWSConstants.DATE_TIME_SENT, EWSConstants.DATE_TIME_SENT_ELEMENT),
+            EWSEnvelopePlan.element(EWSConstants.DATE_TIME_CREATED, EWSConstants.DATE_TIME_CREATED_ELEMENT),
+            EWSEnvelopePlan.fragment(EWSConstants.RESPONSE_OBJECTS),
+            EWSEnvelopePlan.element(EWSConstants.REMINDER_DUE_BY, EWSConstants.REMINDER_DUE_BY_ELEMENT),
+            EWSEnvelopePlan.element(EWSConstants.REMINDER_IS_SET, EWSConstants.REMINDER_IS_SET_ELEMENT),
+            EWSEnvelopePlan.element(EWSConstants.REMINDER_NEXT_TIME, EWSConstants.REMINDER_NEXT_TIME_ELEMENT),
+            EWSEnvelopePlan.element(EWSConstants.REMINDER_MINUTES_BEFORE_START,
+                    EWSConstants.REMINDER_MINUTES_BEFORE_START_ELEMENT),
+            EWSEnvelopePlan.element(EWSConstants.DISPLAY_CC, EWSConstants.DISPLAY_CC_ELEMENT),
+            EWSEnvelopePlan.element(EWSConstants.DISPLAY_TO, EWSConstants.DISPLAY_TO_ELEMENT),
+            EWSEnvelopePlan.element(EWSConstants.HAS_ATTACHMENTS, EWSConstants.HAS_ATTACHMENTS_ELEMENT),
+            EWSEnvelopePlan.element(EWSConstants.IS_ASSOCIATED, EWSConstants.IS_ASSOCIATED_ELEMENT),
+            EWSEnvelopePlan.element(EWSConstants.WEB_CLIENT_READ_FORM_QUERY_STRING,
+                    EWSConstants.WEB_CLIENT_READ_FORM_QUERY_STRING_ELEMENT),
+            EWSEnvelopePlan.element(EWSConstants.WEB_CLIENT_EDIT_FORM_QUERY_STRING,
+                    EWSConstants.WEB_CLIENT_EDIT_FORM_QUERY_STRING_ELEMENT),
+            EWSEnvelopePlan.fragment(EWSConstants.CONVERSATION_ID),
+            EWSEnvelopePlan.fragment(EWSConstants.UNIQUE_BODY),
+            EWSEnvelopePlan.fragment(EWSConstants.FLAG),
+            EWSEnvelopePlan.element(EWSConstants.STORE_ENTRY_ID, EWSConstants.STORE_ENTRY_ID_ELEMENT),
+            EWSEnvelopePlan.element(EWSConstants.INSTANCE_KEY, EWSConstants.INSTANCE_KEY_ELEMENT),
+            EWSEnvelopePlan.fragment(EWSConstants.NORMALIZED_BODY),
+            EWSEnvelopePlan.fragment(EWSConstants.ENTITY_EXTRACTION_RESULT),
+            EWSEnvelopePlan.fragment(EWSConstants.POLICY_TAG),
+            EWSEnvelopePlan.fragment(EWSConstants.ARCHIVE_TAG),
+            EWSEnvelopePlan.element(EWSConstants.RETENTION_DATE, EWSConstants.RETENTION_DATE_ELEMENT),
+            EWSEnvelopePlan.element(EWSConstants.PREVIEW, EWSConstants.PREVIEW_ELEMENT),
+            EWSEnvelopePlan.fragment(EWSConstants.RIGHTS_MANAGEMENT_LICENSE_DATA),
+            EWSEnvelopePlan.fragment(EWSConstants.PREDICTED_ACTION_REASONS),
+            EWSEnvelopePlan.element(EWSConstants.IS_CLUTTER, EWSConstants.IS_CLUTTER_ELEMENT),
+            EWSEnvelopePlan.element(EWSConstants.BLOCK_STATUS, EWSConstants.BLOCK_STATUS_ELEMENT),
+            EWSEnvelopePlan.element(EWSConstants.HAS_BLOCKED_IMAGES, EWSConstants.HAS_BLOCKED_IMAGES_ELEMENT),
+            EWSEnvelopePlan.fragment(EWSConstants.TEXT_BODY),
+            EWSEnvelopePlan.element(EWSConstants.ICON_INDEX, EWSConstants.ICON_INDEX_ELEMENT),
+            EWSEnvelopePlan.fragment(EWSConstants.SENDER),
+            EWSEnvelopePlan.fragment(EWSConstants.TO_RECIPIENTS),
+            EWSEnvelopePlan.fragment(EWSConstants.CC_RECIPIENTS),
+            EWSEnvelopePlan.fragment(EWSConstants.BCC_RECIPIENTS),
+            EWSEnvelopePlan.element(EWSConstants.IS_READ_RECEIPT_REQUESTED,
+                    EWSConstants.IS_READ_RECEIPT_REQUESTED_ELEMENT),
+            EWSEnvelopePlan.element(EWSConstants.IS_DELIVERY_RECEIPT_REQUESTED,
+                    EWSConstants.IS_DELIVERY_RECEIPT_REQUESTED_ELEMENT),
+            EWSEnvelopePlan.element(EWSConstants.CONVERSATION_INDEX, EWSConstants.CONVERSATION_INDEX_ELEMENT),
+            EWSEnvelopePlan.element(EWSConstants.CONVERSATION_TOPIC, EWSConstants.CONVERSATION_TOPIC_ELEMENT),
+            EWSEnvelopePlan.fragment(EWSConstants.FROM),
+            EWSEnvelopePlan.element(EWSConstants.INTERNET_MESSAGE_ID, EWSConstants.INTERNET_MESSAGE_ID_ELEMENT),
+            EWSEnvelopePlan.element(EWSConstants.IS_READ, EWSConstants.IS_READ_ELEMENT),
+            EWSEnvelopePlan.element(EWSConstants.IS_RESPONSE_REQUESTED, EWSConstants.IS_RESPONSE_REQUESTED_ELEMENT),
+            EWSEnvelopePlan.element(EWSConstants.REFERENCES, EWSConstants.REFERENCES_ELEMENT),
+            EWSEnvelopePlan.fragment(EWSConstants.REPLY_TO),
+            EWSEnvelopePlan.fragment(EWSConstants.RECEIVED_BY),
+            EWSEnvelopePlan.fragment(EWSConstants.RECEIVED_REPRESENTING),
+            EWSEnvelopePlan.fragment(EWSConstants.APPROVAL_REQUEST_DATA),
+            EWSEnvelopePlan.fragment(EWSConstants.VOTING_INFORMATION),
+            EWSEnvelopePlan.fragment(EWSConstants.REMINDER_MESSAGE_DATA));
+
     private OMNamespace type = EWSUtils.type;
     private OMNamespace message = EWSUtils.message;
     private SOAPFactory soapFactory = OMAbstractFactory.getSOAP11Factory();
@@ -54,8 +140,19 @@ public class CreateItemMediator extends AbstractConnector {
         soapEnvelope.declareNamespace(message);
 
         try {
+            String messages = (String) ConnectorUtils.lookupTemplateParamater(messageContext, EWSConstants
+                    .MESSAGE_LIST);
+            if (!StringUtils.isEmpty(messages)) {
+                createItems(messageContext, messages);
+                return;
+            }
+            messageContext.setProperty(EWSConstants.EWS_BATCH_COMPLETED, "false");
+            EWSMetrics.Operation metrics = EWSMetrics.get("CreateItem");
+            long start = metrics.startBuild();
             soapEnvelope.addChild(populateSoapHeader(messageContext));
+            start = metrics.headerBuilt(start);
             soapEnvelope.addChild(populateBody(messageContext));
+            metrics.bodyBuilt(start);
             messageContext.setEnvelope(soapEnvelope);
         } catch (XMLStreamException e) {
             String msg = "Couldn't convert Element Body";
@@ -65,8 +162,16 @@ public class CreateItemMediator extends AbstractConnector {
             String msg = "Couldn't set SOAPEnvelope to MessageContext";
             log.error(msg, axisFault);
             throw new ConnectException(axisFault, msg);
-        } catch (TransformerException e) {
-            String msg = "Couldn't transform message";
+        } catch (DateTimeException e) {
+            String msg = "Couldn't resolve time zone";
+            log.error(msg, e);
+            throw new ConnectException(e, msg);
+        } catch (JSONException e) {
+            String msg = "Couldn't parse messages";
+            log.error(msg, e);
+            throw new ConnectException(e, msg);
+        } catch (IOException e) {
+            String msg = "Couldn't send CreateItem batch";
             log.error(msg, e);
             throw new ConnectException(e, msg);
         }
@@ -78,10 +183,8 @@ public class CreateItemMediator extends AbstractConnector {
      * @param messageContext message context of request
      * @return Soap Header
      * @throws XMLStreamException
-     * @throws TransformerException throws when 
      */
-    private SOAPHeader populateSoapHeader(MessageContext messageContext) throws XMLStreamException,
-            TransformerException {
+    private SOAPHeader populateSoapHeader(MessageContext messageContext) throws XMLStreamException {
         SOAPHeader soapHeader = soapFactory.createSOAPHeader();
         EWSUtils.populateTimeZoneContextHeader(soapHeader, messageContext);
         EWSUtils.populateRequestedServerVersionHeader(soapHeader, messageContext);
@@ -95,10 +198,26 @@ public class CreateItemMediator extends AbstractConnector {
      * @param messageContext message context of request
      * @return Soap Body
      * @throws XMLStreamException
-     * @throws TransformerException
      */
-    private SOAPBody populateBody(MessageContext messageContext) throws XMLStreamException, TransformerException {
+    private SOAPBody populateBody(MessageContext messageContext) throws XMLStreamException {
         SOAPBody soapBody = soapFactory.createSOAPBody();
+        OMElement createItemElement = populateCreateItemElement(messageContext);
+        OMElement itemElement = soapFactory.createOMElement(EWSConstants.ITEMS, message);
+        OMElement messageElement = soapFactory.createOMElement(EWSConstants.MESSAGE, type);
+        populateMessageElement(messageContext, messageElement);
+        itemElement.addChild(messageElement);
+        createItemElement.addChild(itemElement);
+        soapBody.addChild(createItemElement);
+        return soapBody;
+    }
+
+    /**
+     * used to populate CreateItem element with its attributes and SavedItemFolderId, without the Items
+     * @param messageContext message context of request
+     * @return CreateItem element
+     * @throws XMLStreamException
+     */
+    private OMElement populateCreateItemElement(MessageContext messageContext) throws XMLStreamException {
         OMElement createItemElement = soapFactory.createOMElement(EWSConstants.CREATE_ITEM_ELEMENT, message);
         EWSUtils.setValueToXMLAttribute(messageContext, createItemElement, EWSConstants.MESSAGE_DISPOSITION,
                 EWSConstants.MESSAGE_DISPOSITION_ELEMENT);
@@ -110,13 +229,42 @@ public class CreateItemMediator extends AbstractConnector {
         if (saveItemFolderIdElement.getAllAttributes().hasNext()) {
             createItemElement.addChild(saveItemFolderIdElement);
         }
-        OMElement itemElement = soapFactory.createOMElement(EWSConstants.ITEMS, message);
-        OMElement messageElement = soapFactory.createOMElement(EWSConstants.MESSAGE, type);
-        populateMessageElement(messageContext, messageElement);
-        itemElement.addChild(messageElement);
-        createItemElement.addChild(itemElement);
-        soapBody.addChild(createItemElement);
-        return soapBody;
+        return createItemElement;
+    }
+
+    /**
+     * Used to create the listed messages in chunks and set the merged response to the message context. Messages
+     * reported in EWS_BATCH_FAILED_INDEXES with ErrorConnectionFailed may have been created by the server before
+     * the connection failed.
+     * @param messageContext message context of request
+     * @param messages list of message definitions
+     * @throws XMLStreamException
+     * @throws JSONException when the message list couldn't be parsed
+     * @throws IOException when no endpoint is configured or the dispatch got interrupted
+     */
+    private void createItems(MessageContext messageContext, String messages) throws XMLStreamException,
+            JSONException, IOException {
+        SOAPHeader soapHeader = populateSoapHeader(messageContext);
+        OMElement createItemElement = populateCreateItemElement(messageContext);
+        int batchSize = EWSUtils.lookupIntParameter(messageContext, EWSConstants.BATCH_SIZE, DEFAULT_BATCH_SIZE);
+        List<SOAPEnvelope> requests = new ArrayList<SOAPEnvelope>();
+        List<Integer> itemCounts = new ArrayList<Integer>();
+        for (List<Map<String, Object>> chunk : EWSBatchDispatcher.chunk(EWSUtils.parseParameterList(messages),
+                batchSize)) {
+            SOAPEnvelope request = EWSBatchDispatcher.createRequest(soapHeader);
+            OMElement itemElement = soapFactory.createOMElement(EWSConstants.ITEMS, message, EWSUtils.copyElement
+                    (createItemElement, request.getBody()));
+            for (Map<String, Object> messageParameters : chunk) {
+                MESSAGE_PLAN.populate(messageParameters, soapFactory.createOMElement(EWSConstants.MESSAGE, type,
+                        itemElement));
+            }
+            requests.add(request);
+            itemCounts.add(chunk.size());
+        }
+        EWSBatchDispatcher dispatcher = new EWSBatchDispatcher(EWSClient.forMessage(messageContext), EWSConstants
+                .CREATE_ITEM_ELEMENT, EWSUtils.lookupIntParameter(messageContext, EWSConstants.BATCH_PARALLELISM,
+                DEFAULT_BATCH_PARALLELISM));
+        EWSBatchDispatcher.complete(messageContext, dispatcher.dispatch(requests, itemCounts));
     }
 
     /**
@@ -124,125 +272,9 @@ public class CreateItemMediator extends AbstractConnector {
      * @param messageContext message context of request
      * @param baseElement baseElement of element
      * @throws XMLStreamException
-     * @throws TransformerException
      */
     private void populateMessageElement(MessageContext messageContext, OMElement baseElement) throws
-            XMLStreamException, TransformerException {
-        populateDirectElements(messageContext, baseElement, EWSConstants.MIME_CONTENT);
-        populateDirectElements(messageContext, baseElement, EWSConstants.ITEM_ID);
-        populateDirectElements(messageContext, baseElement, EWSConstants.PARENT_FOLDER_ID);
-        EWSUtils.setValueToXMLElement(messageContext, EWSConstants.ITEM_CLASS, baseElement, EWSConstants
-                .ITEM_CLASS_ELEMENT);
-        EWSUtils.setValueToXMLElement(messageContext, EWSConstants.SUBJECT, baseElement, EWSConstants.SUBJECT_ELEMENT);
-        EWSUtils.setValueToXMLElement(messageContext, EWSConstants.SENSITIVITY, baseElement, EWSConstants
-                .SENSITIVITY_ELEMENT);
-        OMElement bodyOmElement = soapFactory.createOMElement(EWSConstants.BODY_ELEMENT, type);
-        String body = (String) ConnectorUtils.lookupTemplateParamater(messageContext, EWSConstants.BODY);
-        if (!StringUtils.isEmpty(body)) {
-            OMElement bodyElement = AXIOMUtil.stringToOM(body);
-            String bodyType = bodyElement.getFirstChildWithName(new QName(EWSConstants.BODY_TYPE_ATTRIBUTE)).getText();
-            String content = bodyElement.getFirstChildWithName(new QName(EWSConstants.CONTENT)).getText();
-            bodyOmElement.addAttribute(EWSConstants.BODY_TYPE_ATTRIBUTE, bodyType, null);
-            bodyOmElement.setText(content);
-            baseElement.addChild(bodyOmElement);
-        }
-        EWSUtils.populateDirectElements(messageContext, baseElement, EWSConstants.ATTACHMENTS);
-        EWSUtils.setValueToXMLElement(messageContext, EWSConstants.DATE_TIME_RECEIVED, baseElement, EWSConstants
-                .DATE_TIME_RECEIVED_ELEMENT);
-        EWSUtils.setValueToXMLElement(messageContext, EWSConstants.SIZE, baseElement, EWSConstants.SIZE_ELEMENT);
-        EWSUtils.populateDirectElements(messageContext, baseElement, EWSConstants.CATEGORIES);
-        EWSUtils.setValueToXMLElement(messageContext, EWSConstants.IMPORTANCE, baseElement, EWSConstants
-                .IMPORTANCE_ELEMENT);
-        EWSUtils.setValueToXMLElement(messageContext, EWSConstants.IN_REPLY_TO, baseElement, EWSConstants
-                .IN_REPLY_TO_ELEMENT);
-        EWSUtils.setValueToXMLElement(messageContext, EWSConstants.IS_SUBMITTED, baseElement, EWSConstants
-                .IS_SUBMITTED_ELEMENT);
-        EWSUtils.setValueToXMLElement(messageContext, EWSConstants.IS_DRAFT, baseElement, EWSConstants
-                .IS_DRAFT_ELEMENT);
-        EWSUtils.setValueToXMLElement(messageContext, EWSConstants.IS_FROM_ME, baseElement, EWSConstants
-                .IS_FROM_ME_ELEMENT);
-        EWSUtils.setValueToXMLElement(messageContext, EWSConstants.IS_RESEND, baseElement, EWSConstants
-                .IS_RESEND_ELEMENT);
-        EWSUtils.setValueToXMLElement(messageContext, EWSConstants.IS_UNMODIFIED, baseElement, EWSConstants
-                .IS_UNMODIFIED_ELEMENT);
-        populateDirectElements(messageContext, baseElement, EWSConstants.INTERNET_MESSAGE_HEADERS);
-        EWSUtils.setValueToXMLElement(messageContext, EWSConstants.DATE_TIME_SENT, baseElement, EWSConstants
-                .DATE_TIME_SENT_ELEMENT);
-        EWSUtils.setValueToXMLElement(messageContext, EWSConstants.DATE_TIME_CREATED, baseElement, EWSConstants
-                .DATE_TIME_CREATED_ELEMENT);
-        populateDirectElements(messageContext, baseElement, EWSConstants.RESPONSE_OBJECTS);
-        EWSUtils.setValueToXMLElement(messageContext, EWSConstants.REMINDER_DUE_BY, baseElement, EWSConstants
-                .REMINDER_DUE_BY_ELEMENT);
-        EWSUtils.setValueToXMLElement(messageContext, EWSConstants.REMINDER_IS_SET, baseElement, EWSConstants
-                .REMINDER_IS_SET_ELEMENT);
-        EWSUtils.setValueToXMLElement(messageContext, EWSConstants.REMINDER_NEXT_TIME, baseElement, EWSConstants
-                .REMINDER_NEXT_TIME_ELEMENT);
-        EWSUtils.setValueToXMLElement(messageContext, EWSConstants.REMINDER_MINUTES_BEFORE_START, baseElement,
-                EWSConstants.REMINDER_MINUTES_BEFORE_START_ELEMENT);
-        EWSUtils.setValueToXMLElement(messageContext, EWSConstants.DISPLAY_CC, baseElement, EWSConstants
-                .DISPLAY_CC_ELEMENT);
-        EWSUtils.setValueToXMLElement(messageContext, EWSConstants.DISPLAY_TO, baseElement, EWSConstants
-                .DISPLAY_TO_ELEMENT);
-        EWSUtils.setValueToXMLElement(messageContext, EWSConstants.HAS_ATTACHMENTS, baseElement, EWSConstants
-                .HAS_ATTACHMENTS_ELEMENT);
-        EWSUtils.setValueToXMLElement(messageContext, EWSConstants.IS_ASSOCIATED, baseElement, EWSConstants
-                .IS_ASSOCIATED_ELEMENT);
-        EWSUtils.setValueToXMLElement(messageContext, EWSConstants.WEB_CLIENT_READ_FORM_QUERY_STRING, baseElement,
-                EWSConstants.WEB_CLIENT_READ_FORM_QUERY_STRING_ELEMENT);
-        EWSUtils.setValueToXMLElement(messageContext, EWSConstants.WEB_CLIENT_EDIT_FORM_QUERY_STRING, baseElement,
-                EWSConstants.WEB_CLIENT_EDIT_FORM_QUERY_STRING_ELEMENT);
-        populateDirectElements(messageContext, baseElement, EWSConstants.CONVERSATION_ID);
-        populateDirectElements(messageContext, baseElement, EWSConstants.UNIQUE_BODY);
-        populateDirectElements(messageContext, baseElement, EWSConstants.FLAG);
-        EWSUtils.setValueToXMLElement(messageContext, EWSConstants.STORE_ENTRY_ID, baseElement, EWSConstants
-                .STORE_ENTRY_ID_ELEMENT);
-        EWSUtils.setValueToXMLElement(messageContext, EWSConstants.INSTANCE_KEY, baseElement, EWSConstants
-                .INSTANCE_KEY_ELEMENT);
-        populateDirectElements(messageContext, baseElement, EWSConstants.NORMALIZED_BODY);
-        populateDirectElements(messageContext, baseElement, EWSConstants.ENTITY_EXTRACTION_RESULT);
-        populateDirectElements(messageContext, baseElement, EWSConstants.POLICY_TAG);
-        populateDirectElements(messageContext, baseElement, EWSConstants.ARCHIVE_TAG);
-        EWSUtils.setValueToXMLElement(messageContext, EWSConstants.RETENTION_DATE, baseElement, EWSConstants
-                .RETENTION_DATE_ELEMENT);
-        EWSUtils.setValueToXMLElement(messageContext, EWSConstants.PREVIEW, baseElement, EWSConstants.PREVIEW_ELEMENT);
-        populateDirectElements(messageContext, baseElement, EWSConstants.RIGHTS_MANAGEMENT_LICENSE_DATA);
-        populateDirectElements(messageContext, baseElement, EWSConstants.PREDICTED_ACTION_REASONS);
-        EWSUtils.setValueToXMLElement(messageContext, EWSConstants.IS_CLUTTER, baseElement, EWSConstants
-                .IS_CLUTTER_ELEMENT);
-        EWSUtils.setValueToXMLElement(messageContext, EWSConstants.BLOCK_STATUS, baseElement, EWSConstants
-                .BLOCK_STATUS_ELEMENT);
-        EWSUtils.setValueToXMLElement(messageContext, EWSConstants.HAS_BLOCKED_IMAGES, baseElement, EWSConstants
-                .HAS_BLOCKED_IMAGES_ELEMENT);
-        populateDirectElements(messageContext, baseElement, EWSConstants.TEXT_BODY);
-        EWSUtils.setValueToXMLElement(messageContext, EWSConstants.ICON_INDEX, baseElement, EWSConstants
-                .ICON_INDEX_ELEMENT);
-        populateDirectElements(messageContext, baseElement, EWSConstants.SENDER);
-        populateDirectElements(messageContext, baseElement, EWSConstants.TO_RECIPIENTS);
-        populateDirectElements(messageContext, baseElement, EWSConstants.CC_RECIPIENTS);
-        populateDirectElements(messageContext, baseElement, EWSConstants.BCC_RECIPIENTS);
-        EWSUtils.setValueToXMLElement(messageContext, EWSConstants.IS_READ_RECEIPT_REQUESTED, baseElement,
-                EWSConstants.IS_READ_RECEIPT_REQUESTED_ELEMENT);
-        EWSUtils.setValueToXMLElement(messageContext, EWSConstants.IS_DELIVERY_RECEIPT_REQUESTED, baseElement,
-                EWSConstants.IS_DELIVERY_RECEIPT_REQUESTED_ELEMENT);
-        EWSUtils.setValueToXMLElement(messageContext, EWSConstants.CONVERSATION_INDEX, baseElement, EWSConstants
-                .CONVERSATION_INDEX_ELEMENT);
-        EWSUtils.setValueToXMLElement(messageContext, EWSConstants.CONVERSATION_TOPIC, baseElement, EWSConstants
-                .CONVERSATION_TOPIC_ELEMENT);
-        populateDirectElements(messageContext, baseElement, EWSConstants.FROM);
-        EWSUtils.setValueToXMLElement(messageContext, EWSConstants.INTERNET_MESSAGE_ID, baseElement, EWSConstants
-                .INTERNET_MESSAGE_ID_ELEMENT);
-        EWSUtils.setValueToXMLElement(messageContext, EWSConstants.IS_READ, baseElement, EWSConstants.IS_READ_ELEMENT);
-        EWSUtils.setValueToXMLElement(messageContext, EWSConstants.IS_RESPONSE_REQUESTED, baseElement, EWSConstants
-                .IS_RESPONSE_REQUESTED_ELEMENT);
-        EWSUtils.setValueToXMLElement(messageContext, EWSConstants.REFERENCES, baseElement, EWSConstants
-                .REFERENCES_ELEMENT);
-        populateDirectElements(messageContext, baseElement, EWSConstants.REPLY_TO);
-        populateDirectElements(messageContext, baseElement, EWSConstants.RECEIVED_BY);
-        populateDirectElements(messageContext, baseElement, EWSConstants.RECEIVED_REPRESENTING);
-        populateDirectElements(messageContext, baseElement, EWSConstants.APPROVAL_REQUEST_DATA);
-        populateDirectElements(messageContext, baseElement, EWSConstants.VOTING_INFORMATION);
-        populateDirectElements(messageContext, baseElement, EWSConstants.REMINDER_MESSAGE_DATA);
-
-
+            XMLStreamException {
+        MESSAGE_PLAN.populate(messageContext, baseElement);
     }
 }
@@ -0,0 +1,208 @@
+/*
+*  Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+package org.wso2.carbon.connector;
+
+import org.apache.axiom.om.OMDataSourceExt;
+import org.apache.axiom.om.OMNamespace;
+import org.apache.axiom.om.OMOutputFormat;
+import org.apache.axiom.om.ds.OMDataSourceExtBase;
+import org.apache.axiom.om.util.StAXUtils;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * Data source of a FileAttachment &lt;Content&gt; element which base64 encodes the attachment while the
+ * request is written, so the attachment is never held in memory as a whole.
+ * <p>
+ * The content is read in chunks of a multiple of three bytes, which encode to base64 without padding, and each
+ * chunk is written to the stream writer as it is encoded. A file source can be written any number of times; a
+ * stream source is consumed by the first write.
+ */
+final class EWSAttachmentDataSource extends OMDataSourceExtBase {
+    private static final int CHUNK_SIZE = 3 * 16 * 1024;
+
+    private final OMNamespace namespace;
+    private final File file;
+    private InputStream stream;
+
+    private EWSAttachmentDataSource(OMNamespace namespace, File file, InputStream stream) {
+        this.namespace = namespace;
+        this.file = file;
+        this.stream = stream;
+    }
+
+    /**
+     * Content read from a local file.
+     *
+     * @param namespace namespace of the Content element
+     * @param file attachment file
+     * @return data source
+     */
+    static EWSAttachmentDataSource forFile(OMNamespace namespace, File file) {
+        return new EWSAttachmentDataSource(namespace, file, null);
+    }
+
+    /**
+     * Content read from a stream, which is closed once it has been written.
+     *
+     * @param namespace namespace of the Content element
+     * @param stream attachment stream
+     * @return data source
+     */
+    static EWSAttachmentDataSource forStream(OMNamespace namespace, InputStream stream) {
+        return new EWSAttachmentDataSource(namespace, null, stream);
+    }
+
+    public void serialize(XMLStreamWriter writer) throws XMLStreamException {
+        String prefix = namespace.getPrefix();
+        String namespaceURI = namespace.getNamespaceURI();
+        boolean declared = namespaceURI.equals(writer.getNamespaceContext().getNamespaceURI(prefix));
+        writer.writeStartElement(prefix, EWSConstants.CONTENT, namespaceURI);
+        if (!declared) {
+            writer.writeNamespace(prefix, namespaceURI);
+        }
+        InputStream input = null;
+        try {
+            input = open();
+            Base64.Encoder encoder = Base64.getEncoder();
+            byte[] chunk = new byte[CHUNK_SIZE];
+            byte[] encoded = new byte[CHUNK_SIZE / 3 * 4];
+            char[] characters = new char[encoded.length];
+            int read;
+            while ((read = readChunk(input, chunk)) > 0) {
+                int length = encoder.encode(read == chunk.length ? chunk : Arrays.copyOf(chunk, read), encoded);
+                for (int i = 0; i < length; i++) {
+                    characters[i] = (char) encoded[i];
+                }
+                writer.writeCharacters(characters, 0, length);
+            }
+        } catch (IOException e) {
+            throw new XMLStreamException("Couldn't read attachment content", e);
+        } finally {
+            closeQuietly(input);
+        }
+        writer.writeEndElement();
+    }
+
+    public void serialize(OutputStream output, OMOutputFormat format) throws XMLStreamException {
+        XMLStreamWriter writer = StAXUtils.createXMLStreamWriter(output, format.getCharSetEncoding());
+        serialize(writer);
+        writer.flush();
+    }
+
+    public void serialize(Writer output, OMOutputFormat format) throws XMLStreamException {
+        XMLStreamWriter writer = StAXUtils.createXMLStreamWriter(output);
+        serialize(writer);
+        writer.flush();
+    }
+
+    /**
+     * Only used when the Content element gets expanded, e.g. by a full log, in which case the encoded content is
+     * buffered.
+     */
+    public XMLStreamReader getReader() throws XMLStreamException {
+        return StAXUtils.createXMLStreamReader(new ByteArrayInputStream(toBytes()));
+    }
+
+    public byte[] getXMLBytes(String encoding) throws UnsupportedEncodingException {
+        try {
+            return toBytes();
+        } catch (XMLStreamException e) {
+            throw new IllegalStateException("Couldn't read attachment content", e);
+        }
+    }
+
+    public Object getObject() {
+        return file != null ? file : stream;
+    }
+
+    public boolean isDestructiveRead() {
+        return file == null;
+    }
+
+    public boolean isDestructiveWrite() {
+        return file == null;
+    }
+
+    public void close() {
+        closeQuietly(stream);
+        stream = null;
+    }
+
+    public OMDataSourceExt copy() {
+        return file != null ? forFile(namespace, file) : null;
+    }
+
+    private byte[] toBytes() throws XMLStreamException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        OMOutputFormat format = new OMOutputFormat();
+        format.setCharSetEncoding(OMOutputFormat.DEFAULT_CHAR_SET_ENCODING);
+        serialize(output, format);
+        return output.toByteArray();
+    }
+
+    private InputStream open() throws IOException {
+        if (file != null) {
+            return new FileInputStream(file);
+        }
+        if (stream == null) {
+            throw new IOException("Attachment stream has already been consumed");
+        }
+        InputStream input = stream;
+        stream = null;
+        return input;
+    }
+
+    /**
+     * Fills the chunk as far as possible so that only the last chunk may need base64 padding.
+     */
+    private static int readChunk(InputStream input, byte[] chunk) throws IOException {
+        int filled = 0;
+        while (filled < chunk.length) {
+            int read = input.read(chunk, filled, chunk.length - filled);
+            if (read < 0) {
+                break;
+            }
+            filled += read;
+        }
+        return filled;
+    }
+
+    private static void closeQuietly(InputStream input) {
+        if (input != null) {
+            try {
+                input.close();
+            } catch (IOException ignore) {
+                // nothing to do, the content has been written or the write failed already
+            }
+        }
+    }
+}
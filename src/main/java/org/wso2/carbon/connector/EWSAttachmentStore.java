@@ -0,0 +1,384 @@
+/*
+*  Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+package org.wso2.carbon.connector;
+
+import org.apache.axiom.om.OMAbstractFactory;
+import org.apache.axiom.om.OMElement;
+import org.apache.axiom.om.OMFactory;
+import org.apache.axiom.om.util.AXIOMUtil;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLStreamException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded, thread safe LRU store of file attachments keyed by AttachmentId.
+ * <p>
+ * Exchange never changes the content of an attachment, a changed attachment gets a new AttachmentId, so a stored
+ * attachment never goes stale. Like the item cache, keys hold a digest of the connection, the credentials and the
+ * SOAP header, so an attachment is only served to requests that may read it. The decoded content is stored by its
+ * SHA-256 hash and shared by all AttachmentIds with the same content. Content up to memoryThreshold bytes is kept in
+ * memory, larger content in files of the store directory; both are bounded, and the least recently used attachments
+ * are evicted first. Files left in the store directory by an earlier run are deleted when the store is created.
+ */
+final class EWSAttachmentStore {
+    private static final Log log = LogFactory.getLog(EWSAttachmentStore.class);
+    private static final OMFactory omFactory = OMAbstractFactory.getOMFactory();
+    private static final int DEFAULT_MAX_ENTRIES = 10000;
+    private static final int DEFAULT_MEMORY_THRESHOLD = 64 * 1024;
+    private static final long DEFAULT_MAX_MEMORY_BYTES = 64L * 1024 * 1024;
+    private static final long DEFAULT_MAX_DISK_BYTES = 1024L * 1024 * 1024;
+    private static final String STORE_FILE_PREFIX = "ews-attachment-";
+
+    private static final EWSAttachmentStore instance = new EWSAttachmentStore(Integer.getInteger(
+            "ews.attachment.cache.size", DEFAULT_MAX_ENTRIES), Integer.getInteger(
+            "ews.attachment.cache.memoryThreshold", DEFAULT_MEMORY_THRESHOLD), Long.getLong(
+            "ews.attachment.cache.maxMemoryBytes", DEFAULT_MAX_MEMORY_BYTES), Long.getLong(
+            "ews.attachment.cache.maxDiskBytes", DEFAULT_MAX_DISK_BYTES), new File(System.getProperty(
+            "ews.attachment.cache.dir", new File(System.getProperty("java.io.tmpdir"), "ews-attachment-store")
+            .getPath())));
+
+    private final int maxEntries;
+    private final int memoryThreshold;
+    private final long maxMemoryBytes;
+    private final long maxDiskBytes;
+    private final File directory;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private final Map<String, Blob> blobs = new HashMap<String, Blob>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong deduplicated = new AtomicLong();
+    private final AtomicLong bytesSaved = new AtomicLong();
+    private long memoryBytes;
+    private long diskBytes;
+
+    /**
+     * @param maxEntries maximum number of stored attachments
+     * @param memoryThreshold maximum size of content kept in memory, larger content is stored on disk
+     * @param maxMemoryBytes maximum summed size of the content kept in memory
+     * @param maxDiskBytes maximum summed size of the content stored on disk
+     * @param directory directory of the content stored on disk
+     */
+    EWSAttachmentStore(int maxEntries, int memoryThreshold, long maxMemoryBytes, long maxDiskBytes, File
+            directory) {
+        this.maxEntries = maxEntries;
+        this.memoryThreshold = memoryThreshold;
+        this.maxMemoryBytes = maxMemoryBytes;
+        this.maxDiskBytes = maxDiskBytes;
+        this.directory = directory;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            log.warn("Couldn't create attachment store directory " + directory + ", using the temporary directory");
+            return;
+        }
+        File[] leftovers = directory.listFiles();
+        if (leftovers != null) {
+            for (File leftover : leftovers) {
+                if (leftover.getName().startsWith(STORE_FILE_PREFIX) && !leftover.delete()) {
+                    log.warn("Couldn't delete attachment store file " + leftover);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return store shared by all GetAttachment operations
+     */
+    static EWSAttachmentStore getInstance() {
+        return instance;
+    }
+
+    /**
+     * Used to build the key of an attachment
+     *
+     * @param scope digest of the request scope, see {@link EWSItemCache#scope(String, OMElement...)}
+     * @param attachmentId AttachmentId of the attachment
+     * @return key
+     */
+    static String key(String scope, String attachmentId) {
+        return scope + '|' + attachmentId;
+    }
+
+    /**
+     * Used to get a stored attachment. The Content element of its FileAttachment reads the stored content
+     * when it is serialized, so the content is never held in memory as base64 text.
+     *
+     * @param key key of the attachment
+     * @return stored attachment, null if the attachment isn't stored
+     * @throws XMLStreamException when the stored attachment properties couldn't be parsed
+     */
+    StoredAttachment get(String key) throws XMLStreamException {
+        String properties = null;
+        InputStream content = null;
+        long size = 0;
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                try {
+                    // the content is opened while the store is locked, so eviction can't delete it before
+                    content = entry.blob.buffer.getInputStream();
+                    properties = entry.properties;
+                    size = entry.blob.size;
+                } catch (IOException e) {
+                    log.warn("Couldn't read stored attachment content, removing it from the store", e);
+                    entries.remove(key);
+                    release(entry.blob);
+                }
+            }
+        }
+        if (content == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        bytesSaved.addAndGet(size);
+        OMElement fileAttachment = AXIOMUtil.stringToOM(properties);
+        // the properties are parsed completely first, otherwise Content would be added ahead of them
+        fileAttachment.build();
+        fileAttachment.addChild(omFactory.createOMElement(EWSAttachmentDataSource.forStream(EWSUtils.type,
+                content), EWSConstants.CONTENT, EWSUtils.type));
+        return new StoredAttachment(fileAttachment, size);
+    }
+
+    /**
+     * Stores a FileAttachment of a GetAttachment response. The content is decoded and hashed first; if content
+     * with the same hash is stored already, the attachment shares it. A failure to store the content is logged and
+     * the attachment isn't stored.
+     *
+     * @param key key of the attachment
+     * @param fileAttachment FileAttachment element with its Content
+     */
+    void put(String key, OMElement fileAttachment) {
+        OMElement content = fileAttachment.getFirstChildWithName(new QName(EWSConstants.TYPE_NAME_SPACE,
+                EWSConstants.CONTENT));
+        if (content == null) {
+            return;
+        }
+        EWSSpoolBuffer buffer = new EWSSpoolBuffer(memoryThreshold, null, null, directory.isDirectory() ?
+                directory : null);
+        String hash;
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            DigestOutputStream output = new DigestOutputStream(buffer, digest);
+            EWSBase64Decoder decoder = new EWSBase64Decoder(output);
+            char[] text = content.getText().toCharArray();
+            decoder.decode(text, 0, text.length);
+            decoder.finish();
+            output.close();
+            hash = Base64.getEncoder().encodeToString(digest.digest());
+        } catch (IOException e) {
+            log.warn("Couldn't store attachment content", e);
+            buffer.dispose();
+            return;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 isn't supported", e);
+        }
+        if (buffer.size() > maxDiskBytes / 16) {
+            buffer.dispose();
+            return;
+        }
+        String properties = properties(fileAttachment);
+        synchronized (entries) {
+            Blob blob = blobs.get(hash);
+            if (blob != null) {
+                buffer.dispose();
+                deduplicated.incrementAndGet();
+            } else {
+                blob = new Blob(hash, buffer);
+                blobs.put(hash, blob);
+                if (blob.isOnDisk()) {
+                    diskBytes += blob.size;
+                } else {
+                    memoryBytes += blob.size;
+                }
+            }
+            blob.references++;
+            Entry replaced = entries.put(key, new Entry(properties, blob));
+            if (replaced != null) {
+                release(replaced.blob);
+            }
+            evict();
+        }
+    }
+
+    /**
+     * Evicts the least recently used attachments until the store is within its bounds, skipping attachments that
+     * don't free the kind of storage that is over its bound.
+     */
+    private void evict() {
+        Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+        while (eldest.hasNext() && (entries.size() > maxEntries || memoryBytes > maxMemoryBytes || diskBytes >
+                maxDiskBytes)) {
+            Blob blob = eldest.next().getValue().blob;
+            if (entries.size() > maxEntries || (blob.isOnDisk() ? diskBytes > maxDiskBytes : memoryBytes >
+                    maxMemoryBytes)) {
+                eldest.remove();
+                evictions.incrementAndGet();
+                release(blob);
+            }
+        }
+    }
+
+    private void release(Blob blob) {
+        if (--blob.references > 0) {
+            return;
+        }
+        blobs.remove(blob.hash);
+        if (blob.isOnDisk()) {
+            diskBytes -= blob.size;
+        } else {
+            memoryBytes -= blob.size;
+        }
+        blob.buffer.dispose();
+    }
+
+    /**
+     * The FileAttachment without its Content.
+     */
+    private static String properties(OMElement fileAttachment) {
+        OMElement properties = omFactory.createOMElement(fileAttachment.getLocalName(), fileAttachment
+                .getNamespace());
+        for (Iterator children = fileAttachment.getChildElements(); children.hasNext(); ) {
+            OMElement child = (OMElement) children.next();
+            if (!EWSConstants.CONTENT.equals(child.getLocalName())) {
+                EWSUtils.copyElement(child, properties);
+            }
+        }
+        return properties.toString();
+    }
+
+    long getHitCount() {
+        return hits.get();
+    }
+
+    long getMissCount() {
+        return misses.get();
+    }
+
+    long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * @return number of stored attachments whose content was stored already
+     */
+    long getDeduplicatedCount() {
+        return deduplicated.get();
+    }
+
+    /**
+     * @return summed size of the attachment content served from the store
+     */
+    long getBytesSaved() {
+        return bytesSaved.get();
+    }
+
+    int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * @return number of distinct contents stored
+     */
+    int getContentCount() {
+        synchronized (entries) {
+            return blobs.size();
+        }
+    }
+
+    long getMemoryBytes() {
+        synchronized (entries) {
+            return memoryBytes;
+        }
+    }
+
+    long getDiskBytes() {
+        synchronized (entries) {
+            return diskBytes;
+        }
+    }
+
+    /**
+     * FileAttachment element of a stored attachment together with the size of its content.
+     */
+    static final class StoredAttachment {
+        private final OMElement fileAttachment;
+        private final long size;
+
+        private StoredAttachment(OMElement fileAttachment, long size) {
+            this.fileAttachment = fileAttachment;
+            this.size = size;
+        }
+
+        OMElement getFileAttachment() {
+            return fileAttachment;
+        }
+
+        long getSize() {
+            return size;
+        }
+    }
+
+    /**
+     * Properties of a stored attachment and its content.
+     */
+    private static final class Entry {
+        private final String properties;
+        private final Blob blob;
+
+        private Entry(String properties, Blob blob) {
+            this.properties = properties;
+            this.blob = blob;
+        }
+    }
+
+    /**
+     * Decoded content shared by all attachments with the same hash.
+     */
+    private static final class Blob {
+        private final String hash;
+        private final EWSSpoolBuffer buffer;
+        private final long size;
+        private int references;
+
+        private Blob(String hash, EWSSpoolBuffer buffer) {
+            this.hash = hash;
+            this.buffer = buffer;
+            this.size = buffer.size();
+        }
+
+        private boolean isOnDisk() {
+            return buffer.getFile() != null;
+        }
+    }
+}
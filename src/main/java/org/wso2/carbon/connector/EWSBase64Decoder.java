@@ -0,0 +1,122 @@
+/*
+*  Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+package org.wso2.carbon.connector;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Incremental base64 decoder fed with the character chunks of a text node as the parser reports them.
+ * Whitespace is skipped and a group of four characters may be split across chunks; decoded bytes are written to
+ * the target stream through a small fixed size buffer.
+ */
+final class EWSBase64Decoder {
+    private static final int BUFFER_SIZE = 8 * 1024;
+    private static final int[] ALPHABET = new int[128];
+
+    static {
+        Arrays.fill(ALPHABET, -1);
+        String characters = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for (int i = 0; i < characters.length(); i++) {
+            ALPHABET[characters.charAt(i)] = i;
+        }
+    }
+
+    private final OutputStream output;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position;
+    private int quantum;
+    private int characters;
+    private boolean padded;
+    private long size;
+
+    EWSBase64Decoder(OutputStream output) {
+        this.output = output;
+    }
+
+    /**
+     * Decodes the next chunk of base64 text.
+     *
+     * @param text character buffer
+     * @param offset start of the chunk
+     * @param length length of the chunk
+     * @throws IOException when the text is not base64 or the target couldn't be written
+     */
+    void decode(char[] text, int offset, int length) throws IOException {
+        for (int i = offset, end = offset + length; i < end; i++) {
+            char character = text[i];
+            if (character == '=') {
+                padded = true;
+                continue;
+            }
+            int value = character < ALPHABET.length ? ALPHABET[character] : -1;
+            if (value < 0) {
+                if (Character.isWhitespace(character)) {
+                    continue;
+                }
+                throw new IOException("Invalid base64 character '" + character + "' in attachment content");
+            }
+            if (padded) {
+                throw new IOException("Base64 attachment content continues after padding");
+            }
+            quantum = (quantum << 6) | value;
+            if (++characters == 4) {
+                if (position > buffer.length - 3) {
+                    flush();
+                }
+                buffer[position++] = (byte) (quantum >> 16);
+                buffer[position++] = (byte) (quantum >> 8);
+                buffer[position++] = (byte) quantum;
+                characters = 0;
+                quantum = 0;
+            }
+        }
+    }
+
+    /**
+     * Decodes the trailing, padded group and flushes the buffer.
+     *
+     * @return number of decoded bytes
+     * @throws IOException when the text ended in the middle of a group or the target couldn't be written
+     */
+    long finish() throws IOException {
+        if (characters == 1) {
+            throw new IOException("Truncated base64 attachment content");
+        }
+        if (position > buffer.length - 2) {
+            flush();
+        }
+        if (characters == 2) {
+            buffer[position++] = (byte) (quantum >> 4);
+        } else if (characters == 3) {
+            buffer[position++] = (byte) (quantum >> 10);
+            buffer[position++] = (byte) (quantum >> 2);
+        }
+        characters = 0;
+        flush();
+        output.flush();
+        return size;
+    }
+
+    private void flush() throws IOException {
+        output.write(buffer, 0, position);
+        size += position;
+        position = 0;
+    }
+}
@@ -0,0 +1,429 @@
+/*
+*  Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+package org.wso2.carbon.connector;
+
+import org.apache.axiom.om.OMAbstractFactory;
+import org.apache.axiom.om.OMElement;
+import org.apache.axiom.soap.SOAPEnvelope;
+import org.apache.axiom.soap.SOAPFactory;
+import org.apache.axiom.soap.SOAPFault;
+import org.apache.axiom.soap.SOAPHeader;
+import org.apache.axis2.AxisFault;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.synapse.MessageContext;
+
+import javax.xml.namespace.QName;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends the chunks of a batch operation concurrently, with at most a given number of chunks of one batch in
+ * flight, and merges the ResponseMessages of all chunks back into a single response in input order.
+ * <p>
+ * A chunk that fails as a whole (connection failure, SOAP fault), or whose response doesn't hold exactly one
+ * ResponseMessage per item, is replaced by one error ResponseMessage per item of the chunk, so the merged response
+ * always holds exactly one ResponseMessage per input item.
+ */
+final class EWSBatchDispatcher {
+    private static final Log log = LogFactory.getLog(EWSBatchDispatcher.class);
+    private static final SOAPFactory soapFactory = OMAbstractFactory.getSOAP11Factory();
+    private static final int THREADS = Integer.getInteger("ews.batch.threads", 32);
+    private static final String ERROR_CONNECTION_FAILED = "ErrorConnectionFailed";
+    private static final String ERROR_SERVER_BUSY = "ErrorServerBusy";
+    private static final String ERROR_INTERNAL_SERVER_ERROR = "ErrorInternalServerError";
+    private static final String ERROR = "Error";
+    private static final String MISMATCH_MESSAGE = "The number of response messages didn't match the number of items";
+
+    private static final ExecutorService executor;
+
+    static {
+        ThreadPoolExecutor threadPool = new ThreadPoolExecutor(THREADS, THREADS, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "ews-batch-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        threadPool.allowCoreThreadTimeOut(true);
+        executor = threadPool;
+    }
+
+    private final EWSClient client;
+    private final String operation;
+    private final int parallelism;
+
+    /**
+     * @param client client used to send the chunks
+     * @param operation EWS operation name, e.g. GetItem
+     * @param parallelism maximum number of chunks of this batch in flight
+     */
+    EWSBatchDispatcher(EWSClient client, String operation, int parallelism) {
+        this.client = client;
+        this.operation = operation;
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * @return pool shared by all connector operations that fan out into several EWS calls
+     */
+    static ExecutorService getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Used to split a list into chunks of at most the given size
+     *
+     * @param list list to split
+     * @param chunkSize maximum chunk size
+     * @return chunks in list order
+     */
+    static <T> List<List<T>> chunk(List<T> list, int chunkSize) {
+        List<List<T>> chunks = new ArrayList<List<T>>();
+        int size = Math.max(1, chunkSize);
+        for (int start = 0; start < list.size(); start += size) {
+            chunks.add(list.subList(start, Math.min(list.size(), start + size)));
+        }
+        return chunks;
+    }
+
+    /**
+     * Used to split a list into chunks of at most the given size whose summed item sizes stay within a budget. An
+     * item larger than the budget is put into a chunk of its own.
+     *
+     * @param list list to split
+     * @param chunkSize maximum chunk size
+     * @param sizes size of each item, 0 when unknown
+     * @param sizeBudget maximum summed size of a chunk
+     * @return chunks in list order
+     */
+    static <T> List<List<T>> chunk(List<T> list, int chunkSize, List<Long> sizes, long sizeBudget) {
+        List<List<T>> chunks = new ArrayList<List<T>>();
+        int size = Math.max(1, chunkSize);
+        int start = 0;
+        long chunkBytes = 0;
+        for (int i = 0; i < list.size(); i++) {
+            long itemBytes = sizes.get(i);
+            if (i > start && (i - start == size || chunkBytes + itemBytes > sizeBudget)) {
+                chunks.add(list.subList(start, i));
+                start = i;
+                chunkBytes = 0;
+            }
+            chunkBytes += itemBytes;
+        }
+        if (start < list.size()) {
+            chunks.add(list.subList(start, list.size()));
+        }
+        return chunks;
+    }
+
+    /**
+     * Used to create a chunk request envelope with a copy of the given header blocks
+     *
+     * @param soapHeader header shared by all chunks
+     * @return request envelope with an empty body
+     */
+    static SOAPEnvelope createRequest(SOAPHeader soapHeader) {
+        SOAPEnvelope request = soapFactory.getDefaultEnvelope();
+        request.declareNamespace(EWSUtils.type);
+        request.declareNamespace(EWSUtils.message);
+        SOAPHeader requestHeader = request.getHeader();
+        for (Iterator headerBlocks = soapHeader.getChildElements(); headerBlocks.hasNext(); ) {
+            EWSUtils.copyElement((OMElement) headerBlocks.next(), requestHeader);
+        }
+        return request;
+    }
+
+    /**
+     * Sends all chunk requests and merges their ResponseMessages in order.
+     *
+     * @param requests chunk requests
+     * @param itemCounts number of items in each chunk
+     * @return merged result
+     * @throws IOException when the dispatching thread got interrupted
+     */
+    Result dispatch(final List<SOAPEnvelope> requests, List<Integer> itemCounts) throws IOException {
+        final int chunks = requests.size();
+        final SOAPEnvelope[] responses = new SOAPEnvelope[chunks];
+        final Exception[] failures = new Exception[chunks];
+        CompletionService<Integer> completionService = new ExecutorCompletionService<Integer>(executor);
+        int submitted = 0;
+        try {
+            for (; submitted < chunks && submitted < parallelism; submitted++) {
+                completionService.submit(sendChunk(submitted, requests, responses, failures));
+            }
+            for (int completed = 0; completed < chunks; completed++) {
+                completionService.take();
+                if (submitted < chunks) {
+                    completionService.submit(sendChunk(submitted++, requests, responses, failures));
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " + operation + " batch responses");
+        }
+        return merge(operation, responses, failures, itemCounts);
+    }
+
+    /**
+     * Sets the merged response as the message envelope together with the batch properties.
+     *
+     * @param messageContext messageContext of Request
+     * @param result merged result
+     * @throws AxisFault when the envelope couldn't be set
+     */
+    static void complete(MessageContext messageContext, Result result) throws AxisFault {
+        EWSClient.setResponse(messageContext, result.envelope);
+        messageContext.setProperty(EWSConstants.EWS_BATCH_ITEM_COUNT, result.itemCount);
+        messageContext.setProperty(EWSConstants.EWS_BATCH_FAILED_COUNT, result.failedIndexes.size());
+        StringBuilder failedIndexes = new StringBuilder();
+        for (Integer index : result.failedIndexes) {
+            if (failedIndexes.length() > 0) {
+                failedIndexes.append(',');
+            }
+            failedIndexes.append(index);
+        }
+        messageContext.setProperty(EWSConstants.EWS_BATCH_FAILED_INDEXES, failedIndexes.toString());
+        StringBuilder failedCodes = new StringBuilder();
+        for (String code : result.failedCodes) {
+            if (failedCodes.length() > 0) {
+                failedCodes.append(',');
+            }
+            failedCodes.append(code);
+        }
+        messageContext.setProperty(EWSConstants.EWS_BATCH_FAILED_CODES, failedCodes.toString());
+    }
+
+    private Callable<Integer> sendChunk(final int index, final List<SOAPEnvelope> requests,
+                                        final SOAPEnvelope[] responses, final Exception[] failures) {
+        return new Callable<Integer>() {
+            public Integer call() {
+                try {
+                    responses[index] = client.send(operation, requests.get(index));
+                } catch (Exception e) {
+                    log.warn(operation + " batch chunk " + index + " failed", e);
+                    failures[index] = e;
+                }
+                return index;
+            }
+        };
+    }
+
+    /**
+     * Used to merge response messages that are known without a request, e.g. cached ones, with the result of the
+     * items that were dispatched
+     *
+     * @param operation EWS operation name, e.g. GetItem
+     * @param known response message of each input item, null for the dispatched items
+     * @param dispatched result of the dispatched items in input order, null when no item was dispatched
+     * @return merged result, with an error ResponseMessage for each dispatched item when the dispatched result
+     * doesn't hold exactly one ResponseMessage per dispatched item
+     */
+    static Result merge(String operation, OMElement[] known, Result dispatched) {
+        SOAPEnvelope envelope = soapFactory.getDefaultEnvelope();
+        OMElement responseMessages = createResponseMessages(envelope, operation);
+        List<OMElement> messages = dispatched == null ? new ArrayList<OMElement>() : getResponseMessages(dispatched
+                .envelope);
+        int dispatchedCount = 0;
+        for (OMElement responseMessage : known) {
+            if (responseMessage == null) {
+                dispatchedCount++;
+            }
+        }
+        boolean matched = messages.size() == dispatchedCount;
+        if (!matched) {
+            log.warn(operation + " returned " + messages.size() + " response messages for " + dispatchedCount +
+                    " items");
+        }
+        Result result = new Result(envelope);
+        int next = 0;
+        int failed = 0;
+        for (OMElement responseMessage : known) {
+            if (responseMessage == null && !matched) {
+                addErrors(operation, responseMessages, result, 1, ERROR_INTERNAL_SERVER_ERROR, MISMATCH_MESSAGE);
+                continue;
+            }
+            if (responseMessage == null) {
+                int index = next++;
+                responseMessage = messages.get(index);
+                responseMessage.detach();
+                if (failed < dispatched.failedIndexes.size() && dispatched.failedIndexes.get(failed) == index) {
+                    result.failedIndexes.add(result.itemCount);
+                    result.failedCodes.add(dispatched.failedCodes.get(failed++));
+                }
+            }
+            responseMessages.addChild(responseMessage);
+            result.itemCount++;
+        }
+        return result;
+    }
+
+    private static OMElement createResponseMessages(SOAPEnvelope envelope, String operation) {
+        envelope.declareNamespace(EWSUtils.type);
+        envelope.declareNamespace(EWSUtils.message);
+        OMElement responseElement = soapFactory.createOMElement(operation + "Response", EWSUtils.message,
+                envelope.getBody());
+        return soapFactory.createOMElement(EWSConstants.RESPONSE_MESSAGES_ELEMENT, EWSUtils.message,
+                responseElement);
+    }
+
+    /**
+     * Used to merge the ResponseMessages of chunk responses in order, replacing a chunk that failed as a whole by
+     * one error ResponseMessage per item
+     *
+     * @param operation EWS operation name, e.g. GetItem
+     * @param responses response of each chunk, null for a failed chunk
+     * @param failures failure of each chunk, null for a chunk with a response
+     * @param itemCounts number of items in each chunk
+     * @return merged result
+     */
+    static Result merge(String operation, SOAPEnvelope[] responses, Exception[] failures, List<Integer> itemCounts) {
+        SOAPEnvelope envelope = soapFactory.getDefaultEnvelope();
+        OMElement responseMessages = createResponseMessages(envelope, operation);
+        Result result = new Result(envelope);
+        for (int chunk = 0; chunk < responses.length; chunk++) {
+            int itemCount = itemCounts.get(chunk);
+            if (failures[chunk] != null) {
+                addErrors(operation, responseMessages, result, itemCount, failures[chunk] instanceof
+                        EWSServerBusyException ? ERROR_SERVER_BUSY : ERROR_CONNECTION_FAILED,
+                        failures[chunk].getMessage());
+            } else if (responses[chunk].getBody().hasFault()) {
+                SOAPFault fault = responses[chunk].getBody().getFault();
+                addErrors(operation, responseMessages, result, itemCount, faultResponseCode(fault),
+                        fault.getReason() == null ? null : fault.getReason().getText());
+            } else {
+                List<OMElement> messages = getResponseMessages(responses[chunk]);
+                if (messages.size() != itemCount) {
+                    // ResponseMessages belong to the items by their position only, so none of them can be matched
+                    log.warn(operation + " batch chunk " + chunk + " returned " + messages.size() +
+                            " response messages for " + itemCount + " items");
+                    addErrors(operation, responseMessages, result, itemCount, ERROR_INTERNAL_SERVER_ERROR,
+                            MISMATCH_MESSAGE);
+                    continue;
+                }
+                for (OMElement responseMessage : messages) {
+                    responseMessage.detach();
+                    responseMessages.addChild(responseMessage);
+                    if (ERROR.equals(responseMessage.getAttributeValue(new QName(EWSConstants
+                            .RESPONSE_CLASS_ATTRIBUTE)))) {
+                        OMElement responseCode = responseMessage.getFirstChildWithName(new QName(EWSConstants
+                                .MESSAGES_NAME_SPACE, EWSConstants.RESPONSE_CODE_ELEMENT));
+                        result.failedIndexes.add(result.itemCount);
+                        result.failedCodes.add(responseCode == null ? ERROR : responseCode.getText());
+                    }
+                    result.itemCount++;
+                }
+            }
+        }
+        return result;
+    }
+
+    private static void addErrors(String operation, OMElement responseMessages, Result result, int count,
+                                 String responseCode, String messageText) {
+        for (int i = 0; i < count; i++) {
+            OMElement responseMessage = soapFactory.createOMElement(operation + "ResponseMessage", EWSUtils.message,
+                    responseMessages);
+            responseMessage.addAttribute(EWSConstants.RESPONSE_CLASS_ATTRIBUTE, ERROR, null);
+            soapFactory.createOMElement(EWSConstants.MESSAGE_TEXT_ELEMENT, EWSUtils.message, responseMessage)
+                    .setText(messageText == null ? responseCode : messageText);
+            soapFactory.createOMElement(EWSConstants.RESPONSE_CODE_ELEMENT, EWSUtils.message, responseMessage)
+                    .setText(responseCode);
+            soapFactory.createOMElement(EWSConstants.DESCRIPTIVE_LINK_KEY_ELEMENT, EWSUtils.message,
+                    responseMessage).setText("0");
+            result.failedIndexes.add(result.itemCount++);
+            result.failedCodes.add(responseCode);
+        }
+    }
+
+    /**
+     * @return ResponseMessages of a response in order, none when it has no ResponseMessages element
+     */
+    private static List<OMElement> getResponseMessages(SOAPEnvelope response) {
+        List<OMElement> messages = new ArrayList<OMElement>();
+        OMElement responseElement = response.getBody().getFirstElement();
+        OMElement responseMessages = responseElement == null ? null : responseElement.getFirstChildWithName(
+                new QName(EWSConstants.MESSAGES_NAME_SPACE, EWSConstants.RESPONSE_MESSAGES_ELEMENT));
+        if (responseMessages != null) {
+            for (Iterator children = responseMessages.getChildElements(); children.hasNext(); ) {
+                messages.add((OMElement) children.next());
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * EWS puts the error code of a fault in a ResponseCode element of the fault detail.
+     */
+    static String faultResponseCode(SOAPFault fault) {
+        if (fault.getDetail() != null) {
+            for (Iterator descendants = fault.getDetail().getDescendants(false); descendants.hasNext(); ) {
+                Object descendant = descendants.next();
+                if (descendant instanceof OMElement && EWSConstants.RESPONSE_CODE_ELEMENT.equals(((OMElement)
+                        descendant).getLocalName())) {
+                    return ((OMElement) descendant).getText();
+                }
+            }
+        }
+        return ERROR_INTERNAL_SERVER_ERROR;
+    }
+
+    /**
+     * Merged response of a batch.
+     */
+    static final class Result {
+        private final SOAPEnvelope envelope;
+        private final List<Integer> failedIndexes = new ArrayList<Integer>();
+        private final List<String> failedCodes = new ArrayList<String>();
+        private int itemCount;
+
+        private Result(SOAPEnvelope envelope) {
+            this.envelope = envelope;
+        }
+
+        SOAPEnvelope getEnvelope() {
+            return envelope;
+        }
+
+        List<Integer> getFailedIndexes() {
+            return failedIndexes;
+        }
+
+        List<String> getFailedCodes() {
+            return failedCodes;
+        }
+
+        int getItemCount() {
+            return itemCount;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+*  Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+package org.wso2.carbon.connector;
+
+import org.apache.axiom.soap.SOAPEnvelope;
+import org.apache.axiom.soap.SOAPFault;
+import org.apache.synapse.FaultHandler;
+import org.apache.synapse.MessageContext;
+import org.apache.synapse.SynapseConstants;
+import org.wso2.carbon.connector.core.AbstractConnector;
+import org.wso2.carbon.connector.core.ConnectException;
+
+import javax.xml.stream.XMLStreamException;
+import java.io.IOException;
+import java.util.Stack;
+
+/**
+ * This class used to send the request built by an operation through the connection pool of the configured endpoint
+ * and to replace it with the response. The Action header of the template selects the EWS operation.
+ * <p>
+ * The utilisation of the pool after the call is set in the EWS_POOL_LEASED, EWS_POOL_AVAILABLE, EWS_POOL_PENDING
+ * and EWS_POOL_MAX properties. A SOAP fault response is set as the message and handed to the fault handler with its
+ * reason in ERROR_MESSAGE and its detail in ERROR_DETAIL, the way the call mediator with FORCE_ERROR_ON_SOAP_FAULT
+ * did, so the fault sequence reads the fault itself. Without a fault handler the mediation goes on with the fault.
+ * <p>
+ * The request no longer goes through a Synapse endpoint, which changes how the former call behaved:
+ * <ul>
+ * <li>The mediating thread always waits for the response, whatever the blocking parameter of the config operation
+ * says. The parameter is only kept so existing configurations still load; a non blocking call, which handed the
+ * message to the sender threads of the transport, isn't done anymore.</li>
+ * <li>The endpoint timeout of 60 seconds with the fault response action is the socketTimeout of the connection
+ * pool, or the adaptive timeout or requestTimeout when configured, and a timeout raises an error.</li>
+ * <li>The endpoint isn't suspended after a failure. Every request is sent and each failure raises its own error,
+ * and a server busy response holds back the further requests of its account for the back off it asks for.</li>
+ * <li>The proxy, key store, trust store, hostname verification, protocols and ciphers of the axis2.xml transport
+ * sender are applied to the connection pool by the config operation, which fails on sender settings the pool can't
+ * apply, such as http.nonProxyHosts or SSL profiles, instead of ignoring them.</li>
+ * </ul>
+ */
+public class EWSCallMediator extends AbstractConnector {
+    /**
+     * ERROR_CODE of a SOAP fault response, the one the call mediator sets with FORCE_ERROR_ON_SOAP_FAULT
+     */
+    private static final int ENDPOINT_CUSTOM_ERROR = 500000;
+
+    public void connect(MessageContext messageContext) throws ConnectException {
+        try {
+            EWSClient.call(messageContext);
+        } catch (XMLStreamException e) {
+            String msg = "Couldn't parse EWS response";
+            log.error(msg, e);
+            throw new ConnectException(e, msg);
+        } catch (IOException e) {
+            String msg = "Couldn't send request to EWS";
+            log.error(msg, e);
+            throw new ConnectException(e, msg);
+        }
+    }
+
+    @Override
+    public boolean mediate(MessageContext messageContext) {
+        if (!super.mediate(messageContext)) {
+            return false;
+        }
+        SOAPEnvelope envelope = messageContext.getEnvelope();
+        if (envelope == null || !envelope.hasFault()) {
+            return true;
+        }
+        Stack<FaultHandler> faultStack = messageContext.getFaultStack();
+        if (faultStack.isEmpty()) {
+            return true;
+        }
+        SOAPFault fault = envelope.getBody().getFault();
+        messageContext.setProperty(SynapseConstants.SENDING_FAULT, Boolean.TRUE);
+        messageContext.setProperty(SynapseConstants.ERROR_CODE, ENDPOINT_CUSTOM_ERROR);
+        messageContext.setProperty(SynapseConstants.ERROR_MESSAGE, fault.getReason() == null ? null : fault
+                .getReason().getText());
+        messageContext.setProperty(SynapseConstants.ERROR_DETAIL, fault.getDetail() == null ? null : fault
+                .getDetail().toString());
+        faultStack.pop().handleFault(messageContext, null);
+        return false;
+    }
+}
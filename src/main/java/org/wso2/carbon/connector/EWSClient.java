@@ -0,0 +1,1306 @@
+/*
+*  Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+package org.wso2.carbon.connector;
+
+import org.apache.axiom.om.OMXMLBuilderFactory;
+import org.apache.axiom.soap.SOAPEnvelope;
+import org.apache.axis2.AxisFault;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.util.EntityUtils;
+import org.apache.synapse.MessageContext;
+import org.apache.synapse.core.axis2.Axis2MessageContext;
+import org.apache.synapse.transport.passthru.PassThroughConstants;
+
+import javax.xml.stream.XMLStreamException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Sends SOAP requests to the EWS endpoint through the connection pool of the endpoint. Uses the endpoint,
+ * credentials and connection pool set by the config template.
+ * <p>
+ * With adaptive timeouts, a read of a response may block for a multiple of the 99th percentile latency of its
+ * operation instead of the socket timeout of the connection. With a request deadline, every request of the message,
+ * including retries and further pages, has to complete before it. Reads that don't change the mailbox can be hedged:
+ * when the response hasn't arrived after the 95th percentile latency, the request is sent once more and whichever
+ * response arrives first is used.
+ * <p>
+ * Responses are asked for gzip or deflate compressed and decompressed while they are parsed. Requests are gzip
+ * compressed from a configured size on, which the endpoint has to accept.
+ */
+final class EWSClient {
+    private static final String CONTENT_TYPE = "text/xml; charset=utf-8";
+    private static final String ACTION_PREFIX = "http://schemas.microsoft.com/exchange/services/2006/messages/";
+    private static final String STREAM = "stream";
+    private static final String ACCEPT_ENCODING = "Accept-Encoding";
+    private static final String GZIP = "gzip";
+    private static final String DEFLATE = "deflate";
+    private static final String IDENTITY = "identity";
+    private static final String BACK_END_OVERRIDE_COOKIE = "X-BackEndOverrideCookie";
+    private static final int COMPRESSION_BUFFER_SIZE = 8192;
+    // serialized bytes of a chunked request that may wait to be written, on top of those below the threshold
+    private static final int PIPE_CAPACITY = 64 * 1024;
+    private static final int HEDGE_THREADS = Integer.getInteger("ews.hedge.threads", 32);
+    private static final Set<String> HEDGED_OPERATIONS = new HashSet<String>(Arrays.asList(EWSConstants
+            .GET_ITEM_ELEMENT, EWSConstants.FIND_ITEM_ELEMENT, EWSConstants.GET_ATTACHMENTS));
+
+    private static final ExecutorService hedger;
+    // a serializer waits for the request to be written, so every chunked request needs a thread of its own
+    private static final ExecutorService serializer = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60,
+            TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), daemonThreads("ews-serializer-"));
+
+    static {
+        ThreadPoolExecutor threadPool = new ThreadPoolExecutor(HEDGE_THREADS, HEDGE_THREADS, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), daemonThreads("ews-hedge-"));
+        threadPool.allowCoreThreadTimeOut(true);
+        hedger = threadPool;
+    }
+
+    private static ThreadFactory daemonThreads(final String name) {
+        return new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    private final String endpointUrl;
+    private final EWSCredentialProvider credentials;
+    private final int timeout;
+    private final String connectionName;
+    private boolean adaptiveTimeout;
+    private boolean hedge;
+    private long deadline;
+    private int chunkingThreshold = -1;
+    private boolean responseCompression = true;
+    private int compressionThreshold = -1;
+
+    EWSClient(String endpointUrl, String authorization, int timeout) {
+        this(endpointUrl, new EWSStaticCredentialProvider(authorization), timeout, endpointUrl);
+    }
+
+    /**
+     * @param endpointUrl EWS endpoint
+     * @param credentials provider of the Authorization header of every request
+     * @param timeout milliseconds to wait for a connection and for a response
+     * @param connectionName name of the connection pool, looked up on every request so the client keeps working
+     *                       when the pool is configured again
+     */
+    EWSClient(String endpointUrl, EWSCredentialProvider credentials, int timeout, String connectionName) {
+        this.endpointUrl = endpointUrl;
+        this.credentials = credentials;
+        this.timeout = timeout;
+        this.connectionName = connectionName;
+    }
+
+    /**
+     * Used to create a client for the endpoint configured for the current message
+     *
+     * @param messageContext messageContext of Request
+     * @return client
+     * @throws IOException when no endpoint has been configured
+     */
+    static EWSClient forMessage(MessageContext messageContext) throws IOException {
+        Object endpointUrl = messageContext.getProperty(EWSConstants.EWS_API_URL);
+        if (endpointUrl == null) {
+            throw new IOException("EWS endpoint isn't configured, " + EWSConstants.EWS_API_URL + " is not set");
+        }
+        Object connectionName = messageContext.getProperty(EWSConstants.EWS_CONNECTION_NAME);
+        String name = connectionName == null ? endpointUrl.toString() : connectionName.toString();
+        Object credentialKey = messageContext.getProperty(EWSConstants.EWS_CREDENTIAL_KEY);
+        EWSCredentialProvider credentials = credentialKey == null ? null : EWSCredentialCache.get(credentialKey
+                .toString());
+        if (credentials == null) {
+            Object authorization = messageContext.getProperty(EWSConstants.EWS_AUTHORIZATION_HEADER);
+            credentials = new EWSStaticCredentialProvider(authorization == null ? null : authorization.toString());
+        }
+        EWSClient client = new EWSClient(endpointUrl.toString(), credentials, EWSConnectionPool.get(name)
+                .getSocketTimeout(), name);
+        client.adaptiveTimeout = "true".equals(messageContext.getProperty(EWSConstants.EWS_ADAPTIVE_TIMEOUT));
+        client.hedge = "true".equals(messageContext.getProperty(EWSConstants.EWS_HEDGE_REQUESTS));
+        Object deadline = messageContext.getProperty(EWSConstants.EWS_DEADLINE);
+        if (deadline instanceof Long) {
+            client.deadline = (Long) deadline;
+        }
+        Object chunkingThreshold = messageContext.getProperty(EWSConstants.EWS_CHUNKING_THRESHOLD);
+        if (chunkingThreshold instanceof Integer) {
+            client.chunkingThreshold = (Integer) chunkingThreshold;
+        }
+        client.responseCompression = !"false".equals(messageContext.getProperty(EWSConstants
+                .EWS_RESPONSE_COMPRESSION));
+        Object compressionThreshold = messageContext.getProperty(EWSConstants.EWS_REQUEST_COMPRESSION_THRESHOLD);
+        if (compressionThreshold instanceof Integer) {
+            client.compressionThreshold = (Integer) compressionThreshold;
+        }
+        return client;
+    }
+
+    /**
+     * Used to get a client for requests that outlive the message, e.g. those of a streaming subscription, which
+     * neither have to complete before the deadline of the message nor are hedged
+     *
+     * @return client
+     */
+    EWSClient withoutDeadline() {
+        EWSClient client = copy();
+        client.hedge = false;
+        client.deadline = 0;
+        return client;
+    }
+
+    /**
+     * Used to get a client that writes requests larger than the threshold chunked while they are serialized
+     *
+     * @param threshold bytes above which requests are chunked, -1 to always buffer them
+     * @return client
+     */
+    EWSClient withChunkingThreshold(int threshold) {
+        EWSClient client = copy();
+        client.chunkingThreshold = threshold;
+        return client;
+    }
+
+    /**
+     * Used to get a client that asks for compressed responses or not, and compresses requests from a size on
+     *
+     * @param responseCompression whether to ask for gzip or deflate compressed responses
+     * @param threshold bytes from which requests are gzip compressed, -1 to never compress them
+     * @return client
+     */
+    EWSClient withCompression(boolean responseCompression, int threshold) {
+        EWSClient client = copy();
+        client.responseCompression = responseCompression;
+        client.compressionThreshold = threshold;
+        return client;
+    }
+
+    private EWSClient copy() {
+        EWSClient client = new EWSClient(endpointUrl, credentials, timeout, connectionName);
+        client.adaptiveTimeout = adaptiveTimeout;
+        client.hedge = hedge;
+        client.deadline = deadline;
+        client.chunkingThreshold = chunkingThreshold;
+        client.responseCompression = responseCompression;
+        client.compressionThreshold = compressionThreshold;
+        return client;
+    }
+
+    /**
+     * Used to identify who the requests of a message are sent as, e.g. to scope cached responses
+     *
+     * @param messageContext messageContext of Request
+     * @return key of the credentials the config operation set up, which holds the connection name and the identity,
+     * or else the connection name together with the Authorization header given with the message
+     */
+    String getIdentity(MessageContext messageContext) {
+        Object credentialKey = messageContext.getProperty(EWSConstants.EWS_CREDENTIAL_KEY);
+        if (credentialKey != null && EWSCredentialCache.get(credentialKey.toString()) != null) {
+            return credentialKey.toString();
+        }
+        Object authorization = messageContext.getProperty(EWSConstants.EWS_AUTHORIZATION_HEADER);
+        return authorization == null ? connectionName : connectionName + '\n' + authorization;
+    }
+
+    /**
+     * Used to send the envelope of a message to the EWS endpoint and to replace it with the response, the way the
+     * call mediator of a template does. When EWS_RESPONSE_MODE is stream, a successful response is left unread in
+     * the EWS_RESPONSE_STREAM property instead, and the mediator reading it has to close it. EWS_RESPONSE_MODE is
+     * removed by the call. Like {@link #send}, the call is throttled and limited in concurrency per account, sent
+     * once more when Exchange answers with an ErrorServerBusy fault, and hedged when the message asks for it. A
+     * streamed response gives its permit back as soon as it has been handed to the mediator reading it, and is never
+     * hedged.
+     *
+     * @param messageContext messageContext of Request, its action selects the EWS operation
+     * @throws IOException when the endpoint couldn't be reached; a SOAP fault is set as the response like any other
+     * @throws XMLStreamException when the response couldn't be parsed
+     */
+    static void call(MessageContext messageContext) throws IOException, XMLStreamException {
+        EWSClient client = forMessage(messageContext);
+        String action = messageContext.getWSAAction();
+        if (action == null) {
+            action = messageContext.getSoapAction();
+        }
+        if (action == null) {
+            throw new IOException("EWS operation isn't set, the message has no action");
+        }
+        String operation = action.substring(action.lastIndexOf('/') + 1);
+        boolean streaming = "true".equals(messageContext.getProperty(EWSConstants.EWS_ATTACHMENT_STREAMING));
+        // the mode applies to this call only, a response left unread by a later operation would hold its connection
+        Object responseMode = messageContext.getProperty(EWSConstants.EWS_RESPONSE_MODE);
+        messageContext.getPropertyKeySet().remove(EWSConstants.EWS_RESPONSE_MODE);
+        SOAPEnvelope request = messageContext.getEnvelope();
+        String account = client.getAccount(request);
+        EWSThrottle throttle = EWSThrottle.get(account);
+        SOAPEnvelope envelope;
+        for (int attempt = 0; ; attempt++) {
+            EWSConcurrencyLimiter.Permit permit = EWSConcurrencyLimiter.instance.acquire(account);
+            messageContext.setProperty(EWSConstants.EWS_MAILBOX_WAIT_TIME, permit.getWaitTime());
+            messageContext.setProperty(EWSConstants.EWS_MAILBOX_QUEUE_DEPTH, EWSConcurrencyLimiter.instance
+                    .getQueueDepth());
+            if (STREAM.equals(responseMode)) {
+                try {
+                    throttle.acquire();
+                    HttpPost post = client.createPost(operation, client.createEntity(operation, request, streaming),
+                            client.getReadTimeout(operation), null, null);
+                    long start = System.nanoTime();
+                    CloseableHttpResponse response = client.execute(post);
+                    if (response.getStatusLine().getStatusCode() < HttpStatus.SC_MULTIPLE_CHOICES) {
+                        throttle.onSuccess();
+                        // the response is read later, so only its headers count towards the latency, and its size is
+                        // only known when it isn't compressed
+                        HttpEntity entity = response.getEntity();
+                        long length = entity == null || entity.getContentEncoding() != null ? -1 : entity
+                                .getContentLength();
+                        EWSMetrics.get(operation).responseReceived(start, length, length);
+                        messageContext.setProperty(EWSConstants.EWS_RESPONSE_STREAM, response);
+                        messageContext.setProperty(EWSConstants.EWS_BATCH_COMPLETED, "true");
+                        setPoolStats(messageContext, client.connectionName);
+                        return;
+                    }
+                    envelope = receive(operation, start, throttle, response);
+                } finally {
+                    permit.release();
+                }
+            } else {
+                envelope = client.exchange(operation, request, account, throttle, streaming, permit);
+            }
+            // a streamed request can't be written again
+            if (streaming || attempt > 0 || !isServerBusyFault(envelope)) {
+                break;
+            }
+        }
+        setResponse(messageContext, envelope);
+        setPoolStats(messageContext, client.connectionName);
+    }
+
+    private static void setPoolStats(MessageContext messageContext, String connectionName) {
+        PoolStats stats = EWSConnectionPool.get(connectionName).getStats();
+        messageContext.setProperty(EWSConstants.EWS_POOL_LEASED, stats.getLeased());
+        messageContext.setProperty(EWSConstants.EWS_POOL_AVAILABLE, stats.getAvailable());
+        messageContext.setProperty(EWSConstants.EWS_POOL_PENDING, stats.getPending());
+        messageContext.setProperty(EWSConstants.EWS_POOL_MAX, stats.getMax());
+    }
+
+    /**
+     * Used to replace the envelope of a message with a response that has been read by the connector
+     *
+     * @param messageContext messageContext of Request
+     * @param response response envelope
+     * @throws AxisFault when the envelope couldn't be set
+     */
+    static void setResponse(MessageContext messageContext, SOAPEnvelope response) throws AxisFault {
+        messageContext.setEnvelope(response);
+        if (messageContext instanceof Axis2MessageContext) {
+            ((Axis2MessageContext) messageContext).getAxis2MessageContext().setProperty(PassThroughConstants
+                    .MESSAGE_BUILDER_INVOKED, Boolean.TRUE);
+        }
+        messageContext.setProperty(EWSConstants.EWS_BATCH_COMPLETED, "true");
+    }
+
+    /**
+     * Sends a request and returns the fully built response envelope, which may hold a SOAP fault. Requests are
+     * throttled and limited in concurrency per account, and a request Exchange was too busy for is sent once more
+     * after its back off. GetItem, FindItem and GetAttachment requests are hedged when the message asks for it.
+     *
+     * @param operation EWS operation, e.g. GetItem, used for the SOAPAction
+     * @param request request envelope
+     * @return response envelope
+     * @throws IOException when the endpoint couldn't be reached or didn't answer with a SOAP message
+     * @throws SocketTimeoutException when the response didn't arrive in time or the deadline has passed
+     * @throws EWSServerBusyException when Exchange is busy for the account of the request for longer than a request
+     * may wait
+     * @throws XMLStreamException when the response couldn't be parsed
+     */
+    SOAPEnvelope send(String operation, SOAPEnvelope request) throws IOException, XMLStreamException {
+        String account = getAccount(request);
+        EWSThrottle throttle = EWSThrottle.get(account);
+        SOAPEnvelope envelope = exchange(operation, request, account, throttle, false, EWSConcurrencyLimiter
+                .instance.acquire(account));
+        if (isServerBusyFault(envelope)) {
+            // the throttle holds the retry back until the back off of the fault has passed
+            envelope = exchange(operation, request, account, throttle, false, EWSConcurrencyLimiter.instance
+                    .acquire(account));
+        }
+        return envelope;
+    }
+
+    /**
+     * Sends a request and reads its response, hedging it when the client and the operation allow it
+     *
+     * @param permit permit of the request, released once the request is done
+     */
+    private SOAPEnvelope exchange(String operation, SOAPEnvelope request, String account, EWSThrottle throttle,
+                                  boolean streaming, EWSConcurrencyLimiter.Permit permit) throws IOException,
+            XMLStreamException {
+        EWSLatencyTracker latency = EWSLatencyTracker.get(connectionName, operation);
+        long hedgeDelay = hedge && !streaming && HEDGED_OPERATIONS.contains(operation) ? latency.getHedgeDelay() : -1;
+        boolean hedged = false;
+        try {
+            HttpEntity entity = createEntity(operation, request, streaming);
+            // both attempts of a hedged request would serialize the envelope of a chunked request at the same time
+            if (hedgeDelay >= 0 && !entity.isChunked()) {
+                hedged = true;
+                return hedge(operation, entity, account, throttle, latency, hedgeDelay, permit);
+            }
+            throttle.acquire();
+            HttpPost post = createPost(operation, entity, getReadTimeout(operation), null, null);
+            long start = System.nanoTime();
+            SOAPEnvelope envelope = receive(operation, start, throttle, execute(post));
+            record(latency, start, envelope);
+            return envelope;
+        } finally {
+            if (!hedged) {
+                permit.release();
+            }
+        }
+    }
+
+    private SOAPEnvelope hedge(String operation, HttpEntity entity, String account, EWSThrottle throttle,
+                               EWSLatencyTracker latency, long delay, EWSConcurrencyLimiter.Permit permit) throws
+            IOException, XMLStreamException {
+        CompletionService<SOAPEnvelope> completionService = new ExecutorCompletionService<SOAPEnvelope>(hedger);
+        Attempt first = new Attempt(operation, entity, account, throttle, latency, permit);
+        Attempt second = null;
+        try {
+            first.future = completionService.submit(first);
+            Future<SOAPEnvelope> done = completionService.poll(delay, TimeUnit.MILLISECONDS);
+            if (done == null) {
+                second = new Attempt(operation, entity, account, throttle, latency, null);
+                Future<SOAPEnvelope> hedged = completionService.submit(second);
+                second.future = hedged;
+                done = completionService.take();
+                latency.recordHedge(done == hedged);
+            }
+            try {
+                return done.get();
+            } catch (ExecutionException e) {
+                if (second == null) {
+                    throw e;
+                }
+                // the other request may still succeed
+                return completionService.take().get();
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof XMLStreamException) {
+                throw (XMLStreamException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException("Hedged " + operation + " request failed", cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the " + operation + " response");
+        } finally {
+            first.abort();
+            if (second != null) {
+                second.abort();
+            }
+        }
+    }
+
+    private static void record(EWSLatencyTracker latency, long start, SOAPEnvelope envelope) {
+        if (!envelope.hasFault()) {
+            latency.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+    }
+
+    /**
+     * Used to get how long a read of a response may block, the adaptive timeout of the operation if enabled and no
+     * longer than the time left until the deadline
+     *
+     * @param operation EWS operation, e.g. GetItem
+     * @return milliseconds a read may block
+     * @throws SocketTimeoutException when the deadline has passed
+     */
+    private int getReadTimeout(String operation) throws SocketTimeoutException {
+        int readTimeout = adaptiveTimeout ? EWSLatencyTracker.get(connectionName, operation).getTimeout(timeout) :
+                timeout;
+        if (deadline > 0) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                throw new SocketTimeoutException("Deadline of the message passed before " + operation + " was sent");
+            }
+            readTimeout = (int) Math.min(readTimeout, remaining);
+        }
+        return readTimeout;
+    }
+
+    /**
+     * Used to identify the account a request is sent as, the impersonated account or else the account of the
+     * connection, to throttle and limit the requests of each account on their own
+     *
+     * @param request request envelope
+     * @return connection name, together with the impersonated account if there is one
+     */
+    String getAccount(SOAPEnvelope request) {
+        String account = EWSUtils.getImpersonatedAccount(request);
+        return account == null ? connectionName : connectionName + '|' + account;
+    }
+
+    private static SOAPEnvelope receive(String operation, long start, EWSThrottle throttle, CloseableHttpResponse
+            response) throws IOException, XMLStreamException {
+        EWSMetrics.Operation metrics = EWSMetrics.get(operation);
+        SOAPEnvelope envelope = read(response, metrics, start);
+        metrics.countResponseCodes(envelope);
+        long backOff = EWSThrottle.getServerBusyBackOff(envelope);
+        if (backOff < 0) {
+            throttle.onSuccess();
+        } else {
+            throttle.onServerBusy(backOff);
+        }
+        return envelope;
+    }
+
+    private static boolean isServerBusyFault(SOAPEnvelope envelope) {
+        return envelope.hasFault() && EWSThrottle.getServerBusyBackOff(envelope) >= 0;
+    }
+
+    private static SOAPEnvelope read(CloseableHttpResponse response, EWSMetrics.Operation metrics, long start) throws
+            IOException, XMLStreamException {
+        try {
+            HttpEntity entity = getEntity(response);
+            CountingInputStream wire = new CountingInputStream(entity.getContent());
+            CountingInputStream input = new CountingInputStream(decode(entity, wire));
+            SOAPEnvelope envelope = OMXMLBuilderFactory.createSOAPModelBuilder(input, charset(entity
+                    .getContentType().getValue())).getSOAPEnvelope();
+            envelope.build();
+            metrics.responseReceived(start, input.count, wire.count);
+            drain(response);
+            // frees the decompressor, the body has been read already
+            input.close();
+            return envelope;
+        } finally {
+            response.close();
+        }
+    }
+
+    /**
+     * Sends a request and returns the response as soon as its headers have arrived, for responses that are read
+     * while the server is still writing them, such as GetStreamingEvents. Closing the response closes its
+     * connection.
+     *
+     * @param operation EWS operation, e.g. GetItem, used for the SOAPAction
+     * @param request request envelope
+     * @param readTimeout milliseconds a read of the response may block
+     * @param anchorMailbox mailbox sent as X-AnchorMailbox so the request is routed to its server, may be null
+     * @param backEndOverrideCookie X-BackEndOverrideCookie of the server the subscriptions of the request were
+     *                              created on, may be null
+     * @return response with a SOAP message
+     * @throws IOException when the endpoint couldn't be reached or didn't answer with a SOAP message
+     */
+    CloseableHttpResponse open(String operation, SOAPEnvelope request, int readTimeout, String anchorMailbox,
+                               String backEndOverrideCookie) throws IOException {
+        EWSThrottle.get(getAccount(request)).acquire();
+        HttpPost post = createPost(operation, createEntity(operation, request, false), readTimeout, anchorMailbox,
+                backEndOverrideCookie);
+        // a compressed response can't be read frame by frame while the server is still writing it
+        post.removeHeaders(ACCEPT_ENCODING);
+        return execute(post);
+    }
+
+    /**
+     * Used to create a subscription on the mailbox server of the anchor mailbox. Exchange answers with an
+     * X-BackEndOverrideCookie naming that server; subscriptions with the same cookie can be streamed over one
+     * GetStreamingEvents connection sent along with that cookie.
+     *
+     * @param request Subscribe request envelope
+     * @param anchorMailbox mailbox sent as X-AnchorMailbox, may be null
+     * @param backEndOverrideCookie X-BackEndOverrideCookie of the server the subscription should be created on, may
+     *                              be null
+     * @return response together with the X-BackEndOverrideCookie the server set
+     * @throws IOException when the endpoint couldn't be reached or didn't answer with a SOAP message
+     * @throws XMLStreamException when the response couldn't be parsed
+     */
+    AffinityResponse subscribe(SOAPEnvelope request, String anchorMailbox, String backEndOverrideCookie) throws
+            IOException, XMLStreamException {
+        String operation = EWSConstants.SUBSCRIBE_ELEMENT;
+        String account = getAccount(request);
+        EWSThrottle throttle = EWSThrottle.get(account);
+        EWSConcurrencyLimiter.Permit permit = EWSConcurrencyLimiter.instance.acquire(account);
+        try {
+            throttle.acquire();
+            HttpPost post = createPost(operation, createEntity(operation, request, false), getReadTimeout(operation),
+                    anchorMailbox, backEndOverrideCookie);
+            long start = System.nanoTime();
+            CloseableHttpResponse response = execute(post);
+            String cookie = getBackEndOverrideCookie(response);
+            return new AffinityResponse(receive(operation, start, throttle, response), cookie);
+        } finally {
+            permit.release();
+        }
+    }
+
+    private static String getBackEndOverrideCookie(CloseableHttpResponse response) {
+        for (Header header : response.getHeaders("Set-Cookie")) {
+            String value = header.getValue().trim();
+            if (value.startsWith(BACK_END_OVERRIDE_COOKIE + "=")) {
+                int end = value.indexOf(';');
+                return value.substring(BACK_END_OVERRIDE_COOKIE.length() + 1, end < 0 ? value.length() : end);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Used to create the body of a request. The request is serialized into a buffer, so it is sent with its
+     * Content-Length and can be sent more than once, unless it streams attachment content or is larger than the
+     * chunking threshold; such a request is written chunked while it is serialized, without being held in memory.
+     * A request with a chunking threshold is serialized on a thread of its own, which goes on serializing beyond the
+     * threshold once the buffered start of the request is written, so the request is serialized only once.
+     *
+     * @param operation EWS operation, e.g. GetItem
+     * @param request request envelope
+     * @param streaming whether the request streams attachment content, which can be read only once
+     * @return request body
+     * @throws IOException when the request couldn't be serialized
+     */
+    HttpEntity createEntity(String operation, final SOAPEnvelope request, boolean streaming) throws IOException {
+        if (streaming) {
+            return new SerializingEntity(operation, request, null, false, compressionThreshold >= 0);
+        }
+        if (chunkingThreshold < 0) {
+            RequestBuffer requestBytes = new RequestBuffer(8192);
+            try {
+                request.serialize(requestBytes);
+            } catch (XMLStreamException e) {
+                throw new IOException("Couldn't serialize " + operation + " request", e);
+            }
+            return createEntity(operation, requestBytes);
+        }
+        final RequestPipe pipe = new RequestPipe(chunkingThreshold, timeout);
+        serializer.execute(new Runnable() {
+            public void run() {
+                try {
+                    request.serialize(pipe);
+                    pipe.finish(null);
+                } catch (Throwable e) {
+                    pipe.finish(e);
+                }
+            }
+        });
+        if (pipe.awaitBuffered(operation)) {
+            return createEntity(operation, pipe.buffer);
+        }
+        // the envelope is kept in memory, so it can be serialized again for a retry
+        return new SerializingEntity(operation, request, pipe, true, compressionThreshold >= 0);
+    }
+
+    private HttpEntity createEntity(String operation, RequestBuffer requestBytes) {
+        ByteArrayEntity byteArrayEntity;
+        if (compressionThreshold >= 0 && requestBytes.size() >= compressionThreshold) {
+            byte[] compressed = gzip(requestBytes);
+            byteArrayEntity = new ByteArrayEntity(compressed);
+            byteArrayEntity.setContentEncoding(GZIP);
+            EWSMetrics.get(operation).requestSent(requestBytes.size(), compressed.length);
+        } else {
+            byteArrayEntity = requestBytes.toEntity();
+            EWSMetrics.get(operation).requestSent(requestBytes.size(), requestBytes.size());
+        }
+        byteArrayEntity.setContentType(CONTENT_TYPE);
+        return byteArrayEntity;
+    }
+
+    /**
+     * Used to gzip compress a serialized request
+     *
+     * @param request serialized request
+     * @return compressed request
+     */
+    static byte[] gzip(ByteArrayOutputStream request) {
+        // xml usually compresses to well below a quarter of its size
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(Math.max(64, request.size() / 4));
+        try {
+            GZIPOutputStream output = new GZIPOutputStream(compressed, COMPRESSION_BUFFER_SIZE);
+            request.writeTo(output);
+            output.close();
+        } catch (IOException e) {
+            // not thrown by byte array streams
+            throw new IllegalStateException(e);
+        }
+        return compressed.toByteArray();
+    }
+
+    private HttpPost createPost(String operation, HttpEntity entity, int readTimeout, String anchorMailbox,
+                                String backEndOverrideCookie) throws IOException {
+        // waiting for a connection counts against a shorter read timeout too, so a deadline isn't overrun
+        int connectTimeout = Math.min(timeout, readTimeout);
+        HttpPost post = new HttpPost(endpointUrl);
+        post.setConfig(RequestConfig.custom()
+                .setConnectTimeout(connectTimeout)
+                .setConnectionRequestTimeout(connectTimeout)
+                .setSocketTimeout(readTimeout)
+                .build());
+        post.setEntity(entity);
+        post.setHeader("SOAPAction", "\"" + ACTION_PREFIX + operation + "\"");
+        if (responseCompression) {
+            post.setHeader(ACCEPT_ENCODING, GZIP + ", " + DEFLATE);
+        }
+        String authorization = credentials.getAuthorization();
+        if (authorization != null) {
+            post.setHeader("Authorization", authorization);
+        }
+        if (anchorMailbox != null) {
+            post.setHeader("X-AnchorMailbox", anchorMailbox);
+            post.setHeader("X-PreferServerAffinity", "true");
+        }
+        if (backEndOverrideCookie != null) {
+            post.setHeader("Cookie", BACK_END_OVERRIDE_COOKIE + "=" + backEndOverrideCookie);
+        }
+        return post;
+    }
+
+    private CloseableHttpResponse execute(HttpPost post) throws IOException {
+        CloseableHttpResponse response = EWSConnectionPool.get(connectionName).getHttpClient().execute(post);
+        HttpEntity responseEntity = response.getEntity();
+        Header contentType = responseEntity == null ? null : responseEntity.getContentType();
+        if (contentType == null || !contentType.getValue().contains("xml")) {
+            try {
+                drain(response);
+            } finally {
+                response.close();
+            }
+            throw new IOException("EWS endpoint returned HTTP " + response.getStatusLine().getStatusCode() +
+                    " without a SOAP message");
+        }
+        return response;
+    }
+
+    /**
+     * @param response response returned by {@link #open}
+     * @return response body, also when the server answered with an error status
+     * @throws IOException when the response couldn't be read
+     */
+    static InputStream getResponseStream(CloseableHttpResponse response) throws IOException {
+        HttpEntity entity = getEntity(response);
+        return decode(entity, entity.getContent());
+    }
+
+    /**
+     * Used to read the rest of a response body once it has been parsed. Reading the rest of the body hands the
+     * connection back to the pool instead of closing it.
+     *
+     * @param response response whose body has been parsed
+     * @throws IOException when the rest of the body couldn't be read
+     */
+    static void drain(CloseableHttpResponse response) throws IOException {
+        EntityUtils.consume(response.getEntity());
+    }
+
+    private static HttpEntity getEntity(CloseableHttpResponse response) throws IOException {
+        HttpEntity entity = response.getEntity();
+        if (entity == null) {
+            throw new IOException("EWS endpoint returned HTTP " + response.getStatusLine().getStatusCode() +
+                    " without a body");
+        }
+        return entity;
+    }
+
+    /**
+     * Used to decompress the body of a response while it is read
+     *
+     * @param entity response body, its Content-Encoding selects the decompression
+     * @param input content of the response body
+     * @return decompressed content
+     * @throws IOException when the Content-Encoding isn't supported or the content isn't compressed as declared
+     */
+    static InputStream decode(HttpEntity entity, InputStream input) throws IOException {
+        Header contentEncoding = entity.getContentEncoding();
+        String encoding = contentEncoding == null ? IDENTITY : contentEncoding.getValue().trim().toLowerCase();
+        if (encoding.isEmpty() || IDENTITY.equals(encoding)) {
+            return input;
+        } else if (GZIP.equals(encoding) || "x-gzip".equals(encoding)) {
+            return new GZIPInputStream(input, COMPRESSION_BUFFER_SIZE);
+        } else if (DEFLATE.equals(encoding)) {
+            // deflate is meant to be zlib wrapped, but some servers send it raw, which has no zlib header
+            PushbackInputStream pushback = new PushbackInputStream(input, 2);
+            int first = pushback.read();
+            int second = first < 0 ? -1 : pushback.read();
+            if (second >= 0) {
+                pushback.unread(second);
+            }
+            if (first >= 0) {
+                pushback.unread(first);
+            }
+            boolean zlib = second >= 0 && (first & 0x0F) == 8 && ((first << 8) | second) % 31 == 0;
+            return new InflaterInputStream(pushback, new Inflater(!zlib), COMPRESSION_BUFFER_SIZE) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        inf.end();
+                    }
+                }
+            };
+        }
+        throw new IOException("EWS endpoint returned an unsupported Content-Encoding " + encoding);
+    }
+
+    private static String charset(String contentType) {
+        int index = contentType.toLowerCase().indexOf("charset=");
+        if (index < 0) {
+            return "UTF-8";
+        }
+        String charset = contentType.substring(index + "charset=".length());
+        int end = charset.indexOf(';');
+        return (end < 0 ? charset : charset.substring(0, end)).replace("\"", "").trim();
+    }
+
+    /**
+     * Response of a Subscribe request together with the X-BackEndOverrideCookie of the server the subscription was
+     * created on.
+     */
+    static final class AffinityResponse {
+        final SOAPEnvelope envelope;
+        final String backEndOverrideCookie;
+
+        AffinityResponse(SOAPEnvelope envelope, String backEndOverrideCookie) {
+            this.envelope = envelope;
+            this.backEndOverrideCookie = backEndOverrideCookie;
+        }
+    }
+
+    /**
+     * Request body written chunked while the envelope is serialized.
+     */
+    private static final class SerializingEntity extends AbstractHttpEntity {
+        private final String operation;
+        private final SOAPEnvelope request;
+        private final boolean repeatable;
+        private final boolean compressed;
+        private RequestPipe started;
+
+        /**
+         * @param started serialization of the envelope already under way, or null
+         * @param repeatable whether the envelope can be serialized again, false when it streams attachment content
+         * @param compressed whether the envelope is gzip compressed while it is written
+         */
+        SerializingEntity(String operation, SOAPEnvelope request, RequestPipe started, boolean repeatable, boolean
+                compressed) {
+            this.operation = operation;
+            this.request = request;
+            this.started = started;
+            this.repeatable = repeatable;
+            this.compressed = compressed;
+            setChunked(true);
+            setContentType(CONTENT_TYPE);
+            if (compressed) {
+                setContentEncoding(GZIP);
+            }
+        }
+
+        public boolean isRepeatable() {
+            return repeatable;
+        }
+
+        public long getContentLength() {
+            return -1;
+        }
+
+        /**
+         * Streams the request as it is written by {@link #writeTo}, serialized on a thread of its own, and has to be
+         * closed. Like {@link #writeTo}, this can be done only once when the entity isn't repeatable.
+         */
+        public InputStream getContent() throws IOException {
+            final RequestPipe serialization = takeStarted();
+            if (serialization != null && !compressed) {
+                InputStream content = serialization.open();
+                if (content != null) {
+                    return content;
+                }
+            }
+            final RequestPipe pipe = new RequestPipe(0, 0);
+            serializer.execute(new Runnable() {
+                public void run() {
+                    try {
+                        serialize(pipe, serialization);
+                        pipe.finish(null);
+                    } catch (Throwable e) {
+                        pipe.finish(e);
+                    }
+                }
+            });
+            return pipe.open();
+        }
+
+        public void writeTo(OutputStream output) throws IOException {
+            CountingOutputStream wire = new CountingOutputStream(output);
+            EWSMetrics.get(operation).requestSent(serialize(wire, takeStarted()), wire.count);
+        }
+
+        /**
+         * The serialization started with the entity is written once, later writes serialize the envelope again.
+         */
+        private synchronized RequestPipe takeStarted() {
+            RequestPipe serialization = started;
+            started = null;
+            return serialization;
+        }
+
+        /**
+         * @param serialization serialization of the envelope under way, or null to serialize it on this thread
+         * @return length of the envelope before compression
+         */
+        private long serialize(OutputStream wire, RequestPipe serialization) throws IOException {
+            GZIPOutputStream compressor = compressed ? new GZIPOutputStream(wire, COMPRESSION_BUFFER_SIZE) : null;
+            CountingOutputStream counted = new CountingOutputStream(compressor != null ? compressor : wire);
+            InputStream serialized = serialization == null ? null : serialization.open();
+            try {
+                if (serialized != null) {
+                    byte[] buffer = new byte[COMPRESSION_BUFFER_SIZE];
+                    int length;
+                    while ((length = serialized.read(buffer)) >= 0) {
+                        counted.write(buffer, 0, length);
+                    }
+                } else if (repeatable) {
+                    request.serialize(counted);
+                } else {
+                    // serializing with caching would expand the streamed attachment content into memory first
+                    request.serializeAndConsume(counted);
+                }
+            } catch (XMLStreamException e) {
+                throw new IOException("Couldn't serialize " + operation + " request", e);
+            } finally {
+                if (serialized != null) {
+                    serialized.close();
+                }
+            }
+            if (compressor != null) {
+                // writes the rest of the compressed request without closing the connection
+                compressor.finish();
+            }
+            return counted.count;
+        }
+
+        /**
+         * The entity holds no stream of its own, every write serializes the envelope.
+         */
+        public boolean isStreaming() {
+            return false;
+        }
+    }
+
+    /**
+     * Buffer of a serialized request. The entity is created from the buffer itself, without copying it.
+     */
+    private static final class RequestBuffer extends ByteArrayOutputStream {
+
+        RequestBuffer(int size) {
+            super(size);
+        }
+
+        ByteArrayEntity toEntity() {
+            return new ByteArrayEntity(buf, 0, count);
+        }
+
+        InputStream toInputStream() {
+            return new ByteArrayInputStream(buf, 0, count);
+        }
+    }
+
+    /**
+     * Serialized request handed from the thread serializing the envelope to the thread writing it. Up to the
+     * threshold the request is buffered, so a smaller request can be sent with its Content-Length. Beyond it, the
+     * serializer waits while the bytes not yet written fill the pipe, so a larger request is written while it is
+     * serialized, with no more than the threshold and the capacity of the pipe in memory.
+     * <p>
+     * A serializer whose request doesn't start to be written within the timeout gives up, and the request is
+     * serialized again when it is written after all.
+     */
+    private static final class RequestPipe extends OutputStream {
+        private final int threshold;
+        private final long timeout;
+        private final RequestBuffer buffer;
+        private final ArrayDeque<byte[]> chunks = new ArrayDeque<byte[]>();
+        private int queued;
+        private boolean overflowed;
+        private boolean opened;
+        private boolean closed;
+        private boolean finished;
+        private Throwable failure;
+
+        /**
+         * @param threshold bytes buffered before the serializer waits for the request to be written
+         * @param timeout milliseconds the serializer waits for the request to start to be written, 0 to wait as long
+         *                as it takes
+         */
+        RequestPipe(int threshold, long timeout) {
+            this.threshold = threshold;
+            this.timeout = timeout;
+            buffer = new RequestBuffer(Math.min(threshold, 8192));
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(byte[] bytes, int offset, int length) throws IOException {
+            if (!overflowed) {
+                if (length <= threshold - buffer.size()) {
+                    buffer.write(bytes, offset, length);
+                    return;
+                }
+                overflowed = true;
+                notifyAll();
+            }
+            long giveUp = System.currentTimeMillis() + timeout;
+            try {
+                while (queued >= PIPE_CAPACITY && !closed) {
+                    long left = giveUp - System.currentTimeMillis();
+                    if (opened || timeout <= 0) {
+                        wait();
+                    } else if (left > 0) {
+                        wait(left);
+                    } else {
+                        close(false);
+                        throw new InterruptedIOException("Request wasn't written within " + timeout + "ms");
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the request to be written");
+            }
+            if (closed) {
+                throw new IOException("Request is no longer written");
+            }
+            chunks.add(Arrays.copyOfRange(bytes, offset, offset + length));
+            queued += length;
+            notifyAll();
+        }
+
+        /**
+         * Used by the serializer once the envelope is serialized
+         *
+         * @param failure failure of the serialization, or null when it succeeded
+         */
+        synchronized void finish(Throwable failure) {
+            this.failure = failure;
+            finished = true;
+            notifyAll();
+        }
+
+        /**
+         * Used to wait until either the whole request is buffered or it turns out larger than the threshold
+         *
+         * @param operation EWS operation, e.g. GetItem
+         * @return whether the whole request is buffered
+         * @throws IOException when the request couldn't be serialized
+         */
+        synchronized boolean awaitBuffered(String operation) throws IOException {
+            try {
+                while (!overflowed && !finished) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                close(true);
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while serializing the " + operation + " request");
+            }
+            if (overflowed) {
+                return false;
+            }
+            if (failure instanceof RuntimeException) {
+                throw (RuntimeException) failure;
+            } else if (failure instanceof Error) {
+                throw (Error) failure;
+            } else if (failure != null) {
+                throw new IOException("Couldn't serialize " + operation + " request", failure);
+            }
+            return true;
+        }
+
+        /**
+         * Used to read the request, the buffered start of it and then the rest while it is serialized. Closing the
+         * stream stops the serializer and waits for it.
+         *
+         * @return request, or null when the serializer has given up
+         */
+        synchronized InputStream open() {
+            if (closed) {
+                return null;
+            }
+            opened = true;
+            notifyAll();
+            final InputStream start = buffer.toInputStream();
+            return new InputStream() {
+                private byte[] chunk;
+                private int position;
+
+                @Override
+                public int read() throws IOException {
+                    byte[] one = new byte[1];
+                    return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+                }
+
+                @Override
+                public int read(byte[] bytes, int offset, int length) throws IOException {
+                    if (length == 0) {
+                        return 0;
+                    }
+                    int read = start.read(bytes, offset, length);
+                    if (read >= 0) {
+                        return read;
+                    }
+                    if (chunk == null || position == chunk.length) {
+                        chunk = take();
+                        position = 0;
+                        if (chunk == null) {
+                            return -1;
+                        }
+                    }
+                    read = Math.min(length, chunk.length - position);
+                    System.arraycopy(chunk, position, bytes, offset, read);
+                    position += read;
+                    return read;
+                }
+
+                @Override
+                public void close() {
+                    RequestPipe.this.close(true);
+                }
+            };
+        }
+
+        private synchronized byte[] take() throws IOException {
+            try {
+                while (chunks.isEmpty() && !finished && !closed) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while serializing the request");
+            }
+            if (!chunks.isEmpty()) {
+                byte[] chunk = chunks.remove();
+                queued -= chunk.length;
+                notifyAll();
+                return chunk;
+            } else if (closed) {
+                throw new IOException("Request is no longer written");
+            } else if (failure != null) {
+                throw new IOException("Couldn't serialize the request", failure);
+            }
+            return null;
+        }
+
+        /**
+         * @param await whether to wait for the serializer to stop, so the envelope isn't serialized any more
+         */
+        private synchronized void close(boolean await) {
+            closed = true;
+            chunks.clear();
+            queued = 0;
+            notifyAll();
+            boolean interrupted = false;
+            while (await && !finished) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Counts the bytes of a response read by the SOAP builder.
+     */
+    private static final class CountingInputStream extends FilterInputStream {
+        private long count;
+
+        CountingInputStream(InputStream input) {
+            super(input);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int read = super.read();
+            if (read >= 0) {
+                count++;
+            }
+            return read;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long length) throws IOException {
+            long skipped = super.skip(length);
+            count += skipped;
+            return skipped;
+        }
+    }
+
+    /**
+     * Counts the bytes of a streamed request.
+     */
+    private static final class CountingOutputStream extends FilterOutputStream {
+        private long count;
+
+        CountingOutputStream(OutputStream output) {
+            super(output);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            out.write(buffer, offset, length);
+            count += length;
+        }
+    }
+
+    /**
+     * One of the requests of a hedged read. The request that loses is aborted once it has been sent, and interrupted
+     * while it is still waiting for its permit or its turn, so it neither holds a permit nor waits for one for
+     * nothing.
+     */
+    private final class Attempt implements Callable<SOAPEnvelope> {
+        private final String operation;
+        private final HttpEntity entity;
+        private final String account;
+        private final EWSThrottle throttle;
+        private final EWSLatencyTracker latency;
+        private final EWSConcurrencyLimiter.Permit permit;
+        private final AtomicBoolean started = new AtomicBoolean();
+        private volatile Future<SOAPEnvelope> future;
+        private volatile HttpPost post;
+        private volatile boolean aborted;
+        private volatile boolean done;
+
+        /**
+         * @param permit permit of the request, or null when the attempt has to acquire one
+         */
+        private Attempt(String operation, HttpEntity entity, String account, EWSThrottle throttle, EWSLatencyTracker
+                latency, EWSConcurrencyLimiter.Permit permit) {
+            this.operation = operation;
+            this.entity = entity;
+            this.account = account;
+            this.throttle = throttle;
+            this.latency = latency;
+            this.permit = permit;
+        }
+
+        public SOAPEnvelope call() throws IOException, XMLStreamException {
+            if (!started.compareAndSet(false, true)) {
+                throw new InterruptedIOException("Hedged " + operation + " request was not needed");
+            }
+            EWSConcurrencyLimiter.Permit held = permit;
+            try {
+                if (held == null) {
+                    held = EWSConcurrencyLimiter.instance.acquire(account);
+                }
+                throttle.acquire();
+                post = createPost(operation, entity, getReadTimeout(operation), null, null);
+                // abort() may have missed the request if it ran before the request was created
+                if (aborted) {
+                    throw new InterruptedIOException("Hedged " + operation + " request was not needed");
+                }
+                long start = System.nanoTime();
+                SOAPEnvelope envelope = receive(operation, start, throttle, execute(post));
+                record(latency, start, envelope);
+                return envelope;
+            } finally {
+                done = true;
+                if (held != null) {
+                    held.release();
+                }
+            }
+        }
+
+        void abort() {
+            aborted = true;
+            if (started.compareAndSet(false, true)) {
+                // the attempt never ran, so the permit it was given is still held
+                if (permit != null) {
+                    permit.release();
+                }
+                return;
+            }
+            HttpPost request = post;
+            if (request != null) {
+                if (!done) {
+                    request.abort();
+                }
+            } else if (!done && future != null) {
+                // still waiting in the limiter or the throttle, both give up when interrupted
+                future.cancel(true);
+            }
+        }
+    }
+}
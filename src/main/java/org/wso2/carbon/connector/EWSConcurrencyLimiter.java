@@ -0,0 +1,233 @@
+/*
+*  Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+package org.wso2.carbon.connector;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the requests sent as the same account at the same time, since Exchange refuses connections of an account
+ * above its concurrency budget. Every account has a fair semaphore, so waiting requests are served in the order
+ * they arrived and a burst for one mailbox only queues requests of that mailbox.
+ * <p>
+ * The semaphores are kept in stripes, each guarded by its own lock, and an account's semaphore only exists while
+ * requests of the account are running or waiting, so any number of mailboxes can be called without the limiter
+ * growing or all threads contending for one lock.
+ */
+final class EWSConcurrencyLimiter {
+    private static final int DEFAULT_PERMITS = 10;
+    private static final long DEFAULT_MAX_WAIT = 60000;
+    private static final int STRIPES = 64;
+
+    static final EWSConcurrencyLimiter instance = new EWSConcurrencyLimiter(Integer.getInteger(
+            "ews.mailbox.permits", DEFAULT_PERMITS), Long.getLong("ews.mailbox.maxWait", DEFAULT_MAX_WAIT));
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final int permits;
+    private final long maxWait;
+    private final AtomicInteger queueDepth = new AtomicInteger();
+    private final AtomicLong waits = new AtomicLong();
+    private final AtomicLong waitTime = new AtomicLong();
+    private final AtomicLong maxWaitTime = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+
+    /**
+     * @param permits maximum requests of an account at the same time
+     * @param maxWait maximum milliseconds a request waits for a permit
+     */
+    EWSConcurrencyLimiter(int permits, long maxWait) {
+        this.permits = permits;
+        this.maxWait = maxWait;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * Used to wait until a request of the account may be sent. The permit has to be released once the response has
+     * been read.
+     *
+     * @param account account the request is sent as
+     * @return permit of the request
+     * @throws IOException when no permit became free within the maximum wait
+     * @throws InterruptedIOException when the thread got interrupted while waiting
+     */
+    Permit acquire(String account) throws IOException {
+        Stripe stripe = stripes[(account.hashCode() & Integer.MAX_VALUE) % STRIPES];
+        Mailbox mailbox;
+        synchronized (stripe) {
+            mailbox = stripe.mailboxes.get(account);
+            if (mailbox == null) {
+                mailbox = new Mailbox(account, stripe, new Semaphore(permits, true));
+                stripe.mailboxes.put(account, mailbox);
+            }
+            mailbox.users++;
+        }
+        boolean acquired = false;
+        long waited = 0;
+        try {
+            // a timed try honors the fairness of the semaphore, an untimed one would jump the queue
+            acquired = mailbox.semaphore.tryAcquire(0, TimeUnit.MILLISECONDS);
+            if (!acquired) {
+                queueDepth.incrementAndGet();
+                long start = System.nanoTime();
+                try {
+                    acquired = mailbox.semaphore.tryAcquire(maxWait, TimeUnit.MILLISECONDS);
+                } finally {
+                    queueDepth.decrementAndGet();
+                    waited = recordWait(start);
+                }
+            }
+            if (!acquired) {
+                timeouts.incrementAndGet();
+                throw new IOException("Too many concurrent requests for " + account + ", no request finished within "
+                        + maxWait + "ms");
+            }
+            return new Permit(mailbox, waited);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to call Exchange for " + account);
+        } finally {
+            if (!acquired) {
+                leave(mailbox);
+            }
+        }
+    }
+
+    private long recordWait(long start) {
+        long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        waits.incrementAndGet();
+        waitTime.addAndGet(waited);
+        long max = maxWaitTime.get();
+        while (waited > max && !maxWaitTime.compareAndSet(max, waited)) {
+            max = maxWaitTime.get();
+        }
+        return waited;
+    }
+
+    private static void leave(Mailbox mailbox) {
+        synchronized (mailbox.stripe) {
+            if (--mailbox.users == 0) {
+                mailbox.stripe.mailboxes.remove(mailbox.account);
+            }
+        }
+    }
+
+    /**
+     * @return requests waiting for a permit right now
+     */
+    int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    /**
+     * @return requests that had to wait for a permit
+     */
+    long getWaitCount() {
+        return waits.get();
+    }
+
+    /**
+     * @return milliseconds all requests waited for a permit together
+     */
+    long getWaitTime() {
+        return waitTime.get();
+    }
+
+    /**
+     * @return longest milliseconds a request waited for a permit
+     */
+    long getMaxWaitTime() {
+        return maxWaitTime.get();
+    }
+
+    /**
+     * @return requests that failed because no permit became free in time
+     */
+    long getTimeoutCount() {
+        return timeouts.get();
+    }
+
+    /**
+     * @return accounts with requests running or waiting right now
+     */
+    int getActiveAccounts() {
+        int count = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                count += stripe.mailboxes.size();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Permit of one request, released when the request is done.
+     */
+    static final class Permit {
+        private final Mailbox mailbox;
+        private final long waitTime;
+        private boolean released;
+
+        private Permit(Mailbox mailbox, long waitTime) {
+            this.mailbox = mailbox;
+            this.waitTime = waitTime;
+        }
+
+        /**
+         * @return milliseconds the request waited for the permit
+         */
+        long getWaitTime() {
+            return waitTime;
+        }
+
+        /**
+         * Used to hand the permit to the next request of the account, releasing it again has no effect
+         */
+        void release() {
+            if (!released) {
+                released = true;
+                mailbox.semaphore.release();
+                leave(mailbox);
+            }
+        }
+    }
+
+    private static final class Stripe {
+        private final Map<String, Mailbox> mailboxes = new HashMap<String, Mailbox>();
+    }
+
+    private static final class Mailbox {
+        private final String account;
+        private final Stripe stripe;
+        private final Semaphore semaphore;
+        private int users;
+
+        private Mailbox(String account, Stripe stripe, Semaphore semaphore) {
+            this.account = account;
+            this.stripe = stripe;
+            this.semaphore = semaphore;
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/*
+*  Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+package org.wso2.carbon.connector;
+
+import org.apache.synapse.MessageContext;
+import org.wso2.carbon.connector.core.AbstractConnector;
+import org.wso2.carbon.connector.core.ConnectException;
+import org.wso2.carbon.connector.core.util.ConnectorUtils;
+import org.wso2.carbon.utils.xml.StringUtils;
+
+import java.io.IOException;
+
+/**
+ * This class used to set up the connection pool and the credentials of the endpoint of the config operation.
+ * <p>
+ * The pool is shared by every message configured with the same connectionName, which defaults to the endpointUrl,
+ * and the credentials by every message configured with the same connectionName and identity, the username or the
+ * tokenEndpoint, clientId and scope; both are only recreated when their settings change. Basic credentials are
+ * encoded once per identity, OAuth2 tokens are fetched once per identity and refreshed in the background before they
+ * expire. The pool uses the proxy and TLS settings of the axis2.xml transport sender of the endpoint, see
+ * {@link EWSTransportSenderSettings}.
+ * The requestTimeout starts the deadline every request of the message sent after the config operation has to meet.
+ * Requests larger than the chunkingThreshold are written chunked while they are serialized instead of being buffered.
+ * Responses are asked for gzip or deflate compressed unless responseCompression is false, requests are only
+ * compressed from the requestCompressionThreshold on. createAttachment only reads attachmentFile paths below the
+ * attachmentDirectory.
+ */
+public class EWSConfigMediator extends AbstractConnector {
+    private static final String DEFAULT_SCOPE = "https://outlook.office365.com/.default";
+
+    public void connect(MessageContext messageContext) throws ConnectException {
+        String endpointUrl = (String) ConnectorUtils.lookupTemplateParamater(messageContext, EWSConstants
+                .ENDPOINT_URL);
+        if (StringUtils.isEmpty(endpointUrl)) {
+            throw new ConnectException("config requires an endpointUrl");
+        }
+        String connectionName = (String) ConnectorUtils.lookupTemplateParamater(messageContext, EWSConstants
+                .CONNECTION_NAME);
+        if (StringUtils.isEmpty(connectionName)) {
+            connectionName = endpointUrl;
+        }
+        EWSConnectionPool.Settings settings = new EWSConnectionPool.Settings()
+                .setMaxConnections(EWSUtils.lookupIntParameter(messageContext, EWSConstants.MAX_CONNECTIONS,
+                        EWSConnectionPool.Settings.DEFAULT_MAX_CONNECTIONS))
+                .setMaxConnectionsPerRoute(EWSUtils.lookupIntParameter(messageContext, EWSConstants
+                        .MAX_CONNECTIONS_PER_ROUTE, EWSConnectionPool.Settings.DEFAULT_MAX_CONNECTIONS_PER_ROUTE))
+                .setIdleTimeout(EWSUtils.lookupLongParameter(messageContext, EWSConstants.IDLE_CONNECTION_TIMEOUT,
+                        EWSConnectionPool.Settings.DEFAULT_IDLE_TIMEOUT))
+                .setConnectTimeout(EWSUtils.lookupIntParameter(messageContext, EWSConstants.CONNECT_TIMEOUT,
+                        EWSConnectionPool.Settings.DEFAULT_CONNECT_TIMEOUT))
+                .setSocketTimeout(EWSUtils.lookupIntParameter(messageContext, EWSConstants.SOCKET_TIMEOUT,
+                        EWSConnectionPool.Settings.DEFAULT_SOCKET_TIMEOUT))
+                .setTlsSessionCacheSize(EWSUtils.lookupIntParameter(messageContext, EWSConstants
+                        .TLS_SESSION_CACHE_SIZE, EWSConnectionPool.Settings.DEFAULT_TLS_SESSION_CACHE_SIZE))
+                .setTlsSessionTimeout(EWSUtils.lookupIntParameter(messageContext, EWSConstants.TLS_SESSION_TIMEOUT,
+                        EWSConnectionPool.Settings.DEFAULT_TLS_SESSION_TIMEOUT));
+        try {
+            EWSTransportSenderSettings.apply(messageContext, endpointUrl, settings);
+        } catch (IOException e) {
+            String msg = "Couldn't apply the transport sender settings of axis2.xml to " + connectionName;
+            log.error(msg, e);
+            throw new ConnectException(e, msg);
+        }
+        try {
+            EWSConnectionPool.configure(connectionName, settings);
+        } catch (IllegalStateException e) {
+            String msg = "Couldn't create the connection pool of " + connectionName;
+            log.error(msg, e);
+            throw new ConnectException(e, msg);
+        }
+        messageContext.setProperty(EWSConstants.EWS_CONNECTION_NAME, connectionName);
+        messageContext.setProperty(EWSConstants.EWS_ADAPTIVE_TIMEOUT, ConnectorUtils.lookupTemplateParamater(
+                messageContext, EWSConstants.ADAPTIVE_TIMEOUT));
+        long requestTimeout = EWSUtils.lookupLongParameter(messageContext, EWSConstants.REQUEST_TIMEOUT, 0);
+        if (requestTimeout > 0) {
+            messageContext.setProperty(EWSConstants.EWS_DEADLINE, System.currentTimeMillis() + requestTimeout);
+        } else {
+            messageContext.getPropertyKeySet().remove(EWSConstants.EWS_DEADLINE);
+        }
+        int chunkingThreshold = EWSUtils.lookupIntParameter(messageContext, EWSConstants.CHUNKING_THRESHOLD, -1);
+        if (chunkingThreshold >= 0) {
+            messageContext.setProperty(EWSConstants.EWS_CHUNKING_THRESHOLD, chunkingThreshold);
+        } else {
+            messageContext.getPropertyKeySet().remove(EWSConstants.EWS_CHUNKING_THRESHOLD);
+        }
+        messageContext.setProperty(EWSConstants.EWS_RESPONSE_COMPRESSION, ConnectorUtils.lookupTemplateParamater(
+                messageContext, EWSConstants.RESPONSE_COMPRESSION));
+        int compressionThreshold = EWSUtils.lookupIntParameter(messageContext, EWSConstants
+                .REQUEST_COMPRESSION_THRESHOLD, -1);
+        if (compressionThreshold >= 0) {
+            messageContext.setProperty(EWSConstants.EWS_REQUEST_COMPRESSION_THRESHOLD, compressionThreshold);
+        } else {
+            messageContext.getPropertyKeySet().remove(EWSConstants.EWS_REQUEST_COMPRESSION_THRESHOLD);
+        }
+        String attachmentDirectory = (String) ConnectorUtils.lookupTemplateParamater(messageContext, EWSConstants
+                .ATTACHMENT_DIRECTORY);
+        if (!StringUtils.isEmpty(attachmentDirectory)) {
+            messageContext.setProperty(EWSConstants.EWS_ATTACHMENT_DIRECTORY, attachmentDirectory);
+        } else {
+            messageContext.getPropertyKeySet().remove(EWSConstants.EWS_ATTACHMENT_DIRECTORY);
+        }
+        EWSCredentialProvider credentials = getCredentialProvider(messageContext, connectionName);
+        if (credentials == null) {
+            messageContext.getPropertyKeySet().remove(EWSConstants.EWS_CREDENTIAL_KEY);
+        } else {
+            try {
+                messageContext.setProperty(EWSConstants.EWS_AUTHORIZATION_HEADER, credentials.getAuthorization());
+            } catch (IOException e) {
+                String msg = "Couldn't obtain credentials of " + connectionName;
+                log.error(msg, e);
+                throw new ConnectException(e, msg);
+            }
+        }
+    }
+
+    /**
+     * Used to get the credential provider of a connection, OAuth2 client credentials when a tokenEndpoint is given,
+     * Basic credentials when a username is given, and to set the key it is kept under for the operations of the
+     * message
+     *
+     * @param messageContext messageContext of Request
+     * @param connectionName name of the connection
+     * @return provider, or null when the config operation has no credentials
+     */
+    private EWSCredentialProvider getCredentialProvider(MessageContext messageContext, String connectionName) {
+        String tokenEndpoint = (String) ConnectorUtils.lookupTemplateParamater(messageContext, EWSConstants
+                .TOKEN_ENDPOINT);
+        if (!StringUtils.isEmpty(tokenEndpoint)) {
+            String scope = (String) ConnectorUtils.lookupTemplateParamater(messageContext, EWSConstants.SCOPE);
+            if (StringUtils.isEmpty(scope)) {
+                scope = DEFAULT_SCOPE;
+            }
+            String clientId = (String) ConnectorUtils.lookupTemplateParamater(messageContext, EWSConstants.CLIENT_ID);
+            messageContext.setProperty(EWSConstants.EWS_CREDENTIAL_KEY, EWSCredentialCache.oauthKey(connectionName,
+                    tokenEndpoint, clientId, scope));
+            return EWSCredentialCache.oauth(connectionName, tokenEndpoint, clientId, (String) ConnectorUtils
+                    .lookupTemplateParamater(messageContext, EWSConstants.CLIENT_SECRET), scope);
+        }
+        String username = (String) ConnectorUtils.lookupTemplateParamater(messageContext, EWSConstants.USERNAME);
+        if (!StringUtils.isEmpty(username)) {
+            String password = (String) ConnectorUtils.lookupTemplateParamater(messageContext, EWSConstants
+                    .PASSWORD);
+            messageContext.setProperty(EWSConstants.EWS_CREDENTIAL_KEY, EWSCredentialCache.basicKey(connectionName,
+                    username));
+            return EWSCredentialCache.basic(connectionName, username, password == null ? "" : password);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,530 @@
+/*
+*  Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+package org.wso2.carbon.connector;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpHost;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.AbstractVerifier;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.conn.ssl.X509HostnameVerifier;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A named HTTP connection pool shared by all requests to one EWS endpoint.
+ * <p>
+ * Connections are kept alive between requests and closed once they have been idle for longer than the idle timeout.
+ * All connections of a pool share one SSLContext with a client session cache, so a new connection to a server the
+ * pool has talked to before resumes its TLS session instead of doing a full handshake. Pools use the proxy, key
+ * store, trust store, hostname verification, protocols and ciphers of their settings, which the config operation
+ * takes from the transport sender of axis2.xml, and otherwise the JVM wide settings: the proxy of http.proxyHost and
+ * https.proxyHost, the key store and trust store of javax.net.ssl, and the https.protocols and https.cipherSuites.
+ * Pools are created by the config operation and live until they are configured again with different settings.
+ */
+final class EWSConnectionPool {
+    private static final Log log = LogFactory.getLog(EWSConnectionPool.class);
+    private static final long MIN_EVICTION_INTERVAL = 1000;
+    private static final long MAX_EVICTION_INTERVAL = 30000;
+    private static final List<String> LOCALHOST_NAMES = Arrays.asList("localhost", "127.0.0.1", "::1");
+
+    private static final ConcurrentMap<String, EWSConnectionPool> pools = new ConcurrentHashMap<String,
+            EWSConnectionPool>();
+    private static final ScheduledExecutorService evictor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "ews-connection-evictor");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final String name;
+    private final Settings settings;
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final CloseableHttpClient httpClient;
+    private final ScheduledFuture<?> eviction;
+
+    private EWSConnectionPool(String name, Settings settings) {
+        this.name = name;
+        this.settings = settings;
+        SSLContext sslContext = createSslContext(settings);
+        SSLSessionContext sessionContext = sslContext.getClientSessionContext();
+        sessionContext.setSessionCacheSize(settings.tlsSessionCacheSize);
+        sessionContext.setSessionTimeout(settings.tlsSessionTimeout);
+        // the builder applies the system TLS settings only to a connection manager of its own
+        Registry<ConnectionSocketFactory> socketFactories = RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                .register("https", new SSLConnectionSocketFactory(sslContext, split(settings.protocols != null ?
+                        settings.protocols : System.getProperty("https.protocols")), split(settings.ciphers != null ?
+                        settings.ciphers : System.getProperty("https.cipherSuites")), getHostnameVerifier(settings
+                        .hostnameVerifier)))
+                .build();
+        connectionManager = new PoolingHttpClientConnectionManager(socketFactories);
+        connectionManager.setMaxTotal(settings.maxConnections);
+        connectionManager.setDefaultMaxPerRoute(settings.maxConnectionsPerRoute);
+        // without connection state a connection authenticated by a client certificate can be leased by any request
+        httpClient = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setConnectTimeout(settings.connectTimeout)
+                        .setConnectionRequestTimeout(settings.connectTimeout)
+                        .setSocketTimeout(settings.socketTimeout)
+                        .build())
+                .disableConnectionState()
+                // EWSClient negotiates and decodes compression itself, so it can count the bytes compression saves
+                .disableContentCompression()
+                // the pool is shared by all mailboxes of the connection, so the X-BackEndOverrideCookie of one
+                // streaming subscription must not be sent with the requests of another; EWSClient sends it itself
+                .disableCookieManagement()
+                .disableAutomaticRetries()
+                .setProxy(settings.proxy)
+                .useSystemProperties()
+                .build();
+        long interval = Math.max(MIN_EVICTION_INTERVAL, Math.min(MAX_EVICTION_INTERVAL, settings.idleTimeout / 2));
+        eviction = evictor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                connectionManager.closeExpiredConnections();
+                connectionManager.closeIdleConnections(EWSConnectionPool.this.settings.idleTimeout, TimeUnit
+                        .MILLISECONDS);
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Used to create the SSLContext of a pool. It is a context of its own, so the TLS sessions the pool caches are
+     * not shared with other clients of the JVM. It holds the key store and trust store of the settings, or else the
+     * key store of the javax.net.ssl.keyStore system property for client certificates and the default trust
+     * managers, which use javax.net.ssl.trustStore.
+     *
+     * @param settings settings of the pool
+     * @return SSLContext
+     * @throws IllegalStateException when the key store or trust store of the settings couldn't be loaded
+     */
+    private static SSLContext createSslContext(Settings settings) {
+        try {
+            KeyManager[] keyManagers = getSystemKeyManagers();
+            if (settings.keyStore != null) {
+                KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory
+                        .getDefaultAlgorithm());
+                keyManagerFactory.init(settings.keyStore.load(), settings.keyStore.keyPassword == null ? null :
+                        settings.keyStore.keyPassword.toCharArray());
+                keyManagers = keyManagerFactory.getKeyManagers();
+            }
+            TrustManager[] trustManagers = null;
+            if (settings.trustStore != null) {
+                TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory
+                        .getDefaultAlgorithm());
+                trustManagerFactory.init(settings.trustStore.load());
+                trustManagers = trustManagerFactory.getTrustManagers();
+            }
+            SSLContext sslContext = SSLContext.getInstance("TLS");
+            sslContext.init(keyManagers, trustManagers, null);
+            return sslContext;
+        } catch (IOException e) {
+            throw new IllegalStateException("Couldn't read key store or trust store of EWS connection pool", e);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Couldn't create SSLContext of EWS connection pool", e);
+        }
+    }
+
+    /**
+     * Used to get the hostname verifier of a HostnameVerifier setting of the transport sender, Default, Strict,
+     * AllowAll or DefaultAndLocalHost, which accepts any certificate of localhost
+     */
+    private static X509HostnameVerifier getHostnameVerifier(String hostnameVerifier) {
+        if ("Strict".equals(hostnameVerifier)) {
+            return SSLConnectionSocketFactory.STRICT_HOSTNAME_VERIFIER;
+        } else if ("AllowAll".equals(hostnameVerifier)) {
+            return SSLConnectionSocketFactory.ALLOW_ALL_HOSTNAME_VERIFIER;
+        } else if ("DefaultAndLocalHost".equals(hostnameVerifier)) {
+            return new AbstractVerifier() {
+                public void verify(String host, String[] cns, String[] subjectAlts) throws SSLException {
+                    if (!LOCALHOST_NAMES.contains(host)) {
+                        SSLConnectionSocketFactory.BROWSER_COMPATIBLE_HOSTNAME_VERIFIER.verify(host, cns,
+                                subjectAlts);
+                    }
+                }
+            };
+        }
+        return SSLConnectionSocketFactory.BROWSER_COMPATIBLE_HOSTNAME_VERIFIER;
+    }
+
+    private static KeyManager[] getSystemKeyManagers() {
+        String keyStoreFile = System.getProperty("javax.net.ssl.keyStore");
+        if (keyStoreFile == null || keyStoreFile.isEmpty() || "NONE".equals(keyStoreFile)) {
+            return null;
+        }
+        String password = System.getProperty("javax.net.ssl.keyStorePassword");
+        char[] keyStorePassword = password == null ? null : password.toCharArray();
+        try {
+            KeyStore keyStore = KeyStore.getInstance(System.getProperty("javax.net.ssl.keyStoreType", KeyStore
+                    .getDefaultType()));
+            InputStream input = new FileInputStream(keyStoreFile);
+            try {
+                keyStore.load(input, keyStorePassword);
+            } finally {
+                input.close();
+            }
+            KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory
+                    .getDefaultAlgorithm());
+            keyManagerFactory.init(keyStore, keyStorePassword);
+            return keyManagerFactory.getKeyManagers();
+        } catch (IOException e) {
+            log.warn("Couldn't read key store " + keyStoreFile + ", connecting without a client certificate", e);
+        } catch (GeneralSecurityException e) {
+            log.warn("Couldn't load key store " + keyStoreFile + ", connecting without a client certificate", e);
+        }
+        return null;
+    }
+
+    private static String[] split(String value) {
+        return value == null || value.trim().isEmpty() ? null : value.trim().split(" *, *");
+    }
+
+    /**
+     * Used to create the pool of a name, or to replace it when its settings have changed. A replaced pool is closed
+     * once requests still running on it have had time to complete.
+     *
+     * @param name name of the pool
+     * @param settings settings of the pool
+     * @return pool
+     */
+    static EWSConnectionPool configure(String name, Settings settings) {
+        while (true) {
+            EWSConnectionPool existing = pools.get(name);
+            if (existing != null && existing.settings.equals(settings)) {
+                return existing;
+            }
+            EWSConnectionPool pool = new EWSConnectionPool(name, settings);
+            if (existing == null ? pools.putIfAbsent(name, pool) == null : pools.replace(name, existing, pool)) {
+                if (existing != null) {
+                    log.info("Settings of EWS connection pool " + name + " have changed, replacing it");
+                    existing.closeLater();
+                }
+                return pool;
+            }
+            pool.close();
+        }
+    }
+
+    /**
+     * Used to get the pool of a name, creating it with the default settings if it hasn't been configured
+     *
+     * @param name name of the pool
+     * @return pool
+     */
+    static EWSConnectionPool get(String name) {
+        EWSConnectionPool pool = pools.get(name);
+        return pool != null ? pool : configure(name, new Settings());
+    }
+
+    /**
+     * @return connection statistics of every pool by its name
+     */
+    static Map<String, PoolStats> getAllStats() {
+        Map<String, PoolStats> stats = new HashMap<String, PoolStats>();
+        for (Map.Entry<String, EWSConnectionPool> pool : pools.entrySet()) {
+            stats.put(pool.getKey(), pool.getValue().getStats());
+        }
+        return stats;
+    }
+
+    CloseableHttpClient getHttpClient() {
+        return httpClient;
+    }
+
+    int getSocketTimeout() {
+        return settings.socketTimeout;
+    }
+
+    /**
+     * @return leased, available, pending and maximum connections over all routes of the pool
+     */
+    PoolStats getStats() {
+        return connectionManager.getTotalStats();
+    }
+
+    private void closeLater() {
+        evictor.schedule(new Runnable() {
+            public void run() {
+                close();
+            }
+        }, settings.socketTimeout + settings.connectTimeout, TimeUnit.MILLISECONDS);
+    }
+
+    private void close() {
+        eviction.cancel(false);
+        try {
+            httpClient.close();
+        } catch (IOException e) {
+            log.warn("Couldn't close EWS connection pool " + name, e);
+        }
+    }
+
+    /**
+     * Settings of a pool, two pools with equal settings behave the same.
+     */
+    static final class Settings {
+        static final int DEFAULT_MAX_CONNECTIONS = 100;
+        static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 20;
+        static final long DEFAULT_IDLE_TIMEOUT = 60000;
+        static final int DEFAULT_CONNECT_TIMEOUT = 60000;
+        static final int DEFAULT_SOCKET_TIMEOUT = 60000;
+        static final int DEFAULT_TLS_SESSION_CACHE_SIZE = 1000;
+        static final int DEFAULT_TLS_SESSION_TIMEOUT = 86400;
+
+        private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+        private int maxConnectionsPerRoute = DEFAULT_MAX_CONNECTIONS_PER_ROUTE;
+        private long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+        private int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+        private int socketTimeout = DEFAULT_SOCKET_TIMEOUT;
+        private int tlsSessionCacheSize = DEFAULT_TLS_SESSION_CACHE_SIZE;
+        private int tlsSessionTimeout = DEFAULT_TLS_SESSION_TIMEOUT;
+        private HttpHost proxy;
+        private Store keyStore;
+        private Store trustStore;
+        private String hostnameVerifier;
+        private String protocols;
+        private String ciphers;
+
+        /**
+         * @param maxConnections maximum connections of the pool
+         * @return settings
+         */
+        Settings setMaxConnections(int maxConnections) {
+            this.maxConnections = maxConnections;
+            return this;
+        }
+
+        /**
+         * @param maxConnectionsPerRoute maximum connections to one server
+         * @return settings
+         */
+        Settings setMaxConnectionsPerRoute(int maxConnectionsPerRoute) {
+            this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+            return this;
+        }
+
+        /**
+         * @param idleTimeout milliseconds a connection may stay unused before it is closed
+         * @return settings
+         */
+        Settings setIdleTimeout(long idleTimeout) {
+            this.idleTimeout = idleTimeout;
+            return this;
+        }
+
+        /**
+         * @param connectTimeout milliseconds to wait for a connection, from the pool or to the server
+         * @return settings
+         */
+        Settings setConnectTimeout(int connectTimeout) {
+            this.connectTimeout = connectTimeout;
+            return this;
+        }
+
+        /**
+         * @param socketTimeout milliseconds a read of a response may block
+         * @return settings
+         */
+        Settings setSocketTimeout(int socketTimeout) {
+            this.socketTimeout = socketTimeout;
+            return this;
+        }
+
+        /**
+         * @param tlsSessionCacheSize number of TLS sessions kept for resumption, 0 for no limit
+         * @return settings
+         */
+        Settings setTlsSessionCacheSize(int tlsSessionCacheSize) {
+            this.tlsSessionCacheSize = tlsSessionCacheSize;
+            return this;
+        }
+
+        /**
+         * @param tlsSessionTimeout seconds a TLS session can be resumed, 0 for no limit
+         * @return settings
+         */
+        Settings setTlsSessionTimeout(int tlsSessionTimeout) {
+            this.tlsSessionTimeout = tlsSessionTimeout;
+            return this;
+        }
+
+        /**
+         * @param proxy proxy to send requests through, null for the proxy of the system properties
+         * @return settings
+         */
+        Settings setProxy(HttpHost proxy) {
+            this.proxy = proxy;
+            return this;
+        }
+
+        /**
+         * @param keyStore key store of client certificates, null for the one of the system properties
+         * @return settings
+         */
+        Settings setKeyStore(Store keyStore) {
+            this.keyStore = keyStore;
+            return this;
+        }
+
+        /**
+         * @param trustStore trust store of server certificates, null for the one of the system properties
+         * @return settings
+         */
+        Settings setTrustStore(Store trustStore) {
+            this.trustStore = trustStore;
+            return this;
+        }
+
+        /**
+         * @param hostnameVerifier Default, Strict, AllowAll or DefaultAndLocalHost, null for Default
+         * @return settings
+         */
+        Settings setHostnameVerifier(String hostnameVerifier) {
+            this.hostnameVerifier = hostnameVerifier;
+            return this;
+        }
+
+        /**
+         * @param protocols comma separated TLS protocols, null for the ones of https.protocols
+         * @return settings
+         */
+        Settings setProtocols(String protocols) {
+            this.protocols = protocols;
+            return this;
+        }
+
+        /**
+         * @param ciphers comma separated cipher suites, null for the ones of https.cipherSuites
+         * @return settings
+         */
+        Settings setCiphers(String ciphers) {
+            this.ciphers = ciphers;
+            return this;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Settings)) {
+                return false;
+            }
+            Settings settings = (Settings) other;
+            return maxConnections == settings.maxConnections && maxConnectionsPerRoute == settings
+                    .maxConnectionsPerRoute && idleTimeout == settings.idleTimeout && connectTimeout == settings
+                    .connectTimeout && socketTimeout == settings.socketTimeout && tlsSessionCacheSize == settings
+                    .tlsSessionCacheSize && tlsSessionTimeout == settings.tlsSessionTimeout && Objects.equals(proxy,
+                    settings.proxy) && Objects.equals(keyStore, settings.keyStore) && Objects.equals(trustStore,
+                    settings.trustStore) && Objects.equals(hostnameVerifier, settings.hostnameVerifier) && Objects
+                    .equals(protocols, settings.protocols) && Objects.equals(ciphers, settings.ciphers);
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = maxConnections;
+            hash = 31 * hash + maxConnectionsPerRoute;
+            hash = 31 * hash + (int) (idleTimeout ^ (idleTimeout >>> 32));
+            hash = 31 * hash + connectTimeout;
+            hash = 31 * hash + socketTimeout;
+            hash = 31 * hash + tlsSessionCacheSize;
+            hash = 31 * hash + tlsSessionTimeout;
+            return 31 * hash + Objects.hash(proxy, keyStore, trustStore, hostnameVerifier, protocols, ciphers);
+        }
+    }
+
+    /**
+     * Key store or trust store file of the settings of a pool.
+     */
+    static final class Store {
+        private final String location;
+        private final String type;
+        private final String password;
+        private final String keyPassword;
+
+        /**
+         * @param location path of the store file
+         * @param type store type, null for the default type
+         * @param password password of the store
+         * @param keyPassword password of the keys of a key store, null for a trust store
+         */
+        Store(String location, String type, String password, String keyPassword) {
+            this.location = location;
+            this.type = type;
+            this.password = password;
+            this.keyPassword = keyPassword;
+        }
+
+        private KeyStore load() throws IOException, GeneralSecurityException {
+            KeyStore store = KeyStore.getInstance(type == null ? KeyStore.getDefaultType() : type);
+            InputStream input = new FileInputStream(location);
+            try {
+                store.load(input, password == null ? null : password.toCharArray());
+            } finally {
+                input.close();
+            }
+            return store;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Store)) {
+                return false;
+            }
+            Store store = (Store) other;
+            return location.equals(store.location) && Objects.equals(type, store.type) && Objects.equals(password,
+                    store.password) && Objects.equals(keyPassword, store.keyPassword);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(location, type, password, keyPassword);
+        }
+    }
+}
@@ -81,6 +81,166 @@ public class EWSConstants {
     public static final String CREATE_ITEM_ELEMENT = "CreateItem";
     public static final String BODY = "body";
     public static final String ATTACHMENTS = "attachments";
+    public static final String ATTACHMENT_FILE = "attachmentFile";
+    public static final String ATTACHMENT_STREAM_PROPERTY = "attachmentStreamProperty";
+    public static final String ATTACHMENT_NAME = "attachmentName";
+    public static final String ATTACHMENT_CONTENT_TYPE = "attachmentContentType";
+    public static final String ATTACHMENTS_ELEMENT = "Attachments";
+    public static final String FILE_ATTACHMENT_ELEMENT = "FileAttachment";
+    public static final String NAME_ELEMENT = "Name";
+    public static final String CONTENT_TYPE_ELEMENT = "ContentType";
+    public static final String EWS_ATTACHMENT_STREAMING = "EWS_ATTACHMENT_STREAMING";
+    public static final String ATTACHMENT_TARGET = "attachmentTarget";
+    public static final String SPOOL_THRESHOLD = "spoolThreshold";
+    public static final String EWS_ATTACHMENT_COUNT = "EWS_ATTACHMENT_COUNT";
+    public static final String EWS_ATTACHMENT_NAME = "EWS_ATTACHMENT_NAME";
+    public static final String EWS_ATTACHMENT_CONTENT_TYPE = "EWS_ATTACHMENT_CONTENT_TYPE";
+    public static final String EWS_ATTACHMENT_SIZE = "EWS_ATTACHMENT_SIZE";
+    public static final String EWS_ATTACHMENT_FILE = "EWS_ATTACHMENT_FILE";
+    public static final String EWS_ATTACHMENT_CONTENT = "EWS_ATTACHMENT_CONTENT";
+    public static final String EWS_ATTACHMENTS_DECODED = "EWS_ATTACHMENTS_DECODED";
+    public static final String EWS_API_URL = "uri.var.ews.apiUrl";
+    public static final String EWS_AUTHORIZATION_HEADER = "EWS_AUTHORIZATION_HEADER";
+    public static final String ITEM_ID_LIST = "itemIds";
+    public static final String BATCH_SIZE = "batchSize";
+    public static final String BATCH_PARALLELISM = "batchParallelism";
+    public static final String EWS_BATCH_COMPLETED = "EWS_BATCH_COMPLETED";
+    public static final String EWS_BATCH_ITEM_COUNT = "EWS_BATCH_ITEM_COUNT";
+    public static final String EWS_BATCH_FAILED_COUNT = "EWS_BATCH_FAILED_COUNT";
+    public static final String EWS_BATCH_FAILED_INDEXES = "EWS_BATCH_FAILED_INDEXES";
+    public static final String EWS_BATCH_FAILED_CODES = "EWS_BATCH_FAILED_CODES";
+    public static final String MESSAGE_LIST = "messages";
+    public static final String ATTACHMENT_ID_LIST = "attachmentIds";
+    public static final String BATCH_MAX_BYTES = "batchMaxBytes";
+    public static final String PAGINATE = "paginate";
+    public static final String PAGE_SIZE = "pageSize";
+    public static final String MAX_ITEMS = "maxItems";
+    public static final String MAX_PAGES_IN_FLIGHT = "maxPagesInFlight";
+    public static final String PAGE_SEQUENCE = "pageSequence";
+    public static final String PAGE_MODE = "pageMode";
+    public static final String EWS_PAGE_COUNT = "EWS_PAGE_COUNT";
+    public static final String EWS_PAGE_INDEX = "EWS_PAGE_INDEX";
+    public static final String EWS_ITEM_COUNT = "EWS_ITEM_COUNT";
+    public static final String EWS_ITEM_INDEX = "EWS_ITEM_INDEX";
+    public static final String EWS_TOTAL_ITEMS_IN_VIEW = "EWS_TOTAL_ITEMS_IN_VIEW";
+    public static final String ROOT_FOLDER_ELEMENT = "RootFolder";
+    public static final String GROUPS_ELEMENT = "Groups";
+    public static final String GROUPED_ITEMS_ELEMENT = "GroupedItems";
+    public static final String INDEXED_PAGE_ITEM_VIEW_ELEMENT = "IndexedPageItemView";
+    public static final String FRACTIONAL_PAGE_ITEM_VIEW_ELEMENT = "FractionalPageItemView";
+    public static final String SEEK_TO_CONDITION_PAGE_ITEM_VIEW_ELEMENT = "SeekToConditionPageItemView";
+    public static final String CALENDAR_VIEW_ELEMENT = "CalendarView";
+    public static final String CONTACTS_VIEW_ELEMENT = "ContactsView";
+    public static final String MAX_ENTRIES_RETURNED_ATTRIBUTE = "MaxEntriesReturned";
+    public static final String OFFSET_ATTRIBUTE = "Offset";
+    public static final String BASE_POINT_ATTRIBUTE = "BasePoint";
+    public static final String INDEXED_PAGING_OFFSET_ATTRIBUTE = "IndexedPagingOffset";
+    public static final String TOTAL_ITEMS_IN_VIEW_ATTRIBUTE = "TotalItemsInView";
+    public static final String INCLUDES_LAST_ITEM_IN_RANGE_ATTRIBUTE = "IncludesLastItemInRange";
+    public static final String INCLUDES_LAST_ITEM_IN_RANGE_ELEMENT = "IncludesLastItemInRange";
+    public static final String SYNC_FOLDER_ITEMS_ELEMENT = "SyncFolderItems";
+    public static final String SYNC_FOLDER_ID_ELEMENT = "SyncFolderId";
+    public static final String SYNC_STATE_ELEMENT = "SyncState";
+    public static final String SYNC_STATE = "syncState";
+    public static final String IGNORE = "ignore";
+    public static final String MAX_CHANGES_RETURNED = "maxChangesReturned";
+    public static final String MAX_CHANGES_RETURNED_ELEMENT = "MaxChangesReturned";
+    public static final String SYNC_SCOPE = "syncScope";
+    public static final String SYNC_SCOPE_ELEMENT = "SyncScope";
+    public static final String SYNC_STATE_DIRECTORY = "syncStateDirectory";
+    public static final String SYNC_KEY = "syncKey";
+    public static final String CHANGES_ELEMENT = "Changes";
+    public static final String EWS_SYNC_STATE = "EWS_SYNC_STATE";
+    public static final String EWS_SYNC_KEY = "EWS_SYNC_KEY";
+    public static final String EWS_SYNC_INCLUDES_LAST_ITEM_IN_RANGE = "EWS_SYNC_INCLUDES_LAST_ITEM_IN_RANGE";
+    public static final String MAX_CHANGES = "maxChanges";
+    public static final String EWS_CHANGE_COUNT = "EWS_CHANGE_COUNT";
+    public static final String SUBSCRIBE_ELEMENT = "Subscribe";
+    public static final String PULL_SUBSCRIPTION_REQUEST_ELEMENT = "PullSubscriptionRequest";
+    public static final String EVENT_TYPES_ELEMENT = "EventTypes";
+    public static final String EVENT_TYPE_ELEMENT = "EventType";
+    public static final String WATERMARK_ELEMENT = "Watermark";
+    public static final String TIMEOUT_ELEMENT = "Timeout";
+    public static final String GET_EVENTS_ELEMENT = "GetEvents";
+    public static final String UNSUBSCRIBE_ELEMENT = "Unsubscribe";
+    public static final String SUBSCRIPTION_ID_ELEMENT = "SubscriptionId";
+    public static final String NOTIFICATION_ELEMENT = "Notification";
+    public static final String MORE_EVENTS_ELEMENT = "MoreEvents";
+    public static final String STATUS_EVENT_ELEMENT = "StatusEvent";
+    public static final String FOLDER_IDS = "folderIds";
+    public static final String EVENT_TYPES = "eventTypes";
+    public static final String MAILBOXES = "mailboxes";
+    public static final String POLL_INTERVAL = "pollInterval";
+    public static final String SUBSCRIPTION_TIMEOUT = "subscriptionTimeout";
+    public static final String EVENT_SEQUENCE = "eventSequence";
+    public static final String EWS_EVENT_TYPE = "EWS_EVENT_TYPE";
+    public static final String EWS_EVENT_MAILBOX = "EWS_EVENT_MAILBOX";
+    public static final String EWS_EVENT_WATERMARK = "EWS_EVENT_WATERMARK";
+    public static final String EWS_SUBSCRIPTION_COUNT = "EWS_SUBSCRIPTION_COUNT";
+    public static final String STREAMING_SUBSCRIPTION_REQUEST_ELEMENT = "StreamingSubscriptionRequest";
+    public static final String GET_STREAMING_EVENTS_ELEMENT = "GetStreamingEvents";
+    public static final String GET_STREAMING_EVENTS_RESPONSE_MESSAGE_ELEMENT = "GetStreamingEventsResponseMessage";
+    public static final String SUBSCRIPTION_IDS_ELEMENT = "SubscriptionIds";
+    public static final String ERROR_SUBSCRIPTION_IDS_ELEMENT = "ErrorSubscriptionIds";
+    public static final String CONNECTION_TIMEOUT_ELEMENT = "ConnectionTimeout";
+    public static final String CONNECTION_STATUS_ELEMENT = "ConnectionStatus";
+    public static final String MAX_SUBSCRIPTIONS_PER_CONNECTION = "maxSubscriptionsPerConnection";
+    public static final String CONNECTION_TIMEOUT = "connectionTimeout";
+    public static final String ENDPOINT_URL = "endpointUrl";
+    public static final String CONNECTION_NAME = "connectionName";
+    public static final String MAX_CONNECTIONS = "maxConnections";
+    public static final String MAX_CONNECTIONS_PER_ROUTE = "maxConnectionsPerRoute";
+    public static final String IDLE_CONNECTION_TIMEOUT = "idleConnectionTimeout";
+    public static final String CONNECT_TIMEOUT = "connectTimeout";
+    public static final String SOCKET_TIMEOUT = "socketTimeout";
+    public static final String TLS_SESSION_CACHE_SIZE = "tlsSessionCacheSize";
+    public static final String TLS_SESSION_TIMEOUT = "tlsSessionTimeout";
+    public static final String USERNAME = "username";
+    public static final String PASSWORD = "password";
+    public static final String TOKEN_ENDPOINT = "tokenEndpoint";
+    public static final String CLIENT_ID = "clientId";
+    public static final String CLIENT_SECRET = "clientSecret";
+    public static final String SCOPE = "scope";
+    public static final String EWS_CONNECTION_NAME = "EWS_CONNECTION_NAME";
+    public static final String EWS_CREDENTIAL_KEY = "EWS_CREDENTIAL_KEY";
+    public static final String EWS_POOL_LEASED = "EWS_POOL_LEASED";
+    public static final String EWS_POOL_AVAILABLE = "EWS_POOL_AVAILABLE";
+    public static final String EWS_POOL_PENDING = "EWS_POOL_PENDING";
+    public static final String EWS_POOL_MAX = "EWS_POOL_MAX";
+    public static final String EWS_MAILBOX_WAIT_TIME = "EWS_MAILBOX_WAIT_TIME";
+    public static final String EWS_MAILBOX_QUEUE_DEPTH = "EWS_MAILBOX_QUEUE_DEPTH";
+    public static final String ADAPTIVE_TIMEOUT = "adaptiveTimeout";
+    public static final String REQUEST_TIMEOUT = "requestTimeout";
+    public static final String HEDGE_REQUESTS = "hedgeRequests";
+    public static final String EWS_ADAPTIVE_TIMEOUT = "EWS_ADAPTIVE_TIMEOUT";
+    public static final String EWS_DEADLINE = "EWS_DEADLINE";
+    public static final String EWS_HEDGE_REQUESTS = "EWS_HEDGE_REQUESTS";
+    public static final String CHUNKING_THRESHOLD = "chunkingThreshold";
+    public static final String EWS_CHUNKING_THRESHOLD = "EWS_CHUNKING_THRESHOLD";
+    public static final String RESPONSE_COMPRESSION = "responseCompression";
+    public static final String REQUEST_COMPRESSION_THRESHOLD = "requestCompressionThreshold";
+    public static final String EWS_RESPONSE_COMPRESSION = "EWS_RESPONSE_COMPRESSION";
+    public static final String EWS_REQUEST_COMPRESSION_THRESHOLD = "EWS_REQUEST_COMPRESSION_THRESHOLD";
+    public static final String ATTACHMENT_DIRECTORY = "attachmentDirectory";
+    public static final String EWS_ATTACHMENT_DIRECTORY = "EWS_ATTACHMENT_DIRECTORY";
+    public static final String EWS_RESPONSE_MODE = "EWS_RESPONSE_MODE";
+    public static final String RESPONSE_MODE = "responseMode";
+    public static final String STREAM_RESPONSE_MODE = "stream";
+    public static final String EWS_RESPONSE_STREAM = "EWS_RESPONSE_STREAM";
+    public static final String RESPONSE_FIELDS = "responseFields";
+    public static final String CACHE_ITEMS = "cacheItems";
+    public static final String EWS_ITEM_CACHE_HITS = "EWS_ITEM_CACHE_HITS";
+    public static final String EWS_ITEM_CACHE_MISSES = "EWS_ITEM_CACHE_MISSES";
+    public static final String EWS_ITEM_CACHE_HIT_RATE = "EWS_ITEM_CACHE_HIT_RATE";
+    public static final String CACHE_ATTACHMENTS = "cacheAttachments";
+    public static final String EWS_ATTACHMENT_CACHE_HITS = "EWS_ATTACHMENT_CACHE_HITS";
+    public static final String EWS_ATTACHMENT_CACHE_MISSES = "EWS_ATTACHMENT_CACHE_MISSES";
+    public static final String EWS_ATTACHMENT_CACHE_BYTES_SAVED = "EWS_ATTACHMENT_CACHE_BYTES_SAVED";
+    public static final String RESPONSE_MESSAGES_ELEMENT = "ResponseMessages";
+    public static final String RESPONSE_CLASS_ATTRIBUTE = "ResponseClass";
+    public static final String MESSAGE_TEXT_ELEMENT = "MessageText";
+    public static final String RESPONSE_CODE_ELEMENT = "ResponseCode";
+    public static final String DESCRIPTIVE_LINK_KEY_ELEMENT = "DescriptiveLinkKey";
     public static final String DATE_TIME_RECEIVED_ELEMENT = "DateTimeReceived";
     public static final String DATE_TIME_RECEIVED = "dateTimeReceived";
     public static final String SIZE_ELEMENT = "Size";
@@ -179,6 +339,25 @@ public class EWSConstants {
     public static final String TIME_ZONE_CONTEXT_HEADER = "TimeZoneContext";
     public static final String TIME_ZONE_DEFINITION = "timeZoneDefinition";
     public static final String TIME_ZONE_DEFINITION_HEADER = "TimeZoneDefinition";
+    public static final String TIME_ZONE_ID = "timeZoneId";
+    public static final String PERIODS_ELEMENT = "Periods";
+    public static final String PERIOD_ELEMENT = "Period";
+    public static final String BIAS_ATTRIBUTE = "Bias";
+    public static final String TRANSITIONS_GROUPS_ELEMENT = "TransitionsGroups";
+    public static final String TRANSITIONS_GROUP_ELEMENT = "TransitionsGroup";
+    public static final String TRANSITIONS_ELEMENT = "Transitions";
+    public static final String TRANSITION_ELEMENT = "Transition";
+    public static final String RECURRING_DAY_TRANSITION_ELEMENT = "RecurringDayTransition";
+    public static final String RECURRING_DATE_TRANSITION_ELEMENT = "RecurringDateTransition";
+    public static final String TO_ELEMENT = "To";
+    public static final String KIND_ATTRIBUTE = "Kind";
+    public static final String PERIOD_KIND = "Period";
+    public static final String GROUP_KIND = "Group";
+    public static final String TIME_OFFSET_ELEMENT = "TimeOffset";
+    public static final String MONTH_ELEMENT = "Month";
+    public static final String DAY_ELEMENT = "Day";
+    public static final String DAY_OF_WEEK_ELEMENT = "DayOfWeek";
+    public static final String OCCURRENCE_ELEMENT = "Occurrence";
     public static final String ID_ATTRIBUTE = "Id";
     public static final String NAME_ATTRIBUTE = "Name";
     public static final String TYPE_NAME_SPACE_HEADER = "typ";
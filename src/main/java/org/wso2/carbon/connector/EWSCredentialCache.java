@@ -0,0 +1,135 @@
+/*
+*  Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+package org.wso2.carbon.connector;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps the credential providers of the named connections, so credentials are set up once per connection instead
+ * of once per message. A provider is kept under its connection together with the identity it authenticates, the
+ * username or the token endpoint, client id and scope, so connections of different identities on one endpoint each
+ * keep their own provider. A provider is only replaced, and the old one closed, when the secret of its identity
+ * changes.
+ */
+final class EWSCredentialCache {
+    private static final ConcurrentMap<String, Entry> providers = new ConcurrentHashMap<String, Entry>();
+
+    private EWSCredentialCache() {
+    }
+
+    /**
+     * @param connectionName name of the connection
+     * @param username user name
+     * @return key the provider of the Basic credentials of the user is kept under
+     */
+    static String basicKey(String connectionName, String username) {
+        return connectionName + "\nbasic\n" + username;
+    }
+
+    /**
+     * @param connectionName name of the connection
+     * @param tokenEndpoint token endpoint of the authorization server
+     * @param clientId client id of the application
+     * @param scope requested scope
+     * @return key the provider of the OAuth2 tokens of the application is kept under
+     */
+    static String oauthKey(String connectionName, String tokenEndpoint, String clientId, String scope) {
+        return connectionName + "\noauth\n" + tokenEndpoint + '\n' + clientId + '\n' + scope;
+    }
+
+    /**
+     * Used to get the provider of Basic credentials of a connection
+     *
+     * @param connectionName name of the connection
+     * @param username user name
+     * @param password password
+     * @return provider, kept under {@link #basicKey}
+     */
+    static EWSCredentialProvider basic(String connectionName, final String username, final String password) {
+        return get(basicKey(connectionName, username), connectionName, password, new Factory() {
+            public EWSCredentialProvider create(String connectionName) {
+                return EWSStaticCredentialProvider.basic(username, password);
+            }
+        });
+    }
+
+    /**
+     * Used to get the provider of OAuth2 client credential tokens of a connection
+     *
+     * @param connectionName name of the connection
+     * @param tokenEndpoint token endpoint of the authorization server
+     * @param clientId client id of the application
+     * @param clientSecret client secret of the application
+     * @param scope requested scope
+     * @return provider, kept under {@link #oauthKey}
+     */
+    static EWSCredentialProvider oauth(String connectionName, final String tokenEndpoint, final String clientId,
+                                       final String clientSecret, final String scope) {
+        return get(oauthKey(connectionName, tokenEndpoint, clientId, scope), connectionName, clientSecret,
+                new Factory() {
+                    public EWSCredentialProvider create(String connectionName) {
+                        return new EWSOAuthCredentialProvider(tokenEndpoint, clientId, clientSecret, scope,
+                                connectionName);
+                    }
+                });
+    }
+
+    /**
+     * @param key key of the provider, {@link #basicKey} or {@link #oauthKey}
+     * @return provider kept under the key, or null when none has been set up
+     */
+    static EWSCredentialProvider get(String key) {
+        Entry entry = providers.get(key);
+        return entry == null ? null : entry.provider;
+    }
+
+    private static EWSCredentialProvider get(String key, String connectionName, String secret, Factory factory) {
+        String credentials = String.valueOf(secret);
+        Entry entry = providers.get(key);
+        if (entry != null && entry.credentials.equals(credentials)) {
+            return entry.provider;
+        }
+        synchronized (providers) {
+            entry = providers.get(key);
+            if (entry != null && entry.credentials.equals(credentials)) {
+                return entry.provider;
+            }
+            Entry created = new Entry(credentials, factory.create(connectionName));
+            providers.put(key, created);
+            if (entry != null) {
+                entry.provider.close();
+            }
+            return created.provider;
+        }
+    }
+
+    private interface Factory {
+        EWSCredentialProvider create(String connectionName);
+    }
+
+    private static final class Entry {
+        private final String credentials;
+        private final EWSCredentialProvider provider;
+
+        private Entry(String credentials, EWSCredentialProvider provider) {
+            this.credentials = credentials;
+            this.provider = provider;
+        }
+    }
+}
@@ -0,0 +1,37 @@
+/*
+*  Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+package org.wso2.carbon.connector;
+
+import java.io.IOException;
+
+/**
+ * Supplies the Authorization header of the requests of a connection.
+ */
+interface EWSCredentialProvider {
+
+    /**
+     * @return value of the Authorization header, or null to send none
+     * @throws IOException when no valid credential could be obtained
+     */
+    String getAuthorization() throws IOException;
+
+    /**
+     * Used to stop background work of the provider once it has been replaced
+     */
+    void close();
+}
@@ -0,0 +1,239 @@
+/*
+*  Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+package org.wso2.carbon.connector;
+
+import org.apache.axiom.om.OMAbstractFactory;
+import org.apache.axiom.om.OMElement;
+import org.apache.axiom.om.OMNamespace;
+import org.apache.axiom.om.util.AXIOMUtil;
+import org.apache.axiom.soap.SOAPFactory;
+import org.apache.synapse.MessageContext;
+import org.wso2.carbon.connector.core.util.ConnectorUtils;
+import org.wso2.carbon.utils.xml.StringUtils;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLStreamException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Precompiled plan of the template parameters a mediator turns into child elements.
+ * <p>
+ * A plan is created once per mediator class with the full, ordered list of fields. For every distinct set of
+ * parameters a calling template wires up, the plan keeps the subset of fields that can produce an element, so
+ * parameters that are never passed are neither looked up nor allocated. Complex fields remember the last value
+ * they were built from and, once the same value is seen again (literal template values), keep a prebuilt
+ * element that is copied into each message instead of being parsed and namespace rewritten again. Only values of
+ * up to {@link #MAX_PREBUILT_LENGTH} characters are remembered, so per message content such as a MimeContent,
+ * Body or Attachments is neither pinned by the plan nor compared against the previous message.
+ */
+final class EWSEnvelopePlan {
+    private static final int MAX_WIRINGS = 32;
+    static final int MAX_PREBUILT_LENGTH = 4096;
+    private static final SOAPFactory soapFactory = OMAbstractFactory.getSOAP11Factory();
+
+    private final Field[] fields;
+    private final Map<Set<String>, Field[]> wirings = new ConcurrentHashMap<Set<String>, Field[]>();
+
+    EWSEnvelopePlan(Field... fields) {
+        this.fields = fields;
+    }
+
+    /**
+     * Field rendered as a simple typ: element holding the parameter value as text.
+     *
+     * @param parameterName template parameter name
+     * @param elementName element name
+     * @return field
+     */
+    static Field element(String parameterName, String elementName) {
+        return new Field(Kind.ELEMENT, parameterName, elementName, null);
+    }
+
+    /**
+     * Field holding an xml fragment which is moved into the types namespace.
+     *
+     * @param parameterName template parameter name
+     * @return field
+     */
+    static Field fragment(String parameterName) {
+        return new Field(Kind.FRAGMENT, parameterName, null, null);
+    }
+
+    /**
+     * Field holding an xml fragment which is moved into the types namespace, except for its root element.
+     *
+     * @param parameterName template parameter name
+     * @param rootNamespace namespace of the root element
+     * @return field
+     */
+    static Field fragment(String parameterName, OMNamespace rootNamespace) {
+        return new Field(Kind.FRAGMENT, parameterName, null, rootNamespace);
+    }
+
+    /**
+     * Field holding a message body definition, &lt;body&gt;&lt;BodyType/&gt;&lt;Content/&gt;&lt;/body&gt;.
+     *
+     * @param parameterName template parameter name
+     * @return field
+     */
+    static Field body(String parameterName) {
+        return new Field(Kind.BODY, parameterName, null, null);
+    }
+
+    /**
+     * Adds the elements of all fields wired by the current template invocation to the base element.
+     *
+     * @param messageContext messageContext of Request
+     * @param baseElement element to add the field elements to
+     * @throws XMLStreamException when a fragment couldn't be parsed
+     */
+    void populate(MessageContext messageContext, OMElement baseElement) throws XMLStreamException {
+        Map<String, Object> values = EWSUtils.lookupTemplateParameters(messageContext);
+        if (values == null) {
+            for (Field field : fields) {
+                field.populate(baseElement, (String) ConnectorUtils.lookupTemplateParamater(messageContext,
+                        field.parameterName));
+            }
+        } else {
+            populate(values, baseElement);
+        }
+    }
+
+    /**
+     * Adds the elements of all fields present in the given parameter values to the base element.
+     *
+     * @param values parameter values keyed by template parameter name
+     * @param baseElement element to add the field elements to
+     * @throws XMLStreamException when a fragment couldn't be parsed
+     */
+    void populate(Map<String, Object> values, OMElement baseElement) throws XMLStreamException {
+        for (Field field : wiredFields(values.keySet())) {
+            Object value = values.get(field.parameterName);
+            field.populate(baseElement, value == null ? null : value.toString());
+        }
+    }
+
+    private Field[] wiredFields(Set<String> parameterNames) {
+        Field[] wired = wirings.get(parameterNames);
+        if (wired == null) {
+            List<Field> wiredList = new ArrayList<Field>();
+            for (Field field : fields) {
+                if (parameterNames.contains(field.parameterName)) {
+                    wiredList.add(field);
+                }
+            }
+            wired = wiredList.toArray(new Field[wiredList.size()]);
+            if (wirings.size() < MAX_WIRINGS) {
+                wirings.put(new HashSet<String>(parameterNames), wired);
+            }
+        }
+        return wired;
+    }
+
+    private enum Kind {
+        ELEMENT, FRAGMENT, BODY
+    }
+
+    /**
+     * Value a complex field was last built from, with the prebuilt element once the value repeated.
+     */
+    private static final class Prebuilt {
+        private final String value;
+        private final OMElement element;
+
+        private Prebuilt(String value, OMElement element) {
+            this.value = value;
+            this.element = element;
+        }
+    }
+
+    /**
+     * Single template parameter of a plan.
+     */
+    static final class Field {
+        private final Kind kind;
+        private final String parameterName;
+        private final String elementName;
+        private final OMNamespace rootNamespace;
+        private volatile Prebuilt prebuilt;
+
+        private Field(Kind kind, String parameterName, String elementName, OMNamespace rootNamespace) {
+            this.kind = kind;
+            this.parameterName = parameterName;
+            this.elementName = elementName;
+            this.rootNamespace = rootNamespace;
+        }
+
+        private void populate(OMElement baseElement, String value) throws XMLStreamException {
+            if (StringUtils.isEmpty(value)) {
+                return;
+            }
+            if (kind == Kind.ELEMENT) {
+                soapFactory.createOMElement(elementName, EWSUtils.type, baseElement).setText(value);
+                return;
+            }
+            if (value.length() > MAX_PREBUILT_LENGTH) {
+                baseElement.addChild(build(value));
+                return;
+            }
+            Prebuilt current = prebuilt;
+            if (current == null || !current.value.equals(value)) {
+                baseElement.addChild(build(value));
+                prebuilt = new Prebuilt(value, null);
+            } else {
+                OMElement element = current.element;
+                if (element == null) {
+                    element = build(value);
+                    prebuilt = new Prebuilt(value, element);
+                }
+                EWSUtils.copyElement(element, baseElement);
+            }
+        }
+
+        /**
+         * Used to get the element prebuilt from a repeated value, null when no value repeated yet.
+         */
+        OMElement getPrebuiltElement() {
+            Prebuilt current = prebuilt;
+            return current == null ? null : current.element;
+        }
+
+        private OMElement build(String value) throws XMLStreamException {
+            if (kind == Kind.BODY) {
+                OMElement bodyElement = AXIOMUtil.stringToOM(value);
+                String bodyType = bodyElement.getFirstChildWithName(new QName(EWSConstants.BODY_TYPE_ATTRIBUTE))
+                        .getText();
+                String content = bodyElement.getFirstChildWithName(new QName(EWSConstants.CONTENT)).getText();
+                OMElement bodyOmElement = soapFactory.createOMElement(EWSConstants.BODY_ELEMENT, EWSUtils.type);
+                bodyOmElement.addAttribute(EWSConstants.BODY_TYPE_ATTRIBUTE, bodyType, null);
+                bodyOmElement.setText(content);
+                return bodyOmElement;
+            }
+            OMElement element = EWSNamespaceRewriter.rewrite(value);
+            if (rootNamespace != null) {
+                element.setNamespace(rootNamespace);
+            }
+            return element;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+/*
+*  Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+package org.wso2.carbon.connector;
+
+import org.apache.axiom.om.OMElement;
+import org.apache.axis2.AxisFault;
+
+/**
+ * Receives the events of pull and streaming subscriptions.
+ */
+interface EWSEventHandler {
+
+    /**
+     * @return false when events can no longer be handled and the subscription should stop
+     */
+    boolean isAvailable();
+
+    /**
+     * Used to handle an event
+     *
+     * @param mailbox mailbox of the subscription, null if the subscription doesn't impersonate a mailbox
+     * @param event event element, e.g. NewMailEvent, detached from its notification
+     * @param watermark watermark of the event
+     * @throws AxisFault when the event couldn't be handled
+     */
+    void handle(String mailbox, OMElement event, String watermark) throws AxisFault;
+}
@@ -0,0 +1,397 @@
+/*
+*  Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+package org.wso2.carbon.connector;
+
+import org.apache.axiom.om.OMAbstractFactory;
+import org.apache.axiom.om.OMElement;
+import org.apache.axiom.soap.SOAPEnvelope;
+import org.apache.axiom.soap.SOAPFactory;
+import org.apache.axiom.soap.SOAPHeader;
+import org.apache.axis2.AxisFault;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLStreamException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Polls a pull subscription of one mailbox with GetEvents and passes every event to an event handler.
+ * <p>
+ * The watermark of the last handled event is kept in an {@link EWSSyncStateStore}, so a subscription that expired,
+ * or a server restart, resumes from the last event instead of missing or repeating the events in between. The
+ * watermark is stored after the events of a GetEvents response have been handled, so an event may be handled
+ * again after a crash but is never lost.
+ * <p>
+ * A poll that fails doubles the delay before the next one, starting from the poll interval and up to
+ * ews.poller.maxBackoff milliseconds, so an unavailable server isn't polled at the full rate. A subscription the
+ * server dropped isn't a failure, it is recreated by the next poll.
+ */
+final class EWSEventPoller implements Runnable {
+    private static final Log log = LogFactory.getLog(EWSEventPoller.class);
+    private static final SOAPFactory soapFactory = OMAbstractFactory.getSOAP11Factory();
+    private static final int THREADS = Integer.getInteger("ews.poller.threads", 4);
+    private static final long MIN_BACKOFF = 1000;
+    private static final long MAX_BACKOFF = Long.getLong("ews.poller.maxBackoff", 300000);
+    private static final String ERROR = "Error";
+    private static final Set<String> SUBSCRIPTION_LOST = new HashSet<String>(Arrays.asList(
+            "ErrorSubscriptionNotFound", "ErrorExpiredSubscription", "ErrorInvalidSubscription",
+            "ErrorInvalidPullSubscriptionId"));
+    private static final String ERROR_INVALID_WATERMARK = "ErrorInvalidWatermark";
+    private static final QName RESPONSE_CLASS = new QName(EWSConstants.RESPONSE_CLASS_ATTRIBUTE);
+    private static final QName RESPONSE_CODE = new QName(EWSConstants.MESSAGES_NAME_SPACE, EWSConstants
+            .RESPONSE_CODE_ELEMENT);
+    private static final QName SUBSCRIPTION_ID = new QName(EWSConstants.MESSAGES_NAME_SPACE, EWSConstants
+            .SUBSCRIPTION_ID_ELEMENT);
+    private static final QName WATERMARK = new QName(EWSConstants.MESSAGES_NAME_SPACE, EWSConstants
+            .WATERMARK_ELEMENT);
+    private static final QName NOTIFICATION = new QName(EWSConstants.MESSAGES_NAME_SPACE, EWSConstants
+            .NOTIFICATION_ELEMENT);
+    private static final QName EVENT_WATERMARK = new QName(EWSConstants.TYPE_NAME_SPACE, EWSConstants
+            .WATERMARK_ELEMENT);
+    private static final QName MORE_EVENTS = new QName(EWSConstants.TYPE_NAME_SPACE, EWSConstants
+            .MORE_EVENTS_ELEMENT);
+    private static final Set<String> NOTIFICATION_HEADERS = new HashSet<String>(Arrays.asList(
+            EWSConstants.SUBSCRIPTION_ID_ELEMENT, "PreviousWatermark", EWSConstants.MORE_EVENTS_ELEMENT));
+
+    private static final ConcurrentMap<String, EWSEventPoller> pollers = new ConcurrentHashMap<String,
+            EWSEventPoller>();
+    private static final ScheduledExecutorService scheduler = new ScheduledThreadPoolExecutor(THREADS,
+            new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "ews-poller-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private final String key;
+    private final String mailbox;
+    private final EWSClient client;
+    private final SOAPHeader soapHeader;
+    private final OMElement pullSubscriptionRequest;
+    private final int subscriptionTimeout;
+    private final EWSEventHandler handler;
+    private final EWSSyncStateStore store;
+    private final long pollInterval;
+
+    private ScheduledFuture<?> future;
+    private volatile String subscriptionId;
+    private String watermark;
+    private boolean watermarkRead;
+    private int failures;
+
+    /**
+     * @param key key the poller is registered and its watermark stored under
+     * @param mailbox impersonated mailbox, used for the EWS_EVENT_MAILBOX property
+     * @param client client used for Subscribe and GetEvents
+     * @param soapHeader header of every request
+     * @param pullSubscriptionRequest PullSubscriptionRequest element holding FolderIds and EventTypes
+     * @param subscriptionTimeout minutes after the last GetEvents call the server drops the subscription
+     * @param handler handler of the events
+     * @param store store of the watermark
+     * @param pollInterval milliseconds between the end of a poll and the start of the next
+     */
+    EWSEventPoller(String key, String mailbox, EWSClient client, SOAPHeader soapHeader, OMElement
+            pullSubscriptionRequest, int subscriptionTimeout, EWSEventHandler handler, EWSSyncStateStore store,
+                   long pollInterval) {
+        this.key = key;
+        this.mailbox = mailbox;
+        this.client = client;
+        this.soapHeader = soapHeader;
+        this.pullSubscriptionRequest = pullSubscriptionRequest;
+        this.subscriptionTimeout = subscriptionTimeout;
+        this.handler = handler;
+        this.store = store;
+        this.pollInterval = pollInterval;
+    }
+
+    /**
+     * @return key the poller is registered and its watermark stored under
+     */
+    String getKey() {
+        return key;
+    }
+
+    /**
+     * Used to start polling, unless a poller with the same key is running already
+     *
+     * @param poller poller to start
+     * @return true if the poller has been started
+     */
+    static boolean start(EWSEventPoller poller) {
+        if (pollers.putIfAbsent(poller.key, poller) != null) {
+            return false;
+        }
+        poller.schedule(0);
+        return true;
+    }
+
+    /**
+     * Used to stop the poller registered under a key and to unsubscribe its subscription. The watermark is kept,
+     * so a poller started again resumes from the last handled event.
+     *
+     * @param key poller key
+     * @return true if a poller has been stopped
+     */
+    static boolean stop(String key) {
+        EWSEventPoller poller = pollers.remove(key);
+        if (poller == null) {
+            return false;
+        }
+        synchronized (poller) {
+            if (poller.future != null) {
+                poller.future.cancel(false);
+            }
+        }
+        poller.unsubscribe();
+        return true;
+    }
+
+    public void run() {
+        boolean polled = false;
+        try {
+            polled = poll();
+        } catch (IOException e) {
+            log.warn("Couldn't poll events of " + describe(), e);
+        } catch (XMLStreamException e) {
+            log.warn("Couldn't parse events of " + describe(), e);
+        } catch (RuntimeException e) {
+            log.error("Couldn't mediate events of " + describe(), e);
+        }
+        failures = polled ? 0 : failures + 1;
+        long delay = getDelay();
+        if (!polled) {
+            log.warn("Polling " + describe() + " failed " + failures + " times in a row, retrying in " + delay +
+                    " ms");
+        }
+        schedule(delay);
+    }
+
+    /**
+     * Used to get the milliseconds until the next poll, the poll interval after a successful poll and a backoff
+     * doubling with every failed poll otherwise
+     *
+     * @return delay until the next poll
+     */
+    long getDelay() {
+        if (failures == 0) {
+            return pollInterval;
+        }
+        long maxBackoff = Math.max(pollInterval, MAX_BACKOFF);
+        long base = Math.max(pollInterval, MIN_BACKOFF);
+        return failures > 30 || base << failures > maxBackoff ? maxBackoff : base << failures;
+    }
+
+    private void schedule(long delay) {
+        synchronized (this) {
+            // a poller that has been stopped meanwhile isn't scheduled again
+            if (pollers.get(key) == this) {
+                future = scheduler.schedule(this, delay, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Used to handle all events queued on the subscription, subscribing first when there's no subscription
+     *
+     * @return false when a request failed, true when all events have been handled or the server dropped the
+     * subscription, which the next poll recreates
+     * @throws IOException when the endpoint couldn't be reached or the watermark couldn't be stored
+     * @throws XMLStreamException when a response couldn't be parsed
+     */
+    boolean poll() throws IOException, XMLStreamException {
+        if (!handler.isAvailable()) {
+            log.error("Events of " + describe() + " can no longer be handled, stopping event poller");
+            stop(key);
+            return true;
+        }
+        if (!watermarkRead) {
+            watermark = store.read(key);
+            watermarkRead = true;
+        }
+        if (subscriptionId == null && !subscribe()) {
+            return false;
+        }
+        boolean moreEvents = true;
+        while (moreEvents) {
+            SOAPEnvelope request = EWSBatchDispatcher.createRequest(soapHeader);
+            OMElement getEventsElement = soapFactory.createOMElement(EWSConstants.GET_EVENTS_ELEMENT, EWSUtils
+                    .message, request.getBody());
+            soapFactory.createOMElement(EWSConstants.SUBSCRIPTION_ID_ELEMENT, EWSUtils.message, getEventsElement)
+                    .setText(subscriptionId);
+            soapFactory.createOMElement(EWSConstants.WATERMARK_ELEMENT, EWSUtils.message, getEventsElement)
+                    .setText(watermark);
+            OMElement responseMessage = responseMessage(client.send(EWSConstants.GET_EVENTS_ELEMENT, request),
+                    EWSConstants.GET_EVENTS_ELEMENT);
+            if (responseMessage == null) {
+                return subscriptionId == null;
+            }
+            OMElement notification = responseMessage.getFirstChildWithName(NOTIFICATION);
+            if (notification == null) {
+                return true;
+            }
+            String lastWatermark = dispatch(handler, mailbox, notification, watermark);
+            if (lastWatermark != null && !lastWatermark.equals(watermark)) {
+                watermark = lastWatermark;
+                store.write(key, watermark);
+            }
+            OMElement moreEventsElement = notification.getFirstChildWithName(MORE_EVENTS);
+            moreEvents = moreEventsElement != null && Boolean.parseBoolean(moreEventsElement.getText().trim());
+        }
+        return true;
+    }
+
+    /**
+     * Used to create the pull subscription, resuming from the stored watermark if there's one
+     *
+     * @return true if subscribed
+     * @throws IOException when the endpoint couldn't be reached or the watermark couldn't be stored
+     * @throws XMLStreamException when the response couldn't be parsed
+     */
+    private boolean subscribe() throws IOException, XMLStreamException {
+        SOAPEnvelope request = EWSBatchDispatcher.createRequest(soapHeader);
+        OMElement subscribeElement = soapFactory.createOMElement(EWSConstants.SUBSCRIBE_ELEMENT, EWSUtils.message,
+                request.getBody());
+        OMElement requestElement = EWSUtils.copyElement(pullSubscriptionRequest, subscribeElement);
+        if (watermark != null) {
+            soapFactory.createOMElement(EWSConstants.WATERMARK_ELEMENT, EWSUtils.type, requestElement).setText
+                    (watermark);
+        }
+        soapFactory.createOMElement(EWSConstants.TIMEOUT_ELEMENT, EWSUtils.type, requestElement).setText(Integer
+                .toString(subscriptionTimeout));
+        OMElement responseMessage = responseMessage(client.send(EWSConstants.SUBSCRIBE_ELEMENT, request),
+                EWSConstants.SUBSCRIBE_ELEMENT);
+        if (responseMessage == null) {
+            return false;
+        }
+        subscriptionId = responseMessage.getFirstChildWithName(SUBSCRIPTION_ID).getText();
+        OMElement watermarkElement = responseMessage.getFirstChildWithName(WATERMARK);
+        if (watermark == null && watermarkElement != null) {
+            watermark = watermarkElement.getText();
+            store.write(key, watermark);
+        }
+        return true;
+    }
+
+    /**
+     * Used to remove the subscription from the server. A failure is only logged, the server drops the subscription
+     * itself once it hasn't been polled for the subscription timeout.
+     */
+    private void unsubscribe() {
+        String id = subscriptionId;
+        if (id == null) {
+            return;
+        }
+        subscriptionId = null;
+        SOAPEnvelope request = EWSBatchDispatcher.createRequest(soapHeader);
+        OMElement unsubscribeElement = soapFactory.createOMElement(EWSConstants.UNSUBSCRIBE_ELEMENT, EWSUtils
+                .message, request.getBody());
+        soapFactory.createOMElement(EWSConstants.SUBSCRIPTION_ID_ELEMENT, EWSUtils.message, unsubscribeElement)
+                .setText(id);
+        try {
+            responseMessage(client.send(EWSConstants.UNSUBSCRIBE_ELEMENT, request), EWSConstants
+                    .UNSUBSCRIBE_ELEMENT);
+        } catch (IOException e) {
+            log.warn("Couldn't unsubscribe " + describe(), e);
+        } catch (XMLStreamException e) {
+            log.warn("Couldn't parse Unsubscribe response of " + describe(), e);
+        }
+    }
+
+    /**
+     * Used to get the ResponseMessage of a successful response, dropping the subscription or the watermark when
+     * the server no longer knows them
+     */
+    private OMElement responseMessage(SOAPEnvelope response, String operation) throws IOException {
+        OMElement responseMessage = EWSUtils.getResponseMessage(response);
+        if (responseMessage == null) {
+            log.warn(operation + " of " + describe() + " failed: " + response.getBody().getFirstElement());
+            return null;
+        }
+        if (!ERROR.equals(responseMessage.getAttributeValue(RESPONSE_CLASS))) {
+            return responseMessage;
+        }
+        OMElement responseCodeElement = responseMessage.getFirstChildWithName(RESPONSE_CODE);
+        String responseCode = responseCodeElement == null ? null : responseCodeElement.getText();
+        if (SUBSCRIPTION_LOST.contains(responseCode)) {
+            subscriptionId = null;
+        } else if (ERROR_INVALID_WATERMARK.equals(responseCode)) {
+            log.warn("Watermark of " + describe() + " is no longer valid, events since " + watermark +
+                    " are skipped");
+            subscriptionId = null;
+            watermark = null;
+            store.delete(key);
+        }
+        log.warn(operation + " of " + describe() + " failed with " + responseCode);
+        return null;
+    }
+
+    /**
+     * Used to pass the events of a notification to a handler, in order, skipping status events
+     *
+     * @param handler handler of the events
+     * @param mailbox mailbox of the subscription
+     * @param notification Notification element of a GetEvents or GetStreamingEvents response
+     * @param watermark watermark before the notification
+     * @return watermark of the last event of the notification
+     * @throws AxisFault when an event couldn't be handled
+     */
+    static String dispatch(EWSEventHandler handler, String mailbox, OMElement notification, String watermark)
+            throws AxisFault {
+        List<OMElement> events = new ArrayList<OMElement>();
+        for (Iterator iterator = notification.getChildElements(); iterator.hasNext(); ) {
+            OMElement child = (OMElement) iterator.next();
+            if (!NOTIFICATION_HEADERS.contains(child.getLocalName())) {
+                events.add(child);
+            }
+        }
+        String lastWatermark = watermark;
+        for (OMElement event : events) {
+            OMElement eventWatermark = event.getFirstChildWithName(EVENT_WATERMARK);
+            if (eventWatermark != null) {
+                lastWatermark = eventWatermark.getText();
+            }
+            if (!EWSConstants.STATUS_EVENT_ELEMENT.equals(event.getLocalName())) {
+                event.detach();
+                handler.handle(mailbox, event, lastWatermark);
+            }
+        }
+        return lastWatermark;
+    }
+
+    private String describe() {
+        return mailbox == null ? "subscription" : "subscription of " + mailbox;
+    }
+}
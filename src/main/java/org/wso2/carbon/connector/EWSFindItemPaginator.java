@@ -0,0 +1,377 @@
+/*
+*  Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+package org.wso2.carbon.connector;
+
+import org.apache.axiom.om.OMAbstractFactory;
+import org.apache.axiom.om.OMElement;
+import org.apache.axiom.soap.SOAPEnvelope;
+import org.apache.axiom.soap.SOAPFactory;
+import org.apache.axiom.soap.SOAPHeader;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLStreamException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Walks a FindItem view page by page with an IndexedPageItemView driven from the IndexedPagingOffset,
+ * TotalItemsInView and IncludesLastItemInRange of every response.
+ * <p>
+ * While the caller processes a page, the following pages are already requested, assuming the server continues at
+ * offset + pageSize; at most maxPagesInFlight pages are requested or held at a time. When the server reports a
+ * different IndexedPagingOffset, e.g. because items were added or removed meanwhile, the prefetched pages are
+ * dropped and paging resumes at the reported offset.
+ */
+final class EWSFindItemPaginator {
+    private static final SOAPFactory soapFactory = OMAbstractFactory.getSOAP11Factory();
+    private static final QName RESPONSE_MESSAGES = new QName(EWSConstants.MESSAGES_NAME_SPACE, EWSConstants
+            .RESPONSE_MESSAGES_ELEMENT);
+    private static final QName ROOT_FOLDER = new QName(EWSConstants.MESSAGES_NAME_SPACE, EWSConstants
+            .ROOT_FOLDER_ELEMENT);
+    private static final QName ITEMS = new QName(EWSConstants.TYPE_NAME_SPACE, EWSConstants.ITEMS);
+    private static final QName GROUPS = new QName(EWSConstants.TYPE_NAME_SPACE, EWSConstants.GROUPS_ELEMENT);
+    private static final QName TOTAL_ITEMS_IN_VIEW = new QName(EWSConstants.TOTAL_ITEMS_IN_VIEW_ATTRIBUTE);
+    private static final QName INDEXED_PAGING_OFFSET = new QName(EWSConstants.INDEXED_PAGING_OFFSET_ATTRIBUTE);
+    private static final QName INCLUDES_LAST_ITEM_IN_RANGE = new QName(EWSConstants
+            .INCLUDES_LAST_ITEM_IN_RANGE_ATTRIBUTE);
+
+    private final EWSClient client;
+    private final SOAPHeader soapHeader;
+    private final OMElement findItem;
+    private final int pageSize;
+    private final int maxPagesInFlight;
+    private final long maxItems;
+    private final Deque<Page> pages = new ArrayDeque<Page>();
+    private final int startOffset;
+    private int nextOffset;
+    private int totalItemsInView = -1;
+    private long itemCount;
+    private int pageCount;
+    private boolean done;
+
+    /**
+     * @param client client used to send the page requests
+     * @param soapHeader header of every page request
+     * @param findItem FindItem element holding the ItemShape and the elements following the view
+     * @param offset offset of the first page
+     * @param pageSize MaxEntriesReturned of every page
+     * @param maxPagesInFlight maximum number of pages requested ahead, including the page returned next
+     * @param maxItems maximum number of items returned over all pages
+     */
+    EWSFindItemPaginator(EWSClient client, SOAPHeader soapHeader, OMElement findItem, int offset, int pageSize,
+                         int maxPagesInFlight, long maxItems) {
+        this.client = client;
+        this.soapHeader = soapHeader;
+        this.findItem = findItem;
+        this.startOffset = offset;
+        this.nextOffset = offset;
+        this.pageSize = Math.max(1, pageSize);
+        this.maxPagesInFlight = Math.max(1, maxPagesInFlight);
+        this.maxItems = maxItems;
+    }
+
+    /**
+     * Returns the next page. A page that holds a SOAP fault or an error ResponseMessage is returned and ends the
+     * iteration.
+     *
+     * @return response envelope of the next page, null when all pages have been returned
+     * @throws IOException when a page couldn't be fetched
+     * @throws XMLStreamException when a page couldn't be parsed
+     */
+    SOAPEnvelope nextPage() throws IOException, XMLStreamException {
+        if (done) {
+            return null;
+        }
+        request();
+        Page page = pages.poll();
+        if (page == null) {
+            done = true;
+            return null;
+        }
+        SOAPEnvelope response;
+        try {
+            response = page.get();
+        } catch (IOException e) {
+            finish();
+            throw e;
+        } catch (XMLStreamException e) {
+            finish();
+            throw e;
+        }
+        pageCount++;
+        OMElement rootFolder = rootFolder(response);
+        if (rootFolder == null) {
+            finish();
+            return response;
+        }
+        int items = trim(rootFolder, maxItems - itemCount);
+        itemCount += items;
+        totalItemsInView = intAttribute(rootFolder, TOTAL_ITEMS_IN_VIEW, totalItemsInView);
+        int pagingOffset = intAttribute(rootFolder, INDEXED_PAGING_OFFSET, page.offset + items);
+        if (Boolean.parseBoolean(rootFolder.getAttributeValue(INCLUDES_LAST_ITEM_IN_RANGE)) || items == 0 ||
+                itemCount >= maxItems) {
+            finish();
+        } else if (pagingOffset != (pages.isEmpty() ? nextOffset : pages.peek().offset)) {
+            cancel();
+            nextOffset = pagingOffset;
+        }
+        return response;
+    }
+
+    /**
+     * @return number of pages returned so far
+     */
+    int getPageCount() {
+        return pageCount;
+    }
+
+    /**
+     * @return number of items returned so far
+     */
+    long getItemCount() {
+        return itemCount;
+    }
+
+    /**
+     * @return TotalItemsInView of the last page, -1 before the first page
+     */
+    int getTotalItemsInView() {
+        return totalItemsInView;
+    }
+
+    /**
+     * @return true when no page follows the page returned last
+     */
+    boolean isDone() {
+        return done;
+    }
+
+    /**
+     * Stops paging and cancels the pages requested ahead.
+     */
+    void finish() {
+        done = true;
+        cancel();
+    }
+
+    /**
+     * @param page response envelope of a page
+     * @return false when the page holds a SOAP fault or an error ResponseMessage
+     */
+    static boolean isSuccess(SOAPEnvelope page) {
+        return rootFolder(page) != null;
+    }
+
+    /**
+     * Used to get the items of a page, or of all groups of a grouped page
+     *
+     * @param page response envelope of a page
+     * @return item elements in page order
+     */
+    static List<OMElement> items(SOAPEnvelope page) {
+        List<OMElement> items = new ArrayList<OMElement>();
+        OMElement rootFolder = rootFolder(page);
+        if (rootFolder != null) {
+            for (OMElement container : containers(rootFolder)) {
+                for (Iterator children = container.getChildElements(); children.hasNext(); ) {
+                    items.add((OMElement) children.next());
+                }
+            }
+        }
+        return items;
+    }
+
+    /**
+     * Used to append the items or groups of a page to the RootFolder of a merged response, which also takes over
+     * the paging attributes of the page
+     *
+     * @param merged merged response, initially the first page
+     * @param page following page
+     */
+    static void merge(SOAPEnvelope merged, SOAPEnvelope page) {
+        OMElement mergedRootFolder = rootFolder(merged);
+        OMElement rootFolder = rootFolder(page);
+        if (mergedRootFolder == null || rootFolder == null) {
+            return;
+        }
+        for (QName attribute : new QName[]{INDEXED_PAGING_OFFSET, TOTAL_ITEMS_IN_VIEW,
+                INCLUDES_LAST_ITEM_IN_RANGE}) {
+            String value = rootFolder.getAttributeValue(attribute);
+            if (value != null) {
+                mergedRootFolder.addAttribute(attribute.getLocalPart(), value, null);
+            }
+        }
+        for (QName containerName : new QName[]{ITEMS, GROUPS}) {
+            OMElement container = rootFolder.getFirstChildWithName(containerName);
+            if (container == null) {
+                continue;
+            }
+            OMElement mergedContainer = mergedRootFolder.getFirstChildWithName(containerName);
+            if (mergedContainer == null) {
+                mergedContainer = soapFactory.createOMElement(containerName.getLocalPart(), EWSUtils.type,
+                        mergedRootFolder);
+            }
+            List<OMElement> children = new ArrayList<OMElement>();
+            for (Iterator iterator = container.getChildElements(); iterator.hasNext(); ) {
+                children.add((OMElement) iterator.next());
+            }
+            for (OMElement child : children) {
+                child.detach();
+                mergedContainer.addChild(child);
+            }
+        }
+    }
+
+    private void request() {
+        while (pages.size() < maxPagesInFlight && nextOffset - startOffset < maxItems && (totalItemsInView < 0 ||
+                nextOffset < totalItemsInView)) {
+            final SOAPEnvelope request = EWSBatchDispatcher.createRequest(soapHeader);
+            OMElement findItemElement = EWSUtils.copyElement(findItem, request.getBody());
+            OMElement view = soapFactory.createOMElement(EWSConstants.INDEXED_PAGE_ITEM_VIEW_ELEMENT, EWSUtils
+                    .message);
+            view.addAttribute(EWSConstants.MAX_ENTRIES_RETURNED_ATTRIBUTE, Integer.toString(pageSize), null);
+            view.addAttribute(EWSConstants.OFFSET_ATTRIBUTE, Integer.toString(nextOffset), null);
+            view.addAttribute(EWSConstants.BASE_POINT_ATTRIBUTE, "Beginning", null);
+            OMElement itemShape = findItemElement.getFirstElement();
+            if (itemShape == null) {
+                findItemElement.addChild(view);
+            } else {
+                itemShape.insertSiblingAfter(view);
+            }
+            pages.add(new Page(nextOffset, EWSBatchDispatcher.getExecutor().submit(new Callable<SOAPEnvelope>() {
+                public SOAPEnvelope call() throws Exception {
+                    return client.send(EWSConstants.FIND_ITEM_ELEMENT, request);
+                }
+            })));
+            nextOffset += pageSize;
+        }
+    }
+
+    private void cancel() {
+        for (Page page : pages) {
+            page.response.cancel(true);
+        }
+        pages.clear();
+    }
+
+    /**
+     * Removes the items of the page beyond the given limit.
+     *
+     * @return number of items kept
+     */
+    private static int trim(OMElement rootFolder, long limit) {
+        int kept = 0;
+        for (OMElement container : containers(rootFolder)) {
+            List<OMElement> children = new ArrayList<OMElement>();
+            for (Iterator iterator = container.getChildElements(); iterator.hasNext(); ) {
+                children.add((OMElement) iterator.next());
+            }
+            for (OMElement child : children) {
+                if (kept < limit) {
+                    kept++;
+                } else {
+                    child.detach();
+                }
+            }
+        }
+        return kept;
+    }
+
+    /**
+     * The items of a page are held by RootFolder/Items, or by RootFolder/Groups/GroupedItems/Items when grouped.
+     */
+    private static List<OMElement> containers(OMElement rootFolder) {
+        List<OMElement> containers = new ArrayList<OMElement>();
+        OMElement items = rootFolder.getFirstChildWithName(ITEMS);
+        if (items != null) {
+            containers.add(items);
+        }
+        OMElement groups = rootFolder.getFirstChildWithName(GROUPS);
+        if (groups != null) {
+            for (Iterator groupedItems = groups.getChildElements(); groupedItems.hasNext(); ) {
+                OMElement groupItems = ((OMElement) groupedItems.next()).getFirstChildWithName(ITEMS);
+                if (groupItems != null) {
+                    containers.add(groupItems);
+                }
+            }
+        }
+        return containers;
+    }
+
+    /**
+     * @return RootFolder of a successful page, null for a fault or an error ResponseMessage
+     */
+    private static OMElement rootFolder(SOAPEnvelope page) {
+        if (page.getBody().hasFault() || page.getBody().getFirstElement() == null) {
+            return null;
+        }
+        OMElement responseMessages = page.getBody().getFirstElement().getFirstChildWithName(RESPONSE_MESSAGES);
+        OMElement responseMessage = responseMessages == null ? null : responseMessages.getFirstElement();
+        return responseMessage == null ? null : responseMessage.getFirstChildWithName(ROOT_FOLDER);
+    }
+
+    private static int intAttribute(OMElement element, QName name, int defaultValue) {
+        String value = element.getAttributeValue(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Page requested at an offset.
+     */
+    private static final class Page {
+        private final int offset;
+        private final Future<SOAPEnvelope> response;
+
+        private Page(int offset, Future<SOAPEnvelope> response) {
+            this.offset = offset;
+            this.response = response;
+        }
+
+        private SOAPEnvelope get() throws IOException, XMLStreamException {
+            try {
+                return response.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for FindItem page at " + offset);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                if (e.getCause() instanceof XMLStreamException) {
+                    throw (XMLStreamException) e.getCause();
+                }
+                throw new IOException("FindItem page at " + offset + " failed", e.getCause());
+            }
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/*
+*  Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+package org.wso2.carbon.connector;
+
+import java.io.BufferedInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Turns the body of a GetStreamingEvents response, a sequence of SOAP envelopes written one after another while
+ * the connection stays open, into a single xml document that can be read with one StAX reader.
+ * <p>
+ * The envelopes are wrapped in a frames root element and xml declarations in front of them are dropped. Reads
+ * return as soon as some bytes are available, so every envelope can be parsed as soon as it has arrived.
+ */
+final class EWSFrameInputStream extends FilterInputStream {
+    private static final byte[] PREFIX = "<frames>".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] SUFFIX = "</frames>".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] DECLARATION = "<?xml".getBytes(StandardCharsets.UTF_8);
+
+    private final byte[] pending = new byte[DECLARATION.length];
+    private int pendingStart;
+    private int pendingEnd;
+    private int prefixIndex;
+    private int suffixIndex;
+    private boolean eof;
+
+    EWSFrameInputStream(InputStream in) {
+        super(new BufferedInputStream(in));
+    }
+
+    @Override
+    public int read() throws IOException {
+        while (true) {
+            if (prefixIndex < PREFIX.length) {
+                return PREFIX[prefixIndex++];
+            }
+            if (pendingStart < pendingEnd) {
+                return pending[pendingStart++] & 0xff;
+            }
+            int b = eof ? -1 : in.read();
+            if (b < 0) {
+                eof = true;
+                return suffixIndex < SUFFIX.length ? SUFFIX[suffixIndex++] : -1;
+            }
+            if (b != DECLARATION[0]) {
+                return b;
+            }
+            pendingStart = 0;
+            pendingEnd = 0;
+            pending[pendingEnd++] = (byte) b;
+            while (pendingEnd < DECLARATION.length) {
+                b = in.read();
+                if (b < 0) {
+                    eof = true;
+                    break;
+                }
+                pending[pendingEnd++] = (byte) b;
+                if (b != DECLARATION[pendingEnd - 1]) {
+                    break;
+                }
+            }
+            if (pendingEnd == DECLARATION.length && pending[pendingEnd - 1] == DECLARATION[pendingEnd - 1]) {
+                pendingEnd = 0;
+                skipDeclaration();
+            }
+        }
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        int b = read();
+        if (b < 0) {
+            return -1;
+        }
+        buffer[offset] = (byte) b;
+        int count = 1;
+        while (count < length && hasBufferedBytes()) {
+            b = read();
+            if (b < 0) {
+                break;
+            }
+            buffer[offset + count++] = (byte) b;
+        }
+        return count;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (PREFIX.length - prefixIndex) + (pendingEnd - pendingStart) + (eof ? 0 : in.available());
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = 0;
+        while (skipped < n && read() >= 0) {
+            skipped++;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    private boolean hasBufferedBytes() throws IOException {
+        return prefixIndex < PREFIX.length || pendingStart < pendingEnd || (!eof && in.available() > 0) ||
+                (eof && suffixIndex < SUFFIX.length);
+    }
+
+    private void skipDeclaration() throws IOException {
+        int previous = 0;
+        int b;
+        while ((b = in.read()) >= 0) {
+            if (previous == '?' && b == '>') {
+                return;
+            }
+            previous = b;
+        }
+        eof = true;
+    }
+}
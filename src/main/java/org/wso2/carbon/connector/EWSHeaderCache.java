@@ -0,0 +1,129 @@
+/*
+*  Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+package org.wso2.carbon.connector;
+
+import org.apache.axiom.om.OMElement;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded, thread safe cache of prebuilt SOAP header blocks keyed by the resolved parameter values they were
+ * built from. Cached blocks are never attached to a message; callers get a copy added to their header.
+ */
+final class EWSHeaderCache {
+    private static final int DEFAULT_MAX_ENTRIES = 256;
+
+    private final Map<Key, OMElement> entries;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    EWSHeaderCache() {
+        this(Integer.getInteger("ews.header.cache.size", DEFAULT_MAX_ENTRIES));
+    }
+
+    EWSHeaderCache(final int maxEntries) {
+        entries = new LinkedHashMap<Key, OMElement>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, OMElement> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Adds a copy of the cached header block for the given key to the soap header.
+     *
+     * @param key header name and values
+     * @param soapHeader soap header to add the block to
+     * @return true if the block was cached, false if the caller has to build it
+     */
+    boolean copyTo(Key key, OMElement soapHeader) {
+        OMElement headerBlock;
+        synchronized (entries) {
+            headerBlock = entries.get(key);
+        }
+        if (headerBlock == null) {
+            misses.incrementAndGet();
+            return false;
+        }
+        hits.incrementAndGet();
+        EWSUtils.copyElement(headerBlock, soapHeader);
+        return true;
+    }
+
+    /**
+     * Caches a header block, the block must not be attached to any message afterwards.
+     *
+     * @param key header name and values
+     * @param headerBlock header block built from the values
+     */
+    void put(Key key, OMElement headerBlock) {
+        synchronized (entries) {
+            entries.put(key, headerBlock);
+        }
+    }
+
+    long getHitCount() {
+        return hits.get();
+    }
+
+    long getMissCount() {
+        return misses.get();
+    }
+
+    int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * Header name with the parameter values the header block is built from.
+     */
+    static final class Key {
+        private final String headerName;
+        private final String[] values;
+        private final int hash;
+
+        Key(String headerName, String... values) {
+            this.headerName = headerName;
+            this.values = values;
+            this.hash = 31 * headerName.hashCode() + Arrays.hashCode(values);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (this == other) {
+                return true;
+            }
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) other;
+            return hash == key.hash && headerName.equals(key.headerName) && Arrays.equals(values, key.values);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,226 @@
+/*
+*  Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+package org.wso2.carbon.connector;
+
+import org.apache.axiom.om.OMElement;
+import org.apache.axiom.om.util.AXIOMUtil;
+
+import javax.xml.stream.XMLStreamException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded, thread safe LRU cache of GetItem response messages keyed by item Id and ChangeKey.
+ * <p>
+ * Exchange gives an item a new ChangeKey whenever it changes, so the response message of an Id and ChangeKey never
+ * goes stale. The key also holds a digest of the connection and credentials, the SOAP header and the ItemShape of
+ * the request, as these decide which properties a response holds and who may read it. Messages are kept serialized,
+ * which bounds the memory of the cache by the number of characters it holds, and every hit gets a freshly parsed
+ * copy.
+ */
+final class EWSItemCache {
+    private static final int DEFAULT_MAX_ENTRIES = 10000;
+    private static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+    private static final long DEFAULT_TTL = 60 * 60000;
+    private static final long ENTRY_OVERHEAD = 128;
+
+    private static final EWSItemCache instance = new EWSItemCache(Integer.getInteger("ews.item.cache.size",
+            DEFAULT_MAX_ENTRIES), Long.getLong("ews.item.cache.maxBytes", DEFAULT_MAX_BYTES), Long.getLong(
+            "ews.item.cache.ttl", DEFAULT_TTL));
+
+    private final int maxEntries;
+    private final long maxBytes;
+    private final long ttl;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private long bytes;
+
+    /**
+     * @param maxEntries maximum number of cached messages
+     * @param maxBytes maximum estimated memory of the cached messages
+     * @param ttl milliseconds a message stays cached, 0 for no limit
+     */
+    EWSItemCache(int maxEntries, long maxBytes, long ttl) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.ttl = ttl;
+    }
+
+    /**
+     * @return cache shared by all GetItem operations
+     */
+    static EWSItemCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * Used to build the part of the keys shared by all items of one request
+     *
+     * @param identity connection the request is sent through and the credentials it is sent with
+     * @param parts elements of the request that change its response, e.g. the SOAP header and the ItemShape
+     * @return digest of the request scope
+     */
+    static String scope(String identity, OMElement... parts) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(identity.getBytes(StandardCharsets.UTF_8));
+            for (OMElement part : parts) {
+                digest.update((byte) 0);
+                digest.update(part.toString().getBytes(StandardCharsets.UTF_8));
+            }
+            return Base64.getEncoder().encodeToString(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 isn't supported", e);
+        }
+    }
+
+    /**
+     * Used to build the key of an item
+     *
+     * @param scope digest of the request scope
+     * @param id Id of the item
+     * @param changeKey ChangeKey of the item
+     * @return key, null if the item has no ChangeKey and so can't be cached
+     */
+    static String key(String scope, String id, String changeKey) {
+        if (id == null || changeKey == null || changeKey.isEmpty()) {
+            return null;
+        }
+        return scope + '|' + id + '|' + changeKey;
+    }
+
+    /**
+     * Used to get a copy of a cached response message
+     *
+     * @param key key of the item
+     * @return response message, null if it isn't cached or has expired
+     * @throws XMLStreamException when the cached message couldn't be parsed
+     */
+    OMElement get(String key) throws XMLStreamException {
+        String message = null;
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.isExpired()) {
+                remove(key);
+                evictions.incrementAndGet();
+            } else if (entry != null) {
+                message = entry.message;
+            }
+        }
+        if (message == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return AXIOMUtil.stringToOM(message);
+    }
+
+    /**
+     * Caches a response message, evicting the least recently used messages until the cache is within its bounds.
+     * A message larger than a sixteenth of the memory bound isn't cached, so a single large item can't flush the
+     * cache.
+     *
+     * @param key key of the item
+     * @param responseMessage response message of the item
+     */
+    void put(String key, OMElement responseMessage) {
+        String message = responseMessage.toString();
+        long size = ENTRY_OVERHEAD + 2L * (key.length() + message.length());
+        if (size > maxBytes / 16) {
+            return;
+        }
+        synchronized (entries) {
+            remove(key);
+            entries.put(key, new Entry(message, size, ttl > 0 ? System.currentTimeMillis() + ttl : Long.MAX_VALUE));
+            bytes += size;
+            Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+            while (eldest.hasNext() && (entries.size() > maxEntries || bytes > maxBytes)) {
+                bytes -= eldest.next().getValue().size;
+                eldest.remove();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    private void remove(String key) {
+        Entry removed = entries.remove(key);
+        if (removed != null) {
+            bytes -= removed.size;
+        }
+    }
+
+    long getHitCount() {
+        return hits.get();
+    }
+
+    long getMissCount() {
+        return misses.get();
+    }
+
+    long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * @return share of lookups served from the cache, 0 before the first lookup
+     */
+    double getHitRate() {
+        long hitCount = hits.get();
+        long lookups = hitCount + misses.get();
+        return lookups == 0 ? 0 : (double) hitCount / lookups;
+    }
+
+    int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    long getBytes() {
+        synchronized (entries) {
+            return bytes;
+        }
+    }
+
+    /**
+     * Serialized response message with its estimated memory and the time it expires.
+     */
+    private static final class Entry {
+        private final String message;
+        private final long size;
+        private final long expiresAt;
+
+        private Entry(String message, long size, long expiresAt) {
+            this.message = message;
+            this.size = size;
+            this.expiresAt = expiresAt;
+        }
+
+        private boolean isExpired() {
+            return System.currentTimeMillis() >= expiresAt;
+        }
+    }
+}
@@ -0,0 +1,398 @@
+/*
+*  Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+package org.wso2.carbon.connector;
+
+import org.apache.axiom.om.OMAbstractFactory;
+import org.apache.axiom.om.util.StAXParserConfiguration;
+import org.apache.axiom.om.util.StAXUtils;
+import org.apache.axiom.soap.SOAP11Constants;
+import org.apache.axiom.soap.SOAP12Constants;
+import org.apache.axis2.AxisFault;
+import org.apache.axis2.Constants;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.synapse.MessageContext;
+import org.apache.synapse.commons.json.JsonUtil;
+import org.apache.synapse.core.axis2.Axis2MessageContext;
+import org.apache.synapse.transport.passthru.PassThroughConstants;
+import org.wso2.carbon.connector.core.AbstractConnector;
+import org.wso2.carbon.connector.core.ConnectException;
+import org.wso2.carbon.connector.core.util.ConnectorUtils;
+import org.wso2.carbon.utils.xml.StringUtils;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Converts an EWS response into compact JSON holding only the requested fields of its items.
+ * <p>
+ * The response is pulled with StAX, from the unread response of the connection when the operation left it unread,
+ * and only the fields listed in responseFields are kept; everything else, such as the HTML body of an item, is
+ * skipped without being built. Every element below an Items element is an item, written with its type and its
+ * projected fields keyed by local name, so the JSON has no namespace prefixes:
+ * <pre>
+ * {"items":[{"type":"Message","ItemId":{"Id":"..","ChangeKey":".."},"Subject":".."}],
+ *  "totalItemsInView":"..","includesLastItemInRange":"..","errors":[{"responseClass":"Error","responseCode":".."}]}
+ * </pre>
+ * A SOAP fault becomes an error with its faultcode and faultstring, and the ResponseCode of its detail when EWS
+ * gives one, e.g. {"faultcode":"a:ErrorSchemaValidation","faultstring":"..","responseCode":"ErrorSchemaValidation"}.
+ * All fields of an item are kept when responseFields is empty.
+ */
+public class EWSJsonResponseMediator extends AbstractConnector {
+    private static final String JSON_CONTENT_TYPE = "application/json";
+    private static final String ITEMS = "Items";
+    private static final String SUCCESS = "Success";
+    private static final String VALUE = "value";
+    private static final String FAULT = "Fault";
+    private static final String FAULT_CODE = "faultcode";
+    private static final String FAULT_STRING = "faultstring";
+
+    public void connect(MessageContext messageContext) throws ConnectException {
+        try {
+            org.apache.axis2.context.MessageContext axis2MessageContext = ((Axis2MessageContext) messageContext)
+                    .getAxis2MessageContext();
+            String responseFields = (String) ConnectorUtils.lookupTemplateParamater(messageContext, EWSConstants
+                    .RESPONSE_FIELDS);
+            Set<String> fields = null;
+            if (!StringUtils.isEmpty(responseFields)) {
+                fields = new HashSet<String>();
+                for (String field : responseFields.split(",")) {
+                    if (!field.trim().isEmpty()) {
+                        fields.add(field.trim());
+                    }
+                }
+            }
+            CloseableHttpResponse response = (CloseableHttpResponse) messageContext.getProperty(EWSConstants
+                    .EWS_RESPONSE_STREAM);
+            messageContext.getPropertyKeySet().remove(EWSConstants.EWS_RESPONSE_STREAM);
+            String json;
+            try {
+                XMLStreamReader reader = response != null ? StAXUtils.createXMLStreamReader(StAXParserConfiguration
+                        .NON_COALESCING, EWSClient.getResponseStream(response)) : messageContext.getEnvelope()
+                        .getXMLStreamReaderWithoutCaching();
+                try {
+                    json = toJson(reader, fields);
+                } finally {
+                    reader.close();
+                }
+                if (response != null) {
+                    EWSClient.drain(response);
+                }
+            } finally {
+                if (response != null) {
+                    response.close();
+                }
+            }
+            // the response has been read without caching, so the old envelope can't be built any more
+            messageContext.setEnvelope(OMAbstractFactory.getSOAP11Factory().getDefaultEnvelope());
+            JsonUtil.newJsonPayload(axis2MessageContext, json, true, true);
+            axis2MessageContext.setProperty(Constants.Configuration.MESSAGE_TYPE, JSON_CONTENT_TYPE);
+            axis2MessageContext.setProperty(Constants.Configuration.CONTENT_TYPE, JSON_CONTENT_TYPE);
+            axis2MessageContext.setProperty(PassThroughConstants.MESSAGE_BUILDER_INVOKED, Boolean.TRUE);
+        } catch (XMLStreamException e) {
+            String msg = "Couldn't read EWS response";
+            log.error(msg, e);
+            throw new ConnectException(e, msg);
+        } catch (AxisFault axisFault) {
+            String msg = "Couldn't set JSON payload to MessageContext";
+            log.error(msg, axisFault);
+            throw new ConnectException(axisFault, msg);
+        } catch (IOException e) {
+            String msg = "Couldn't read EWS response";
+            log.error(msg, e);
+            throw new ConnectException(e, msg);
+        }
+    }
+
+    /**
+     * Used to convert a response into JSON
+     *
+     * @param reader reader positioned at the start of the response
+     * @param fields local names of the item fields to keep, null to keep all
+     * @return JSON object
+     * @throws XMLStreamException when the response couldn't be read
+     */
+    static String toJson(XMLStreamReader reader, Set<String> fields) throws XMLStreamException {
+        StringBuilder json = new StringBuilder("{\"items\":[");
+        List<Map<String, Object>> errors = new ArrayList<Map<String, Object>>();
+        String totalItemsInView = null;
+        String includesLastItemInRange = null;
+        Map<String, Object> error = null;
+        int errorDepth = -1;
+        boolean firstItem = true;
+        boolean inItems = false;
+        int depth = 0;
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                if (depth == errorDepth) {
+                    error = null;
+                    errorDepth = -1;
+                }
+                inItems = false;
+                depth--;
+                continue;
+            }
+            if (event != XMLStreamConstants.START_ELEMENT) {
+                continue;
+            }
+            String localName = reader.getLocalName();
+            if (inItems) {
+                // an item, its end element is consumed here so the depth and the Items element stay as they are
+                if (!firstItem) {
+                    json.append(',');
+                }
+                firstItem = false;
+                json.append("{\"type\":");
+                appendString(json, localName);
+                appendItemFields(json, reader, fields);
+                json.append('}');
+                continue;
+            }
+            if (FAULT.equals(localName) && isEnvelopeNamespace(reader.getNamespaceURI())) {
+                // the fault is consumed up to its end element, like an item
+                errors.add(readFault(reader));
+                continue;
+            }
+            depth++;
+            String responseClass = reader.getAttributeValue(null, EWSConstants.RESPONSE_CLASS_ATTRIBUTE);
+            if (responseClass != null && !SUCCESS.equals(responseClass)) {
+                error = new LinkedHashMap<String, Object>();
+                error.put("responseClass", responseClass);
+                errors.add(error);
+                errorDepth = depth;
+            } else if (error != null && depth == errorDepth + 1 && (EWSConstants.RESPONSE_CODE_ELEMENT.equals(
+                    localName) || EWSConstants.MESSAGE_TEXT_ELEMENT.equals(localName))) {
+                error.put(EWSConstants.RESPONSE_CODE_ELEMENT.equals(localName) ? "responseCode" : "messageText",
+                        reader.getElementText());
+                depth--;
+            } else if (EWSConstants.ROOT_FOLDER_ELEMENT.equals(localName)) {
+                totalItemsInView = reader.getAttributeValue(null, EWSConstants.TOTAL_ITEMS_IN_VIEW_ATTRIBUTE);
+                includesLastItemInRange = reader.getAttributeValue(null, EWSConstants
+                        .INCLUDES_LAST_ITEM_IN_RANGE_ATTRIBUTE);
+            } else if (ITEMS.equals(localName)) {
+                inItems = true;
+            }
+        }
+        json.append(']');
+        if (totalItemsInView != null) {
+            json.append(",\"totalItemsInView\":");
+            appendString(json, totalItemsInView);
+        }
+        if (includesLastItemInRange != null) {
+            json.append(",\"includesLastItemInRange\":");
+            appendString(json, includesLastItemInRange);
+        }
+        if (!errors.isEmpty()) {
+            json.append(",\"errors\":");
+            appendValue(json, errors);
+        }
+        return json.append('}').toString();
+    }
+
+    private static boolean isEnvelopeNamespace(String namespaceURI) {
+        return SOAP11Constants.SOAP_ENVELOPE_NAMESPACE_URI.equals(namespaceURI) || SOAP12Constants
+                .SOAP_ENVELOPE_NAMESPACE_URI.equals(namespaceURI);
+    }
+
+    /**
+     * Used to read the SOAP 1.1 or SOAP 1.2 fault the reader is positioned on, leaving the reader on its end
+     *
+     * @return error holding the faultcode, the faultstring and the ResponseCode of the detail if there is one
+     */
+    private static Map<String, Object> readFault(XMLStreamReader reader) throws XMLStreamException {
+        Map<String, Object> fault = new LinkedHashMap<String, Object>();
+        String parent = null;
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+                continue;
+            }
+            if (event != XMLStreamConstants.START_ELEMENT) {
+                continue;
+            }
+            depth++;
+            String localName = reader.getLocalName();
+            if (depth == 2) {
+                parent = localName;
+            }
+            String key = null;
+            if (depth == 2 && (FAULT_CODE.equals(localName) || FAULT_STRING.equals(localName))) {
+                key = localName;
+            } else if (depth == 3 && "Code".equals(parent) && "Value".equals(localName)) {
+                key = FAULT_CODE;
+            } else if (depth == 3 && "Reason".equals(parent) && "Text".equals(localName)) {
+                key = FAULT_STRING;
+            } else if (depth > 2 && EWSConstants.RESPONSE_CODE_ELEMENT.equals(localName)) {
+                key = "responseCode";
+            }
+            if (key != null && !fault.containsKey(key)) {
+                fault.put(key, reader.getElementText().trim());
+                depth--;
+            }
+        }
+        return fault;
+    }
+
+    /**
+     * Used to append the projected fields of the item the reader is positioned on, leaving the reader on its end
+     */
+    private static void appendItemFields(StringBuilder json, XMLStreamReader reader, Set<String> fields) throws
+            XMLStreamException {
+        int event;
+        while ((event = reader.next()) != XMLStreamConstants.END_ELEMENT) {
+            if (event != XMLStreamConstants.START_ELEMENT) {
+                continue;
+            }
+            String localName = reader.getLocalName();
+            if (fields != null && !fields.contains(localName)) {
+                skipElement(reader);
+                continue;
+            }
+            json.append(',');
+            appendString(json, localName);
+            json.append(':');
+            appendValue(json, readValue(reader));
+        }
+    }
+
+    /**
+     * Used to read the element the reader is positioned on into a string, when it holds only text, or into a map
+     * of its attributes and child elements, with repeated child elements collected in a list
+     */
+    @SuppressWarnings("unchecked")
+    private static Object readValue(XMLStreamReader reader) throws XMLStreamException {
+        Map<String, Object> value = new LinkedHashMap<String, Object>();
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            value.put(reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+        }
+        StringBuilder text = new StringBuilder();
+        int event;
+        while ((event = reader.next()) != XMLStreamConstants.END_ELEMENT) {
+            if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA || event ==
+                    XMLStreamConstants.SPACE) {
+                text.append(reader.getText());
+            } else if (event == XMLStreamConstants.START_ELEMENT) {
+                String localName = reader.getLocalName();
+                Object child = readValue(reader);
+                Object existing = value.get(localName);
+                if (existing instanceof List) {
+                    ((List<Object>) existing).add(child);
+                } else if (existing != null) {
+                    List<Object> children = new ArrayList<Object>();
+                    children.add(existing);
+                    children.add(child);
+                    value.put(localName, children);
+                } else {
+                    value.put(localName, child);
+                }
+            }
+        }
+        String trimmed = text.toString().trim();
+        if (value.isEmpty()) {
+            return trimmed;
+        }
+        if (!trimmed.isEmpty()) {
+            value.put(VALUE, trimmed);
+        }
+        return value;
+    }
+
+    private static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void appendValue(StringBuilder json, Object value) {
+        if (value instanceof Map) {
+            json.append('{');
+            boolean first = true;
+            for (Map.Entry<String, Object> entry : ((Map<String, Object>) value).entrySet()) {
+                if (!first) {
+                    json.append(',');
+                }
+                first = false;
+                appendString(json, entry.getKey());
+                json.append(':');
+                appendValue(json, entry.getValue());
+            }
+            json.append('}');
+        } else if (value instanceof List) {
+            json.append('[');
+            boolean first = true;
+            for (Object element : (List<Object>) value) {
+                if (!first) {
+                    json.append(',');
+                }
+                first = false;
+                appendValue(json, element);
+            }
+            json.append(']');
+        } else {
+            appendString(json, String.valueOf(value));
+        }
+    }
+
+    private static void appendString(StringBuilder json, String value) {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    json.append("\\\"");
+                    break;
+                case '\\':
+                    json.append("\\\\");
+                    break;
+                case '\n':
+                    json.append("\\n");
+                    break;
+                case '\r':
+                    json.append("\\r");
+                    break;
+                case '\t':
+                    json.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        json.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        json.append(c);
+                    }
+            }
+        }
+        json.append('"');
+    }
+}
@@ -0,0 +1,225 @@
+/*
+*  Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+package org.wso2.carbon.connector;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latency of the successful requests of one operation of one connection, over a sliding window.
+ * <p>
+ * Latencies are counted in buckets whose bounds grow by a quarter, so a percentile is off by at most a quarter of
+ * its value. The window is made of the current and the previous period, so percentiles follow changes of the
+ * latency within two periods while always being based on at least one full period. The percentiles give the read
+ * timeout of a request, a multiple of the 99th percentile, and the delay after which a read is hedged, the 95th
+ * percentile.
+ */
+final class EWSLatencyTracker {
+    private static final long DEFAULT_PERIOD = 60000;
+    private static final int DEFAULT_MIN_TIMEOUT = 2000;
+    private static final int MIN_SAMPLES = 20;
+    private static final double TIMEOUT_PERCENTILE = 0.99;
+    private static final double HEDGE_PERCENTILE = 0.95;
+    private static final double TIMEOUT_FACTOR = 3;
+    private static final long MAX_BOUND = 10 * 60000;
+    private static final long[] BOUNDS;
+
+    private static final long PERIOD = Long.getLong("ews.latency.period", DEFAULT_PERIOD);
+    private static final int MIN_TIMEOUT = Integer.getInteger("ews.timeout.min", DEFAULT_MIN_TIMEOUT);
+    private static final ConcurrentMap<String, EWSLatencyTracker> trackers = new ConcurrentHashMap<String,
+            EWSLatencyTracker>();
+
+    static {
+        List<Long> bounds = new ArrayList<Long>();
+        for (long bound = 1; bound < MAX_BOUND; bound = Math.max(bound + 1, bound * 5 / 4)) {
+            bounds.add(bound);
+        }
+        bounds.add(MAX_BOUND);
+        BOUNDS = new long[bounds.size()];
+        for (int i = 0; i < BOUNDS.length; i++) {
+            BOUNDS[i] = bounds.get(i);
+        }
+    }
+
+    private final String name;
+    private final long period;
+    private final int minTimeout;
+    private final AtomicLong hedges = new AtomicLong();
+    private final AtomicLong hedgeWins = new AtomicLong();
+    private int[] current = new int[BOUNDS.length];
+    private int[] previous = new int[BOUNDS.length];
+    private int currentCount;
+    private int previousCount;
+    private long periodStart;
+
+    /**
+     * @param name connection and operation the latency is tracked for
+     * @param period milliseconds of one period of the window
+     * @param minTimeout minimum read timeout in milliseconds
+     */
+    EWSLatencyTracker(String name, long period, int minTimeout) {
+        this.name = name;
+        this.period = period;
+        this.minTimeout = minTimeout;
+        this.periodStart = now();
+    }
+
+    /**
+     * Used to get the tracker of an operation of a connection, creating it if the operation hasn't been sent before
+     *
+     * @param connectionName name of the connection
+     * @param operation EWS operation, e.g. GetItem
+     * @return tracker
+     */
+    static EWSLatencyTracker get(String connectionName, String operation) {
+        String name = connectionName + '|' + operation;
+        EWSLatencyTracker tracker = trackers.get(name);
+        if (tracker == null) {
+            EWSLatencyTracker created = new EWSLatencyTracker(name, PERIOD, MIN_TIMEOUT);
+            tracker = trackers.putIfAbsent(name, created);
+            if (tracker == null) {
+                tracker = created;
+            }
+        }
+        return tracker;
+    }
+
+    /**
+     * @return trackers of all operations that have been sent
+     */
+    static List<EWSLatencyTracker> getAll() {
+        return new ArrayList<EWSLatencyTracker>(trackers.values());
+    }
+
+    /**
+     * Used to count the latency of a successful request
+     *
+     * @param latency milliseconds from sending the request until the response was read
+     */
+    synchronized void record(long latency) {
+        rotate(now());
+        int bucket = 0;
+        while (bucket < BOUNDS.length - 1 && latency > BOUNDS[bucket]) {
+            bucket++;
+        }
+        current[bucket]++;
+        currentCount++;
+    }
+
+    /**
+     * @param percentile percentile between 0 and 1, e.g. 0.99
+     * @return upper bound of the latency bucket of the percentile in milliseconds, -1 while the window holds too few
+     * requests
+     */
+    synchronized long getPercentile(double percentile) {
+        rotate(now());
+        int count = currentCount + previousCount;
+        if (count < MIN_SAMPLES) {
+            return -1;
+        }
+        long rank = (long) Math.ceil(percentile * count);
+        long seen = 0;
+        for (int i = 0; i < BOUNDS.length; i++) {
+            seen += current[i] + previous[i];
+            if (seen >= rank) {
+                return BOUNDS[i];
+            }
+        }
+        return MAX_BOUND;
+    }
+
+    /**
+     * Used to get the read timeout of a request, a multiple of the 99th percentile latency
+     *
+     * @param maximum configured read timeout, used while the latency isn't known yet
+     * @return milliseconds a read may block, between the minimum timeout and the maximum
+     */
+    int getTimeout(int maximum) {
+        long latency = getPercentile(TIMEOUT_PERCENTILE);
+        if (latency < 0) {
+            return maximum;
+        }
+        return (int) Math.min(maximum, Math.max(minTimeout, (long) (latency * TIMEOUT_FACTOR)));
+    }
+
+    /**
+     * @return milliseconds after which a read is sent once more, -1 while the latency isn't known yet
+     */
+    long getHedgeDelay() {
+        return getPercentile(HEDGE_PERCENTILE);
+    }
+
+    /**
+     * Used to count a hedged request
+     *
+     * @param won whether the second request answered first
+     */
+    void recordHedge(boolean won) {
+        hedges.incrementAndGet();
+        if (won) {
+            hedgeWins.incrementAndGet();
+        }
+    }
+
+    String getName() {
+        return name;
+    }
+
+    /**
+     * @return requests sent once more because the first one took longer than the hedge delay
+     */
+    long getHedgeCount() {
+        return hedges.get();
+    }
+
+    /**
+     * @return hedged requests whose second request answered first
+     */
+    long getHedgeWinCount() {
+        return hedgeWins.get();
+    }
+
+    private void rotate(long now) {
+        long elapsed = now - periodStart;
+        if (elapsed < period) {
+            return;
+        }
+        if (elapsed < 2 * period) {
+            int[] counts = previous;
+            previous = current;
+            previousCount = currentCount;
+            current = counts;
+            Arrays.fill(current, 0);
+        } else {
+            Arrays.fill(previous, 0);
+            Arrays.fill(current, 0);
+            previousCount = 0;
+        }
+        currentCount = 0;
+        periodStart = now;
+    }
+
+    private static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+}
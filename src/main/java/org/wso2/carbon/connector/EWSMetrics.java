@@ -0,0 +1,518 @@
+/*
+*  Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+package org.wso2.carbon.connector;
+
+import org.apache.axiom.om.OMElement;
+import org.apache.axiom.soap.SOAPEnvelope;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.pool.PoolStats;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.xml.namespace.QName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics of the operations of the connector, exposed through JMX as org.wso2.carbon.connector:type=EWSMetrics and
+ * as Prometheus text by the metrics operation.
+ * <p>
+ * Every EWS operation has histograms of the time spent building the SOAP header and body of its envelope, of the
+ * part of it spent rewriting namespaces of XML parameters, of the request and response sizes and of the round trip
+ * to EWS, and a count of every ResponseCode returned. Sizes are counted before compression and as sent or received,
+ * so their difference is what compression saved. Histograms count into buckets by power of two with atomic
+ * counters, so recording a value takes no lock and a few nanoseconds. Header and body times include the namespace
+ * rewriting done while building them.
+ */
+final class EWSMetrics implements DynamicMBean {
+    private static final Log log = LogFactory.getLog(EWSMetrics.class);
+    private static final String OBJECT_NAME = "org.wso2.carbon.connector:type=EWSMetrics";
+    private static final String SOAP_FAULT = "SoapFault";
+    private static final double NANOS_PER_SECOND = 1e9;
+    private static final double NANOS_PER_MILLI = 1e6;
+    private static final int MIN_TIME_BUCKET = 10;
+    private static final int MAX_TIME_BUCKET = 36;
+    private static final int MIN_SIZE_BUCKET = 6;
+    private static final int MAX_SIZE_BUCKET = 30;
+
+    private static final ConcurrentMap<String, Operation> operations = new ConcurrentHashMap<String, Operation>();
+    private static final ThreadLocal<long[]> rewriteTime = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[1];
+        }
+    };
+
+    static {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(new EWSMetrics(), name);
+            }
+        } catch (JMException e) {
+            log.warn("Couldn't register EWS metrics with JMX", e);
+        } catch (SecurityException e) {
+            log.warn("Couldn't register EWS metrics with JMX", e);
+        }
+    }
+
+    private EWSMetrics() {
+    }
+
+    /**
+     * Used to get the metrics of an operation, creating them when the operation is used for the first time
+     *
+     * @param operation EWS operation, e.g. GetItem
+     * @return metrics
+     */
+    static Operation get(String operation) {
+        Operation metrics = operations.get(operation);
+        if (metrics == null) {
+            Operation created = new Operation();
+            metrics = operations.putIfAbsent(operation, created);
+            if (metrics == null) {
+                metrics = created;
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * Used by the namespace rewriter to add the time of a rewrite to the envelope being built by the thread
+     *
+     * @param nanos nanoseconds the rewrite took
+     */
+    static void addRewriteTime(long nanos) {
+        rewriteTime.get()[0] += nanos;
+    }
+
+    /**
+     * Used to write all metrics in the Prometheus text exposition format
+     *
+     * @return metrics text
+     */
+    static String toPrometheus() {
+        StringBuilder text = new StringBuilder();
+        Map<String, Operation> sorted = new TreeMap<String, Operation>(operations);
+        writeHistograms(text, "ews_envelope_header_seconds", "Time to build the SOAP header of a request", sorted,
+                0);
+        writeHistograms(text, "ews_envelope_body_seconds", "Time to build the SOAP body of a request", sorted, 1);
+        writeHistograms(text, "ews_envelope_namespace_seconds", "Time spent rewriting namespaces of XML "
+                + "parameters while building a request", sorted, 2);
+        writeHistograms(text, "ews_request_bytes", "Size of a request sent to EWS", sorted, 3);
+        writeHistograms(text, "ews_call_seconds", "Round trip of a request to EWS", sorted, 4);
+        writeHistograms(text, "ews_response_bytes", "Size of a response read from EWS", sorted, 5);
+        writeHistograms(text, "ews_request_wire_bytes", "Size of a request sent to EWS as sent, after compression",
+                sorted, 6);
+        writeHistograms(text, "ews_response_wire_bytes", "Size of a response read from EWS as received, before "
+                + "decompression", sorted, 7);
+        writeHeader(text, "ews_compression_saved_bytes_total", "counter", "Bytes not sent or received thanks to "
+                + "compression");
+        for (Map.Entry<String, Operation> operation : sorted.entrySet()) {
+            writeSample(text, "ews_compression_saved_bytes_total", "operation", operation.getKey(), "direction",
+                    "request", operation.getValue().getRequestBytesSaved());
+            writeSample(text, "ews_compression_saved_bytes_total", "operation", operation.getKey(), "direction",
+                    "response", operation.getValue().getResponseBytesSaved());
+        }
+        writeHeader(text, "ews_response_codes_total", "counter", "ResponseCodes returned by EWS");
+        for (Map.Entry<String, Operation> operation : sorted.entrySet()) {
+            for (Map.Entry<String, LongAdder> code : new TreeMap<String, LongAdder>(operation.getValue()
+                    .responseCodes).entrySet()) {
+                writeSample(text, "ews_response_codes_total", "operation", operation.getKey(), "code", code.getKey(),
+                        code.getValue().sum());
+            }
+        }
+        writeHeader(text, "ews_pool_connections", "gauge", "Connections of a connection pool by state");
+        for (Map.Entry<String, PoolStats> pool : new TreeMap<String, PoolStats>(EWSConnectionPool.getAllStats())
+                .entrySet()) {
+            PoolStats stats = pool.getValue();
+            writeSample(text, "ews_pool_connections", "pool", pool.getKey(), "state", "leased", stats.getLeased());
+            writeSample(text, "ews_pool_connections", "pool", pool.getKey(), "state", "available", stats
+                    .getAvailable());
+            writeSample(text, "ews_pool_connections", "pool", pool.getKey(), "state", "pending", stats.getPending());
+            writeSample(text, "ews_pool_connections", "pool", pool.getKey(), "state", "max", stats.getMax());
+        }
+        List<EWSLatencyTracker> trackers = EWSLatencyTracker.getAll();
+        writeHeader(text, "ews_hedges_total", "counter", "Reads sent once more after the hedge delay");
+        for (EWSLatencyTracker tracker : trackers) {
+            String name = tracker.getName();
+            int separator = name.lastIndexOf('|');
+            writeSample(text, "ews_hedges_total", "connection", name.substring(0, separator), "operation", name
+                    .substring(separator + 1), tracker.getHedgeCount());
+        }
+        writeHeader(text, "ews_hedge_wins_total", "counter", "Hedged reads answered first by the second request");
+        for (EWSLatencyTracker tracker : trackers) {
+            String name = tracker.getName();
+            int separator = name.lastIndexOf('|');
+            writeSample(text, "ews_hedge_wins_total", "connection", name.substring(0, separator), "operation", name
+                    .substring(separator + 1), tracker.getHedgeWinCount());
+        }
+        for (Map.Entry<String, Number> gauge : getGauges().entrySet()) {
+            String name = "ews_" + gauge.getKey();
+            writeHeader(text, name, name.endsWith("_total") ? "counter" : "gauge", null);
+            text.append(name).append(' ').append(gauge.getValue()).append('\n');
+        }
+        return text.toString();
+    }
+
+    /**
+     * @return metrics of the caches and of the concurrency limiter, by their Prometheus name without the ews_ prefix
+     */
+    private static Map<String, Number> getGauges() {
+        Map<String, Number> gauges = new LinkedHashMap<String, Number>();
+        EWSItemCache itemCache = EWSItemCache.getInstance();
+        gauges.put("item_cache_hits_total", itemCache.getHitCount());
+        gauges.put("item_cache_misses_total", itemCache.getMissCount());
+        gauges.put("item_cache_evictions_total", itemCache.getEvictionCount());
+        gauges.put("item_cache_entries", itemCache.size());
+        gauges.put("item_cache_bytes", itemCache.getBytes());
+        EWSHeaderCache headerCache = EWSUtils.getHeaderCache();
+        gauges.put("header_cache_hits_total", headerCache.getHitCount());
+        gauges.put("header_cache_misses_total", headerCache.getMissCount());
+        gauges.put("header_cache_entries", headerCache.size());
+        EWSAttachmentStore attachmentStore = EWSAttachmentStore.getInstance();
+        gauges.put("attachment_store_hits_total", attachmentStore.getHitCount());
+        gauges.put("attachment_store_misses_total", attachmentStore.getMissCount());
+        gauges.put("attachment_store_evictions_total", attachmentStore.getEvictionCount());
+        gauges.put("attachment_store_deduplicated_total", attachmentStore.getDeduplicatedCount());
+        gauges.put("attachment_store_saved_bytes_total", attachmentStore.getBytesSaved());
+        gauges.put("attachment_store_memory_bytes", attachmentStore.getMemoryBytes());
+        gauges.put("attachment_store_disk_bytes", attachmentStore.getDiskBytes());
+        EWSConcurrencyLimiter limiter = EWSConcurrencyLimiter.instance;
+        gauges.put("mailbox_queue_depth", limiter.getQueueDepth());
+        gauges.put("mailbox_active_accounts", limiter.getActiveAccounts());
+        gauges.put("mailbox_waits_total", limiter.getWaitCount());
+        gauges.put("mailbox_wait_milliseconds_total", limiter.getWaitTime());
+        gauges.put("mailbox_max_wait_milliseconds", limiter.getMaxWaitTime());
+        gauges.put("mailbox_wait_timeouts_total", limiter.getTimeoutCount());
+        return gauges;
+    }
+
+    private static void writeHistograms(StringBuilder text, String name, String help, Map<String, Operation>
+            operations, int histogram) {
+        writeHeader(text, name, "histogram", help);
+        boolean time = name.endsWith("_seconds");
+        for (Map.Entry<String, Operation> operation : operations.entrySet()) {
+            Histogram values = operation.getValue().histograms[histogram];
+            String labels = "operation=\"" + escape(operation.getKey()) + '"';
+            long cumulative = 0;
+            int bucket = 0;
+            // every other power of two, so a bucket is four times the previous one
+            for (int bound = time ? MIN_TIME_BUCKET : MIN_SIZE_BUCKET; bound <= (time ? MAX_TIME_BUCKET :
+                    MAX_SIZE_BUCKET); bound += 2) {
+                for (; bucket <= bound; bucket++) {
+                    cumulative += values.buckets.get(bucket);
+                }
+                text.append(name).append("_bucket{").append(labels).append(",le=\"");
+                if (time) {
+                    text.append((1L << bound) / NANOS_PER_SECOND);
+                } else {
+                    text.append(1L << bound);
+                }
+                text.append("\"} ").append(cumulative).append('\n');
+            }
+            long count = values.count.sum();
+            text.append(name).append("_bucket{").append(labels).append(",le=\"+Inf\"} ").append(count).append('\n');
+            long sum = values.sum.sum();
+            text.append(name).append("_sum{").append(labels).append("} ");
+            if (time) {
+                text.append(sum / NANOS_PER_SECOND);
+            } else {
+                text.append(sum);
+            }
+            text.append('\n');
+            text.append(name).append("_count{").append(labels).append("} ").append(count).append('\n');
+        }
+    }
+
+    private static void writeHeader(StringBuilder text, String name, String type, String help) {
+        if (help != null) {
+            text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        }
+        text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void writeSample(StringBuilder text, String name, String label, String value, String
+            secondLabel, String secondValue, long sample) {
+        text.append(name).append('{').append(label).append("=\"").append(escape(value)).append('"');
+        if (secondLabel != null) {
+            text.append(',').append(secondLabel).append("=\"").append(escape(secondValue)).append('"');
+        }
+        text.append("} ").append(sample).append('\n');
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    /**
+     * @return every metric by its JMX attribute name, e.g. GetItem.callMillis.p99, GetItem.responseCodes.NoError
+     */
+    private static Map<String, Number> getAttributes() {
+        Map<String, Number> attributes = new LinkedHashMap<String, Number>();
+        for (Map.Entry<String, Operation> operation : new TreeMap<String, Operation>(operations).entrySet()) {
+            Histogram[] histograms = operation.getValue().histograms;
+            for (int i = 0; i < histograms.length; i++) {
+                String prefix = operation.getKey() + '.' + Operation.NAMES[i] + '.';
+                double scale = Operation.NAMES[i].endsWith("Millis") ? NANOS_PER_MILLI : 1;
+                attributes.put(prefix + "count", histograms[i].count.sum());
+                attributes.put(prefix + "mean", histograms[i].getMean() / scale);
+                attributes.put(prefix + "p99", histograms[i].getPercentile(0.99) / scale);
+            }
+            attributes.put(operation.getKey() + ".requestBytesSaved", operation.getValue().getRequestBytesSaved());
+            attributes.put(operation.getKey() + ".responseBytesSaved", operation.getValue().getResponseBytesSaved());
+            for (Map.Entry<String, LongAdder> code : new TreeMap<String, LongAdder>(operation.getValue()
+                    .responseCodes).entrySet()) {
+                attributes.put(operation.getKey() + ".responseCodes." + code.getKey(), code.getValue().sum());
+            }
+        }
+        for (Map.Entry<String, PoolStats> pool : new TreeMap<String, PoolStats>(EWSConnectionPool.getAllStats())
+                .entrySet()) {
+            attributes.put("pool." + pool.getKey() + ".leased", pool.getValue().getLeased());
+            attributes.put("pool." + pool.getKey() + ".pending", pool.getValue().getPending());
+        }
+        attributes.putAll(getGauges());
+        return attributes;
+    }
+
+    public Object getAttribute(String attribute) {
+        return getAttributes().get(attribute);
+    }
+
+    public void setAttribute(Attribute attribute) {
+        throw new UnsupportedOperationException("EWS metrics are read only");
+    }
+
+    public AttributeList getAttributes(String[] names) {
+        Map<String, Number> attributes = getAttributes();
+        AttributeList list = new AttributeList();
+        for (String name : names) {
+            if (attributes.containsKey(name)) {
+                list.add(new Attribute(name, attributes.get(name)));
+            }
+        }
+        return list;
+    }
+
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    public Object invoke(String actionName, Object[] params, String[] signature) {
+        throw new UnsupportedOperationException("EWS metrics have no operations");
+    }
+
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+        for (Map.Entry<String, Number> attribute : getAttributes().entrySet()) {
+            attributes.add(new MBeanAttributeInfo(attribute.getKey(), attribute.getValue().getClass().getName(),
+                    attribute.getKey(), true, false, false));
+        }
+        return new MBeanInfo(EWSMetrics.class.getName(), "Metrics of the EWS connector", attributes.toArray(
+                new MBeanAttributeInfo[attributes.size()]), null, new MBeanOperationInfo[0], null);
+    }
+
+    /**
+     * Metrics of one EWS operation.
+     */
+    static final class Operation {
+        private static final String[] NAMES = {"headerMillis", "bodyMillis", "namespaceMillis", "requestBytes",
+                "callMillis", "responseBytes", "requestWireBytes", "responseWireBytes"};
+
+        private final Histogram[] histograms = new Histogram[NAMES.length];
+        private final ConcurrentMap<String, LongAdder> responseCodes = new ConcurrentHashMap<String, LongAdder>();
+
+        private Operation() {
+            for (int i = 0; i < histograms.length; i++) {
+                histograms[i] = new Histogram();
+            }
+        }
+
+        /**
+         * Used before the header of an envelope is built
+         *
+         * @return start of the build in nanoseconds
+         */
+        long startBuild() {
+            rewriteTime.get()[0] = 0;
+            return System.nanoTime();
+        }
+
+        /**
+         * Used after the header of an envelope has been built
+         *
+         * @param start value returned by {@link #startBuild}
+         * @return start of the body build in nanoseconds
+         */
+        long headerBuilt(long start) {
+            long now = System.nanoTime();
+            histograms[0].record(now - start);
+            return now;
+        }
+
+        /**
+         * Used after the body of an envelope has been built
+         *
+         * @param start value returned by {@link #headerBuilt}
+         */
+        void bodyBuilt(long start) {
+            histograms[1].record(System.nanoTime() - start);
+            histograms[2].record(rewriteTime.get()[0]);
+        }
+
+        /**
+         * @param bytes size of a request sent to EWS
+         * @param wireBytes size of the request as sent, smaller than its size when it was compressed
+         */
+        void requestSent(long bytes, long wireBytes) {
+            histograms[3].record(bytes);
+            histograms[6].record(wireBytes);
+        }
+
+        /**
+         * Used after the response of a request has been read, or its headers for a response that is read later
+         *
+         * @param start nanoseconds when the request was sent
+         * @param bytes size of the response, -1 if it isn't known
+         * @param wireBytes size of the response as received, smaller than its size when it was compressed
+         */
+        void responseReceived(long start, long bytes, long wireBytes) {
+            histograms[4].record(System.nanoTime() - start);
+            // sizes are only counted together, so the bytes saved by compression are the difference of their sums
+            if (bytes >= 0 && wireBytes >= 0) {
+                histograms[5].record(bytes);
+                histograms[7].record(wireBytes);
+            }
+        }
+
+        /**
+         * @return bytes compression of requests saved
+         */
+        long getRequestBytesSaved() {
+            return histograms[3].sum.sum() - histograms[6].sum.sum();
+        }
+
+        /**
+         * @return bytes compression of responses saved
+         */
+        long getResponseBytesSaved() {
+            return histograms[5].sum.sum() - histograms[7].sum.sum();
+        }
+
+        /**
+         * Used to count the ResponseCode of every ResponseMessage of a response, or of its SOAP fault
+         *
+         * @param envelope response envelope
+         */
+        void countResponseCodes(SOAPEnvelope envelope) {
+            if (envelope.getBody().hasFault()) {
+                String code = envelope.getBody().getFault().getDetail() == null ? SOAP_FAULT : EWSBatchDispatcher
+                        .faultResponseCode(envelope.getBody().getFault());
+                count(code);
+                return;
+            }
+            OMElement response = envelope.getBody().getFirstElement();
+            OMElement responseMessages = response == null ? null : response.getFirstChildWithName(new QName(
+                    EWSConstants.MESSAGES_NAME_SPACE, EWSConstants.RESPONSE_MESSAGES_ELEMENT));
+            if (responseMessages == null) {
+                return;
+            }
+            QName responseCodeName = new QName(EWSConstants.MESSAGES_NAME_SPACE, EWSConstants.RESPONSE_CODE_ELEMENT);
+            for (Iterator children = responseMessages.getChildElements(); children.hasNext(); ) {
+                OMElement responseCode = ((OMElement) children.next()).getFirstChildWithName(responseCodeName);
+                if (responseCode != null) {
+                    count(responseCode.getText().trim());
+                }
+            }
+        }
+
+        private void count(String code) {
+            LongAdder counter = responseCodes.get(code);
+            if (counter == null) {
+                LongAdder created = new LongAdder();
+                counter = responseCodes.putIfAbsent(code, created);
+                if (counter == null) {
+                    counter = created;
+                }
+            }
+            counter.increment();
+        }
+    }
+
+    /**
+     * Lock free histogram with a bucket per power of two, bucket i counts values above 2^(i-1) up to 2^i.
+     */
+    static final class Histogram {
+        private final AtomicLongArray buckets = new AtomicLongArray(64);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+
+        void record(long value) {
+            buckets.incrementAndGet(value <= 1 ? 0 : 64 - Long.numberOfLeadingZeros(value - 1));
+            count.increment();
+            sum.add(value);
+        }
+
+        long getCount() {
+            return count.sum();
+        }
+
+        double getMean() {
+            long values = count.sum();
+            return values == 0 ? 0 : (double) sum.sum() / values;
+        }
+
+        /**
+         * @param percentile percentile between 0 and 1, e.g. 0.99
+         * @return upper bound of the bucket of the percentile, 0 when nothing has been recorded
+         */
+        long getPercentile(double percentile) {
+            long values = count.sum();
+            if (values == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(percentile * values);
+            long seen = 0;
+            for (int i = 0; i < 63; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    return 1L << i;
+                }
+            }
+            return Long.MAX_VALUE;
+        }
+    }
+}
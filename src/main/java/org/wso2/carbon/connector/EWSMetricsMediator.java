@@ -0,0 +1,60 @@
+/*
+*  Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+package org.wso2.carbon.connector;
+
+import org.apache.axiom.om.OMAbstractFactory;
+import org.apache.axiom.om.OMElement;
+import org.apache.axiom.soap.SOAPEnvelope;
+import org.apache.axiom.soap.SOAPFactory;
+import org.apache.axis2.AxisFault;
+import org.apache.axis2.Constants;
+import org.apache.synapse.MessageContext;
+import org.apache.synapse.core.axis2.Axis2MessageContext;
+import org.apache.synapse.transport.passthru.PassThroughConstants;
+import org.wso2.carbon.connector.core.AbstractConnector;
+import org.wso2.carbon.connector.core.ConnectException;
+
+import javax.xml.namespace.QName;
+
+/**
+ * Replaces the payload with the metrics of the connector in the Prometheus text exposition format, so an API
+ * calling the metrics operation can be scraped by Prometheus.
+ */
+public class EWSMetricsMediator extends AbstractConnector {
+    private static final String TEXT_CONTENT_TYPE = "text/plain; version=0.0.4";
+    private static final QName TEXT_ELEMENT = new QName("http://ws.apache.org/commons/ns/payload", "text");
+
+    public void connect(MessageContext messageContext) throws ConnectException {
+        SOAPFactory soapFactory = OMAbstractFactory.getSOAP11Factory();
+        SOAPEnvelope envelope = soapFactory.getDefaultEnvelope();
+        OMElement text = soapFactory.createOMElement(TEXT_ELEMENT, envelope.getBody());
+        text.setText(EWSMetrics.toPrometheus());
+        try {
+            messageContext.setEnvelope(envelope);
+        } catch (AxisFault axisFault) {
+            String msg = "Couldn't set metrics payload to MessageContext";
+            log.error(msg, axisFault);
+            throw new ConnectException(axisFault, msg);
+        }
+        org.apache.axis2.context.MessageContext axis2MessageContext = ((Axis2MessageContext) messageContext)
+                .getAxis2MessageContext();
+        axis2MessageContext.setProperty(Constants.Configuration.MESSAGE_TYPE, "text/plain");
+        axis2MessageContext.setProperty(Constants.Configuration.CONTENT_TYPE, TEXT_CONTENT_TYPE);
+        axis2MessageContext.setProperty(PassThroughConstants.MESSAGE_BUILDER_INVOKED, Boolean.TRUE);
+    }
+}
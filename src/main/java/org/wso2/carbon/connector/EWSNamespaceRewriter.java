@@ -0,0 +1,203 @@
+/*
+*  Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+package org.wso2.carbon.connector;
+
+import org.apache.axiom.om.OMAbstractFactory;
+import org.apache.axiom.om.OMElement;
+import org.apache.axiom.om.OMNamespace;
+import org.apache.axiom.om.util.StAXUtils;
+import org.apache.axiom.soap.SOAPFactory;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.StringReader;
+
+/**
+ * Single pass namespace rewriter which moves parameter fragments into the EWS types namespace.
+ * <p>
+ * Produces the same tree as the former xslt/namespace.xslt transformation (every element renamed to
+ * typ:{local-name}, attributes, text, comments and namespace declarations copied) but builds the target
+ * tree directly from the StAX events, without compiling a stylesheet or serializing and re-parsing the
+ * result. Whitespace only text between elements is treated as indentation and dropped.
+ */
+final class EWSNamespaceRewriter {
+    private static final SOAPFactory soapFactory = OMAbstractFactory.getSOAP11Factory();
+
+    private EWSNamespaceRewriter() {
+    }
+
+    /**
+     * Parses the given xml fragment and rewrites it into the types namespace.
+     *
+     * @param fragment xml fragment as provided in a template parameter
+     * @return rewritten element
+     * @throws XMLStreamException when the fragment is not well formed
+     */
+    static OMElement rewrite(String fragment) throws XMLStreamException {
+        long start = System.nanoTime();
+        XMLStreamReader reader = StAXUtils.createXMLStreamReader(new StringReader(fragment));
+        try {
+            return copy(reader);
+        } finally {
+            reader.close();
+            EWSMetrics.addRewriteTime(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Rewrites an already built element into the types namespace.
+     *
+     * @param element element to rewrite
+     * @return rewritten element
+     * @throws XMLStreamException when the element couldn't be read
+     */
+    static OMElement rewrite(OMElement element) throws XMLStreamException {
+        long start = System.nanoTime();
+        XMLStreamReader reader = element.getXMLStreamReader();
+        try {
+            return copy(reader);
+        } finally {
+            reader.close();
+            EWSMetrics.addRewriteTime(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Rewrites the first element available from the reader into the types namespace.
+     *
+     * @param reader reader positioned at or before the element to rewrite
+     * @return rewritten element
+     * @throws XMLStreamException when the element couldn't be read
+     */
+    static OMElement rewrite(XMLStreamReader reader) throws XMLStreamException {
+        long start = System.nanoTime();
+        try {
+            return copy(reader);
+        } finally {
+            EWSMetrics.addRewriteTime(System.nanoTime() - start);
+        }
+    }
+
+    private static OMElement copy(XMLStreamReader reader) throws XMLStreamException {
+        OMNamespace type = EWSUtils.type;
+        OMElement root = null;
+        OMElement current = null;
+        String pendingWhitespace = null;
+        int event = reader.getEventType();
+        while (true) {
+            switch (event) {
+                case XMLStreamConstants.START_ELEMENT:
+                    OMElement element;
+                    if (current == null) {
+                        element = soapFactory.createOMElement(reader.getLocalName(), type);
+                        root = element;
+                    } else {
+                        element = soapFactory.createOMElement(reader.getLocalName(), type, current);
+                    }
+                    copyNamespaces(reader, element);
+                    copyAttributes(reader, element);
+                    current = element;
+                    pendingWhitespace = null;
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    if (pendingWhitespace != null && current.getFirstElement() == null) {
+                        soapFactory.createOMText(current, pendingWhitespace);
+                    }
+                    pendingWhitespace = null;
+                    current = current == root ? null : (OMElement) current.getParent();
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                case XMLStreamConstants.SPACE:
+                    if (current != null) {
+                        String text = reader.getText();
+                        if (isWhitespace(text)) {
+                            pendingWhitespace = pendingWhitespace == null ? text : pendingWhitespace + text;
+                        } else {
+                            soapFactory.createOMText(current, pendingWhitespace == null ? text :
+                                    pendingWhitespace + text);
+                            pendingWhitespace = null;
+                        }
+                    }
+                    break;
+                case XMLStreamConstants.COMMENT:
+                    if (current != null) {
+                        soapFactory.createOMComment(current, reader.getText());
+                    }
+                    pendingWhitespace = null;
+                    break;
+                case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                    if (current != null) {
+                        soapFactory.createOMProcessingInstruction(current, reader.getPITarget(),
+                                reader.getPIData());
+                    }
+                    pendingWhitespace = null;
+                    break;
+                default:
+                    break;
+            }
+            if ((root != null && current == null) || !reader.hasNext()) {
+                break;
+            }
+            event = reader.next();
+        }
+        if (root == null) {
+            throw new XMLStreamException("No element found to set namespace");
+        }
+        return root;
+    }
+
+    /**
+     * Copies namespace declarations of the current start element, skipping the default namespace and
+     * declarations that would shadow the types prefix.
+     */
+    private static void copyNamespaces(XMLStreamReader reader, OMElement element) {
+        for (int i = 0; i < reader.getNamespaceCount(); i++) {
+            String prefix = reader.getNamespacePrefix(i);
+            String uri = reader.getNamespaceURI(i);
+            if (prefix != null && prefix.length() > 0 && uri != null && uri.length() > 0
+                    && !EWSConstants.TYPE_NAME_SPACE_HEADER.equals(prefix)) {
+                element.declareNamespace(uri, prefix);
+            }
+        }
+    }
+
+    /**
+     * Copies attributes of the current start element as they are.
+     */
+    private static void copyAttributes(XMLStreamReader reader, OMElement element) {
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            String namespaceUri = reader.getAttributeNamespace(i);
+            OMNamespace attributeNamespace = null;
+            if (namespaceUri != null && namespaceUri.length() > 0) {
+                attributeNamespace = soapFactory.createOMNamespace(namespaceUri, reader.getAttributePrefix(i));
+            }
+            element.addAttribute(reader.getAttributeLocalName(i), reader.getAttributeValue(i), attributeNamespace);
+        }
+    }
+
+    private static boolean isWhitespace(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (!Character.isWhitespace(text.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
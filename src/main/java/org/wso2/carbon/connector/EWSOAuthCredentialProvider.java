@@ -0,0 +1,214 @@
+/*
+*  Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+package org.wso2.carbon.connector;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.util.EntityUtils;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Credential provider of OAuth2 bearer tokens obtained with the client credentials grant, as used by Exchange Online.
+ * <p>
+ * The first token is fetched as soon as the provider is created. Every token is refreshed in the background before
+ * it expires, so requests take the cached token without waiting for the token endpoint. Only a request that finds
+ * no valid token, because the first fetch hasn't finished or every refresh has failed, fetches one itself.
+ */
+final class EWSOAuthCredentialProvider implements EWSCredentialProvider {
+    private static final Log log = LogFactory.getLog(EWSOAuthCredentialProvider.class);
+    private static final long REFRESH_MARGIN = 5 * 60000;
+    private static final long EXPIRY_MARGIN = 30000;
+    private static final long MIN_BACKOFF = 1000;
+    private static final long MAX_BACKOFF = 60000;
+
+    private static final ScheduledExecutorService refresher = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "ews-token-refresher");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final String tokenEndpoint;
+    private final String clientId;
+    private final String clientSecret;
+    private final String scope;
+    private final String connectionName;
+    private final Object fetchLock = new Object();
+
+    private volatile Token token;
+    private volatile boolean closed;
+    private ScheduledFuture<?> refresh;
+    private long backoff = MIN_BACKOFF;
+
+    /**
+     * @param tokenEndpoint token endpoint of the authorization server
+     * @param clientId client id of the application
+     * @param clientSecret client secret of the application
+     * @param scope requested scope, e.g. https://outlook.office365.com/.default
+     * @param connectionName name of the connection pool the token endpoint is called through
+     */
+    EWSOAuthCredentialProvider(String tokenEndpoint, String clientId, String clientSecret, String scope, String
+            connectionName) {
+        this.tokenEndpoint = tokenEndpoint;
+        this.clientId = clientId;
+        this.clientSecret = clientSecret;
+        this.scope = scope;
+        this.connectionName = connectionName;
+        schedule(0);
+    }
+
+    public String getAuthorization() throws IOException {
+        Token current = token;
+        if (current == null || current.isExpired()) {
+            synchronized (fetchLock) {
+                current = token;
+                if (current != null && current.isExpired()) {
+                    log.warn("OAuth token of " + connectionName + " has expired, fetching one with the request");
+                }
+                if (current == null || current.isExpired()) {
+                    current = fetch();
+                }
+            }
+        }
+        return "Bearer " + current.accessToken;
+    }
+
+    public void close() {
+        closed = true;
+        synchronized (this) {
+            if (refresh != null) {
+                refresh.cancel(false);
+            }
+        }
+    }
+
+    private synchronized void schedule(long delay) {
+        if (closed) {
+            return;
+        }
+        refresh = refresher.schedule(new Runnable() {
+            public void run() {
+                refresh();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void refresh() {
+        if (closed) {
+            return;
+        }
+        try {
+            Token current;
+            synchronized (fetchLock) {
+                current = token;
+                // a request may have fetched a token while the refresh was waiting for its turn
+                if (current == null || current.isDue()) {
+                    current = fetch();
+                }
+            }
+            backoff = MIN_BACKOFF;
+            schedule(Math.max(0, current.refreshAt - System.currentTimeMillis()));
+        } catch (IOException e) {
+            log.warn("Couldn't refresh OAuth token for " + connectionName + ", retrying in " + backoff + "ms", e);
+            schedule(backoff);
+            backoff = Math.min(backoff * 2, MAX_BACKOFF);
+        }
+    }
+
+    /**
+     * Used to fetch a token and to make it the current one. Callers hold the fetch lock, so only one fetch is
+     * in flight at a time.
+     */
+    private Token fetch() throws IOException {
+        List<NameValuePair> form = new ArrayList<NameValuePair>();
+        form.add(new BasicNameValuePair("grant_type", "client_credentials"));
+        form.add(new BasicNameValuePair("client_id", clientId));
+        form.add(new BasicNameValuePair("client_secret", clientSecret));
+        if (scope != null) {
+            form.add(new BasicNameValuePair("scope", scope));
+        }
+        HttpPost post = new HttpPost(tokenEndpoint);
+        post.setEntity(new UrlEncodedFormEntity(form, StandardCharsets.UTF_8));
+        post.setHeader("Accept", "application/json");
+        CloseableHttpResponse response = EWSConnectionPool.get(connectionName).getHttpClient().execute(post);
+        String body;
+        try {
+            body = response.getEntity() == null ? "" : EntityUtils.toString(response.getEntity(), StandardCharsets
+                    .UTF_8);
+        } finally {
+            response.close();
+        }
+        int status = response.getStatusLine().getStatusCode();
+        try {
+            JSONObject json = new JSONObject(body);
+            if (status >= 300 || !json.has("access_token")) {
+                throw new IOException("Token endpoint returned HTTP " + status + ": " + json.optString("error") +
+                        " " + json.optString("error_description"));
+            }
+            Token fetched = new Token(json.getString("access_token"), json.optLong("expires_in", 3600) * 1000);
+            token = fetched;
+            return fetched;
+        } catch (JSONException e) {
+            throw new IOException("Token endpoint returned HTTP " + status + " without a token", e);
+        }
+    }
+
+    /**
+     * An access token together with the time it expires.
+     */
+    private static final class Token {
+        private final String accessToken;
+        private final long lifetime;
+        private final long refreshAt;
+        private final long expiresAt;
+
+        private Token(String accessToken, long lifetime) {
+            long now = System.currentTimeMillis();
+            this.accessToken = accessToken;
+            this.lifetime = lifetime;
+            // a token is refreshed REFRESH_MARGIN before it expires, a short lived one half way through its lifetime
+            this.refreshAt = now + Math.max(lifetime - REFRESH_MARGIN, lifetime / 2);
+            this.expiresAt = now + lifetime;
+        }
+
+        private boolean isDue() {
+            return System.currentTimeMillis() >= refreshAt;
+        }
+
+        private boolean isExpired() {
+            return System.currentTimeMillis() > expiresAt - Math.min(EXPIRY_MARGIN, lifetime / 4);
+        }
+    }
+}
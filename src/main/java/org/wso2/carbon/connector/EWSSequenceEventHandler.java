@@ -0,0 +1,72 @@
+/*
+*  Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+package org.wso2.carbon.connector;
+
+import org.apache.axiom.om.OMAbstractFactory;
+import org.apache.axiom.om.OMElement;
+import org.apache.axiom.soap.SOAPEnvelope;
+import org.apache.axiom.soap.SOAPFactory;
+import org.apache.axis2.AxisFault;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.synapse.Mediator;
+import org.apache.synapse.MessageContext;
+import org.apache.synapse.core.SynapseEnvironment;
+
+/**
+ * Mediates every event through a sequence, as a message holding the event element in its body.
+ */
+final class EWSSequenceEventHandler implements EWSEventHandler {
+    private static final Log log = LogFactory.getLog(EWSSequenceEventHandler.class);
+    private static final SOAPFactory soapFactory = OMAbstractFactory.getSOAP11Factory();
+
+    private final SynapseEnvironment environment;
+    private final String sequenceName;
+
+    /**
+     * @param environment environment the events are mediated in
+     * @param sequenceName sequence every event is mediated through
+     */
+    EWSSequenceEventHandler(SynapseEnvironment environment, String sequenceName) {
+        this.environment = environment;
+        this.sequenceName = sequenceName;
+    }
+
+    public boolean isAvailable() {
+        if (environment.getSynapseConfiguration().getSequence(sequenceName) == null) {
+            log.error("Sequence " + sequenceName + " doesn't exist");
+            return false;
+        }
+        return true;
+    }
+
+    public void handle(String mailbox, OMElement event, String watermark) throws AxisFault {
+        Mediator sequence = environment.getSynapseConfiguration().getSequence(sequenceName);
+        if (sequence == null) {
+            throw new AxisFault("Sequence " + sequenceName + " doesn't exist");
+        }
+        MessageContext eventContext = environment.createMessageContext();
+        SOAPEnvelope envelope = soapFactory.getDefaultEnvelope();
+        envelope.getBody().addChild(event);
+        eventContext.setEnvelope(envelope);
+        eventContext.setProperty(EWSConstants.EWS_EVENT_TYPE, event.getLocalName());
+        eventContext.setProperty(EWSConstants.EWS_EVENT_MAILBOX, mailbox);
+        eventContext.setProperty(EWSConstants.EWS_EVENT_WATERMARK, watermark);
+        sequence.mediate(eventContext);
+    }
+}
@@ -0,0 +1,43 @@
+/*
+*  Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+package org.wso2.carbon.connector;
+
+import java.io.IOException;
+
+/**
+ * Thrown instead of sending a request when the account it is sent as is backing off after ErrorServerBusy for
+ * longer than a request may wait.
+ */
+final class EWSServerBusyException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final long backOff;
+
+    /**
+     * @param message detail message
+     * @param backOff milliseconds until the account may be called again
+     */
+    EWSServerBusyException(String message, long backOff) {
+        super(message);
+        this.backOff = backOff;
+    }
+
+    long getBackOff() {
+        return backOff;
+    }
+}
@@ -0,0 +1,224 @@
+/*
+*  Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+package org.wso2.carbon.connector;
+
+import javax.activation.DataSource;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Output buffer which is kept in memory up to a threshold and spills to a temporary file above it. Once written
+ * and closed, the content can be read back any number of times as a {@link DataSource}.
+ * <p>
+ * A spilled buffer keeps its temporary file until {@link #dispose()} is called, or, after
+ * {@link #disposeAfterRead()}, until the content has been read to its end once.
+ */
+final class EWSSpoolBuffer extends OutputStream implements DataSource {
+    private static final String SPOOL_FILE_PREFIX = "ews-attachment-";
+    private static final String SPOOL_FILE_SUFFIX = ".tmp";
+
+    private final int threshold;
+    private final String name;
+    private final String contentType;
+    private final File directory;
+    private MemoryBuffer memory = new MemoryBuffer();
+    private File file;
+    private OutputStream fileOutput;
+    private long size;
+    private boolean disposeAfterRead;
+    private boolean disposed;
+
+    /**
+     * @param threshold number of bytes kept in memory before spilling to disk
+     * @param name name of the content
+     * @param contentType content type of the content
+     */
+    EWSSpoolBuffer(int threshold, String name, String contentType) {
+        this(threshold, name, contentType, null);
+    }
+
+    /**
+     * @param threshold number of bytes kept in memory before spilling to disk
+     * @param name name of the content
+     * @param contentType content type of the content
+     * @param directory directory of the spill file, null for the default temporary directory
+     */
+    EWSSpoolBuffer(int threshold, String name, String contentType, File directory) {
+        this.threshold = threshold;
+        this.name = name;
+        this.contentType = contentType;
+        this.directory = directory;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        if (file == null && size + length > threshold) {
+            spill();
+        }
+        if (file == null) {
+            memory.write(bytes, offset, length);
+        } else {
+            fileOutput.write(bytes, offset, length);
+        }
+        size += length;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (fileOutput != null) {
+            fileOutput.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (fileOutput != null) {
+            fileOutput.close();
+        }
+    }
+
+    public InputStream getInputStream() throws IOException {
+        if (disposed) {
+            throw new IOException("Spool buffer has been read and disposed already");
+        }
+        InputStream input = file == null ? memory.open() : new BufferedInputStream(new FileInputStream(file));
+        return disposeAfterRead ? new DisposingInputStream(input) : input;
+    }
+
+    public OutputStream getOutputStream() throws IOException {
+        throw new IOException("Spool buffer is read only once written");
+    }
+
+    public String getContentType() {
+        return contentType == null ? "application/octet-stream" : contentType;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return number of bytes written
+     */
+    long size() {
+        return size;
+    }
+
+    /**
+     * @return spill file, null while the content is held in memory
+     */
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * Makes the buffer dispose itself when a stream of {@link #getInputStream()} is closed after it has been read
+     * to its end, for content which is handed on and read once.
+     */
+    void disposeAfterRead() {
+        disposeAfterRead = true;
+    }
+
+    /**
+     * @return whether the buffer has been disposed
+     */
+    boolean isDisposed() {
+        return disposed;
+    }
+
+    /**
+     * Releases the buffer, deleting the spill file if any.
+     */
+    void dispose() {
+        disposed = true;
+        memory = null;
+        if (file != null) {
+            try {
+                close();
+            } catch (IOException ignore) {
+                // the file is deleted regardless
+            }
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+    }
+
+    private void spill() throws IOException {
+        file = File.createTempFile(SPOOL_FILE_PREFIX, SPOOL_FILE_SUFFIX, directory);
+        fileOutput = new BufferedOutputStream(new FileOutputStream(file));
+        memory.writeTo(fileOutput);
+        memory = null;
+    }
+
+    /**
+     * Stream of the content which disposes the buffer once it is closed after being read to its end.
+     */
+    private final class DisposingInputStream extends FilterInputStream {
+        private boolean ended;
+
+        private DisposingInputStream(InputStream input) {
+            super(input);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int read = super.read();
+            ended |= read < 0;
+            return read;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            int read = super.read(bytes, offset, length);
+            ended |= read < 0;
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            super.close();
+            if (ended) {
+                dispose();
+            }
+        }
+    }
+
+    /**
+     * Memory buffer which can be read back without copying its content.
+     */
+    private static final class MemoryBuffer extends ByteArrayOutputStream {
+        private InputStream open() {
+            return new ByteArrayInputStream(buf, 0, count);
+        }
+    }
+}
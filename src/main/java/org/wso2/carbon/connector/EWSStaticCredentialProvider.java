@@ -0,0 +1,55 @@
+/*
+*  Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+package org.wso2.carbon.connector;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Credential provider of an Authorization header that never changes, such as Basic credentials, which are encoded
+ * once when the provider is created.
+ */
+final class EWSStaticCredentialProvider implements EWSCredentialProvider {
+    private final String authorization;
+
+    /**
+     * @param authorization value of the Authorization header, may be null
+     */
+    EWSStaticCredentialProvider(String authorization) {
+        this.authorization = authorization;
+    }
+
+    /**
+     * Used to create a provider of Basic credentials
+     *
+     * @param username user name
+     * @param password password
+     * @return provider
+     */
+    static EWSStaticCredentialProvider basic(String username, String password) {
+        return new EWSStaticCredentialProvider("Basic " + Base64.getEncoder().encodeToString((username + ':' +
+                password).getBytes(StandardCharsets.UTF_8)));
+    }
+
+    public String getAuthorization() {
+        return authorization;
+    }
+
+    public void close() {
+    }
+}
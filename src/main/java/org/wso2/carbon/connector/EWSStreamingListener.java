@@ -0,0 +1,511 @@
+/*
+*  Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+package org.wso2.carbon.connector;
+
+import org.apache.axiom.om.OMAbstractFactory;
+import org.apache.axiom.om.OMElement;
+import org.apache.axiom.om.util.StAXUtils;
+import org.apache.axiom.soap.SOAPEnvelope;
+import org.apache.axiom.soap.SOAPFactory;
+import org.apache.axiom.soap.SOAPHeader;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.client.methods.CloseableHttpResponse;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Listens to streaming subscriptions of many mailboxes with GetStreamingEvents and passes every event to an event
+ * handler as soon as its notification has arrived.
+ * <p>
+ * Every subscription is created with affinity to the mailbox server of its mailbox. Subscriptions Exchange put on
+ * the same server, as told by the X-BackEndOverrideCookie of their Subscribe responses, are packed onto long-lived
+ * connections routed to that server, up to maxSubscriptionsPerConnection each, and every connection is read
+ * incrementally by its own thread. A connection closed by the server is reopened right away,
+ * a failed one after an exponential backoff. A subscription the server no longer knows is recreated, and the
+ * events since the last stored watermark are then read with a pull subscription, so events are not lost while a
+ * mailbox isn't subscribed.
+ */
+final class EWSStreamingListener {
+    private static final Log log = LogFactory.getLog(EWSStreamingListener.class);
+    private static final SOAPFactory soapFactory = OMAbstractFactory.getSOAP11Factory();
+    private static final String ERROR = "Error";
+    private static final String CLOSED = "Closed";
+    private static final Set<String> SUBSCRIPTION_LOST = new HashSet<String>(Arrays.asList(
+            "ErrorSubscriptionNotFound", "ErrorExpiredSubscription", "ErrorInvalidSubscription",
+            "ErrorMissedNotificationEvents", "ErrorSubscriptionUnsubscribed"));
+    private static final QName RESPONSE_CLASS = new QName(EWSConstants.RESPONSE_CLASS_ATTRIBUTE);
+    private static final QName SUBSCRIPTION_ID = new QName(EWSConstants.MESSAGES_NAME_SPACE, EWSConstants
+            .SUBSCRIPTION_ID_ELEMENT);
+    private static final QName NOTIFICATION_SUBSCRIPTION_ID = new QName(EWSConstants.TYPE_NAME_SPACE, EWSConstants
+            .SUBSCRIPTION_ID_ELEMENT);
+    private static final long MIN_BACKOFF = 1000;
+    private static final long MAX_BACKOFF = 60000;
+    private static final int CATCH_UP_SUBSCRIPTION_TIMEOUT = 1;
+    private static final AtomicInteger threadCount = new AtomicInteger();
+    private static final ConcurrentMap<String, EWSStreamingListener> listeners = new ConcurrentHashMap<String,
+            EWSStreamingListener>();
+
+    private final String key;
+    private final EWSClient client;
+    private final OMElement streamingSubscriptionRequest;
+    private final OMElement pullSubscriptionRequest;
+    private final EWSEventHandler handler;
+    private final EWSSyncStateStore store;
+    private final int maxSubscriptionsPerConnection;
+    private final int connectionTimeout;
+    private final List<Subscription> subscriptions = new ArrayList<Subscription>();
+    private final List<Connection> connections = new ArrayList<Connection>();
+    private volatile boolean running = true;
+
+    /**
+     * @param key key the listener is registered under
+     * @param client client used for all requests
+     * @param streamingSubscriptionRequest StreamingSubscriptionRequest element holding FolderIds and EventTypes
+     * @param pullSubscriptionRequest PullSubscriptionRequest element with the same FolderIds and EventTypes
+     * @param handler handler of the events
+     * @param store store of the watermarks
+     * @param maxSubscriptionsPerConnection maximum number of subscriptions read over one connection
+     * @param connectionTimeout minutes after which the server closes a connection
+     */
+    EWSStreamingListener(String key, EWSClient client, OMElement streamingSubscriptionRequest, OMElement
+            pullSubscriptionRequest, EWSEventHandler handler, EWSSyncStateStore store, int
+            maxSubscriptionsPerConnection, int connectionTimeout) {
+        this.key = key;
+        this.client = client;
+        this.streamingSubscriptionRequest = streamingSubscriptionRequest;
+        this.pullSubscriptionRequest = pullSubscriptionRequest;
+        this.handler = handler;
+        this.store = store;
+        this.maxSubscriptionsPerConnection = Math.max(1, maxSubscriptionsPerConnection);
+        this.connectionTimeout = connectionTimeout;
+    }
+
+    /**
+     * Used to add the subscription of a mailbox, before the listener is started
+     *
+     * @param mailbox impersonated mailbox, may be null
+     * @param soapHeader header of the requests of this mailbox
+     * @param watermarkKey key the watermark of the mailbox is stored under
+     */
+    void addSubscription(String mailbox, SOAPHeader soapHeader, String watermarkKey) {
+        subscriptions.add(new Subscription(mailbox, soapHeader, watermarkKey));
+    }
+
+    /**
+     * @return number of subscriptions added
+     */
+    int getSubscriptionCount() {
+        return subscriptions.size();
+    }
+
+    /**
+     * @return key the listener is registered under
+     */
+    String getKey() {
+        return key;
+    }
+
+    /**
+     * Used to start listening, unless a listener with the same key is running already. The subscriptions are
+     * created in the background, and their connections are opened once all of them have been tried.
+     *
+     * @param listener listener to start
+     * @return true if the listener has been started
+     */
+    static boolean start(final EWSStreamingListener listener) {
+        if (listeners.putIfAbsent(listener.key, listener) != null) {
+            return false;
+        }
+        startThread(new Runnable() {
+            public void run() {
+                listener.connect();
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Used to stop the listener registered under a key, closing its connections and unsubscribing its
+     * subscriptions. The watermarks are kept, so a listener started again catches up with the events in between.
+     *
+     * @param key listener key
+     * @return true if a listener has been stopped
+     */
+    static boolean stop(String key) {
+        EWSStreamingListener listener = listeners.remove(key);
+        if (listener == null) {
+            return false;
+        }
+        listener.running = false;
+        synchronized (listener) {
+            for (Connection connection : listener.connections) {
+                connection.close();
+            }
+        }
+        listener.unsubscribe();
+        return true;
+    }
+
+    private static void startThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "ews-streaming-" + threadCount.incrementAndGet());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Used to create the subscriptions and to open the connections of the subscriptions of each mailbox server.
+     * A subscription that couldn't be created is retried by the connection of the subscriptions without a server.
+     */
+    private void connect() {
+        for (Subscription subscription : subscriptions) {
+            if (!running) {
+                return;
+            }
+            try {
+                subscribe(subscription, subscription.mailbox, null);
+            } catch (IOException e) {
+                log.warn("Subscribe of " + subscription.describe() + " failed, retrying on its connection", e);
+            } catch (XMLStreamException e) {
+                log.warn("Couldn't parse the Subscribe response of " + subscription.describe() + ", retrying on " +
+                        "its connection", e);
+            } catch (RuntimeException e) {
+                log.error("Couldn't catch up with the events of " + subscription.describe() + ", retrying on its " +
+                        "connection", e);
+                subscription.subscriptionId = null;
+            }
+        }
+        Map<String, List<Subscription>> servers = new LinkedHashMap<String, List<Subscription>>();
+        for (Subscription subscription : subscriptions) {
+            String server = subscription.subscriptionId == null || subscription.backEndOverrideCookie == null ? "" :
+                    subscription.backEndOverrideCookie;
+            List<Subscription> group = servers.get(server);
+            if (group == null) {
+                group = new ArrayList<Subscription>();
+                servers.put(server, group);
+            }
+            group.add(subscription);
+        }
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            for (List<Subscription> server : servers.values()) {
+                for (List<Subscription> group : EWSBatchDispatcher.chunk(server, maxSubscriptionsPerConnection)) {
+                    Connection connection = new Connection(group);
+                    connections.add(connection);
+                    startThread(connection);
+                }
+            }
+        }
+    }
+
+    /**
+     * Used to create the streaming subscription of a mailbox and to catch up with the events since its stored
+     * watermark
+     *
+     * @param anchorMailbox mailbox whose server the subscription is created on, may be null
+     * @param backEndOverrideCookie X-BackEndOverrideCookie of the server, may be null
+     */
+    private void subscribe(Subscription subscription, String anchorMailbox, String backEndOverrideCookie) throws
+            IOException, XMLStreamException {
+        SOAPEnvelope request = EWSBatchDispatcher.createRequest(subscription.soapHeader);
+        OMElement subscribeElement = soapFactory.createOMElement(EWSConstants.SUBSCRIBE_ELEMENT, EWSUtils.message,
+                request.getBody());
+        EWSUtils.copyElement(streamingSubscriptionRequest, subscribeElement);
+        EWSClient.AffinityResponse response = client.subscribe(request, anchorMailbox, backEndOverrideCookie);
+        OMElement responseMessage = EWSUtils.getResponseMessage(response.envelope);
+        if (responseMessage == null || ERROR.equals(responseMessage.getAttributeValue(RESPONSE_CLASS))) {
+            log.warn("Subscribe of " + subscription.describe() + " failed: " + (responseMessage == null ?
+                    response.envelope.getBody().getFirstElement() : responseMessage));
+            return;
+        }
+        if (backEndOverrideCookie != null && !backEndOverrideCookie.equals(response.backEndOverrideCookie)) {
+            log.debug(subscription.describe() + " moved to another mailbox server, its events are proxied");
+        }
+        subscription.backEndOverrideCookie = response.backEndOverrideCookie;
+        subscription.subscriptionId = responseMessage.getFirstChildWithName(SUBSCRIPTION_ID).getText();
+        if (store.read(subscription.watermarkKey) != null) {
+            new EWSEventPoller(subscription.watermarkKey, subscription.mailbox, client, subscription.soapHeader,
+                    pullSubscriptionRequest, CATCH_UP_SUBSCRIPTION_TIMEOUT, handler, store, 0).poll();
+        }
+    }
+
+    /**
+     * Used to end the subscriptions on the server instead of leaving them to expire
+     */
+    private void unsubscribe() {
+        for (Subscription subscription : subscriptions) {
+            String subscriptionId = subscription.subscriptionId;
+            if (subscriptionId == null) {
+                continue;
+            }
+            subscription.subscriptionId = null;
+            SOAPEnvelope request = EWSBatchDispatcher.createRequest(subscription.soapHeader);
+            OMElement unsubscribeElement = soapFactory.createOMElement(EWSConstants.UNSUBSCRIBE_ELEMENT, EWSUtils
+                    .message, request.getBody());
+            soapFactory.createOMElement(EWSConstants.SUBSCRIPTION_ID_ELEMENT, EWSUtils.message, unsubscribeElement)
+                    .setText(subscriptionId);
+            try {
+                OMElement responseMessage = EWSUtils.getResponseMessage(client.send(EWSConstants
+                        .UNSUBSCRIBE_ELEMENT, request));
+                if (responseMessage == null || ERROR.equals(responseMessage.getAttributeValue(RESPONSE_CLASS))) {
+                    log.warn("Unsubscribe of " + subscription.describe() + " failed: " + responseMessage);
+                }
+            } catch (IOException e) {
+                log.warn("Unsubscribe of " + subscription.describe() + " failed", e);
+            } catch (XMLStreamException e) {
+                log.warn("Couldn't parse the Unsubscribe response of " + subscription.describe(), e);
+            }
+        }
+    }
+
+    /**
+     * Subscription of one mailbox.
+     */
+    private static final class Subscription {
+        private final String mailbox;
+        private final SOAPHeader soapHeader;
+        private final String watermarkKey;
+        private volatile String subscriptionId;
+        private volatile String backEndOverrideCookie;
+
+        private Subscription(String mailbox, SOAPHeader soapHeader, String watermarkKey) {
+            this.mailbox = mailbox;
+            this.soapHeader = soapHeader;
+            this.watermarkKey = watermarkKey;
+        }
+
+        private String describe() {
+            return mailbox == null ? "streaming subscription" : "streaming subscription of " + mailbox;
+        }
+    }
+
+    /**
+     * Reads the notifications of a group of subscriptions of one mailbox server over one connection at a time.
+     */
+    private final class Connection implements Runnable {
+        private final List<Subscription> group;
+        private final String anchorMailbox;
+        private final String backEndOverrideCookie;
+        private volatile CloseableHttpResponse current;
+
+        private Connection(List<Subscription> group) {
+            this.group = group;
+            // the subscriptions of a group are all on the server of the first one
+            Subscription first = group.get(0);
+            this.anchorMailbox = first.mailbox;
+            this.backEndOverrideCookie = first.subscriptionId == null ? null : first.backEndOverrideCookie;
+        }
+
+        public void run() {
+            long backoff = MIN_BACKOFF;
+            while (running) {
+                boolean reconnect = false;
+                try {
+                    if (!handler.isAvailable()) {
+                        log.error("Events can no longer be handled, stopping streaming listener");
+                        stop(key);
+                        return;
+                    }
+                    List<Subscription> active = new ArrayList<Subscription>();
+                    for (Subscription subscription : group) {
+                        if (subscription.subscriptionId == null) {
+                            subscribe(subscription, anchorMailbox, backEndOverrideCookie);
+                        }
+                        if (subscription.subscriptionId != null) {
+                            active.add(subscription);
+                        }
+                    }
+                    if (!active.isEmpty()) {
+                        reconnect = stream(active);
+                    }
+                } catch (IOException e) {
+                    if (running) {
+                        log.warn("Streaming connection failed, reconnecting in " + backoff + " ms", e);
+                    }
+                } catch (XMLStreamException e) {
+                    if (running) {
+                        log.warn("Couldn't parse streamed notifications, reconnecting in " + backoff + " ms", e);
+                    }
+                } catch (RuntimeException e) {
+                    log.error("Couldn't handle streamed notifications, reconnecting in " + backoff + " ms", e);
+                }
+                if (reconnect) {
+                    backoff = MIN_BACKOFF;
+                } else if (running) {
+                    try {
+                        Thread.sleep(backoff);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                    backoff = Math.min(backoff * 2, MAX_BACKOFF);
+                }
+            }
+        }
+
+        /**
+         * Used to read the notifications of the active subscriptions until the connection closes
+         *
+         * @return true if the connection can be reopened right away
+         */
+        private boolean stream(List<Subscription> active) throws IOException, XMLStreamException {
+            Map<String, Subscription> subscriptionsById = new HashMap<String, Subscription>();
+            SOAPEnvelope request = EWSBatchDispatcher.createRequest(active.get(0).soapHeader);
+            OMElement getStreamingEventsElement = soapFactory.createOMElement(EWSConstants
+                    .GET_STREAMING_EVENTS_ELEMENT, EWSUtils.message, request.getBody());
+            OMElement subscriptionIdsElement = soapFactory.createOMElement(EWSConstants.SUBSCRIPTION_IDS_ELEMENT,
+                    EWSUtils.message, getStreamingEventsElement);
+            for (Subscription subscription : active) {
+                subscriptionsById.put(subscription.subscriptionId, subscription);
+                soapFactory.createOMElement(EWSConstants.SUBSCRIPTION_ID_ELEMENT, EWSUtils.type,
+                        subscriptionIdsElement).setText(subscription.subscriptionId);
+            }
+            soapFactory.createOMElement(EWSConstants.CONNECTION_TIMEOUT_ELEMENT, EWSUtils.message,
+                    getStreamingEventsElement).setText(Integer.toString(connectionTimeout));
+            // the server closes the connection after connectionTimeout minutes, a read blocked for longer is stale
+            CloseableHttpResponse response = client.open(EWSConstants.GET_STREAMING_EVENTS_ELEMENT, request,
+                    (connectionTimeout + 1) * 60000, anchorMailbox, backEndOverrideCookie);
+            current = response;
+            try {
+                if (!running) {
+                    // stopped while the connection was being opened, before close could see it
+                    return false;
+                }
+                return read(new EWSFrameInputStream(EWSClient.getResponseStream(response)), subscriptionsById);
+            } finally {
+                current = null;
+                // closing the response instead of its body drops the connection rather than waiting for its end
+                response.close();
+            }
+        }
+
+        /**
+         * Used to read streamed envelopes, passing the events of every notification to the handler as soon as the
+         * notification has been read
+         *
+         * @return true if the server closed the connection or dropped subscriptions that can be recreated
+         */
+        private boolean read(InputStream input, Map<String, Subscription> subscriptionsById) throws
+                XMLStreamException, IOException {
+            XMLStreamReader reader = StAXUtils.createXMLStreamReader(input);
+            try {
+                String responseClass = null;
+                String responseCode = null;
+                List<String> errorSubscriptionIds = new ArrayList<String>();
+                boolean inErrorSubscriptionIds = false;
+                boolean closed = false;
+                while (reader.hasNext()) {
+                    int event = reader.next();
+                    if (event == XMLStreamConstants.START_ELEMENT) {
+                        String name = reader.getLocalName();
+                        if (EWSConstants.GET_STREAMING_EVENTS_RESPONSE_MESSAGE_ELEMENT.equals(name)) {
+                            responseClass = reader.getAttributeValue(null, EWSConstants.RESPONSE_CLASS_ATTRIBUTE);
+                            responseCode = null;
+                            errorSubscriptionIds.clear();
+                        } else if (EWSConstants.RESPONSE_CODE_ELEMENT.equals(name)) {
+                            responseCode = reader.getElementText().trim();
+                        } else if (EWSConstants.ERROR_SUBSCRIPTION_IDS_ELEMENT.equals(name)) {
+                            inErrorSubscriptionIds = true;
+                        } else if (inErrorSubscriptionIds && EWSConstants.SUBSCRIPTION_ID_ELEMENT.equals(name)) {
+                            errorSubscriptionIds.add(reader.getElementText().trim());
+                        } else if (EWSConstants.CONNECTION_STATUS_ELEMENT.equals(name)) {
+                            closed = CLOSED.equals(reader.getElementText().trim());
+                        } else if (EWSConstants.NOTIFICATION_ELEMENT.equals(name)) {
+                            notify(EWSNamespaceRewriter.rewrite(reader), subscriptionsById);
+                        }
+                    } else if (event == XMLStreamConstants.END_ELEMENT) {
+                        String name = reader.getLocalName();
+                        if (EWSConstants.ERROR_SUBSCRIPTION_IDS_ELEMENT.equals(name)) {
+                            inErrorSubscriptionIds = false;
+                        } else if (EWSConstants.GET_STREAMING_EVENTS_RESPONSE_MESSAGE_ELEMENT.equals(name) &&
+                                ERROR.equals(responseClass)) {
+                            return failed(responseCode, errorSubscriptionIds, subscriptionsById);
+                        }
+                    }
+                    if (closed) {
+                        return true;
+                    }
+                }
+                return false;
+            } finally {
+                reader.close();
+            }
+        }
+
+        private void notify(OMElement notification, Map<String, Subscription> subscriptionsById) throws
+                IOException {
+            OMElement subscriptionIdElement = notification.getFirstChildWithName(NOTIFICATION_SUBSCRIPTION_ID);
+            Subscription subscription = subscriptionIdElement == null ? null : subscriptionsById.get
+                    (subscriptionIdElement.getText().trim());
+            if (subscription == null) {
+                return;
+            }
+            String watermark = EWSEventPoller.dispatch(handler, subscription.mailbox, notification, null);
+            if (watermark != null) {
+                store.write(subscription.watermarkKey, watermark);
+            }
+        }
+
+        private boolean failed(String responseCode, List<String> errorSubscriptionIds, Map<String, Subscription>
+                subscriptionsById) {
+            log.warn("GetStreamingEvents failed with " + responseCode + (errorSubscriptionIds.isEmpty() ? "" :
+                    " for " + errorSubscriptionIds.size() + " subscriptions"));
+            if (!SUBSCRIPTION_LOST.contains(responseCode)) {
+                return false;
+            }
+            Iterable<String> lost = errorSubscriptionIds.isEmpty() ? subscriptionsById.keySet() :
+                    errorSubscriptionIds;
+            for (String subscriptionId : lost) {
+                Subscription subscription = subscriptionsById.get(subscriptionId);
+                if (subscription != null) {
+                    subscription.subscriptionId = null;
+                }
+            }
+            return true;
+        }
+
+        private void close() {
+            CloseableHttpResponse response = current;
+            if (response != null) {
+                try {
+                    response.close();
+                } catch (IOException e) {
+                    log.debug("Couldn't close streaming connection", e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,192 @@
+/*
+*  Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+package org.wso2.carbon.connector;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * File store of the SyncState of synchronized folders and the watermarks of pull subscriptions, one file per key.
+ * <p>
+ * A state is written to a temporary file in the store directory, forced to disk and then atomically renamed over
+ * the previous state, after which the directory is forced to disk as well, so a crash leaves either the previous or
+ * the new state behind, never a partial one.
+ */
+final class EWSSyncStateStore {
+    private static final String STATE_FILE_SUFFIX = ".state";
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+    private static final ConcurrentMap<String, EWSSyncStateStore> stores = new ConcurrentHashMap<String,
+            EWSSyncStateStore>();
+
+    private final File directory;
+    private final ConcurrentMap<String, Lock> locks = new ConcurrentHashMap<String, Lock>();
+
+    private EWSSyncStateStore(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Used to get the store kept in a directory
+     *
+     * @param directory store directory, the default directory when null or empty
+     * @return store
+     */
+    static EWSSyncStateStore forDirectory(String directory) {
+        File storeDirectory;
+        if (directory == null || directory.trim().isEmpty()) {
+            String carbonHome = System.getProperty("carbon.home");
+            storeDirectory = carbonHome == null ? new File(System.getProperty("java.io.tmpdir"), "ews-sync-state") :
+                    new File(carbonHome, "repository" + File.separator + "data" + File.separator + "ews-sync-state");
+        } else {
+            storeDirectory = new File(directory.trim());
+        }
+        String path = storeDirectory.getAbsolutePath();
+        EWSSyncStateStore store = stores.get(path);
+        if (store == null) {
+            EWSSyncStateStore created = new EWSSyncStateStore(storeDirectory);
+            store = stores.putIfAbsent(path, created);
+            if (store == null) {
+                store = created;
+            }
+        }
+        return store;
+    }
+
+    /**
+     * Used to get the lock that serializes the synchronizations of a sync key within this server
+     *
+     * @param key sync key
+     * @return lock
+     */
+    Lock lock(String key) {
+        Lock lock = locks.get(key);
+        if (lock == null) {
+            Lock created = new ReentrantLock();
+            lock = locks.putIfAbsent(key, created);
+            if (lock == null) {
+                lock = created;
+            }
+        }
+        return lock;
+    }
+
+    /**
+     * Used to read the stored state of a sync key
+     *
+     * @param key sync key
+     * @return stored state, null when the key hasn't been synchronized yet
+     * @throws IOException when the state couldn't be read
+     */
+    String read(String key) throws IOException {
+        File file = stateFile(key);
+        if (!file.isFile()) {
+            return null;
+        }
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Used to replace the stored state of a sync key
+     *
+     * @param key sync key
+     * @param syncState new state
+     * @throws IOException when the state couldn't be written
+     */
+    void write(String key, String syncState) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()) {
+            throw new IOException("Couldn't create sync state directory " + directory);
+        }
+        File file = stateFile(key);
+        File temp = File.createTempFile(file.getName(), TEMP_FILE_SUFFIX, directory);
+        try {
+            FileOutputStream output = new FileOutputStream(temp);
+            try {
+                output.write(syncState.getBytes(StandardCharsets.UTF_8));
+                output.getChannel().force(true);
+            } finally {
+                output.close();
+            }
+            try {
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption
+                        .REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            forceDirectory();
+        } finally {
+            if (temp.exists() && !temp.delete()) {
+                temp.deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * Used to remove the stored state of a sync key, so the next synchronization starts over
+     *
+     * @param key sync key
+     * @throws IOException when the state couldn't be removed
+     */
+    void delete(String key) throws IOException {
+        Files.deleteIfExists(stateFile(key).toPath());
+    }
+
+    /**
+     * Forces the directory entry of the renamed state to disk, without which a crash may still bring back the
+     * previous state or no state at all.
+     */
+    private void forceDirectory() throws IOException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ);
+        } catch (IOException e) {
+            // directories can't be opened on some platforms, e.g. Windows, whose renames are durable already
+            return;
+        }
+        try {
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+    }
+
+    private File stateFile(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder name = new StringBuilder(digest.length * 2 + STATE_FILE_SUFFIX.length());
+            for (byte b : digest) {
+                name.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return new File(directory, name.append(STATE_FILE_SUFFIX).toString());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
@@ -0,0 +1,237 @@
+/*
+*  Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+package org.wso2.carbon.connector;
+
+import org.apache.axiom.om.OMElement;
+import org.apache.axiom.soap.SOAPEnvelope;
+import org.apache.axiom.soap.SOAPFault;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import javax.xml.namespace.QName;
+import java.io.InterruptedIOException;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adaptive request rate limit of one account, the connection's own account or an impersonated one.
+ * <p>
+ * Requests take tokens from a bucket that refills at the current rate and holds up to one second of requests.
+ * Every successful request raises the rate by about INCREASE requests per second per second, up to MAX_RATE. When
+ * Exchange answers with ErrorServerBusy, the rate is halved and no request of the account is sent before the
+ * BackOffMilliseconds of the fault have passed, so the rate settles just below the budget Exchange allows the
+ * account while other accounts are not held back. A request that would have to wait longer than MAX_WAIT fails
+ * with {@link EWSServerBusyException} instead.
+ */
+final class EWSThrottle {
+    private static final Log log = LogFactory.getLog(EWSThrottle.class);
+    private static final String SERVER_BUSY = "ErrorServerBusy";
+    private static final String BACK_OFF_MILLISECONDS = "BackOffMilliseconds";
+    private static final String VALUE = "Value";
+    private static final String NAME = "Name";
+    private static final double MAX_RATE = Double.parseDouble(System.getProperty("ews.throttle.maxRate", "50"));
+    private static final double MIN_RATE = Double.parseDouble(System.getProperty("ews.throttle.minRate", "0.5"));
+    private static final double INCREASE = 1;
+    private static final double DECREASE = 0.5;
+    private static final long MAX_WAIT = Long.getLong("ews.throttle.maxWait", 30000);
+    private static final long DEFAULT_BACK_OFF = 1000;
+    private static final int MAX_ACCOUNTS = 10000;
+    private static final long IDLE_TIMEOUT = 10 * 60000;
+
+    private static final ConcurrentMap<String, EWSThrottle> throttles = new ConcurrentHashMap<String,
+            EWSThrottle>();
+
+    private final String account;
+    private final double maxRate;
+    private final long maxWait;
+    private double rate;
+    private double tokens;
+    private long refilledAt;
+    private long blockedUntil;
+    private volatile long usedAt;
+
+    /**
+     * @param account account the requests are sent as
+     * @param maxRate maximum requests per second
+     * @param maxWait maximum milliseconds a request waits for its turn
+     */
+    EWSThrottle(String account, double maxRate, long maxWait) {
+        this.account = account;
+        this.maxRate = maxRate;
+        this.maxWait = maxWait;
+        this.rate = maxRate;
+        this.tokens = Math.max(1, maxRate);
+        this.refilledAt = now();
+        this.usedAt = refilledAt;
+    }
+
+    /**
+     * Used to get the throttle of an account, creating it if the account hasn't been called before
+     *
+     * @param account account the requests are sent as
+     * @return throttle
+     */
+    static EWSThrottle get(String account) {
+        EWSThrottle throttle = throttles.get(account);
+        if (throttle == null) {
+            if (throttles.size() >= MAX_ACCOUNTS) {
+                removeIdle();
+            }
+            EWSThrottle created = new EWSThrottle(account, MAX_RATE, MAX_WAIT);
+            throttle = throttles.putIfAbsent(account, created);
+            if (throttle == null) {
+                throttle = created;
+            }
+        }
+        return throttle;
+    }
+
+    private static void removeIdle() {
+        long idleSince = now() - IDLE_TIMEOUT;
+        for (Iterator<EWSThrottle> iterator = throttles.values().iterator(); iterator.hasNext(); ) {
+            if (iterator.next().usedAt < idleSince) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Used to wait until a request of the account may be sent
+     *
+     * @throws EWSServerBusyException when the request would have to wait longer than the maximum wait
+     * @throws InterruptedIOException when the thread got interrupted while waiting
+     */
+    void acquire() throws EWSServerBusyException, InterruptedIOException {
+        long wait;
+        synchronized (this) {
+            long now = now();
+            refill(now);
+            long tokenWait = tokens >= 1 ? 0 : (long) Math.ceil((1 - tokens) / rate * 1000);
+            wait = Math.max(blockedUntil - now, tokenWait);
+            if (wait > maxWait) {
+                throw new EWSServerBusyException("Exchange is busy for " + account + ", retry in " + wait + "ms",
+                        wait);
+            }
+            // the token is taken now, so requests waiting at the same time queue up behind each other
+            tokens -= 1;
+            usedAt = now;
+        }
+        if (wait > 0) {
+            try {
+                Thread.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting to call Exchange for " + account);
+            }
+        }
+    }
+
+    /**
+     * Used to raise the rate after a request has been served
+     */
+    synchronized void onSuccess() {
+        rate = Math.min(maxRate, rate + INCREASE / rate);
+    }
+
+    /**
+     * Used to lower the rate and back off after Exchange answered with ErrorServerBusy. Responses of requests that
+     * were in flight when the first one arrived don't lower the rate again.
+     *
+     * @param backOff BackOffMilliseconds hint of the response, 0 if it had none
+     */
+    synchronized void onServerBusy(long backOff) {
+        long now = now();
+        refill(now);
+        if (now >= blockedUntil) {
+            rate = Math.max(MIN_RATE, rate * DECREASE);
+            tokens = Math.min(tokens, 0);
+        }
+        blockedUntil = Math.max(blockedUntil, now + (backOff > 0 ? backOff : DEFAULT_BACK_OFF));
+        log.warn("Exchange is busy for " + account + ", backing off " + (blockedUntil - now) + "ms and lowering the "
+                + "request rate to " + String.format("%.2f", rate) + "/s");
+    }
+
+    /**
+     * @return current requests per second
+     */
+    synchronized double getRate() {
+        return rate;
+    }
+
+    private void refill(long now) {
+        tokens = Math.min(Math.max(1, rate), tokens + (now - refilledAt) * rate / 1000);
+        refilledAt = now;
+    }
+
+    private static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    /**
+     * Used to find the ErrorServerBusy back off of a response, either of a SOAP fault or of a ResponseMessage
+     *
+     * @param response response envelope
+     * @return BackOffMilliseconds of the response, 0 if it has none, -1 if the response isn't ErrorServerBusy
+     */
+    static long getServerBusyBackOff(SOAPEnvelope response) {
+        if (response.getBody().hasFault()) {
+            SOAPFault fault = response.getBody().getFault();
+            return fault.getDetail() == null ? -1 : findBackOff(fault.getDetail());
+        }
+        OMElement responseElement = response.getBody().getFirstElement();
+        OMElement responseMessages = responseElement == null ? null : responseElement.getFirstChildWithName(
+                new QName(EWSConstants.MESSAGES_NAME_SPACE, EWSConstants.RESPONSE_MESSAGES_ELEMENT));
+        if (responseMessages == null) {
+            return -1;
+        }
+        long backOff = -1;
+        for (Iterator children = responseMessages.getChildElements(); children.hasNext(); ) {
+            backOff = Math.max(backOff, findBackOff((OMElement) children.next()));
+        }
+        return backOff;
+    }
+
+    /**
+     * EWS puts the error code in a ResponseCode element and the back off in a Value element of MessageXml, both
+     * below the fault detail or the ResponseMessage.
+     */
+    private static long findBackOff(OMElement element) {
+        boolean busy = false;
+        long backOff = 0;
+        for (Iterator descendants = element.getDescendants(false); descendants.hasNext(); ) {
+            Object descendant = descendants.next();
+            if (!(descendant instanceof OMElement)) {
+                continue;
+            }
+            OMElement child = (OMElement) descendant;
+            if (EWSConstants.RESPONSE_CODE_ELEMENT.equals(child.getLocalName())) {
+                busy |= SERVER_BUSY.equals(child.getText().trim());
+            } else if (VALUE.equals(child.getLocalName()) && BACK_OFF_MILLISECONDS.equals(child.getAttributeValue(
+                    new QName(NAME)))) {
+                try {
+                    backOff = Long.parseLong(child.getText().trim());
+                } catch (NumberFormatException e) {
+                    log.warn("Invalid BackOffMilliseconds " + child.getText());
+                }
+            }
+        }
+        return busy ? backOff : -1;
+    }
+}
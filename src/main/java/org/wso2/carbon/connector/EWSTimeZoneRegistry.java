@@ -0,0 +1,366 @@
+/*
+*  Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+package org.wso2.carbon.connector;
+
+import org.apache.axiom.om.OMAbstractFactory;
+import org.apache.axiom.om.OMElement;
+import org.apache.axiom.soap.SOAPFactory;
+
+import java.time.DateTimeException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.format.TextStyle;
+import java.time.zone.ZoneOffsetTransitionRule;
+import java.time.zone.ZoneRules;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Process wide registry of TimeZoneContext header blocks generated from the java.time zone rules.
+ * <p>
+ * A zone is resolved once, on first use of its id, into a TimeZoneDefinition with a standard period, a daylight
+ * period if the zone still observes daylight saving time, and a single transitions group holding the recurring
+ * rules currently in force. The generated block is shared; callers add a copy of it to their soap header.
+ * <p>
+ * EWS only knows the Windows time zone ids, so the definition carries the Windows id of the zone. Ids are taken
+ * from the primary zones of the CLDR windowsZones table; any other zone maps to the Windows zone whose primary
+ * zone currently follows the same rules, e.g. Europe/Oslo to W. Europe Standard Time.
+ */
+final class EWSTimeZoneRegistry {
+    private static final SOAPFactory soapFactory = OMAbstractFactory.getSOAP11Factory();
+    private static final String STANDARD_PERIOD = "Standard";
+    private static final String DAYLIGHT_PERIOD = "Daylight";
+    private static final String TRANSITIONS_GROUP_ID = "0";
+    private static final LocalDateTime REFERENCE_DAY = LocalDate.of(2000, 1, 1).atStartOfDay();
+    private static final String UTC_WINDOWS_ID = "UTC";
+    private static final String FIXED_OFFSET_PREFIX = "Etc/";
+
+    /**
+     * Windows time zone ids and the zone CLDR maps each of them to for territory 001, in the order they are
+     * preferred when several of them follow the same rules.
+     */
+    private static final String[] WINDOWS_ZONES = {
+            "Dateline Standard Time", "Etc/GMT+12", "UTC-11", "Etc/GMT+11", "Aleutian Standard Time", "America/Adak",
+            "Hawaiian Standard Time", "Pacific/Honolulu", "Marquesas Standard Time", "Pacific/Marquesas",
+            "Alaskan Standard Time", "America/Anchorage", "UTC-09", "Etc/GMT+9",
+            "Pacific Standard Time", "America/Los_Angeles", "UTC-08", "Etc/GMT+8",
+            "Pacific Standard Time (Mexico)", "America/Tijuana", "US Mountain Standard Time", "America/Phoenix",
+            "Mountain Standard Time (Mexico)", "America/Chihuahua", "Mountain Standard Time", "America/Denver",
+            "Central America Standard Time", "America/Guatemala", "Central Standard Time", "America/Chicago",
+            "Easter Island Standard Time", "Pacific/Easter", "Central Standard Time (Mexico)", "America/Mexico_City",
+            "Canada Central Standard Time", "America/Regina", "SA Pacific Standard Time", "America/Bogota",
+            "Eastern Standard Time (Mexico)", "America/Cancun", "Eastern Standard Time", "America/New_York",
+            "Haiti Standard Time", "America/Port-au-Prince", "Cuba Standard Time", "America/Havana",
+            "US Eastern Standard Time", "America/Indiana/Indianapolis",
+            "Turks And Caicos Standard Time", "America/Grand_Turk", "Paraguay Standard Time", "America/Asuncion",
+            "Atlantic Standard Time", "America/Halifax", "Venezuela Standard Time", "America/Caracas",
+            "Central Brazilian Standard Time", "America/Cuiaba", "SA Western Standard Time", "America/La_Paz",
+            "Pacific SA Standard Time", "America/Santiago", "Newfoundland Standard Time", "America/St_Johns",
+            "Tocantins Standard Time", "America/Araguaina", "E. South America Standard Time", "America/Sao_Paulo",
+            "SA Eastern Standard Time", "America/Cayenne", "Argentina Standard Time", "America/Argentina/Buenos_Aires",
+            "Greenland Standard Time", "America/Godthab", "Montevideo Standard Time", "America/Montevideo",
+            "Magallanes Standard Time", "America/Punta_Arenas", "Saint Pierre Standard Time", "America/Miquelon",
+            "Bahia Standard Time", "America/Bahia", "UTC-02", "Etc/GMT+2", "Azores Standard Time", "Atlantic/Azores",
+            "Cape Verde Standard Time", "Atlantic/Cape_Verde", "UTC", "Etc/UTC",
+            "Morocco Standard Time", "Africa/Casablanca", "GMT Standard Time", "Europe/London",
+            "Greenwich Standard Time", "Atlantic/Reykjavik", "W. Europe Standard Time", "Europe/Berlin",
+            "Central Europe Standard Time", "Europe/Budapest", "Romance Standard Time", "Europe/Paris",
+            "Central European Standard Time", "Europe/Warsaw", "W. Central Africa Standard Time", "Africa/Lagos",
+            "Jordan Standard Time", "Asia/Amman", "GTB Standard Time", "Europe/Bucharest",
+            "Middle East Standard Time", "Asia/Beirut", "Egypt Standard Time", "Africa/Cairo",
+            "E. Europe Standard Time", "Europe/Chisinau", "Syria Standard Time", "Asia/Damascus",
+            "West Bank Standard Time", "Asia/Hebron", "South Africa Standard Time", "Africa/Johannesburg",
+            "FLE Standard Time", "Europe/Kiev", "Israel Standard Time", "Asia/Jerusalem",
+            "Kaliningrad Standard Time", "Europe/Kaliningrad", "Sudan Standard Time", "Africa/Khartoum",
+            "Libya Standard Time", "Africa/Tripoli", "Namibia Standard Time", "Africa/Windhoek",
+            "Arabic Standard Time", "Asia/Baghdad", "Turkey Standard Time", "Europe/Istanbul",
+            "Arab Standard Time", "Asia/Riyadh", "Belarus Standard Time", "Europe/Minsk",
+            "Russian Standard Time", "Europe/Moscow", "E. Africa Standard Time", "Africa/Nairobi",
+            "Iran Standard Time", "Asia/Tehran", "Arabian Standard Time", "Asia/Dubai",
+            "Astrakhan Standard Time", "Europe/Astrakhan", "Azerbaijan Standard Time", "Asia/Baku",
+            "Russia Time Zone 3", "Europe/Samara", "Mauritius Standard Time", "Indian/Mauritius",
+            "Saratov Standard Time", "Europe/Saratov", "Georgian Standard Time", "Asia/Tbilisi",
+            "Caucasus Standard Time", "Asia/Yerevan", "Afghanistan Standard Time", "Asia/Kabul",
+            "West Asia Standard Time", "Asia/Tashkent", "Ekaterinburg Standard Time", "Asia/Yekaterinburg",
+            "Pakistan Standard Time", "Asia/Karachi", "India Standard Time", "Asia/Kolkata",
+            "Sri Lanka Standard Time", "Asia/Colombo", "Nepal Standard Time", "Asia/Kathmandu",
+            "Central Asia Standard Time", "Asia/Almaty", "Bangladesh Standard Time", "Asia/Dhaka",
+            "Omsk Standard Time", "Asia/Omsk", "Myanmar Standard Time", "Asia/Yangon",
+            "SE Asia Standard Time", "Asia/Bangkok", "Altai Standard Time", "Asia/Barnaul",
+            "W. Mongolia Standard Time", "Asia/Hovd", "North Asia Standard Time", "Asia/Krasnoyarsk",
+            "N. Central Asia Standard Time", "Asia/Novosibirsk", "Tomsk Standard Time", "Asia/Tomsk",
+            "China Standard Time", "Asia/Shanghai", "North Asia East Standard Time", "Asia/Irkutsk",
+            "Singapore Standard Time", "Asia/Singapore", "W. Australia Standard Time", "Australia/Perth",
+            "Taipei Standard Time", "Asia/Taipei", "Ulaanbaatar Standard Time", "Asia/Ulaanbaatar",
+            "Aus Central W. Standard Time", "Australia/Eucla", "Transbaikal Standard Time", "Asia/Chita",
+            "Tokyo Standard Time", "Asia/Tokyo", "North Korea Standard Time", "Asia/Pyongyang",
+            "Korea Standard Time", "Asia/Seoul", "Yakutsk Standard Time", "Asia/Yakutsk",
+            "Cen. Australia Standard Time", "Australia/Adelaide", "AUS Central Standard Time", "Australia/Darwin",
+            "E. Australia Standard Time", "Australia/Brisbane", "AUS Eastern Standard Time", "Australia/Sydney",
+            "West Pacific Standard Time", "Pacific/Port_Moresby", "Tasmania Standard Time", "Australia/Hobart",
+            "Vladivostok Standard Time", "Asia/Vladivostok", "Lord Howe Standard Time", "Australia/Lord_Howe",
+            "Bougainville Standard Time", "Pacific/Bougainville", "Russia Time Zone 10", "Asia/Srednekolymsk",
+            "Magadan Standard Time", "Asia/Magadan", "Norfolk Standard Time", "Pacific/Norfolk",
+            "Sakhalin Standard Time", "Asia/Sakhalin", "Central Pacific Standard Time", "Pacific/Guadalcanal",
+            "Russia Time Zone 11", "Asia/Kamchatka", "New Zealand Standard Time", "Pacific/Auckland",
+            "UTC+12", "Etc/GMT-12", "Fiji Standard Time", "Pacific/Fiji",
+            "Chatham Islands Standard Time", "Pacific/Chatham", "UTC+13", "Etc/GMT-13",
+            "Tonga Standard Time", "Pacific/Tongatapu", "Samoa Standard Time", "Pacific/Apia",
+            "Line Islands Standard Time", "Pacific/Kiritimati"
+    };
+
+    private static final Map<String, String> windowsToZoneIds = new LinkedHashMap<String, String>();
+    private static final Map<String, String> zoneIdsToWindows = new HashMap<String, String>();
+
+    private static final ConcurrentMap<String, OMElement> timeZoneContextHeaders =
+            new ConcurrentHashMap<String, OMElement>();
+
+    static {
+        Set<String> availableZoneIds = ZoneId.getAvailableZoneIds();
+        for (int i = 0; i < WINDOWS_ZONES.length; i += 2) {
+            // zones newer than the tz data of the running jvm are left out
+            if (availableZoneIds.contains(WINDOWS_ZONES[i + 1])) {
+                windowsToZoneIds.put(WINDOWS_ZONES[i], WINDOWS_ZONES[i + 1]);
+                zoneIdsToWindows.put(WINDOWS_ZONES[i + 1], WINDOWS_ZONES[i]);
+            }
+        }
+    }
+
+    private EWSTimeZoneRegistry() {
+    }
+
+    /**
+     * Used to get the TimeZoneContext header block for a time zone id
+     *
+     * @param timeZoneId region based id such as Europe/London, a fixed offset such as +05:30 or a Windows time
+     *                   zone id such as GMT Standard Time
+     * @return shared header block, must not be attached to a message
+     * @throws DateTimeException when the id is not a known time zone or has no Windows equivalent
+     */
+    static OMElement getTimeZoneContextHeader(String timeZoneId) {
+        OMElement timeZoneContextHeader = timeZoneContextHeaders.get(timeZoneId);
+        if (timeZoneContextHeader == null) {
+            String zoneId = windowsToZoneIds.get(timeZoneId);
+            timeZoneContextHeader = buildTimeZoneContextHeader(ZoneId.of(zoneId == null ? timeZoneId : zoneId));
+            OMElement existing = timeZoneContextHeaders.putIfAbsent(timeZoneId, timeZoneContextHeader);
+            if (existing != null) {
+                timeZoneContextHeader = existing;
+            }
+        }
+        return timeZoneContextHeader;
+    }
+
+    /**
+     * Used to build <TimeZoneContext></TimeZoneContext> header block from the rules of a zone
+     *
+     * @param zoneId time zone
+     * @return header block
+     */
+    static OMElement buildTimeZoneContextHeader(ZoneId zoneId) {
+        ZoneRules rules = zoneId.getRules();
+        String windowsId = toWindowsId(zoneId);
+        List<ZoneOffsetTransitionRule> transitionRules = rules.getTransitionRules();
+        OMElement timeZoneContextHeader = soapFactory.createOMElement(EWSConstants.TIME_ZONE_CONTEXT_HEADER,
+                EWSUtils.type);
+        OMElement timeZoneDefinition = soapFactory.createOMElement(EWSConstants.TIME_ZONE_DEFINITION_HEADER,
+                EWSUtils.type, timeZoneContextHeader);
+        timeZoneDefinition.addAttribute(EWSConstants.ID_ATTRIBUTE, windowsId, null);
+        timeZoneDefinition.addAttribute(EWSConstants.NAME_ATTRIBUTE, zoneId.getDisplayName(TextStyle.FULL,
+                Locale.ENGLISH), null);
+
+        Map<String, ZoneOffset> periods = new LinkedHashMap<String, ZoneOffset>();
+        if (transitionRules.isEmpty()) {
+            periods.put(STANDARD_PERIOD, rules.getOffset(Instant.now()));
+        } else {
+            periods.put(STANDARD_PERIOD, transitionRules.get(0).getStandardOffset());
+            for (ZoneOffsetTransitionRule transitionRule : transitionRules) {
+                periods.put(periodName(transitionRule), transitionRule.getOffsetAfter());
+            }
+        }
+        OMElement periodsElement = soapFactory.createOMElement(EWSConstants.PERIODS_ELEMENT, EWSUtils.type,
+                timeZoneDefinition);
+        for (Map.Entry<String, ZoneOffset> period : periods.entrySet()) {
+            OMElement periodElement = soapFactory.createOMElement(EWSConstants.PERIOD_ELEMENT, EWSUtils.type,
+                    periodsElement);
+            periodElement.addAttribute(EWSConstants.BIAS_ATTRIBUTE, toDuration(-period.getValue().getTotalSeconds()),
+                    null);
+            periodElement.addAttribute(EWSConstants.NAME_ATTRIBUTE, period.getKey(), null);
+            periodElement.addAttribute(EWSConstants.ID_ATTRIBUTE, periodId(windowsId, period.getKey()), null);
+        }
+
+        OMElement transitionsGroups = soapFactory.createOMElement(EWSConstants.TRANSITIONS_GROUPS_ELEMENT,
+                EWSUtils.type, timeZoneDefinition);
+        OMElement transitionsGroup = soapFactory.createOMElement(EWSConstants.TRANSITIONS_GROUP_ELEMENT,
+                EWSUtils.type, transitionsGroups);
+        transitionsGroup.addAttribute(EWSConstants.ID_ATTRIBUTE, TRANSITIONS_GROUP_ID, null);
+        if (transitionRules.isEmpty()) {
+            OMElement transition = soapFactory.createOMElement(EWSConstants.TRANSITION_ELEMENT, EWSUtils.type,
+                    transitionsGroup);
+            addTo(transition, EWSConstants.PERIOD_KIND, periodId(windowsId, STANDARD_PERIOD));
+        } else {
+            for (ZoneOffsetTransitionRule transitionRule : transitionRules) {
+                addRecurringTransition(transitionsGroup, windowsId, transitionRule);
+            }
+        }
+
+        OMElement transitions = soapFactory.createOMElement(EWSConstants.TRANSITIONS_ELEMENT, EWSUtils.type,
+                timeZoneDefinition);
+        OMElement transition = soapFactory.createOMElement(EWSConstants.TRANSITION_ELEMENT, EWSUtils.type,
+                transitions);
+        addTo(transition, EWSConstants.GROUP_KIND, TRANSITIONS_GROUP_ID);
+        return timeZoneContextHeader;
+    }
+
+    /**
+     * Adds a RecurringDayTransition, or a RecurringDateTransition for rules on a fixed day of month. Rules such as
+     * "Sunday on or after the 2nd" have no exact EWS equivalent and are mapped to the occurrence of the week they
+     * start in; a day of month counted from the end of the month maps to the last occurrence.
+     */
+    private static void addRecurringTransition(OMElement transitionsGroup, String windowsId,
+                                               ZoneOffsetTransitionRule transitionRule) {
+        int dayOfMonth = transitionRule.getDayOfMonthIndicator();
+        boolean fixedDate = transitionRule.getDayOfWeek() == null && dayOfMonth > 0;
+        OMElement transition = soapFactory.createOMElement(fixedDate ? EWSConstants
+                .RECURRING_DATE_TRANSITION_ELEMENT : EWSConstants.RECURRING_DAY_TRANSITION_ELEMENT, EWSUtils.type,
+                transitionsGroup);
+        addTo(transition, EWSConstants.PERIOD_KIND, periodId(windowsId, periodName(transitionRule)));
+        addText(transition, EWSConstants.TIME_OFFSET_ELEMENT, toDuration(timeOffset(transitionRule)));
+        addText(transition, EWSConstants.MONTH_ELEMENT, String.valueOf(transitionRule.getMonth().getValue()));
+        if (fixedDate) {
+            addText(transition, EWSConstants.DAY_ELEMENT, String.valueOf(dayOfMonth));
+        } else {
+            String dayOfWeek = transitionRule.getDayOfWeek() == null ? "Day" : transitionRule.getDayOfWeek()
+                    .getDisplayName(TextStyle.FULL, Locale.ENGLISH);
+            addText(transition, EWSConstants.DAY_OF_WEEK_ELEMENT, dayOfWeek);
+            int occurrence = dayOfMonth < 0 || dayOfMonth > 22 ? -1 : (dayOfMonth + 6) / 7;
+            addText(transition, EWSConstants.OCCURRENCE_ELEMENT, String.valueOf(occurrence));
+        }
+    }
+
+    /**
+     * Time of day of the transition in the wall clock time in force before it, in seconds.
+     */
+    private static long timeOffset(ZoneOffsetTransitionRule transitionRule) {
+        LocalDateTime transitionTime = REFERENCE_DAY.with(transitionRule.getLocalTime());
+        if (transitionRule.isMidnightEndOfDay()) {
+            transitionTime = transitionTime.plusDays(1);
+        }
+        LocalDateTime wallTime = transitionRule.getTimeDefinition().createDateTime(transitionTime, transitionRule
+                .getStandardOffset(), transitionRule.getOffsetBefore());
+        return Duration.between(REFERENCE_DAY, wallTime).getSeconds();
+    }
+
+    private static String periodName(ZoneOffsetTransitionRule transitionRule) {
+        return transitionRule.getOffsetAfter().equals(transitionRule.getStandardOffset()) ? STANDARD_PERIOD :
+                DAYLIGHT_PERIOD;
+    }
+
+    private static String periodId(String windowsId, String periodName) {
+        return "trule:Microsoft/Registry/" + windowsId + "/" + periodName;
+    }
+
+    /**
+     * Used to get the Windows time zone id EWS knows a zone by
+     *
+     * @param zoneId time zone
+     * @return Windows time zone id
+     * @throws DateTimeException when no Windows time zone follows the rules of the zone
+     */
+    static String toWindowsId(ZoneId zoneId) {
+        String windowsId = zoneIdsToWindows.get(zoneId.getId());
+        if (windowsId != null) {
+            return windowsId;
+        }
+        ZoneRules rules = zoneId.getRules();
+        if (rules.isFixedOffset() && rules.getOffset(Instant.EPOCH).equals(ZoneOffset.UTC)) {
+            return UTC_WINDOWS_ID;
+        }
+        // named zones are preferred over the Etc/GMT fixed offsets sharing their rules
+        String fixedOffsetMatch = null;
+        Instant now = Instant.now();
+        for (Map.Entry<String, String> windowsZone : windowsToZoneIds.entrySet()) {
+            if (haveSameRules(rules, ZoneId.of(windowsZone.getValue()).getRules(), now)) {
+                if (!windowsZone.getValue().startsWith(FIXED_OFFSET_PREFIX)) {
+                    return windowsZone.getKey();
+                } else if (fixedOffsetMatch == null) {
+                    fixedOffsetMatch = windowsZone.getKey();
+                }
+            }
+        }
+        if (fixedOffsetMatch == null) {
+            throw new DateTimeException("No Windows time zone follows the rules of " + zoneId.getId());
+        }
+        return fixedOffsetMatch;
+    }
+
+    /**
+     * Used to get the Windows time zone ids known to the registry
+     *
+     * @return Windows time zone ids
+     */
+    static Set<String> getWindowsIds() {
+        return Collections.unmodifiableSet(windowsToZoneIds.keySet());
+    }
+
+    private static boolean haveSameRules(ZoneRules rules, ZoneRules other, Instant now) {
+        return rules.getTransitionRules().equals(other.getTransitionRules()) && rules.getStandardOffset(now)
+                .equals(other.getStandardOffset(now)) && rules.getOffset(now).equals(other.getOffset(now));
+    }
+
+    private static void addTo(OMElement transition, String kind, String target) {
+        OMElement to = soapFactory.createOMElement(EWSConstants.TO_ELEMENT, EWSUtils.type, transition);
+        to.addAttribute(EWSConstants.KIND_ATTRIBUTE, kind, null);
+        to.setText(target);
+    }
+
+    private static void addText(OMElement parent, String elementName, String value) {
+        soapFactory.createOMElement(elementName, EWSUtils.type, parent).setText(value);
+    }
+
+    /**
+     * Formats seconds as an xs:duration in hours and minutes, e.g. PT1H, -PT5H30M or PT0M.
+     */
+    static String toDuration(long seconds) {
+        long absolute = Math.abs(seconds);
+        long hours = absolute / 3600;
+        long minutes = (absolute % 3600) / 60;
+        StringBuilder duration = new StringBuilder();
+        if (seconds < 0) {
+            duration.append('-');
+        }
+        duration.append("PT");
+        if (hours > 0) {
+            duration.append(hours).append('H');
+        }
+        if (minutes > 0 || hours == 0) {
+            duration.append(minutes).append('M');
+        }
+        return duration.toString();
+    }
+}
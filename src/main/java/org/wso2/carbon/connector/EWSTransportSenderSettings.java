@@ -0,0 +1,178 @@
+/*
+*  Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+package org.wso2.carbon.connector;
+
+import org.apache.axiom.om.OMElement;
+import org.apache.axis2.context.ConfigurationContext;
+import org.apache.axis2.description.Parameter;
+import org.apache.axis2.description.TransportOutDescription;
+import org.apache.http.HttpHost;
+import org.apache.synapse.MessageContext;
+import org.apache.synapse.core.axis2.Axis2MessageContext;
+
+import javax.xml.namespace.QName;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads the settings of the transport sender of axis2.xml the endpoint of a connection pool was sent with before the
+ * connector had pools of its own: the proxy of http.proxyHost and http.proxyPort, and for https the keystore,
+ * truststore, HostnameVerifier, HttpsProtocols and PreferredCiphers. Sender settings the pool can't apply fail the
+ * configuration, so they are never silently ignored.
+ */
+final class EWSTransportSenderSettings {
+    private static final List<String> UNSUPPORTED_PARAMETERS = Arrays.asList("http.nonProxyHosts",
+            "customSSLProfiles", "dynamicSSLProfilesConfig");
+    private static final List<String> HOSTNAME_VERIFIERS = Arrays.asList("Default", "DefaultAndLocalHost", "Strict",
+            "AllowAll");
+    private static final String CERTIFICATE_REVOCATION_VERIFIER = "CertificateRevocationVerifier";
+
+    private EWSTransportSenderSettings() {
+    }
+
+    /**
+     * Used to apply the settings of the transport sender of the scheme of an endpoint to the settings of its pool
+     *
+     * @param messageContext messageContext of Request
+     * @param endpointUrl endpoint of the pool
+     * @param settings settings of the pool
+     * @throws IOException when the sender has a setting the pool can't apply
+     */
+    static void apply(MessageContext messageContext, String endpointUrl, EWSConnectionPool.Settings settings) throws
+            IOException {
+        if (!(messageContext instanceof Axis2MessageContext)) {
+            return;
+        }
+        ConfigurationContext configurationContext = ((Axis2MessageContext) messageContext).getAxis2MessageContext()
+                .getConfigurationContext();
+        if (configurationContext == null) {
+            return;
+        }
+        String scheme = endpointUrl.regionMatches(true, 0, "https:", 0, 6) ? "https" : "http";
+        TransportOutDescription sender = configurationContext.getAxisConfiguration().getTransportOut(scheme);
+        if (sender != null) {
+            apply(sender, settings);
+        }
+    }
+
+    /**
+     * Used to apply the settings of a transport sender to the settings of a pool
+     *
+     * @param sender http or https transport sender
+     * @param settings settings of the pool
+     * @throws IOException when the sender has a setting the pool can't apply
+     */
+    static void apply(TransportOutDescription sender, EWSConnectionPool.Settings settings) throws IOException {
+        String scheme = sender.getName();
+        for (String name : UNSUPPORTED_PARAMETERS) {
+            if (sender.getParameter(name) != null) {
+                throw unsupported(scheme, name);
+            }
+        }
+        OMElement revocationVerifier = element(sender, CERTIFICATE_REVOCATION_VERIFIER);
+        if (revocationVerifier != null && "true".equalsIgnoreCase(revocationVerifier.getAttributeValue(new QName(
+                "enable")))) {
+            throw unsupported(scheme, CERTIFICATE_REVOCATION_VERIFIER);
+        }
+        String proxyHost = text(sender, "http.proxyHost");
+        if (proxyHost != null) {
+            String proxyPort = text(sender, "http.proxyPort");
+            try {
+                settings.setProxy(new HttpHost(proxyHost, proxyPort == null ? 80 : Integer.parseInt(proxyPort)));
+            } catch (NumberFormatException e) {
+                throw new IOException("http.proxyPort of the " + scheme + " transport sender isn't a port: " +
+                        proxyPort, e);
+            }
+        }
+        if (!"https".equals(scheme)) {
+            return;
+        }
+        OMElement keyStore = element(sender, "keystore");
+        if (keyStore != null) {
+            settings.setKeyStore(store(keyStore, true));
+        }
+        OMElement trustStore = element(sender, "truststore");
+        if (trustStore != null) {
+            settings.setTrustStore(store(trustStore, false));
+        }
+        String hostnameVerifier = text(sender, "HostnameVerifier");
+        if (hostnameVerifier != null && !HOSTNAME_VERIFIERS.contains(hostnameVerifier)) {
+            throw new IOException("HostnameVerifier " + hostnameVerifier + " of the https transport sender isn't " +
+                    "one of " + HOSTNAME_VERIFIERS);
+        }
+        settings.setHostnameVerifier(hostnameVerifier)
+                .setProtocols(text(sender, "HttpsProtocols"))
+                .setCiphers(text(sender, "PreferredCiphers"));
+    }
+
+    private static IOException unsupported(String scheme, String name) {
+        return new IOException(name + " of the " + scheme + " transport sender of axis2.xml isn't supported by the " +
+                "EWS connection pool; remove it or use the JVM system properties instead");
+    }
+
+    /**
+     * Used to get a store of the element of a keystore or truststore parameter, whose relative location is resolved
+     * against carbon.home like the transport does
+     */
+    private static EWSConnectionPool.Store store(OMElement store, boolean keyStore) throws IOException {
+        String location = childText(store, "Location");
+        if (location == null) {
+            throw new IOException(store.getLocalName() + " of the https transport sender has no Location");
+        }
+        String carbonHome = System.getProperty("carbon.home");
+        if (carbonHome != null && !new File(location).isAbsolute()) {
+            location = new File(carbonHome, location).getPath();
+        }
+        return new EWSConnectionPool.Store(location, childText(store, "Type"), childText(store, "Password"),
+                keyStore ? childText(store, "KeyPassword") : null);
+    }
+
+    /**
+     * @return first child element of a parameter holding XML, e.g. the KeyStore element of keystore
+     */
+    private static OMElement element(TransportOutDescription sender, String name) {
+        Parameter parameter = sender.getParameter(name);
+        if (parameter == null) {
+            return null;
+        }
+        if (parameter.getParameterElement() != null) {
+            return parameter.getParameterElement().getFirstElement();
+        }
+        return parameter.getValue() instanceof OMElement ? (OMElement) parameter.getValue() : null;
+    }
+
+    private static String text(TransportOutDescription sender, String name) {
+        Parameter parameter = sender.getParameter(name);
+        if (parameter == null || parameter.getValue() == null) {
+            return null;
+        }
+        String value = parameter.getValue().toString().trim();
+        return value.isEmpty() ? null : value;
+    }
+
+    private static String childText(OMElement element, String name) {
+        OMElement child = element.getFirstChildWithName(new QName(name));
+        if (child == null) {
+            return null;
+        }
+        String value = child.getText().trim();
+        return value.isEmpty() ? null : value;
+    }
+}
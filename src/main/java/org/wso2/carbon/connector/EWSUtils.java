@@ -18,35 +18,52 @@
 package org.wso2.carbon.connector;
 
 import org.apache.axiom.om.OMAbstractFactory;
+import org.apache.axiom.om.OMAttribute;
+import org.apache.axiom.om.OMComment;
 import org.apache.axiom.om.OMElement;
 import org.apache.axiom.om.OMNamespace;
-import org.apache.axiom.om.impl.jaxp.OMSource;
+import org.apache.axiom.om.OMNode;
+import org.apache.axiom.om.OMText;
 import org.apache.axiom.om.util.AXIOMUtil;
+import org.apache.axiom.soap.SOAPEnvelope;
 import org.apache.axiom.soap.SOAPFactory;
+import org.apache.axiom.soap.SOAPHeader;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.apache.synapse.MessageContext;
+import org.apache.synapse.SynapseConstants;
+import org.apache.synapse.mediators.template.TemplateContext;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
 import org.wso2.carbon.connector.core.util.ConnectorUtils;
 import org.wso2.carbon.utils.xml.StringUtils;
 
 import javax.xml.namespace.QName;
 import javax.xml.stream.XMLStreamException;
-import javax.xml.transform.Source;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.stream.StreamResult;
-import javax.xml.transform.stream.StreamSource;
-import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Stack;
 
 /**
  * Utility functions for EWS Connector
  */
 class EWSUtils {
-    private static final String XSLT_FILE_LOCATION = "xslt/namespace.xslt";
+    private static final Log log = LogFactory.getLog(EWSUtils.class);
     private static SOAPFactory soapFactory = OMAbstractFactory.getSOAP11Factory();
     static OMNamespace type = soapFactory.createOMNamespace(EWSConstants.TYPE_NAME_SPACE, EWSConstants
             .TYPE_NAME_SPACE_HEADER);
     static OMNamespace message = soapFactory.createOMNamespace(EWSConstants.MESSAGES_NAME_SPACE, EWSConstants
             .MESSAGE_NAME_SPACE_HEADER);
+    private static final EWSHeaderCache headerCache = new EWSHeaderCache();
+    private static final String DEFAULT_EVENT_TYPES = "NewMailEvent,CreatedEvent,DeletedEvent,ModifiedEvent," +
+            "MovedEvent,CopiedEvent";
 
     /**
      * used to Create OmAttribute and set value
@@ -66,6 +83,24 @@ class EWSUtils {
         return false;
     }
 
+    /**
+     * Used to get all parameter values wired by the current template invocation
+     *
+     * @param messageContext messageContext of Request
+     * @return parameter values keyed by parameter name, null when no template context is available
+     */
+    @SuppressWarnings("unchecked")
+    static Map<String, Object> lookupTemplateParameters(MessageContext messageContext) {
+        Object functionStack = messageContext.getProperty(SynapseConstants.SYNAPSE__FUNCTION__STACK);
+        if (functionStack instanceof Stack && !((Stack) functionStack).isEmpty()) {
+            Object templateContext = ((Stack) functionStack).peek();
+            if (templateContext instanceof TemplateContext) {
+                return ((TemplateContext) templateContext).getMappedValues();
+            }
+        }
+        return null;
+    }
+
     /**
      * Used to populate complex Elements with name spaces
      *
@@ -73,14 +108,12 @@ class EWSUtils {
      * @param baseElement base Element to set element
      * @param parameterName parameter name as config
      * @throws XMLStreamException
-     * @throws TransformerException when transformation failed
      */
     static void populateDirectElements(MessageContext messageContext, OMElement baseElement, String
-            parameterName) throws XMLStreamException, TransformerException {
+            parameterName) throws XMLStreamException {
         String parametrisedValue = (String) ConnectorUtils.lookupTemplateParamater(messageContext, parameterName);
         if (!StringUtils.isEmpty(parametrisedValue)) {
-            OMElement element = AXIOMUtil.stringToOM(parametrisedValue);
-            baseElement.addChild(setNameSpaceForElements(element));
+            baseElement.addChild(EWSNamespaceRewriter.rewrite(parametrisedValue));
         }
     }
 
@@ -92,76 +125,17 @@ class EWSUtils {
      * @param parameterName parameter name as config
      * @param rootNameSpace nameSpace for Root Element
      * @throws XMLStreamException
-     * @throws TransformerException when transformation get failed
      */
     static void populateDirectElements(MessageContext messageContext, OMElement baseElement, String
-            parameterName, OMNamespace rootNameSpace) throws XMLStreamException, TransformerException {
+            parameterName, OMNamespace rootNameSpace) throws XMLStreamException {
         String parametrisedValue = (String) ConnectorUtils.lookupTemplateParamater(messageContext, parameterName);
         if (!StringUtils.isEmpty(parametrisedValue)) {
-            OMElement element = AXIOMUtil.stringToOM(parametrisedValue);
-            OMElement nameSpaceAwareElement = setNameSpaceForElements(element);
+            OMElement nameSpaceAwareElement = EWSNamespaceRewriter.rewrite(parametrisedValue);
             nameSpaceAwareElement.setNamespace(rootNameSpace);
             baseElement.addChild(nameSpaceAwareElement);
         }
     }
 
-    /**
-     * Used to populate <TimeZoneDefinition><TimeZoneDefinition/> element
-     *
-     * @param messageContext messageContext of Request
-     * @param timeZoneContextHeader timezoneContext Header Omelement
-     * @throws XMLStreamException
-     * @throws TransformerException when transformation get failed
-     */
-    private static void populateTimeZoneDefinitionHeader(MessageContext messageContext, OMElement
-            timeZoneContextHeader) throws XMLStreamException, TransformerException {
-        String timeZoneDefinitionObject = (String) ConnectorUtils.lookupTemplateParamater(messageContext,
-                EWSConstants.TIME_ZONE_DEFINITION);
-        OMElement timezoneDefinitionSoapElement = soapFactory.createOMElement(EWSConstants
-                .TIME_ZONE_DEFINITION_HEADER, type);
-        if (!StringUtils.isEmpty(timeZoneDefinitionObject)) {
-            OMElement timezoneDefinitionElement = AXIOMUtil.stringToOM(timeZoneDefinitionObject);
-            OMElement idElement = timezoneDefinitionElement.getFirstChildWithName(new QName(EWSConstants.ID_ATTRIBUTE));
-            if (idElement != null) {
-                timezoneDefinitionSoapElement.addAttribute(soapFactory.createOMAttribute(EWSConstants.ID_ATTRIBUTE,
-                        null, idElement.getText()));
-            }
-            OMElement nameElement = timezoneDefinitionElement.getFirstChildWithName(new QName(EWSConstants
-                    .NAME_ATTRIBUTE));
-            if (nameElement != null) {
-                timezoneDefinitionSoapElement.addAttribute(soapFactory.createOMAttribute(EWSConstants.NAME_ATTRIBUTE,
-                        null, nameElement.getText()));
-            }
-        }
-        populateDirectElements(messageContext, timezoneDefinitionSoapElement, EWSConstants.PERIODS);
-        populateDirectElements(messageContext, timezoneDefinitionSoapElement, EWSConstants.TRANSITION_GROUPS);
-        populateDirectElements(messageContext, timezoneDefinitionSoapElement, EWSConstants.TRANSITIONS);
-        if (timezoneDefinitionSoapElement.getChildElements().hasNext()) {
-            timeZoneContextHeader.addChild(timezoneDefinitionSoapElement);
-        }
-    }
-
-    /**
-     * used to populate <ExchangeImpersonation><ExchangeImpersonation/> element
-     *
-     * @param exchangeImpersonationSoapHeaderBlock <ExchangeImpersonation> root Element
-     * @param messageContext messageContext of Request
-     */
-    private static void populateExchangeImpersonation(OMElement exchangeImpersonationSoapHeaderBlock,
-                                                      MessageContext messageContext) {
-        OMElement connectingSidOmElement = soapFactory.createOMElement(EWSConstants.CONNECTING_SID, type);
-        setValueToXMLElement(messageContext, EWSConstants.PRINCIPAL_NAME, connectingSidOmElement, EWSConstants
-                .PRINCIPAL_NAME_ELEMENT);
-        setValueToXMLElement(messageContext, EWSConstants.SID, connectingSidOmElement, EWSConstants.SID_ELEMENT);
-        setValueToXMLElement(messageContext, EWSConstants.PRIMARY_SMTP_ADDRESS, connectingSidOmElement, EWSConstants
-                .PRIMARY_SMTP_ADDRESS_ELEMENT);
-        setValueToXMLElement(messageContext, EWSConstants.SMTP_ADDRESS, connectingSidOmElement, EWSConstants
-                .SMTP_ADDRESS_ELEMENT);
-        if (connectingSidOmElement.getChildElements().hasNext()) {
-            exchangeImpersonationSoapHeaderBlock.addChild(connectingSidOmElement);
-        }
-    }
-
     /**
      * Used to set OmElement value from connector configuration
      *
@@ -180,41 +154,15 @@ class EWSUtils {
         }
     }
 
-    /**
-     * Used to set OmElement value from connector configuration
-     *
-     * @param messageContext messageContext of Request
-     * @param templateParameter template parameter name
-     * @param rootElement rootElement to set Attribute
-     */
-    private static boolean setValueToXMLElement(MessageContext messageContext, OMElement rootElement, String
-            templateParameter) {
-        String value = (String) ConnectorUtils.lookupTemplateParamater(messageContext, templateParameter);
-        if (!StringUtils.isEmpty(value)) {
-            rootElement.setText(value);
-            return true;
-        }
-        return false;
-    }
-
     /**
      * used to set namespace to Elements.
      *
      * @param element element to set nameSpaces
      * @return return namespace set OmElement
-     * @throws TransformerException when transformation failed
      * @throws XMLStreamException
      */
-    static OMElement setNameSpaceForElements(OMElement element) throws TransformerException, XMLStreamException {
-        Source xmlSource = new OMSource(element);
-        StreamSource xsltSource = new StreamSource(EWSUtils.class.getClassLoader().getResourceAsStream
-                (XSLT_FILE_LOCATION));
-        TransformerFactory factory = TransformerFactory.newInstance();
-        Transformer transformer = factory.newTransformer(xsltSource);
-        ByteArrayOutputStream output = new ByteArrayOutputStream();
-        StreamResult result = new StreamResult(output);
-        transformer.transform(xmlSource, result);
-        return AXIOMUtil.stringToOM(new String(output.toByteArray()));
+    static OMElement setNameSpaceForElements(OMElement element) throws XMLStreamException {
+        return EWSNamespaceRewriter.rewrite(element);
     }
 
     /**
@@ -223,10 +171,8 @@ class EWSUtils {
      * @param messageContext messageContext of Request
      * @return ItemIds OmElement
      * @throws XMLStreamException
-     * @throws TransformerException when transformation failed
      */
-    static OMElement populateItemIds(MessageContext messageContext) throws XMLStreamException,
-            TransformerException {
+    static OMElement populateItemIds(MessageContext messageContext) throws XMLStreamException {
         OMElement itemIdsElement = soapFactory.createOMElement(EWSConstants.ITEM_IDS, message);
         OMElement itemIdElement = AXIOMUtil.stringToOM((String) ConnectorUtils.lookupTemplateParamater
                 (messageContext, EWSConstants.ITEM_ID));
@@ -305,10 +251,28 @@ class EWSUtils {
      * @param baseElement base Element to set element
      * @return true if element is available
      * @throws XMLStreamException
-     * @throws TransformerException when transformation failed
      */
     static boolean populateSaveItemFolderIdElement(MessageContext messageContext, OMElement baseElement) throws
-            XMLStreamException, TransformerException {
+            XMLStreamException {
+        return populateFolderIdElement(messageContext, baseElement, true);
+    }
+
+    /**
+     * used to populate <SyncFolderId></SyncFolderId> element, which also takes a DistinguishedFolderId without a
+     * Mailbox
+     *
+     * @param messageContext messageContext of Request
+     * @param baseElement base Element to set element
+     * @return true if element is available
+     * @throws XMLStreamException
+     */
+    static boolean populateSyncFolderIdElement(MessageContext messageContext, OMElement baseElement) throws
+            XMLStreamException {
+        return populateFolderIdElement(messageContext, baseElement, false);
+    }
+
+    private static boolean populateFolderIdElement(MessageContext messageContext, OMElement baseElement, boolean
+            mailboxRequired) throws XMLStreamException {
         String folderIdString = (String) ConnectorUtils.lookupTemplateParamater(messageContext, EWSConstants.FOLDER_ID);
         if (!StringUtils.isEmpty(folderIdString)) {
             OMElement folderIdElement = soapFactory.createOMElement(EWSConstants.FOLDER_ID_ELEMENT, type);
@@ -341,8 +305,8 @@ class EWSUtils {
             }
         }
         EWSUtils.populateDirectElements(messageContext, distinguishedFolderIdOmElement, EWSConstants.MAIL_BOX);
-        if (distinguishedFolderIdOmElement.getChildElements().hasNext() && distinguishedFolderIdOmElement
-                .getAllAttributes().hasNext()) {
+        if ((distinguishedFolderIdOmElement.getChildElements().hasNext() || !mailboxRequired) &&
+                distinguishedFolderIdOmElement.getAllAttributes().hasNext()) {
             baseElement.addChild(distinguishedFolderIdOmElement);
         }
         OMElement addressListIdElement = soapFactory.createOMElement(EWSConstants.ADDRESS_LIST_ID_ELEMENT, type);
@@ -360,10 +324,8 @@ class EWSUtils {
      * @param messageContext messageContext of Request
      * @return ItemShape OmElement
      * @throws XMLStreamException
-     * @throws TransformerException when transformation failed
      */
-    static OMElement populateItemShape(MessageContext messageContext) throws XMLStreamException,
-            TransformerException {
+    static OMElement populateItemShape(MessageContext messageContext) throws XMLStreamException {
         OMElement itemShapeElement = soapFactory.createOMElement(EWSConstants.ITEM_SHAPE, message);
         setValueToXMLElement(messageContext, EWSConstants.BASE_SHAPE, itemShapeElement, EWSConstants
                 .BASE_SHAPE_ELEMENT);
@@ -387,8 +349,7 @@ class EWSUtils {
         String additionalProperties = (String) ConnectorUtils.lookupTemplateParamater(messageContext, EWSConstants
                 .ADDITIONAL_PROPERTIES);
         if (!StringUtils.isEmpty(additionalProperties)) {
-            OMElement additionalPropertiesElement = AXIOMUtil.stringToOM(additionalProperties);
-            itemShapeElement.addChild(setNameSpaceForElements(additionalPropertiesElement));
+            itemShapeElement.addChild(EWSNamespaceRewriter.rewrite(additionalProperties));
         }
         return itemShapeElement;
     }
@@ -398,19 +359,39 @@ class EWSUtils {
      *
      * @param soapHeader soapHeader omElement
      * @param messageContext messageContext of Request
-     * @throws TransformerException when transformation failed
      * @throws XMLStreamException
      */
     static void populateManagementRolesHeader(OMElement soapHeader, MessageContext messageContext) throws
-            TransformerException, XMLStreamException {
-        OMElement managementRoleHeader = soapFactory.createOMElement(EWSConstants.MANAGEMENT_ROLES_HEADER, type);
-        EWSUtils.populateDirectElements(messageContext, managementRoleHeader, EWSConstants.USER_ROLES);
-        EWSUtils.populateDirectElements(messageContext, managementRoleHeader, EWSConstants.APPLICATION_ROLES);
-        if (managementRoleHeader.getChildElements().hasNext()) {
-            soapHeader.addChild(managementRoleHeader);
+            XMLStreamException {
+        String userRoles = (String) ConnectorUtils.lookupTemplateParamater(messageContext, EWSConstants.USER_ROLES);
+        String applicationRoles = (String) ConnectorUtils.lookupTemplateParamater(messageContext, EWSConstants
+                .APPLICATION_ROLES);
+        if (StringUtils.isEmpty(userRoles) && StringUtils.isEmpty(applicationRoles)) {
+            return;
+        }
+        EWSHeaderCache.Key key = new EWSHeaderCache.Key(EWSConstants.MANAGEMENT_ROLES_HEADER, userRoles,
+                applicationRoles);
+        if (!headerCache.copyTo(key, soapHeader)) {
+            addHeader(soapHeader, key, buildManagementRolesHeader(userRoles, applicationRoles));
         }
     }
 
+    /**
+     * used to build <ManagementRole></ManagementRole> header block
+     *
+     * @param userRoles UserRoles xml fragment
+     * @param applicationRoles ApplicationRoles xml fragment
+     * @return header block, null if neither roles are given
+     * @throws XMLStreamException
+     */
+    static OMElement buildManagementRolesHeader(String userRoles, String applicationRoles) throws
+            XMLStreamException {
+        OMElement managementRoleHeader = soapFactory.createOMElement(EWSConstants.MANAGEMENT_ROLES_HEADER, type);
+        addDirectElement(managementRoleHeader, userRoles);
+        addDirectElement(managementRoleHeader, applicationRoles);
+        return managementRoleHeader.getChildElements().hasNext() ? managementRoleHeader : null;
+    }
+
     /**
      * used to populate <DateTimePrecision></DateTimePrecision> element
      *
@@ -428,20 +409,77 @@ class EWSUtils {
     }
 
     /**
-     * used to populate <TimeZoneContext></TimeZoneContext> element
+     * used to populate <TimeZoneContext></TimeZoneContext> element, generated from the zone rules when a
+     * timeZoneId is given and from the timeZoneDefinition, periods, transitionsGroups and transitions fragments
+     * otherwise
      *
      * @param soapHeader soapHeader omElement
      * @param messageContext messageContext of Request
-     * @throws TransformerException when transformation failed
      * @throws XMLStreamException
      */
     static void populateTimeZoneContextHeader(OMElement soapHeader, MessageContext messageContext) throws
-            TransformerException, XMLStreamException {
-        OMElement timeZoneContextHeader = soapFactory.createOMElement(EWSConstants.TIME_ZONE_CONTEXT_HEADER, type);
-        populateTimeZoneDefinitionHeader(messageContext, timeZoneContextHeader);
-        if (timeZoneContextHeader.getChildElements().hasNext()) {
-            soapHeader.addChild(timeZoneContextHeader);
+            XMLStreamException {
+        String timeZoneId = (String) ConnectorUtils.lookupTemplateParamater(messageContext, EWSConstants.TIME_ZONE_ID);
+        if (!StringUtils.isEmpty(timeZoneId)) {
+            copyElement(EWSTimeZoneRegistry.getTimeZoneContextHeader(timeZoneId), soapHeader);
+            return;
+        }
+        String timeZoneDefinition = (String) ConnectorUtils.lookupTemplateParamater(messageContext, EWSConstants
+                .TIME_ZONE_DEFINITION);
+        String periods = (String) ConnectorUtils.lookupTemplateParamater(messageContext, EWSConstants.PERIODS);
+        String transitionsGroups = (String) ConnectorUtils.lookupTemplateParamater(messageContext, EWSConstants
+                .TRANSITION_GROUPS);
+        String transitions = (String) ConnectorUtils.lookupTemplateParamater(messageContext, EWSConstants
+                .TRANSITIONS);
+        if (StringUtils.isEmpty(periods) && StringUtils.isEmpty(transitionsGroups) && StringUtils.isEmpty
+                (transitions)) {
+            return;
+        }
+        EWSHeaderCache.Key key = new EWSHeaderCache.Key(EWSConstants.TIME_ZONE_CONTEXT_HEADER, timeZoneDefinition,
+                periods, transitionsGroups, transitions);
+        if (!headerCache.copyTo(key, soapHeader)) {
+            addHeader(soapHeader, key, buildTimeZoneContextHeader(timeZoneDefinition, periods, transitionsGroups,
+                    transitions));
+        }
+    }
+
+    /**
+     * used to build <TimeZoneContext></TimeZoneContext> header block
+     *
+     * @param timeZoneDefinition TimeZoneDefinition xml fragment holding Id and Name
+     * @param periods Periods xml fragment
+     * @param transitionsGroups TransitionsGroups xml fragment
+     * @param transitions Transitions xml fragment
+     * @return header block, null if the time zone definition has no child elements
+     * @throws XMLStreamException
+     */
+    static OMElement buildTimeZoneContextHeader(String timeZoneDefinition, String periods, String
+            transitionsGroups, String transitions) throws XMLStreamException {
+        OMElement timezoneDefinitionSoapElement = soapFactory.createOMElement(EWSConstants
+                .TIME_ZONE_DEFINITION_HEADER, type);
+        if (!StringUtils.isEmpty(timeZoneDefinition)) {
+            OMElement timezoneDefinitionElement = AXIOMUtil.stringToOM(timeZoneDefinition);
+            OMElement idElement = timezoneDefinitionElement.getFirstChildWithName(new QName(EWSConstants.ID_ATTRIBUTE));
+            if (idElement != null) {
+                timezoneDefinitionSoapElement.addAttribute(soapFactory.createOMAttribute(EWSConstants.ID_ATTRIBUTE,
+                        null, idElement.getText()));
+            }
+            OMElement nameElement = timezoneDefinitionElement.getFirstChildWithName(new QName(EWSConstants
+                    .NAME_ATTRIBUTE));
+            if (nameElement != null) {
+                timezoneDefinitionSoapElement.addAttribute(soapFactory.createOMAttribute(EWSConstants.NAME_ATTRIBUTE,
+                        null, nameElement.getText()));
+            }
         }
+        addDirectElement(timezoneDefinitionSoapElement, periods);
+        addDirectElement(timezoneDefinitionSoapElement, transitionsGroups);
+        addDirectElement(timezoneDefinitionSoapElement, transitions);
+        if (!timezoneDefinitionSoapElement.getChildElements().hasNext()) {
+            return null;
+        }
+        OMElement timeZoneContextHeader = soapFactory.createOMElement(EWSConstants.TIME_ZONE_CONTEXT_HEADER, type);
+        timeZoneContextHeader.addChild(timezoneDefinitionSoapElement);
+        return timeZoneContextHeader;
     }
 
     /**
@@ -449,17 +487,33 @@ class EWSUtils {
      *
      * @param soapHeader soapHeader omElement
      * @param messageContext messageContext of Request
-     * @throws TransformerException when transformation failed
      * @throws XMLStreamException
      */
     static void populateRequestedServerVersionHeader(OMElement soapHeader, MessageContext messageContext) throws
-            TransformerException, XMLStreamException {
+            XMLStreamException {
+        String version = (String) ConnectorUtils.lookupTemplateParamater(messageContext, EWSConstants
+                .REQUESTED_SERVER_VERSION);
+        if (StringUtils.isEmpty(version)) {
+            return;
+        }
+        EWSHeaderCache.Key key = new EWSHeaderCache.Key(EWSConstants.REQUESTED_SERVER_VERSION_HEADER, version);
+        if (!headerCache.copyTo(key, soapHeader)) {
+            addHeader(soapHeader, key, buildRequestedServerVersionHeader(version));
+        }
+    }
+
+    /**
+     * used to build <RequestServerVersion></RequestServerVersion> header block
+     *
+     * @param version requested server version
+     * @return header block
+     */
+    static OMElement buildRequestedServerVersionHeader(String version) {
         OMElement requestedServerVersionHeader = soapFactory.createOMElement(EWSConstants
                 .REQUESTED_SERVER_VERSION_HEADER, type);
-        if (EWSUtils.setValueToXMLAttribute(messageContext, requestedServerVersionHeader, EWSConstants
-                .REQUESTED_SERVER_VERSION, EWSConstants.VERSION_ATTRIBUTE)) {
-            soapHeader.addChild(requestedServerVersionHeader);
-        }
+        requestedServerVersionHeader.addAttribute(soapFactory.createOMAttribute(EWSConstants.VERSION_ATTRIBUTE, null,
+                version));
+        return requestedServerVersionHeader;
     }
 
     /**
@@ -469,12 +523,28 @@ class EWSUtils {
      * @param messageContext messageContext of Request
      */
     static void populateMailboxCulture(OMElement soapHeader, MessageContext messageContext) {
-        OMElement mailBoxCultureHeader = soapFactory.createOMElement(EWSConstants.MAIL_BOX_CULTURE_HEADER, type);
-        if (setValueToXMLElement(messageContext, mailBoxCultureHeader, EWSConstants.MAIL_BOX_CULTURE)) {
-            soapHeader.addChild(mailBoxCultureHeader);
+        String culture = (String) ConnectorUtils.lookupTemplateParamater(messageContext, EWSConstants.MAIL_BOX_CULTURE);
+        if (StringUtils.isEmpty(culture)) {
+            return;
+        }
+        EWSHeaderCache.Key key = new EWSHeaderCache.Key(EWSConstants.MAIL_BOX_CULTURE_HEADER, culture);
+        if (!headerCache.copyTo(key, soapHeader)) {
+            addHeader(soapHeader, key, buildMailboxCultureHeader(culture));
         }
     }
 
+    /**
+     * used to build <MailBoxCulture></MailBoxCulture> header block
+     *
+     * @param culture mailbox culture
+     * @return header block
+     */
+    static OMElement buildMailboxCultureHeader(String culture) {
+        OMElement mailBoxCultureHeader = soapFactory.createOMElement(EWSConstants.MAIL_BOX_CULTURE_HEADER, type);
+        mailBoxCultureHeader.setText(culture);
+        return mailBoxCultureHeader;
+    }
+
     /**
      * used to populate <ExchangeImpersonationHeader></ExchangeImpersonationHeader> element
      *
@@ -482,12 +552,481 @@ class EWSUtils {
      * @param messageContext messageContext of Request
      */
     static void populateExchangeImpersonationHeader(OMElement soapHeader, MessageContext messageContext) {
+        String principalName = (String) ConnectorUtils.lookupTemplateParamater(messageContext, EWSConstants
+                .PRINCIPAL_NAME);
+        String sid = (String) ConnectorUtils.lookupTemplateParamater(messageContext, EWSConstants.SID);
+        String primarySmtpAddress = (String) ConnectorUtils.lookupTemplateParamater(messageContext, EWSConstants
+                .PRIMARY_SMTP_ADDRESS);
+        String smtpAddress = (String) ConnectorUtils.lookupTemplateParamater(messageContext, EWSConstants
+                .SMTP_ADDRESS);
+        if (StringUtils.isEmpty(principalName) && StringUtils.isEmpty(sid) && StringUtils.isEmpty
+                (primarySmtpAddress) && StringUtils.isEmpty(smtpAddress)) {
+            return;
+        }
+        EWSHeaderCache.Key key = new EWSHeaderCache.Key(EWSConstants.EXCHANGE_IMPERSONATION_HEADER, principalName,
+                sid, primarySmtpAddress, smtpAddress);
+        if (!headerCache.copyTo(key, soapHeader)) {
+            addHeader(soapHeader, key, buildExchangeImpersonationHeader(principalName, sid, primarySmtpAddress,
+                    smtpAddress));
+        }
+    }
+
+    /**
+     * used to build <ExchangeImpersonationHeader></ExchangeImpersonationHeader> header block
+     *
+     * @param principalName principal name of the impersonated account
+     * @param sid sid of the impersonated account
+     * @param primarySmtpAddress primary smtp address of the impersonated account
+     * @param smtpAddress smtp address of the impersonated account
+     * @return header block, null if none of the values are given
+     */
+    static OMElement buildExchangeImpersonationHeader(String principalName, String sid, String primarySmtpAddress,
+                                                      String smtpAddress) {
+        OMElement connectingSidOmElement = soapFactory.createOMElement(EWSConstants.CONNECTING_SID, type);
+        addTextElement(connectingSidOmElement, EWSConstants.PRINCIPAL_NAME_ELEMENT, principalName);
+        addTextElement(connectingSidOmElement, EWSConstants.SID_ELEMENT, sid);
+        addTextElement(connectingSidOmElement, EWSConstants.PRIMARY_SMTP_ADDRESS_ELEMENT, primarySmtpAddress);
+        addTextElement(connectingSidOmElement, EWSConstants.SMTP_ADDRESS_ELEMENT, smtpAddress);
+        if (!connectingSidOmElement.getChildElements().hasNext()) {
+            return null;
+        }
         OMElement exchangeImpersonationSoapHeaderBlock = soapFactory.createOMElement(EWSConstants
                 .EXCHANGE_IMPERSONATION_HEADER, type);
-        EWSUtils.populateExchangeImpersonation(exchangeImpersonationSoapHeaderBlock, messageContext);
-        if (exchangeImpersonationSoapHeaderBlock.getChildElements().hasNext()) {
-            soapHeader.addChild(exchangeImpersonationSoapHeaderBlock);
+        exchangeImpersonationSoapHeaderBlock.addChild(connectingSidOmElement);
+        return exchangeImpersonationSoapHeaderBlock;
+    }
+
+    /**
+     * Used to get the account a request is sent as through Exchange Impersonation, as resolved by
+     * populateExchangeImpersonationHeader
+     *
+     * @param request request envelope
+     * @return name and value of the first ConnectingSID element, e.g. PrimarySmtpAddress:user@example.com, null when
+     * the request doesn't impersonate an account
+     */
+    static String getImpersonatedAccount(SOAPEnvelope request) {
+        SOAPHeader soapHeader = request.getHeader();
+        OMElement impersonation = soapHeader == null ? null : soapHeader.getFirstChildWithName(new QName(EWSConstants
+                .TYPE_NAME_SPACE, EWSConstants.EXCHANGE_IMPERSONATION_HEADER));
+        OMElement connectingSid = impersonation == null ? null : impersonation.getFirstElement();
+        OMElement account = connectingSid == null ? null : connectingSid.getFirstElement();
+        if (account == null) {
+            return null;
         }
+        return account.getLocalName() + ':' + account.getText().trim().toLowerCase();
+    }
+
+    /**
+     * Used to get the cache holding prebuilt soap header blocks
+     *
+     * @return header cache
+     */
+    static EWSHeaderCache getHeaderCache() {
+        return headerCache;
+    }
+
+    /**
+     * Used to copy an element, with its namespaces, attributes, text and comments, below the given parent
+     *
+     * @param source element to copy
+     * @param parent parent of the copy
+     * @return copied element
+     */
+    static OMElement copyElement(OMElement source, OMElement parent) {
+        OMElement target = soapFactory.createOMElement(source.getLocalName(), source.getNamespace(), parent);
+        for (Iterator namespaces = source.getAllDeclaredNamespaces(); namespaces.hasNext(); ) {
+            OMNamespace namespace = (OMNamespace) namespaces.next();
+            target.declareNamespace(namespace.getNamespaceURI(), namespace.getPrefix());
+        }
+        for (Iterator attributes = source.getAllAttributes(); attributes.hasNext(); ) {
+            OMAttribute attribute = (OMAttribute) attributes.next();
+            target.addAttribute(attribute.getLocalName(), attribute.getAttributeValue(), attribute.getNamespace());
+        }
+        for (Iterator children = source.getChildren(); children.hasNext(); ) {
+            OMNode child = (OMNode) children.next();
+            if (child instanceof OMElement) {
+                copyElement((OMElement) child, target);
+            } else if (child instanceof OMText) {
+                soapFactory.createOMText(target, ((OMText) child).getText());
+            } else if (child instanceof OMComment) {
+                soapFactory.createOMComment(target, ((OMComment) child).getValue());
+            }
+        }
+        return target;
+    }
+
+    /**
+     * used to read an integer template parameter
+     *
+     * @param messageContext messageContext of Request
+     * @param templateParameter template parameter name
+     * @param defaultValue value used when the parameter is missing or not a number
+     * @return parameter value
+     */
+    static int lookupIntParameter(MessageContext messageContext, String templateParameter, int defaultValue) {
+        String value = (String) ConnectorUtils.lookupTemplateParamater(messageContext, templateParameter);
+        if (StringUtils.isEmpty(value)) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            log.warn("Invalid " + templateParameter + " " + value + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * used to read a long template parameter
+     *
+     * @param messageContext messageContext of Request
+     * @param templateParameter template parameter name
+     * @param defaultValue value used when the parameter is missing or not a number
+     * @return parameter value
+     */
+    static long lookupLongParameter(MessageContext messageContext, String templateParameter, long defaultValue) {
+        String value = (String) ConnectorUtils.lookupTemplateParamater(messageContext, templateParameter);
+        if (StringUtils.isEmpty(value)) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            log.warn("Invalid " + templateParameter + " " + value + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * used to parse a list of ids, given either as a JSON array of strings or objects, e.g.
+     * [{"Id":"..","ChangeKey":".."}], or as XML, e.g. &lt;itemId&gt;&lt;Id&gt;..&lt;/Id&gt;&lt;ChangeKey&gt;..
+     * &lt;/ChangeKey&gt;&lt;/itemId&gt; repeated or wrapped in a single list element. Ids may also be given as
+     * attributes of an element, or as the text of &lt;Id&gt; elements.
+     *
+     * @param idList id list
+     * @return one map of attribute name to value per id, in list order
+     * @throws XMLStreamException when the XML list couldn't be parsed
+     * @throws JSONException when the JSON list couldn't be parsed
+     */
+    static List<Map<String, String>> parseIdList(String idList) throws XMLStreamException, JSONException {
+        List<Map<String, String>> ids = new ArrayList<Map<String, String>>();
+        String trimmed = idList.trim();
+        if (trimmed.startsWith("[")) {
+            JSONArray array = new JSONArray(trimmed);
+            for (int i = 0; i < array.length(); i++) {
+                Map<String, String> id = new LinkedHashMap<String, String>();
+                Object entry = array.get(i);
+                if (entry instanceof JSONObject) {
+                    JSONObject object = (JSONObject) entry;
+                    for (Iterator keys = object.keys(); keys.hasNext(); ) {
+                        String key = (String) keys.next();
+                        id.put(capitalize(key), object.getString(key));
+                    }
+                } else {
+                    id.put(EWSConstants.ID_ATTRIBUTE, entry.toString());
+                }
+                ids.add(id);
+            }
+        } else {
+            collectIds(AXIOMUtil.stringToOM("<ids>" + trimmed + "</ids>"), ids);
+        }
+        return ids;
+    }
+
+    /**
+     * used to parse a list of parameter sets, such as message definitions, given either as a JSON array of objects
+     * keyed by template parameter name, or as XML elements, one per set, whose children are named after the
+     * template parameters. A child holding a single element, e.g. &lt;toRecipients&gt;&lt;ToRecipients&gt;..
+     * &lt;/ToRecipients&gt;&lt;/toRecipients&gt;, has that element as its value; a child holding several elements,
+     * e.g. &lt;body&gt;&lt;BodyType&gt;..&lt;/BodyType&gt;&lt;Content&gt;..&lt;/Content&gt;&lt;/body&gt;, is
+     * itself the value; any other child has its text as the value.
+     * <p>
+     * A JSON object value follows the same rules, with its keys as element names, "@" prefixed keys as attributes,
+     * the "#text" key as text content and array values as repeated elements, e.g.
+     * {"toRecipients": {"ToRecipients": {"Mailbox": [{"EmailAddress": ".."}]}}} or
+     * {"body": {"BodyType": "Text", "Content": ".."}}. A JSON string value is taken as it is, so it may still hold
+     * an XML fragment.
+     *
+     * @param parameterList parameter list
+     * @return one map of template parameter name to value per set, in list order
+     * @throws XMLStreamException when the XML list couldn't be parsed
+     * @throws JSONException when the JSON list couldn't be parsed or a parameter value is a JSON array
+     */
+    static List<Map<String, Object>> parseParameterList(String parameterList) throws XMLStreamException,
+            JSONException {
+        List<Map<String, Object>> parameterSets = new ArrayList<Map<String, Object>>();
+        String trimmed = parameterList.trim();
+        if (trimmed.startsWith("[")) {
+            JSONTokener tokener = new JSONTokener(trimmed);
+            Object array = readJson(tokener);
+            if (tokener.nextClean() != 0) {
+                throw tokener.syntaxError("Unexpected text after the parameter list");
+            }
+            for (Object entry : (List<?>) array) {
+                if (!(entry instanceof Map)) {
+                    throw new JSONException("Each parameter set must be a JSON object");
+                }
+                Map<String, Object> parameters = new LinkedHashMap<String, Object>();
+                for (Map.Entry<?, ?> parameter : ((Map<?, ?>) entry).entrySet()) {
+                    String key = (String) parameter.getKey();
+                    parameters.put(key, parameterValue(key, parameter.getValue()));
+                }
+                parameterSets.add(parameters);
+            }
+        } else {
+            OMElement list = AXIOMUtil.stringToOM("<list>" + trimmed + "</list>");
+            for (Iterator sets = list.getChildElements(); sets.hasNext(); ) {
+                Map<String, Object> parameters = new LinkedHashMap<String, Object>();
+                for (Iterator children = ((OMElement) sets.next()).getChildElements(); children.hasNext(); ) {
+                    OMElement parameter = (OMElement) children.next();
+                    OMElement first = parameter.getFirstElement();
+                    if (first == null) {
+                        parameters.put(parameter.getLocalName(), parameter.getText());
+                    } else if (!hasSiblingElement(first)) {
+                        parameters.put(parameter.getLocalName(), first.toString());
+                    } else {
+                        parameters.put(parameter.getLocalName(), parameter.toString());
+                    }
+                }
+                parameterSets.add(parameters);
+            }
+        }
+        return parameterSets;
+    }
+
+    /**
+     * used to read a JSON value keeping the key order of its objects, which JSONObject doesn't, as the order of
+     * the elements converted from them matters to EWS
+     *
+     * @param tokener tokener positioned before the value
+     * @return LinkedHashMap for an object, List for an array, the JSONTokener value otherwise
+     * @throws JSONException when the value couldn't be parsed
+     */
+    private static Object readJson(JSONTokener tokener) throws JSONException {
+        char c = tokener.nextClean();
+        if (c == '{') {
+            Map<String, Object> object = new LinkedHashMap<String, Object>();
+            if (tokener.nextClean() == '}') {
+                return object;
+            }
+            tokener.back();
+            do {
+                String key = tokener.nextValue().toString();
+                if (tokener.nextClean() != ':') {
+                    throw tokener.syntaxError("Expected a ':' after a key");
+                }
+                object.put(key, readJson(tokener));
+                c = tokener.nextClean();
+            } while (c == ',');
+            if (c != '}') {
+                throw tokener.syntaxError("Expected a ',' or '}'");
+            }
+            return object;
+        }
+        if (c == '[') {
+            List<Object> array = new ArrayList<Object>();
+            if (tokener.nextClean() == ']') {
+                return array;
+            }
+            tokener.back();
+            do {
+                array.add(readJson(tokener));
+                c = tokener.nextClean();
+            } while (c == ',');
+            if (c != ']') {
+                throw tokener.syntaxError("Expected a ',' or ']'");
+            }
+            return array;
+        }
+        tokener.back();
+        return tokener.nextValue();
+    }
 
+    /**
+     * used to convert a JSON parameter value to the text or XML fragment the template parameter takes
+     *
+     * @param name template parameter name
+     * @param value value as read by readJson
+     * @return parameter value
+     * @throws JSONException when the value is a JSON array, which doesn't name its elements
+     */
+    private static String parameterValue(String name, Object value) throws JSONException {
+        if (value instanceof List) {
+            throw new JSONException("Parameter " + name + " must be a string or an object, not an array");
+        }
+        if (!(value instanceof Map)) {
+            return value.toString();
+        }
+        Map<?, ?> object = (Map<?, ?>) value;
+        if (object.size() == 1) {
+            Map.Entry<?, ?> child = object.entrySet().iterator().next();
+            String key = (String) child.getKey();
+            if (!key.startsWith("@") && !"#text".equals(key) && child.getValue() instanceof Map) {
+                return toElement(key, (Map<?, ?>) child.getValue()).toString();
+            }
+        }
+        return toElement(name, object).toString();
+    }
+
+    private static OMElement toElement(String name, Map<?, ?> object) throws JSONException {
+        OMElement element = soapFactory.createOMElement(name, null);
+        for (Map.Entry<?, ?> child : object.entrySet()) {
+            String key = (String) child.getKey();
+            if (key.startsWith("@")) {
+                element.addAttribute(key.substring(1), child.getValue().toString(), null);
+            } else if ("#text".equals(key)) {
+                element.setText(child.getValue().toString());
+            } else if (child.getValue() instanceof List) {
+                for (Object entry : (List<?>) child.getValue()) {
+                    addChildElement(element, key, entry);
+                }
+            } else {
+                addChildElement(element, key, child.getValue());
+            }
+        }
+        return element;
+    }
+
+    private static void addChildElement(OMElement element, String name, Object value) throws JSONException {
+        if (value instanceof Map) {
+            element.addChild(toElement(name, (Map<?, ?>) value));
+        } else if (value instanceof List) {
+            throw new JSONException("Element " + name + " must not hold nested arrays");
+        } else {
+            soapFactory.createOMElement(name, null, element).setText(value.toString());
+        }
+    }
+
+    private static boolean hasSiblingElement(OMElement element) {
+        for (OMNode sibling = element.getNextOMSibling(); sibling != null; sibling = sibling.getNextOMSibling()) {
+            if (sibling instanceof OMElement) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * used to populate an id list element such as <ItemIds></ItemIds> from parsed ids
+     *
+     * @param elementName name of the list element
+     * @param namespace namespace of the list element
+     * @param idElementName name of the id elements
+     * @param ids ids as returned by parseIdList
+     * @return id list element
+     */
+    static OMElement buildIdList(String elementName, OMNamespace namespace, String idElementName, List<Map<String,
+            String>> ids) {
+        OMElement idListElement = soapFactory.createOMElement(elementName, namespace);
+        for (Map<String, String> id : ids) {
+            OMElement idElement = soapFactory.createOMElement(idElementName, type, idListElement);
+            for (Map.Entry<String, String> attribute : id.entrySet()) {
+                idElement.addAttribute(attribute.getKey(), attribute.getValue(), null);
+            }
+        }
+        return idListElement;
+    }
+
+    /**
+     * An element holds a single id when it has no child elements, or only leaf children with distinct names;
+     * any other element is a list of ids.
+     */
+    private static void collectIds(OMElement list, List<Map<String, String>> ids) {
+        for (Iterator children = list.getChildElements(); children.hasNext(); ) {
+            OMElement child = (OMElement) children.next();
+            Map<String, String> id = new LinkedHashMap<String, String>();
+            for (Iterator attributes = child.getAllAttributes(); attributes.hasNext(); ) {
+                OMAttribute attribute = (OMAttribute) attributes.next();
+                id.put(capitalize(attribute.getLocalName()), attribute.getAttributeValue());
+            }
+            Set<String> names = new HashSet<String>();
+            boolean single = true;
+            for (Iterator fields = child.getChildElements(); fields.hasNext() && single; ) {
+                OMElement field = (OMElement) fields.next();
+                single = field.getFirstElement() == null && names.add(field.getLocalName());
+                id.put(capitalize(field.getLocalName()), field.getText().trim());
+            }
+            if (!single) {
+                collectIds(child, ids);
+            } else if (!names.isEmpty() || !id.isEmpty()) {
+                ids.add(id);
+            } else if (!StringUtils.isEmpty(child.getText().trim())) {
+                id.put(EWSConstants.ID_ATTRIBUTE, child.getText().trim());
+                ids.add(id);
+            }
+        }
+    }
+
+    /**
+     * Used to populate <PullSubscriptionRequest></PullSubscriptionRequest> or
+     * <StreamingSubscriptionRequest></StreamingSubscriptionRequest> element with its FolderIds and EventTypes
+     *
+     * @param messageContext messageContext of Request
+     * @param elementName name of the subscription request element
+     * @return subscription request element
+     * @throws XMLStreamException when no folderIds are given
+     */
+    static OMElement populateSubscriptionRequest(MessageContext messageContext, String elementName) throws
+            XMLStreamException {
+        OMElement subscriptionRequest = soapFactory.createOMElement(elementName, message);
+        populateDirectElements(messageContext, subscriptionRequest, EWSConstants.FOLDER_IDS);
+        if (!subscriptionRequest.getChildElements().hasNext()) {
+            throw new XMLStreamException(elementName + " requires folderIds");
+        }
+        String eventTypes = (String) ConnectorUtils.lookupTemplateParamater(messageContext, EWSConstants
+                .EVENT_TYPES);
+        if (StringUtils.isEmpty(eventTypes)) {
+            eventTypes = DEFAULT_EVENT_TYPES;
+        }
+        OMElement eventTypesElement = soapFactory.createOMElement(EWSConstants.EVENT_TYPES_ELEMENT, type,
+                subscriptionRequest);
+        for (String eventType : eventTypes.split(",")) {
+            if (!eventType.trim().isEmpty()) {
+                soapFactory.createOMElement(EWSConstants.EVENT_TYPE_ELEMENT, type, eventTypesElement).setText
+                        (eventType.trim());
+            }
+        }
+        return subscriptionRequest;
+    }
+
+    /**
+     * Used to get the first ResponseMessage of a response
+     *
+     * @param response response envelope
+     * @return first ResponseMessage, null when the response is a SOAP fault or holds no ResponseMessages
+     */
+    static OMElement getResponseMessage(SOAPEnvelope response) {
+        if (response.getBody().hasFault() || response.getBody().getFirstElement() == null) {
+            return null;
+        }
+        OMElement responseMessages = response.getBody().getFirstElement().getFirstChildWithName(new QName
+                (EWSConstants.MESSAGES_NAME_SPACE, EWSConstants.RESPONSE_MESSAGES_ELEMENT));
+        return responseMessages == null ? null : responseMessages.getFirstElement();
+    }
+
+    private static String capitalize(String name) {
+        return name.isEmpty() ? name : Character.toUpperCase(name.charAt(0)) + name.substring(1);
+    }
+
+    /**
+     * Caches a freshly built header block and adds a copy of it to the soap header.
+     */
+    private static void addHeader(OMElement soapHeader, EWSHeaderCache.Key key, OMElement headerBlock) {
+        if (headerBlock != null) {
+            headerCache.put(key, headerBlock);
+            copyElement(headerBlock, soapHeader);
+        }
+    }
+
+    private static void addDirectElement(OMElement baseElement, String value) throws XMLStreamException {
+        if (!StringUtils.isEmpty(value)) {
+            baseElement.addChild(EWSNamespaceRewriter.rewrite(value));
+        }
+    }
+
+    private static void addTextElement(OMElement baseElement, String elementName, String value) {
+        if (!StringUtils.isEmpty(value)) {
+            soapFactory.createOMElement(elementName, type, baseElement).setText(value);
+        }
     }
 }
@@ -26,20 +26,51 @@ import org.apache.axiom.soap.SOAPEnvelope;
 import org.apache.axiom.soap.SOAPFactory;
 import org.apache.axiom.soap.SOAPHeader;
 import org.apache.axis2.AxisFault;
+import org.apache.synapse.Mediator;
 import org.apache.synapse.MessageContext;
+import org.apache.synapse.util.MessageHelper;
 import org.wso2.carbon.connector.core.AbstractConnector;
 import org.wso2.carbon.connector.core.ConnectException;
+import org.wso2.carbon.connector.core.util.ConnectorUtils;
+import org.wso2.carbon.utils.xml.StringUtils;
 
+import javax.xml.namespace.QName;
 import javax.xml.stream.XMLStreamException;
-import javax.xml.transform.TransformerException;
+import java.io.IOException;
+import java.time.DateTimeException;
+import java.util.List;
 
-import static org.wso2.carbon.connector.EWSUtils.populateItemIds;
 import static org.wso2.carbon.connector.EWSUtils.populateItemShape;
 
 /**
- * This Class used to Generate FindItem Operation SOAP Request
+ * This Class used to Generate FindItem Operation SOAP Request. With paginate set to true, the view is walked here
+ * page by page with an IndexedPageItemView of pageSize items, prefetching up to maxPagesInFlight pages, in place of
+ * any view given. Each page is mediated through pageSequence on a copy of the message context; when pageMode is
+ * items, the items of a page are mediated one after another on one copy per page. Without a pageSequence all pages
+ * are merged into a single response of at most 10000 items. After a page sequence ran, the response holds the last
+ * page without its items.
  */
 public class FindItemMediator extends AbstractConnector {
+    private static final int DEFAULT_PAGE_SIZE = 100;
+    private static final int DEFAULT_MAX_PAGES_IN_FLIGHT = 2;
+    private static final String ITEMS_PAGE_MODE = "items";
+    private static final long MAX_MERGED_ITEMS = 10000;
+    /**
+     * FindItem child elements following the ItemShape, in schema order
+     */
+    private static final EWSEnvelopePlan VIEW_PLAN = new EWSEnvelopePlan(
+            EWSEnvelopePlan.fragment(EWSConstants.INDEXED_PAGE_ITEM_VIEW, EWSUtils.message),
+            EWSEnvelopePlan.fragment(EWSConstants.FRACTIONAL_PAGE_ITEM_VIEW, EWSUtils.message),
+            EWSEnvelopePlan.fragment(EWSConstants.SEEK_TO_CONDITION_PAGE_ITEM_VIEW, EWSUtils.message),
+            EWSEnvelopePlan.fragment(EWSConstants.CALENDAR_VIEW, EWSUtils.message),
+            EWSEnvelopePlan.fragment(EWSConstants.CONTACTS_VIEW, EWSUtils.message),
+            EWSEnvelopePlan.fragment(EWSConstants.GROUP_BY, EWSUtils.message),
+            EWSEnvelopePlan.fragment(EWSConstants.DISTINGUISHED_GROUP_BY, EWSUtils.message),
+            EWSEnvelopePlan.fragment(EWSConstants.RESTRICTION, EWSUtils.message),
+            EWSEnvelopePlan.fragment(EWSConstants.SORT_ORDER, EWSUtils.message),
+            EWSEnvelopePlan.fragment(EWSConstants.PARENT_FOLDER_IDS, EWSUtils.message),
+            EWSEnvelopePlan.fragment(EWSConstants.QUERY_STRING, EWSUtils.message));
+
     OMNamespace type = EWSUtils.type;
     OMNamespace message = EWSUtils.message;
     SOAPFactory soapFactory = OMAbstractFactory.getSOAP11Factory();
@@ -49,8 +80,18 @@ public class FindItemMediator extends AbstractConnector {
         soapEnvelope.declareNamespace(type);
         soapEnvelope.declareNamespace(message);
         try {
+            if (Boolean.parseBoolean((String) ConnectorUtils.lookupTemplateParamater(messageContext, EWSConstants
+                    .PAGINATE))) {
+                paginate(messageContext);
+                return;
+            }
+            messageContext.setProperty(EWSConstants.EWS_BATCH_COMPLETED, "false");
+            EWSMetrics.Operation metrics = EWSMetrics.get("FindItem");
+            long start = metrics.startBuild();
             soapEnvelope.addChild(populateSoapHeader(messageContext));
+            start = metrics.headerBuilt(start);
             soapEnvelope.addChild(populateBody(messageContext));
+            metrics.bodyBuilt(start);
             messageContext.setEnvelope(soapEnvelope);
         } catch (XMLStreamException e) {
             String msg = "Couldn't convert Element Body";
@@ -60,8 +101,12 @@ public class FindItemMediator extends AbstractConnector {
             String msg = "Couldn't set SOAPEnvelope to MessageContext";
             log.error(msg, axisFault);
             throw new ConnectException(axisFault, msg);
-        } catch (TransformerException e) {
-            String msg = "Couldn't transform message";
+        } catch (DateTimeException e) {
+            String msg = "Couldn't resolve time zone";
+            log.error(msg, e);
+            throw new ConnectException(e, msg);
+        } catch (IOException e) {
+            String msg = "Couldn't page through FindItem view";
             log.error(msg, e);
             throw new ConnectException(e, msg);
         }
@@ -72,10 +117,8 @@ public class FindItemMediator extends AbstractConnector {
      * @param messageContext message context of request
      * @return Soap Header
      * @throws XMLStreamException
-     * @throws TransformerException throws when
      */
-    private SOAPHeader populateSoapHeader(MessageContext messageContext) throws XMLStreamException,
-            TransformerException {
+    private SOAPHeader populateSoapHeader(MessageContext messageContext) throws XMLStreamException {
         SOAPHeader soapHeader = soapFactory.createSOAPHeader();
         EWSUtils.populateManagementRolesHeader(soapHeader, messageContext);
         EWSUtils.populateDateTimePrecisionHeader(soapHeader, messageContext);
@@ -91,30 +134,121 @@ public class FindItemMediator extends AbstractConnector {
      * @param messageContext message context of request
      * @return Soap Body
      * @throws XMLStreamException
-     * @throws TransformerException throws when
      */
-    private SOAPBody populateBody(MessageContext messageContext) throws XMLStreamException, TransformerException {
+    private SOAPBody populateBody(MessageContext messageContext) throws XMLStreamException {
         SOAPBody soapBody = soapFactory.createSOAPBody();
+        soapBody.addChild(populateFindItemElement(messageContext));
+        return soapBody;
+    }
+
+    /**
+     * Used to populate FindItem element
+     * @param messageContext message context of request
+     * @return FindItem element
+     * @throws XMLStreamException
+     */
+    private OMElement populateFindItemElement(MessageContext messageContext) throws XMLStreamException {
         OMElement findItemElement = soapFactory.createOMElement(EWSConstants.FIND_ITEM_ELEMENT, message);
         EWSUtils.setValueToXMLAttribute(messageContext, findItemElement, EWSConstants.TRAVERSAL, EWSConstants
                 .TRAVERSAL_ELEMENT);
         findItemElement.addChild(populateItemShape(messageContext));
-        EWSUtils.populateDirectElements(messageContext, findItemElement, EWSConstants.INDEXED_PAGE_ITEM_VIEW, message);
-        EWSUtils.populateDirectElements(messageContext, findItemElement, EWSConstants.FRACTIONAL_PAGE_ITEM_VIEW,
-                message);
-        EWSUtils.populateDirectElements(messageContext, findItemElement, EWSConstants
-                .SEEK_TO_CONDITION_PAGE_ITEM_VIEW, message);
-        EWSUtils.populateDirectElements(messageContext, findItemElement, EWSConstants.CALENDAR_VIEW, message);
-        EWSUtils.populateDirectElements(messageContext, findItemElement, EWSConstants.CONTACTS_VIEW, message);
-        EWSUtils.populateDirectElements(messageContext, findItemElement, EWSConstants.GROUP_BY, message);
-        EWSUtils.populateDirectElements(messageContext, findItemElement, EWSConstants.DISTINGUISHED_GROUP_BY, message);
-        EWSUtils.populateDirectElements(messageContext, findItemElement, EWSConstants.RESTRICTION, message);
-        EWSUtils.populateDirectElements(messageContext, findItemElement, EWSConstants.SORT_ORDER, message);
-        EWSUtils.populateDirectElements(messageContext, findItemElement, EWSConstants.PARENT_FOLDER_IDS, message);
-        EWSUtils.populateDirectElements(messageContext, findItemElement, EWSConstants.QUERY_STRING, message);
-        soapBody.addChild(findItemElement);
-        return soapBody;
+        VIEW_PLAN.populate(messageContext, findItemElement);
+        return findItemElement;
     }
 
+    /**
+     * Used to walk the view page by page and emit the pages to the page sequence, or set them merged to the
+     * message context
+     * @param messageContext message context of request
+     * @throws XMLStreamException
+     * @throws IOException when a page couldn't be fetched or the page sequence doesn't exist
+     */
+    private void paginate(MessageContext messageContext) throws XMLStreamException, IOException {
+        String pageSequence = (String) ConnectorUtils.lookupTemplateParamater(messageContext, EWSConstants
+                .PAGE_SEQUENCE);
+        Mediator sequence = null;
+        if (!StringUtils.isEmpty(pageSequence)) {
+            sequence = messageContext.getSequence(pageSequence);
+            if (sequence == null) {
+                throw new IOException("Page sequence " + pageSequence + " doesn't exist");
+            }
+        }
+        boolean emitItems = ITEMS_PAGE_MODE.equalsIgnoreCase((String) ConnectorUtils.lookupTemplateParamater
+                (messageContext, EWSConstants.PAGE_MODE));
+        OMElement findItemElement = populateFindItemElement(messageContext);
+        // the connector pages with its own IndexedPageItemView, which replaces any view FindItem allows
+        for (String view : new String[]{EWSConstants.INDEXED_PAGE_ITEM_VIEW_ELEMENT, EWSConstants
+                .FRACTIONAL_PAGE_ITEM_VIEW_ELEMENT, EWSConstants.SEEK_TO_CONDITION_PAGE_ITEM_VIEW_ELEMENT,
+                EWSConstants.CALENDAR_VIEW_ELEMENT, EWSConstants.CONTACTS_VIEW_ELEMENT}) {
+            OMElement viewElement = findItemElement.getFirstChildWithName(new QName(EWSConstants.MESSAGES_NAME_SPACE,
+                    view));
+            if (viewElement != null) {
+                log.warn(view + " is ignored when paginating");
+                viewElement.detach();
+            }
+        }
+        long maxItems = EWSUtils.lookupLongParameter(messageContext, EWSConstants.MAX_ITEMS, sequence == null ?
+                MAX_MERGED_ITEMS : Long.MAX_VALUE);
+        if (sequence == null && maxItems > MAX_MERGED_ITEMS) {
+            log.warn("maxItems " + maxItems + " is more than a merged response holds, merging at most " +
+                    MAX_MERGED_ITEMS + " items; use a pageSequence to walk larger views");
+            maxItems = MAX_MERGED_ITEMS;
+        }
+        EWSFindItemPaginator paginator = new EWSFindItemPaginator(EWSClient.forMessage(messageContext),
+                populateSoapHeader(messageContext), findItemElement, 0, EWSUtils.lookupIntParameter(messageContext,
+                EWSConstants.PAGE_SIZE, DEFAULT_PAGE_SIZE), EWSUtils.lookupIntParameter(messageContext,
+                EWSConstants.MAX_PAGES_IN_FLIGHT, DEFAULT_MAX_PAGES_IN_FLIGHT), maxItems);
+        SOAPEnvelope response = null;
+        long itemIndex = 0;
+        try {
+            for (SOAPEnvelope page = paginator.nextPage(); page != null; page = paginator.nextPage()) {
+                if (sequence == null) {
+                    if (response == null) {
+                        response = page;
+                    } else {
+                        EWSFindItemPaginator.merge(response, page);
+                    }
+                    continue;
+                }
+                if (paginator.isDone()) {
+                    response = MessageHelper.cloneSOAPEnvelope(page);
+                    for (OMElement item : EWSFindItemPaginator.items(response)) {
+                        item.detach();
+                    }
+                }
+                MessageContext pageContext = copy(messageContext, paginator.getPageCount() - 1);
+                if (!emitItems || !EWSFindItemPaginator.isSuccess(page)) {
+                    pageContext.setEnvelope(page);
+                    sequence.mediate(pageContext);
+                    continue;
+                }
+                for (OMElement item : EWSFindItemPaginator.items(page)) {
+                    SOAPEnvelope itemEnvelope = soapFactory.getDefaultEnvelope();
+                    item.detach();
+                    itemEnvelope.getBody().addChild(item);
+                    pageContext.setEnvelope(itemEnvelope);
+                    pageContext.setProperty(EWSConstants.EWS_ITEM_INDEX, itemIndex++);
+                    sequence.mediate(pageContext);
+                }
+            }
+        } finally {
+            paginator.finish();
+        }
+        if (response != null) {
+            messageContext.setEnvelope(response);
+        }
+        messageContext.setProperty(EWSConstants.EWS_BATCH_COMPLETED, "true");
+        messageContext.setProperty(EWSConstants.EWS_PAGE_COUNT, paginator.getPageCount());
+        messageContext.setProperty(EWSConstants.EWS_ITEM_COUNT, paginator.getItemCount());
+        messageContext.setProperty(EWSConstants.EWS_TOTAL_ITEMS_IN_VIEW, paginator.getTotalItemsInView());
+    }
 
+    /**
+     * Copies the message context for the page sequence, once per page.
+     */
+    private static MessageContext copy(MessageContext messageContext, int pageIndex) throws AxisFault {
+        MessageContext pageContext = MessageHelper.cloneMessageContext(messageContext);
+        pageContext.setProperty(EWSConstants.EWS_PAGE_INDEX, pageIndex);
+        return pageContext;
+    }
 }
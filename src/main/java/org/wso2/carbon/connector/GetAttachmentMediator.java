@@ -21,25 +21,46 @@ package org.wso2.carbon.connector;
 import org.apache.axiom.om.OMAbstractFactory;
 import org.apache.axiom.om.OMElement;
 import org.apache.axiom.om.OMNamespace;
-import org.apache.axiom.om.util.AXIOMUtil;
 import org.apache.axiom.soap.SOAPBody;
 import org.apache.axiom.soap.SOAPEnvelope;
 import org.apache.axiom.soap.SOAPFactory;
 import org.apache.axiom.soap.SOAPHeader;
 import org.apache.axis2.AxisFault;
+import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.synapse.MessageContext;
+import org.json.JSONException;
 import org.wso2.carbon.connector.core.AbstractConnector;
 import org.wso2.carbon.connector.core.ConnectException;
 import org.wso2.carbon.connector.core.util.ConnectorUtils;
 import org.wso2.carbon.utils.xml.StringUtils;
 
+import javax.xml.namespace.QName;
 import javax.xml.stream.XMLStreamException;
-import javax.xml.transform.TransformerException;
+import java.io.IOException;
+import java.time.DateTimeException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
- * Class used to generate GetAttachment Operation Soap Request
+ * Class used to generate GetAttachment Operation Soap Request. When a list of attachmentIds is given, the
+ * attachments are fetched here in requests of at most batchSize ids, batchParallelism requests at a time. Ids may
+ * carry the attachment Size, as listed by GetItem; a request then holds no more than batchMaxBytes of attachments
+ * unless a single attachment exceeds it. In stream mode the requests are sent one after another and the attachment
+ * content of each response is decoded while it arrives.
  */
 public class GetAttachmentMediator extends AbstractConnector {
+    private static final int DEFAULT_BATCH_SIZE = 20;
+    private static final int DEFAULT_BATCH_PARALLELISM = 4;
+    private static final long DEFAULT_BATCH_MAX_BYTES = 16 * 1024 * 1024;
+    private static final String SUCCESS = "Success";
+    private static final String NO_ERROR = "NoError";
+    private static final EWSAttachmentStore attachmentStore = EWSAttachmentStore.getInstance();
+    private static final GetAttachmentResponseMediator responseReader = new GetAttachmentResponseMediator();
+
     private OMNamespace type = EWSUtils.type;
     private OMNamespace message = EWSUtils.message;
     private SOAPFactory soapFactory = OMAbstractFactory.getSOAP11Factory();
@@ -50,8 +71,35 @@ public class GetAttachmentMediator extends AbstractConnector {
         soapEnvelope.declareNamespace(message);
 
         try {
+            String attachmentIds = (String) ConnectorUtils.lookupTemplateParamater(messageContext, EWSConstants
+                    .ATTACHMENT_ID_LIST);
+            boolean cacheAttachments = Boolean.parseBoolean((String) ConnectorUtils.lookupTemplateParamater(
+                    messageContext, EWSConstants.CACHE_ATTACHMENTS));
+            boolean stream = EWSConstants.STREAM_RESPONSE_MODE.equals(ConnectorUtils.lookupTemplateParamater(
+                    messageContext, EWSConstants.RESPONSE_MODE));
+            if (!StringUtils.isEmpty(attachmentIds)) {
+                if (stream) {
+                    streamAttachments(messageContext, EWSUtils.parseIdList(attachmentIds));
+                } else {
+                    getAttachments(messageContext, EWSUtils.parseIdList(attachmentIds), cacheAttachments);
+                }
+                return;
+            }
+            String attachmentId = (String) ConnectorUtils.lookupTemplateParamater(messageContext, EWSConstants
+                    .ATTACHMENT_ID_);
+            if (cacheAttachments && !stream && !StringUtils.isEmpty(attachmentId)) {
+                Map<String, String> id = new LinkedHashMap<String, String>();
+                id.put(EWSConstants.ID_ATTRIBUTE, attachmentId);
+                getAttachments(messageContext, Collections.singletonList(id), true);
+                return;
+            }
+            messageContext.setProperty(EWSConstants.EWS_BATCH_COMPLETED, "false");
+            EWSMetrics.Operation metrics = EWSMetrics.get("GetAttachment");
+            long start = metrics.startBuild();
             soapEnvelope.addChild(populateSoapHeader(messageContext));
+            start = metrics.headerBuilt(start);
             soapEnvelope.addChild(populateBody(messageContext));
+            metrics.bodyBuilt(start);
             messageContext.setEnvelope(soapEnvelope);
         } catch (XMLStreamException e) {
             String msg = "Couldn't convert Element Body";
@@ -61,8 +109,16 @@ public class GetAttachmentMediator extends AbstractConnector {
             String msg = "Couldn't set SOAPEnvelope to MessageContext";
             log.error(msg, axisFault);
             throw new ConnectException(axisFault, msg);
-        } catch (TransformerException e) {
-            String msg = "Couldn't transform message";
+        } catch (DateTimeException e) {
+            String msg = "Couldn't resolve time zone";
+            log.error(msg, e);
+            throw new ConnectException(e, msg);
+        } catch (JSONException e) {
+            String msg = "Couldn't parse attachmentIds";
+            log.error(msg, e);
+            throw new ConnectException(e, msg);
+        } catch (IOException e) {
+            String msg = "Couldn't send GetAttachment batch";
             log.error(msg, e);
             throw new ConnectException(e, msg);
         }
@@ -74,10 +130,8 @@ public class GetAttachmentMediator extends AbstractConnector {
      * @param messageContext message context of request
      * @return Soap Header
      * @throws XMLStreamException
-     * @throws TransformerException throws when
      */
-    private SOAPHeader populateSoapHeader(MessageContext messageContext) throws XMLStreamException,
-            TransformerException {
+    private SOAPHeader populateSoapHeader(MessageContext messageContext) throws XMLStreamException {
         SOAPHeader soapHeader = soapFactory.createSOAPHeader();
         EWSUtils.populateTimeZoneContextHeader(soapHeader, messageContext);
         EWSUtils.populateRequestedServerVersionHeader(soapHeader, messageContext);
@@ -91,9 +145,8 @@ public class GetAttachmentMediator extends AbstractConnector {
      * @param messageContext message context of request
      * @return Soap Body
      * @throws XMLStreamException
-     * @throws TransformerException when transformation couldn't be done
      */
-    private SOAPBody populateBody(MessageContext messageContext) throws XMLStreamException, TransformerException {
+    private SOAPBody populateBody(MessageContext messageContext) throws XMLStreamException {
         SOAPBody soapBody = soapFactory.createSOAPBody();
         OMElement getAttachmentOmElement = soapFactory.createOMElement(EWSConstants.GET_ATTACHMENTS, message);
         OMElement attachmentShapeOmElement = soapFactory.createOMElement(EWSConstants.ATTACHMENT_SHAPE, message);
@@ -109,15 +162,244 @@ public class GetAttachmentMediator extends AbstractConnector {
         return soapBody;
     }
 
+    /**
+     * Used to get the listed attachments in chunks and set the merged response to the message context. With the
+     * attachment store, stored attachments are served locally, only the others are sent to EWS, and the file
+     * attachments EWS returns are stored.
+     * @param messageContext message context of request
+     * @param ids list of attachment ids
+     * @param cacheAttachments whether the attachment store is used
+     * @throws XMLStreamException
+     * @throws IOException when no endpoint is configured or the dispatch got interrupted
+     */
+    private void getAttachments(MessageContext messageContext, List<Map<String, String>> ids, boolean
+            cacheAttachments) throws XMLStreamException, IOException {
+        SOAPHeader soapHeader = populateSoapHeader(messageContext);
+        OMElement attachmentShapeOmElement = soapFactory.createOMElement(EWSConstants.ATTACHMENT_SHAPE, message);
+        populateAttachmentShape(messageContext, attachmentShapeOmElement);
+        EWSClient client = EWSClient.forMessage(messageContext);
+        OMElement[] stored = new OMElement[ids.size()];
+        String scope = cacheAttachments ? EWSItemCache.scope(client.getIdentity(messageContext), soapHeader) : null;
+        List<Map<String, String>> misses = new ArrayList<Map<String, String>>();
+        List<Long> sizes = new ArrayList<Long>();
+        long bytesSaved = 0;
+        for (int i = 0; i < ids.size(); i++) {
+            Map<String, String> id = ids.get(i);
+            String size = id.remove(EWSConstants.SIZE_ELEMENT);
+            if (cacheAttachments) {
+                EWSAttachmentStore.StoredAttachment attachment = attachmentStore.get(EWSAttachmentStore.key(scope,
+                        id.get(EWSConstants.ID_ATTRIBUTE)));
+                if (attachment != null) {
+                    stored[i] = createResponseMessage(attachment.getFileAttachment());
+                    bytesSaved += attachment.getSize();
+                    continue;
+                }
+            }
+            misses.add(id);
+            sizes.add(parseSize(size));
+        }
+        EWSBatchDispatcher.Result result = null;
+        if (!misses.isEmpty()) {
+            List<Integer> itemCounts = new ArrayList<Integer>();
+            List<SOAPEnvelope> requests = createRequests(messageContext, soapHeader, attachmentShapeOmElement, misses,
+                    sizes, itemCounts);
+            EWSBatchDispatcher dispatcher = new EWSBatchDispatcher(client, EWSConstants.GET_ATTACHMENTS, EWSUtils
+                    .lookupIntParameter(messageContext, EWSConstants.BATCH_PARALLELISM, DEFAULT_BATCH_PARALLELISM));
+            result = dispatcher.dispatch(requests, itemCounts);
+        }
+        if (cacheAttachments) {
+            if (result != null) {
+                storeAttachments(scope, result.getEnvelope());
+            }
+            result = EWSBatchDispatcher.merge(EWSConstants.GET_ATTACHMENTS, stored, result);
+            messageContext.setProperty(EWSConstants.EWS_ATTACHMENT_CACHE_HITS, ids.size() - misses.size());
+            messageContext.setProperty(EWSConstants.EWS_ATTACHMENT_CACHE_MISSES, misses.size());
+            messageContext.setProperty(EWSConstants.EWS_ATTACHMENT_CACHE_BYTES_SAVED, bytesSaved);
+        }
+        EWSBatchDispatcher.complete(messageContext, result);
+    }
+
+    /**
+     * Used to get the listed attachments in chunks in stream mode. The chunks are sent one after another and the
+     * attachment content of each response is decoded into its targets while the response arrives, so that only the
+     * response messages without their content are merged. The attachment store isn't used in stream mode.
+     * @param messageContext message context of request
+     * @param ids list of attachment ids
+     * @throws XMLStreamException when a response couldn't be parsed
+     * @throws IOException when a response couldn't be read or an attachment couldn't be written
+     */
+    private void streamAttachments(MessageContext messageContext, List<Map<String, String>> ids) throws
+            XMLStreamException, IOException {
+        SOAPHeader soapHeader = populateSoapHeader(messageContext);
+        OMElement attachmentShapeOmElement = soapFactory.createOMElement(EWSConstants.ATTACHMENT_SHAPE, message);
+        populateAttachmentShape(messageContext, attachmentShapeOmElement);
+        List<Long> sizes = new ArrayList<Long>();
+        for (Map<String, String> id : ids) {
+            sizes.add(parseSize(id.remove(EWSConstants.SIZE_ELEMENT)));
+        }
+        List<Integer> itemCounts = new ArrayList<Integer>();
+        List<SOAPEnvelope> requests = createRequests(messageContext, soapHeader, attachmentShapeOmElement, ids, sizes,
+                itemCounts);
+        SOAPEnvelope[] responses = new SOAPEnvelope[requests.size()];
+        Exception[] failures = new Exception[requests.size()];
+        List<EWSSpoolBuffer> spoolBuffers = new ArrayList<EWSSpoolBuffer>();
+        int attachments = 0;
+        boolean completed = false;
+        messageContext.setWSAAction(EWSConstants.MESSAGES_NAME_SPACE + "/" + EWSConstants.GET_ATTACHMENTS);
+        try {
+            for (int chunk = 0; chunk < requests.size(); chunk++) {
+                CloseableHttpResponse response;
+                try {
+                    response = sendStreamed(messageContext, requests.get(chunk));
+                } catch (IOException e) {
+                    log.warn("GetAttachment batch chunk " + chunk + " failed", e);
+                    // the call replaces the request by the SOAP fault EWS answered with, if any
+                    if (messageContext.getEnvelope().hasFault()) {
+                        responses[chunk] = messageContext.getEnvelope();
+                    } else {
+                        failures[chunk] = e;
+                    }
+                    continue;
+                } catch (XMLStreamException e) {
+                    log.warn("GetAttachment batch chunk " + chunk + " failed", e);
+                    failures[chunk] = e;
+                    continue;
+                }
+                responses[chunk] = soapFactory.getDefaultEnvelope();
+                attachments += responseReader.readResponse(messageContext, response, responses[chunk], attachments,
+                        spoolBuffers);
+            }
+            EWSBatchDispatcher.complete(messageContext, EWSBatchDispatcher.merge(EWSConstants.GET_ATTACHMENTS,
+                    responses, failures, itemCounts));
+            messageContext.setProperty(EWSConstants.EWS_ATTACHMENT_COUNT, attachments);
+            messageContext.setProperty(EWSConstants.EWS_ATTACHMENTS_DECODED, "true");
+            GetAttachmentResponseMediator.handOver(spoolBuffers);
+            completed = true;
+        } finally {
+            if (!completed) {
+                GetAttachmentResponseMediator.discard(messageContext, spoolBuffers);
+            }
+        }
+    }
+
+    /**
+     * Used to send a chunk request the way the call of the template does in stream mode
+     * @param messageContext message context of request
+     * @param request chunk request
+     * @return unread response, which has to be closed
+     * @throws IOException when the endpoint couldn't be reached or answered with a SOAP fault
+     * @throws XMLStreamException when a SOAP fault couldn't be parsed
+     */
+    private static CloseableHttpResponse sendStreamed(MessageContext messageContext, SOAPEnvelope request) throws
+            IOException, XMLStreamException {
+        messageContext.setEnvelope(request);
+        messageContext.setProperty(EWSConstants.EWS_RESPONSE_MODE, EWSConstants.STREAM_RESPONSE_MODE);
+        EWSClient.call(messageContext);
+        CloseableHttpResponse response = (CloseableHttpResponse) messageContext.getProperty(EWSConstants
+                .EWS_RESPONSE_STREAM);
+        messageContext.getPropertyKeySet().remove(EWSConstants.EWS_RESPONSE_STREAM);
+        if (response == null) {
+            throw new IOException("EWS endpoint returned a SOAP fault: " + messageContext.getEnvelope().getBody()
+                    .getFault().getReason().getText());
+        }
+        return response;
+    }
+
+    /**
+     * Used to create the chunk requests of a batch, of at most batchSize ids and batchMaxBytes of attachments each
+     * @param messageContext message context of request
+     * @param soapHeader header shared by all chunks
+     * @param attachmentShapeOmElement attachment shape shared by all chunks
+     * @param ids list of attachment ids
+     * @param sizes Size of each attachment, 0 when unknown
+     * @param itemCounts receives the number of ids of each chunk
+     * @return chunk requests
+     */
+    private List<SOAPEnvelope> createRequests(MessageContext messageContext, SOAPHeader soapHeader, OMElement
+            attachmentShapeOmElement, List<Map<String, String>> ids, List<Long> sizes, List<Integer> itemCounts) {
+        int batchSize = EWSUtils.lookupIntParameter(messageContext, EWSConstants.BATCH_SIZE, DEFAULT_BATCH_SIZE);
+        long sizeBudget = EWSUtils.lookupLongParameter(messageContext, EWSConstants.BATCH_MAX_BYTES,
+                DEFAULT_BATCH_MAX_BYTES);
+        List<SOAPEnvelope> requests = new ArrayList<SOAPEnvelope>();
+        for (List<Map<String, String>> chunk : EWSBatchDispatcher.chunk(ids, batchSize, sizes, sizeBudget)) {
+            SOAPEnvelope request = EWSBatchDispatcher.createRequest(soapHeader);
+            OMElement getAttachmentOmElement = soapFactory.createOMElement(EWSConstants.GET_ATTACHMENTS,
+                    message, request.getBody());
+            EWSUtils.copyElement(attachmentShapeOmElement, getAttachmentOmElement);
+            getAttachmentOmElement.addChild(EWSUtils.buildIdList(EWSConstants.ATTACHMENT_IDS_ELEMENT, message,
+                    EWSConstants.ATTACHMENT_ID_ELEMENT, chunk));
+            requests.add(request);
+            itemCounts.add(chunk.size());
+        }
+        return requests;
+    }
+
+    private long parseSize(String size) {
+        try {
+            return StringUtils.isEmpty(size) ? 0L : Long.parseLong(size.trim());
+        } catch (NumberFormatException e) {
+            log.warn("Invalid attachment Size " + size + ", ignoring it for the batch size budget");
+            return 0L;
+        }
+    }
+
+    /**
+     * Used to wrap a stored file attachment into a successful GetAttachment response message
+     * @param fileAttachment stored FileAttachment element
+     * @return response message
+     */
+    private OMElement createResponseMessage(OMElement fileAttachment) {
+        OMElement responseMessage = soapFactory.createOMElement(EWSConstants.GET_ATTACHMENTS + "ResponseMessage",
+                message);
+        responseMessage.addAttribute(EWSConstants.RESPONSE_CLASS_ATTRIBUTE, SUCCESS, null);
+        soapFactory.createOMElement(EWSConstants.RESPONSE_CODE_ELEMENT, message, responseMessage).setText(NO_ERROR);
+        soapFactory.createOMElement(EWSConstants.ATTACHMENTS_ELEMENT, message, responseMessage).addChild(
+                fileAttachment);
+        return responseMessage;
+    }
+
+    /**
+     * Used to store the file attachments of the successful response messages of a GetAttachment response
+     * @param scope digest of the request scope
+     * @param response GetAttachment response
+     */
+    private void storeAttachments(String scope, SOAPEnvelope response) {
+        OMElement responseElement = response.getBody().getFirstElement();
+        OMElement responseMessages = responseElement == null ? null : responseElement.getFirstChildWithName(
+                new QName(EWSConstants.MESSAGES_NAME_SPACE, EWSConstants.RESPONSE_MESSAGES_ELEMENT));
+        if (responseMessages == null) {
+            return;
+        }
+        for (Iterator children = responseMessages.getChildElements(); children.hasNext(); ) {
+            OMElement responseMessage = (OMElement) children.next();
+            OMElement attachments = responseMessage.getFirstChildWithName(new QName(EWSConstants
+                    .MESSAGES_NAME_SPACE, EWSConstants.ATTACHMENTS_ELEMENT));
+            if (attachments == null || !SUCCESS.equals(responseMessage.getAttributeValue(new QName(EWSConstants
+                    .RESPONSE_CLASS_ATTRIBUTE)))) {
+                continue;
+            }
+            for (Iterator fileAttachments = attachments.getChildrenWithName(new QName(EWSConstants
+                    .TYPE_NAME_SPACE, EWSConstants.FILE_ATTACHMENT_ELEMENT)); fileAttachments.hasNext(); ) {
+                OMElement fileAttachment = (OMElement) fileAttachments.next();
+                OMElement attachmentId = fileAttachment.getFirstChildWithName(new QName(EWSConstants
+                        .TYPE_NAME_SPACE, EWSConstants.ATTACHMENT_ID_ELEMENT));
+                String id = attachmentId == null ? null : attachmentId.getAttributeValue(new QName(EWSConstants
+                        .ID_ATTRIBUTE));
+                if (id != null) {
+                    attachmentStore.put(EWSAttachmentStore.key(scope, id), fileAttachment);
+                }
+            }
+        }
+    }
+
     /**
      * Used to populate AttachmentScope Element
      * @param messageContext message context of request
      * @param baseElement baseElement of attachmentShape
      * @throws XMLStreamException
-     * @throws TransformerException when transformation couldn't be done
      */
     private void populateAttachmentShape(MessageContext messageContext, OMElement baseElement) throws
-            XMLStreamException, TransformerException {
+            XMLStreamException {
         EWSUtils.setValueToXMLElement(messageContext, EWSConstants.INCLUDE_MIME_CONTENT, baseElement, EWSConstants
                 .INCLUDE_MIME_CONTENT_ELEMENT);
         EWSUtils.setValueToXMLElement(messageContext, EWSConstants.BODY_TYPE, baseElement, EWSConstants
@@ -127,8 +409,7 @@ public class GetAttachmentMediator extends AbstractConnector {
         String additionalProperties = (String) ConnectorUtils.lookupTemplateParamater(messageContext, EWSConstants
                 .ADDITIONAL_PROPERTIES);
         if (!StringUtils.isEmpty(additionalProperties)) {
-            OMElement additionalPropertiesElement = AXIOMUtil.stringToOM(additionalProperties);
-            baseElement.addChild(EWSUtils.setNameSpaceForElements(additionalPropertiesElement));
+            baseElement.addChild(EWSNamespaceRewriter.rewrite(additionalProperties));
         }
     }
 }
@@ -0,0 +1,334 @@
+/*
+*  Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+package org.wso2.carbon.connector;
+
+import org.apache.axiom.om.OMAbstractFactory;
+import org.apache.axiom.om.OMElement;
+import org.apache.axiom.om.OMNamespace;
+import org.apache.axiom.om.util.StAXParserConfiguration;
+import org.apache.axiom.om.util.StAXUtils;
+import org.apache.axiom.soap.SOAPEnvelope;
+import org.apache.axiom.soap.SOAPFactory;
+import org.apache.axis2.AxisFault;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.synapse.MessageContext;
+import org.apache.synapse.core.axis2.Axis2MessageContext;
+import org.apache.synapse.transport.passthru.PassThroughConstants;
+import org.apache.synapse.transport.passthru.Pipe;
+import org.apache.synapse.transport.passthru.util.RelayUtils;
+import org.wso2.carbon.connector.core.AbstractConnector;
+import org.wso2.carbon.connector.core.ConnectException;
+import org.wso2.carbon.connector.core.util.ConnectorUtils;
+import org.wso2.carbon.utils.xml.StringUtils;
+
+import javax.activation.DataHandler;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Processes a GetAttachment response without materializing the attachment content.
+ * <p>
+ * The response is pulled with StAX and the base64 text of every FileAttachment &lt;Content&gt; element is decoded
+ * chunk by chunk into the attachmentTarget file (or a directory, one file per attachment), or into a spool buffer
+ * that spills to a temporary file above spoolThreshold bytes. The response envelope is replaced by a copy of the
+ * response body without the Content elements, and the name, content type, size and location of each attachment
+ * are set as properties; properties of the second and following attachments carry an _index suffix.
+ * <p>
+ * A spool buffer deletes its temporary file once its content has been read to the end, e.g. when it has been
+ * written as the payload or to a file. The buffers of a response that couldn't be read are deleted right away.
+ */
+public class GetAttachmentResponseMediator extends AbstractConnector {
+    private static final int DEFAULT_SPOOL_THRESHOLD = 1024 * 1024;
+    private static final String FILE_ATTACHMENT = "FileAttachment";
+    private static final String BODY = "Body";
+
+    private SOAPFactory soapFactory = OMAbstractFactory.getSOAP11Factory();
+
+    public void connect(MessageContext messageContext) throws ConnectException {
+        if ("true".equals(messageContext.getProperty(EWSConstants.EWS_ATTACHMENTS_DECODED))) {
+            // the attachments of a batch have been decoded chunk by chunk already
+            messageContext.getPropertyKeySet().remove(EWSConstants.EWS_ATTACHMENTS_DECODED);
+            return;
+        }
+        List<EWSSpoolBuffer> spoolBuffers = new ArrayList<EWSSpoolBuffer>();
+        boolean completed = false;
+        try {
+            org.apache.axis2.context.MessageContext axis2MessageContext = ((Axis2MessageContext) messageContext)
+                    .getAxis2MessageContext();
+            CloseableHttpResponse response = (CloseableHttpResponse) messageContext.getProperty(EWSConstants
+                    .EWS_RESPONSE_STREAM);
+            messageContext.getPropertyKeySet().remove(EWSConstants.EWS_RESPONSE_STREAM);
+            SOAPEnvelope envelope = soapFactory.getDefaultEnvelope();
+            int attachments = readResponse(messageContext, response, envelope, 0, spoolBuffers);
+            messageContext.setEnvelope(envelope);
+            axis2MessageContext.setProperty(PassThroughConstants.MESSAGE_BUILDER_INVOKED, Boolean.TRUE);
+            messageContext.setProperty(EWSConstants.EWS_ATTACHMENT_COUNT, attachments);
+            handOver(spoolBuffers);
+            completed = true;
+        } catch (XMLStreamException e) {
+            String msg = "Couldn't read GetAttachment response";
+            log.error(msg, e);
+            throw new ConnectException(e, msg);
+        } catch (AxisFault axisFault) {
+            String msg = "Couldn't set SOAPEnvelope to MessageContext";
+            log.error(msg, axisFault);
+            throw new ConnectException(axisFault, msg);
+        } catch (IOException e) {
+            String msg = "Couldn't write attachment content";
+            log.error(msg, e);
+            throw new ConnectException(e, msg);
+        } finally {
+            if (!completed) {
+                discard(messageContext, spoolBuffers);
+            }
+        }
+    }
+
+    /**
+     * Used to decode the attachments of a GetAttachment response into their targets and to copy the rest of the
+     * response body into the given envelope
+     *
+     * @param messageContext message context the attachment properties are set on
+     * @param response streamed response, which is closed, or null to read the response of the message
+     * @param envelope envelope receiving the response body without the Content elements
+     * @param firstIndex index of the first attachment of the response among the attachments of the message
+     * @param spoolBuffers receives the spool buffers opened for attachments without an attachmentTarget
+     * @return number of attachments of the response
+     * @throws XMLStreamException when the response couldn't be parsed
+     * @throws IOException when the response couldn't be read or an attachment couldn't be written
+     */
+    int readResponse(MessageContext messageContext, CloseableHttpResponse response, SOAPEnvelope envelope,
+                     int firstIndex, List<EWSSpoolBuffer> spoolBuffers) throws XMLStreamException, IOException {
+        try {
+            XMLStreamReader reader = response != null ? StAXUtils.createXMLStreamReader(StAXParserConfiguration
+                    .NON_COALESCING, EWSClient.getResponseStream(response)) : openResponseReader(((
+                    Axis2MessageContext) messageContext).getAxis2MessageContext());
+            int attachments;
+            try {
+                attachments = decode(messageContext, reader, envelope, firstIndex, spoolBuffers);
+            } finally {
+                reader.close();
+            }
+            if (response != null) {
+                EWSClient.drain(response);
+            }
+            return attachments;
+        } finally {
+            if (response != null) {
+                response.close();
+            }
+        }
+    }
+
+    /**
+     * Makes the spool buffers of a response that has been read delete their temporary file once they are read.
+     */
+    static void handOver(List<EWSSpoolBuffer> spoolBuffers) {
+        for (EWSSpoolBuffer spoolBuffer : spoolBuffers) {
+            spoolBuffer.disposeAfterRead();
+        }
+    }
+
+    /**
+     * Deletes the spool buffers of a response which couldn't be read and removes the properties holding them.
+     */
+    static void discard(MessageContext messageContext, List<EWSSpoolBuffer> spoolBuffers) {
+        for (int i = 0; i < spoolBuffers.size(); i++) {
+            spoolBuffers.get(i).dispose();
+            messageContext.getPropertyKeySet().remove(property(EWSConstants.EWS_ATTACHMENT_CONTENT, i));
+        }
+    }
+
+    /**
+     * Opens a non coalescing reader on the unread response stream of the pass through transport, so that the
+     * attachment content is reported in parser buffer sized chunks. If the response has already been built, e.g.
+     * by a blocking call or an earlier mediator, the built envelope is read instead and holds the whole content.
+     */
+    private XMLStreamReader openResponseReader(org.apache.axis2.context.MessageContext axis2MessageContext) throws
+            IOException, XMLStreamException {
+        Object pipe = axis2MessageContext.getProperty(PassThroughConstants.PASS_THROUGH_PIPE);
+        if (pipe instanceof Pipe && !Boolean.TRUE.equals(axis2MessageContext.getProperty(PassThroughConstants
+                .MESSAGE_BUILDER_INVOKED))) {
+            return StAXUtils.createXMLStreamReader(StAXParserConfiguration.NON_COALESCING, ((Pipe) pipe)
+                    .getInputStream());
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("GetAttachment response has already been built, attachment content is read from memory");
+        }
+        RelayUtils.buildMessage(axis2MessageContext);
+        return axis2MessageContext.getEnvelope().getXMLStreamReaderWithoutCaching();
+    }
+
+    /**
+     * Copies the response body into the given envelope while decoding attachment content into its targets.
+     *
+     * @return number of attachments written
+     */
+    private int decode(MessageContext messageContext, XMLStreamReader reader, SOAPEnvelope envelope, int firstIndex,
+                       List<EWSSpoolBuffer> spoolBuffers) throws XMLStreamException, IOException {
+        Deque<OMElement> elements = new ArrayDeque<OMElement>();
+        EWSBase64Decoder decoder = null;
+        OutputStream target = null;
+        int attachments = firstIndex;
+        int event = reader.getEventType();
+        try {
+            while (true) {
+                switch (event) {
+                    case XMLStreamConstants.START_ELEMENT:
+                        if (elements.isEmpty()) {
+                            if (BODY.equals(reader.getLocalName()) && envelope.getNamespace().getNamespaceURI()
+                                    .equals(reader.getNamespaceURI())) {
+                                elements.push(envelope.getBody());
+                            }
+                        } else if (decoder == null && EWSConstants.CONTENT.equals(reader.getLocalName()) &&
+                                FILE_ATTACHMENT.equals(elements.peek().getLocalName())) {
+                            target = openTarget(messageContext, elements.peek(), attachments, spoolBuffers);
+                            decoder = new EWSBase64Decoder(target);
+                        } else if (decoder == null) {
+                            elements.push(copyStartElement(reader, elements.peek()));
+                        }
+                        break;
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.CDATA:
+                        if (decoder != null) {
+                            decoder.decode(reader.getTextCharacters(), reader.getTextStart(), reader
+                                    .getTextLength());
+                        } else if (!elements.isEmpty()) {
+                            soapFactory.createOMText(elements.peek(), reader.getText());
+                        }
+                        break;
+                    case XMLStreamConstants.END_ELEMENT:
+                        if (decoder != null) {
+                            long size = decoder.finish();
+                            target.close();
+                            messageContext.setProperty(property(EWSConstants.EWS_ATTACHMENT_SIZE, attachments),
+                                    size);
+                            decoder = null;
+                            target = null;
+                            attachments++;
+                        } else if (!elements.isEmpty()) {
+                            elements.pop();
+                        }
+                        break;
+                    default:
+                        break;
+                }
+                if (!reader.hasNext()) {
+                    break;
+                }
+                event = reader.next();
+            }
+        } finally {
+            if (target != null) {
+                target.close();
+            }
+        }
+        return attachments - firstIndex;
+    }
+
+    /**
+     * Opens the target for the content of an attachment and sets its name, content type and location properties.
+     */
+    private OutputStream openTarget(MessageContext messageContext, OMElement fileAttachment, int index,
+                                    List<EWSSpoolBuffer> spoolBuffers) throws IOException {
+        String name = childText(fileAttachment, EWSConstants.NAME_ELEMENT);
+        String contentType = childText(fileAttachment, EWSConstants.CONTENT_TYPE_ELEMENT);
+        if (name != null) {
+            messageContext.setProperty(property(EWSConstants.EWS_ATTACHMENT_NAME, index), name);
+        }
+        if (contentType != null) {
+            messageContext.setProperty(property(EWSConstants.EWS_ATTACHMENT_CONTENT_TYPE, index), contentType);
+        }
+        String attachmentTarget = (String) ConnectorUtils.lookupTemplateParamater(messageContext, EWSConstants
+                .ATTACHMENT_TARGET);
+        if (StringUtils.isEmpty(attachmentTarget)) {
+            EWSSpoolBuffer spoolBuffer = new EWSSpoolBuffer(spoolThreshold(messageContext), name, contentType);
+            spoolBuffers.add(spoolBuffer);
+            messageContext.setProperty(property(EWSConstants.EWS_ATTACHMENT_CONTENT, index), new DataHandler
+                    (spoolBuffer));
+            return spoolBuffer;
+        }
+        File file = new File(attachmentTarget);
+        if (file.isDirectory()) {
+            String fileName = name == null ? "" : new File(name).getName();
+            file = new File(file, fileName.length() == 0 ? "attachment-" + index : fileName);
+        } else if (index > 0) {
+            file = new File(attachmentTarget + "-" + index);
+        }
+        messageContext.setProperty(property(EWSConstants.EWS_ATTACHMENT_FILE, index), file.getAbsolutePath());
+        return new BufferedOutputStream(new FileOutputStream(file));
+    }
+
+    private int spoolThreshold(MessageContext messageContext) {
+        String spoolThreshold = (String) ConnectorUtils.lookupTemplateParamater(messageContext, EWSConstants
+                .SPOOL_THRESHOLD);
+        if (StringUtils.isEmpty(spoolThreshold)) {
+            return DEFAULT_SPOOL_THRESHOLD;
+        }
+        try {
+            return Integer.parseInt(spoolThreshold.trim());
+        } catch (NumberFormatException e) {
+            log.warn("Invalid spoolThreshold " + spoolThreshold + ", using " + DEFAULT_SPOOL_THRESHOLD);
+            return DEFAULT_SPOOL_THRESHOLD;
+        }
+    }
+
+    private OMElement copyStartElement(XMLStreamReader reader, OMElement parent) {
+        OMNamespace namespace = null;
+        if (!StringUtils.isEmpty(reader.getNamespaceURI())) {
+            namespace = soapFactory.createOMNamespace(reader.getNamespaceURI(), reader.getPrefix() == null ? "" :
+                    reader.getPrefix());
+        }
+        OMElement element = soapFactory.createOMElement(reader.getLocalName(), namespace, parent);
+        for (int i = 0; i < reader.getNamespaceCount(); i++) {
+            String prefix = reader.getNamespacePrefix(i);
+            if (!StringUtils.isEmpty(prefix)) {
+                element.declareNamespace(reader.getNamespaceURI(i), prefix);
+            }
+        }
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            OMNamespace attributeNamespace = null;
+            if (!StringUtils.isEmpty(reader.getAttributeNamespace(i))) {
+                attributeNamespace = soapFactory.createOMNamespace(reader.getAttributeNamespace(i), reader
+                        .getAttributePrefix(i));
+            }
+            element.addAttribute(reader.getAttributeLocalName(i), reader.getAttributeValue(i), attributeNamespace);
+        }
+        return element;
+    }
+
+    private static String childText(OMElement element, String localName) {
+        OMElement child = element.getFirstChildWithName(new QName(EWSConstants.TYPE_NAME_SPACE, localName));
+        return child == null ? null : child.getText();
+    }
+
+    private static String property(String name, int index) {
+        return index == 0 ? name : name + "_" + index;
+    }
+}
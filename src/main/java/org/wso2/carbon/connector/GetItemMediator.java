@@ -27,19 +27,36 @@ import org.apache.axiom.soap.SOAPFactory;
 import org.apache.axiom.soap.SOAPHeader;
 import org.apache.axis2.AxisFault;
 import org.apache.synapse.MessageContext;
+import org.json.JSONException;
 import org.wso2.carbon.connector.core.AbstractConnector;
 import org.wso2.carbon.connector.core.ConnectException;
+import org.wso2.carbon.connector.core.util.ConnectorUtils;
+import org.wso2.carbon.utils.xml.StringUtils;
 
+import javax.xml.namespace.QName;
 import javax.xml.stream.XMLStreamException;
-import javax.xml.transform.TransformerException;
+import java.io.IOException;
+import java.time.DateTimeException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 import static org.wso2.carbon.connector.EWSUtils.populateItemIds;
 import static org.wso2.carbon.connector.EWSUtils.populateItemShape;
 
 /**
- * This class used to generate GetItem Operation SOAP request
+ * This class used to generate GetItem Operation SOAP request. When a list of itemIds is given, the items are
+ * fetched here in chunks of batchSize ids, batchParallelism chunks at a time, and the merged response is set as
+ * the message envelope.
  */
 public class GetItemMediator extends AbstractConnector {
+    private static final int DEFAULT_BATCH_SIZE = 100;
+    private static final int DEFAULT_BATCH_PARALLELISM = 4;
+    private static final String SUCCESS = "Success";
+    private static final EWSItemCache itemCache = EWSItemCache.getInstance();
+
     OMNamespace type = EWSUtils.type;
     OMNamespace message = EWSUtils.message;
     SOAPFactory soapFactory = OMAbstractFactory.getSOAP11Factory();
@@ -49,8 +66,27 @@ public class GetItemMediator extends AbstractConnector {
         soapEnvelope.declareNamespace(type);
         soapEnvelope.declareNamespace(message);
         try {
+            String itemIds = (String) ConnectorUtils.lookupTemplateParamater(messageContext, EWSConstants
+                    .ITEM_ID_LIST);
+            boolean cacheItems = Boolean.parseBoolean((String) ConnectorUtils.lookupTemplateParamater(
+                    messageContext, EWSConstants.CACHE_ITEMS));
+            if (!StringUtils.isEmpty(itemIds)) {
+                getItems(messageContext, EWSUtils.parseIdList(itemIds), cacheItems);
+                return;
+            }
+            List<Map<String, String>> cacheableIds = cacheItems ? cacheableIds(populateItemIds(messageContext)) :
+                    null;
+            if (cacheableIds != null) {
+                getItems(messageContext, cacheableIds, true);
+                return;
+            }
+            messageContext.setProperty(EWSConstants.EWS_BATCH_COMPLETED, "false");
+            EWSMetrics.Operation metrics = EWSMetrics.get("GetItem");
+            long start = metrics.startBuild();
             soapEnvelope.addChild(populateSoapHeader(messageContext));
+            start = metrics.headerBuilt(start);
             soapEnvelope.addChild(populateBody(messageContext));
+            metrics.bodyBuilt(start);
             messageContext.setEnvelope(soapEnvelope);
         } catch (XMLStreamException e) {
             String msg = "Couldn't convert Element Body";
@@ -60,8 +96,16 @@ public class GetItemMediator extends AbstractConnector {
             String msg = "Couldn't set SOAPEnvelope to MessageContext";
             log.error(msg, axisFault);
             throw new ConnectException(axisFault, msg);
-        } catch (TransformerException e) {
-            String msg = "Couldn't transform message";
+        } catch (DateTimeException e) {
+            String msg = "Couldn't resolve time zone";
+            log.error(msg, e);
+            throw new ConnectException(e, msg);
+        } catch (JSONException e) {
+            String msg = "Couldn't parse itemIds";
+            log.error(msg, e);
+            throw new ConnectException(e, msg);
+        } catch (IOException e) {
+            String msg = "Couldn't send GetItem batch";
             log.error(msg, e);
             throw new ConnectException(e, msg);
         }
@@ -73,10 +117,8 @@ public class GetItemMediator extends AbstractConnector {
      * @param messageContext message context of request
      * @return Soap Header
      * @throws XMLStreamException
-     * @throws TransformerException throws when
      */
-    private SOAPHeader populateSoapHeader(MessageContext messageContext) throws XMLStreamException,
-            TransformerException {
+    private SOAPHeader populateSoapHeader(MessageContext messageContext) throws XMLStreamException {
         SOAPHeader soapHeader = soapFactory.createSOAPHeader();
         EWSUtils.populateManagementRolesHeader(soapHeader, messageContext);
         EWSUtils.populateDateTimePrecisionHeader(soapHeader, messageContext);
@@ -92,9 +134,8 @@ public class GetItemMediator extends AbstractConnector {
      * @param messageContext message context of request
      * @return Soap Body
      * @throws XMLStreamException
-     * @throws TransformerException throws when
      */
-    private SOAPBody populateBody(MessageContext messageContext) throws XMLStreamException, TransformerException {
+    private SOAPBody populateBody(MessageContext messageContext) throws XMLStreamException {
         SOAPBody soapBody = soapFactory.createSOAPBody();
         OMElement getItemElement = soapFactory.createOMElement(EWSConstants.GET_ITEM_ELEMENT, message);
         getItemElement.addChild(populateItemShape(messageContext));
@@ -103,5 +144,121 @@ public class GetItemMediator extends AbstractConnector {
         return soapBody;
     }
 
+    /**
+     * Used to get the listed ids of an ItemIds element, which can be served from the item cache when the element
+     * holds nothing but ItemId elements
+     * @param itemIdsElement ItemIds element of the request
+     * @return ids, null if the element holds occurrence or recurring master ids
+     */
+    private List<Map<String, String>> cacheableIds(OMElement itemIdsElement) {
+        List<Map<String, String>> ids = new ArrayList<Map<String, String>>();
+        for (Iterator children = itemIdsElement.getChildElements(); children.hasNext(); ) {
+            OMElement child = (OMElement) children.next();
+            if (!EWSConstants.ITEM_ID_ELEMENT.equals(child.getLocalName())) {
+                return null;
+            }
+            Map<String, String> id = new LinkedHashMap<String, String>();
+            id.put(EWSConstants.ID_ATTRIBUTE, child.getAttributeValue(new QName(EWSConstants.ID_ATTRIBUTE)));
+            String changeKey = child.getAttributeValue(new QName(EWSConstants.CHANGE_KEY_ATTRIBUTE));
+            if (changeKey != null) {
+                id.put(EWSConstants.CHANGE_KEY_ATTRIBUTE, changeKey);
+            }
+            ids.add(id);
+        }
+        return ids.isEmpty() ? null : ids;
+    }
+
+    /**
+     * Used to get the listed items in chunks and set the merged response to the message context. With the item
+     * cache, items whose Id and ChangeKey are cached are served locally, only the others are sent to EWS, and their
+     * response messages are cached.
+     * @param messageContext message context of request
+     * @param ids list of item ids
+     * @param cacheItems whether the item cache is used
+     * @throws XMLStreamException
+     * @throws IOException when no endpoint is configured or the dispatch got interrupted
+     */
+    private void getItems(MessageContext messageContext, List<Map<String, String>> ids, boolean cacheItems) throws
+            XMLStreamException, IOException {
+        SOAPHeader soapHeader = populateSoapHeader(messageContext);
+        OMElement itemShape = populateItemShape(messageContext);
+        EWSClient client = EWSClient.forMessage(messageContext);
+        OMElement[] cached = new OMElement[ids.size()];
+        List<Map<String, String>> misses = ids;
+        String scope = null;
+        if (cacheItems) {
+            scope = EWSItemCache.scope(client.getIdentity(messageContext), soapHeader, itemShape);
+            misses = new ArrayList<Map<String, String>>();
+            for (int i = 0; i < ids.size(); i++) {
+                Map<String, String> id = ids.get(i);
+                String key = EWSItemCache.key(scope, id.get(EWSConstants.ID_ATTRIBUTE), id.get(EWSConstants
+                        .CHANGE_KEY_ATTRIBUTE));
+                cached[i] = key == null ? null : itemCache.get(key);
+                if (cached[i] == null) {
+                    misses.add(id);
+                }
+            }
+        }
+        EWSBatchDispatcher.Result result = null;
+        if (!misses.isEmpty()) {
+            int batchSize = EWSUtils.lookupIntParameter(messageContext, EWSConstants.BATCH_SIZE, DEFAULT_BATCH_SIZE);
+            List<SOAPEnvelope> requests = new ArrayList<SOAPEnvelope>();
+            List<Integer> itemCounts = new ArrayList<Integer>();
+            for (List<Map<String, String>> chunk : EWSBatchDispatcher.chunk(misses, batchSize)) {
+                SOAPEnvelope request = EWSBatchDispatcher.createRequest(soapHeader);
+                OMElement getItemElement = soapFactory.createOMElement(EWSConstants.GET_ITEM_ELEMENT, message,
+                        request.getBody());
+                EWSUtils.copyElement(itemShape, getItemElement);
+                getItemElement.addChild(EWSUtils.buildIdList(EWSConstants.ITEM_IDS, message, EWSConstants
+                        .ITEM_ID_ELEMENT, chunk));
+                requests.add(request);
+                itemCounts.add(chunk.size());
+            }
+            EWSBatchDispatcher dispatcher = new EWSBatchDispatcher(client, EWSConstants.GET_ITEM_ELEMENT, EWSUtils
+                    .lookupIntParameter(messageContext, EWSConstants.BATCH_PARALLELISM, DEFAULT_BATCH_PARALLELISM));
+            result = dispatcher.dispatch(requests, itemCounts);
+        }
+        if (cacheItems) {
+            if (result != null) {
+                cacheResponseMessages(scope, result.getEnvelope());
+            }
+            result = EWSBatchDispatcher.merge(EWSConstants.GET_ITEM_ELEMENT, cached, result);
+            messageContext.setProperty(EWSConstants.EWS_ITEM_CACHE_HITS, ids.size() - misses.size());
+            messageContext.setProperty(EWSConstants.EWS_ITEM_CACHE_MISSES, misses.size());
+            messageContext.setProperty(EWSConstants.EWS_ITEM_CACHE_HIT_RATE, itemCache.getHitRate());
+        }
+        EWSBatchDispatcher.complete(messageContext, result);
+    }
+
+    /**
+     * Used to cache the successful response messages of a GetItem response under the Id and ChangeKey EWS returned
+     * @param scope digest of the request scope
+     * @param response GetItem response
+     */
+    private void cacheResponseMessages(String scope, SOAPEnvelope response) {
+        OMElement responseElement = response.getBody().getFirstElement();
+        OMElement responseMessages = responseElement == null ? null : responseElement.getFirstChildWithName(
+                new QName(EWSConstants.MESSAGES_NAME_SPACE, EWSConstants.RESPONSE_MESSAGES_ELEMENT));
+        if (responseMessages == null) {
+            return;
+        }
+        for (Iterator children = responseMessages.getChildElements(); children.hasNext(); ) {
+            OMElement responseMessage = (OMElement) children.next();
+            OMElement items = responseMessage.getFirstChildWithName(new QName(EWSConstants.MESSAGES_NAME_SPACE,
+                    EWSConstants.ITEMS));
+            OMElement item = items == null ? null : items.getFirstElement();
+            OMElement itemId = item == null ? null : item.getFirstChildWithName(new QName(EWSConstants
+                    .TYPE_NAME_SPACE, EWSConstants.ITEM_ID_ELEMENT));
+            if (itemId == null || !SUCCESS.equals(responseMessage.getAttributeValue(new QName(EWSConstants
+                    .RESPONSE_CLASS_ATTRIBUTE)))) {
+                continue;
+            }
+            String key = EWSItemCache.key(scope, itemId.getAttributeValue(new QName(EWSConstants.ID_ATTRIBUTE)),
+                    itemId.getAttributeValue(new QName(EWSConstants.CHANGE_KEY_ATTRIBUTE)));
+            if (key != null) {
+                itemCache.put(key, responseMessage);
+            }
+        }
+    }
 
 }
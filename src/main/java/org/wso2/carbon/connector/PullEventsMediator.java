@@ -0,0 +1,160 @@
+/*
+*  Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+package org.wso2.carbon.connector;
+
+
+import org.apache.axiom.om.OMAbstractFactory;
+import org.apache.axiom.om.OMElement;
+import org.apache.axiom.soap.SOAPFactory;
+import org.apache.axiom.soap.SOAPHeader;
+import org.apache.synapse.MessageContext;
+import org.wso2.carbon.connector.core.AbstractConnector;
+import org.wso2.carbon.connector.core.ConnectException;
+import org.wso2.carbon.connector.core.util.ConnectorUtils;
+import org.wso2.carbon.utils.xml.StringUtils;
+
+import javax.xml.stream.XMLStreamException;
+import java.io.IOException;
+import java.time.DateTimeException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * This class used to start pull subscriptions with Subscribe and GetEvents Operations.
+ * <p>
+ * One subscription is created for every mailbox in mailboxes, each impersonating its mailbox, or a single one with
+ * the impersonation header parameters when no mailboxes are given. Each subscription is polled in the background
+ * every pollInterval milliseconds and every event is mediated through the eventSequence. Invoking the operation
+ * again with the same parameters leaves running subscriptions untouched, so it can be invoked from a startup task.
+ * The stopPullEvents operation, invoked with the same parameters, stops the subscriptions again.
+ */
+public class PullEventsMediator extends AbstractConnector {
+    private static final long DEFAULT_POLL_INTERVAL = 30000;
+    private static final int DEFAULT_SUBSCRIPTION_TIMEOUT = 30;
+
+    private SOAPFactory soapFactory = OMAbstractFactory.getSOAP11Factory();
+
+    public void connect(MessageContext messageContext) throws ConnectException {
+        try {
+            List<EWSEventPoller> pollers = createPollers(messageContext);
+            for (EWSEventPoller poller : pollers) {
+                EWSEventPoller.start(poller);
+            }
+            messageContext.setProperty(EWSConstants.EWS_SUBSCRIPTION_COUNT, pollers.size());
+        } catch (XMLStreamException e) {
+            String msg = "Couldn't convert Element Body";
+            log.error(msg, e);
+            throw new ConnectException(e, msg);
+        } catch (DateTimeException e) {
+            String msg = "Couldn't resolve time zone";
+            log.error(msg, e);
+            throw new ConnectException(e, msg);
+        } catch (IOException e) {
+            String msg = "Couldn't start event polling";
+            log.error(msg, e);
+            throw new ConnectException(e, msg);
+        }
+    }
+
+    /**
+     * Used to create the pollers of the subscriptions the template parameters describe, without starting them
+     * @param messageContext message context of request
+     * @return one poller per mailbox, or a single poller when no mailboxes are given
+     * @throws XMLStreamException
+     * @throws IOException when the client couldn't be created
+     * @throws ConnectException when no eventSequence is given
+     */
+    List<EWSEventPoller> createPollers(MessageContext messageContext) throws XMLStreamException, IOException,
+            ConnectException {
+        String sequenceName = (String) ConnectorUtils.lookupTemplateParamater(messageContext, EWSConstants
+                .EVENT_SEQUENCE);
+        if (StringUtils.isEmpty(sequenceName)) {
+            throw new ConnectException("pullEvents requires an eventSequence");
+        }
+        OMElement pullSubscriptionRequest = EWSUtils.populateSubscriptionRequest(messageContext, EWSConstants
+                .PULL_SUBSCRIPTION_REQUEST_ELEMENT);
+        EWSEventHandler handler = new EWSSequenceEventHandler(messageContext.getEnvironment(), sequenceName);
+        // the pollers outlive the message, so the deadline of its requestTimeout doesn't apply to them
+        EWSClient client = EWSClient.forMessage(messageContext).withoutDeadline();
+        EWSSyncStateStore store = EWSSyncStateStore.forDirectory((String) ConnectorUtils
+                .lookupTemplateParamater(messageContext, EWSConstants.SYNC_STATE_DIRECTORY));
+        long pollInterval = EWSUtils.lookupLongParameter(messageContext, EWSConstants.POLL_INTERVAL,
+                DEFAULT_POLL_INTERVAL);
+        int subscriptionTimeout = EWSUtils.lookupIntParameter(messageContext, EWSConstants
+                .SUBSCRIPTION_TIMEOUT, DEFAULT_SUBSCRIPTION_TIMEOUT);
+        String mailboxes = (String) ConnectorUtils.lookupTemplateParamater(messageContext, EWSConstants
+                .MAILBOXES);
+        List<EWSEventPoller> pollers = new ArrayList<EWSEventPoller>();
+        if (StringUtils.isEmpty(mailboxes)) {
+            SOAPHeader soapHeader = populateSoapHeader(messageContext, true);
+            String smtpAddress = (String) ConnectorUtils.lookupTemplateParamater(messageContext, EWSConstants
+                    .SMTP_ADDRESS);
+            pollers.add(new EWSEventPoller(pollerKey(messageContext, soapHeader.toString(),
+                    pullSubscriptionRequest, sequenceName), smtpAddress, client, soapHeader,
+                    pullSubscriptionRequest, subscriptionTimeout, handler, store, pollInterval));
+        } else {
+            SOAPHeader baseHeader = populateSoapHeader(messageContext, false);
+            for (String mailbox : mailboxes.split(",")) {
+                mailbox = mailbox.trim();
+                if (mailbox.isEmpty()) {
+                    continue;
+                }
+                SOAPHeader soapHeader = soapFactory.createSOAPHeader();
+                for (Iterator headerBlocks = baseHeader.getChildElements(); headerBlocks.hasNext(); ) {
+                    EWSUtils.copyElement((OMElement) headerBlocks.next(), soapHeader);
+                }
+                soapHeader.addChild(EWSUtils.buildExchangeImpersonationHeader(null, null, null, mailbox));
+                pollers.add(new EWSEventPoller(pollerKey(messageContext, mailbox, pullSubscriptionRequest,
+                        sequenceName), mailbox, client, soapHeader, pullSubscriptionRequest, subscriptionTimeout,
+                        handler, store, pollInterval));
+            }
+        }
+        return pollers;
+    }
+
+    /**
+     * Used to populate soap headers
+     * @param messageContext message context of request
+     * @param impersonation true to add the impersonation header of the parameters
+     * @return Soap Header
+     * @throws XMLStreamException
+     */
+    private SOAPHeader populateSoapHeader(MessageContext messageContext, boolean impersonation) throws
+            XMLStreamException {
+        SOAPHeader soapHeader = soapFactory.createSOAPHeader();
+        EWSUtils.populateManagementRolesHeader(soapHeader, messageContext);
+        EWSUtils.populateDateTimePrecisionHeader(soapHeader, messageContext);
+        EWSUtils.populateTimeZoneContextHeader(soapHeader, messageContext);
+        EWSUtils.populateRequestedServerVersionHeader(soapHeader, messageContext);
+        EWSUtils.populateMailboxCulture(soapHeader, messageContext);
+        if (impersonation) {
+            EWSUtils.populateExchangeImpersonationHeader(soapHeader, messageContext);
+        }
+        return soapHeader;
+    }
+
+    /**
+     * The poller key identifies the endpoint, the mailbox, the subscribed folders and events and the sequence.
+     */
+    private String pollerKey(MessageContext messageContext, String mailbox, OMElement pullSubscriptionRequest,
+                             String sequenceName) {
+        return EWSConstants.PULL_SUBSCRIPTION_REQUEST_ELEMENT + '\n' + messageContext.getProperty(EWSConstants
+                .EWS_API_URL) + '\n' + mailbox + '\n' + pullSubscriptionRequest.toString() + '\n' + sequenceName;
+    }
+}
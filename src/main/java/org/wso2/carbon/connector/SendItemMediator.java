@@ -31,7 +31,6 @@ import org.wso2.carbon.connector.core.AbstractConnector;
 import org.wso2.carbon.connector.core.ConnectException;
 
 import javax.xml.stream.XMLStreamException;
-import javax.xml.transform.TransformerException;
 
 import static org.wso2.carbon.connector.EWSUtils.populateItemIds;
 import static org.wso2.carbon.connector.EWSUtils.populateSaveItemFolderIdElement;
@@ -50,8 +49,12 @@ public class SendItemMediator extends AbstractConnector {
         soapEnvelope.declareNamespace(message);
 
         try {
+            EWSMetrics.Operation metrics = EWSMetrics.get("SendItem");
+            long start = metrics.startBuild();
             soapEnvelope.addChild(populateSoapHeader(messageContext));
+            start = metrics.headerBuilt(start);
             soapEnvelope.addChild(populateBody(messageContext));
+            metrics.bodyBuilt(start);
             messageContext.setEnvelope(soapEnvelope);
         } catch (XMLStreamException e) {
             String msg = "Couldn't convert Element Body";
@@ -61,10 +64,6 @@ public class SendItemMediator extends AbstractConnector {
             String msg = "Couldn't set SOAPEnvelope to MessageContext";
             log.error(msg, axisFault);
             throw new ConnectException(axisFault, msg);
-        } catch (TransformerException e) {
-            String msg = "Couldn't transform message";
-            log.error(msg, e);
-            throw new ConnectException(e, msg);
         }
 
 
@@ -75,10 +74,8 @@ public class SendItemMediator extends AbstractConnector {
      * @param messageContext message context of request
      * @return Soap Header
      * @throws XMLStreamException
-     * @throws TransformerException throws when
      */
-    private SOAPHeader populateSoapHeader(MessageContext messageContext) throws XMLStreamException,
-            TransformerException {
+    private SOAPHeader populateSoapHeader(MessageContext messageContext) throws XMLStreamException {
         SOAPHeader soapHeader = soapFactory.createSOAPHeader();
         EWSUtils.populateRequestedServerVersionHeader(soapHeader, messageContext);
         EWSUtils.populateMailboxCulture(soapHeader, messageContext);
@@ -92,9 +89,8 @@ public class SendItemMediator extends AbstractConnector {
      * @param messageContext message context of request
      * @return Soap Body
      * @throws XMLStreamException
-     * @throws TransformerException throws when
      */
-    private SOAPBody populateBody(MessageContext messageContext) throws XMLStreamException, TransformerException {
+    private SOAPBody populateBody(MessageContext messageContext) throws XMLStreamException {
         SOAPBody soapBody = soapFactory.createSOAPBody();
         OMElement sendItemElement = soapFactory.createOMElement(EWSConstants.SEND_ITEM_ELEMENT, message);
         if (EWSUtils.setValueToXMLAttribute(messageContext, sendItemElement, EWSConstants.SAVE_ITEM_TO_FOLDER,
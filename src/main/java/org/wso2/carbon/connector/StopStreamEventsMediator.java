@@ -0,0 +1,54 @@
+/*
+*  Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+package org.wso2.carbon.connector;
+
+import org.apache.synapse.MessageContext;
+import org.wso2.carbon.connector.core.AbstractConnector;
+import org.wso2.carbon.connector.core.ConnectException;
+
+import javax.xml.stream.XMLStreamException;
+import java.io.IOException;
+import java.time.DateTimeException;
+
+/**
+ * This class used to stop the streaming listener streamEvents started with the same parameters, closing its
+ * connections and removing its subscriptions from the server with the Unsubscribe Operation. The watermarks are
+ * kept, so streamEvents invoked again catches up with the events in between.
+ */
+public class StopStreamEventsMediator extends AbstractConnector {
+
+    public void connect(MessageContext messageContext) throws ConnectException {
+        try {
+            EWSStreamingListener listener = new StreamEventsMediator().createListener(messageContext);
+            messageContext.setProperty(EWSConstants.EWS_SUBSCRIPTION_COUNT, EWSStreamingListener.stop(listener
+                    .getKey()) ? listener.getSubscriptionCount() : 0);
+        } catch (XMLStreamException e) {
+            String msg = "Couldn't convert Element Body";
+            log.error(msg, e);
+            throw new ConnectException(e, msg);
+        } catch (DateTimeException e) {
+            String msg = "Couldn't resolve time zone";
+            log.error(msg, e);
+            throw new ConnectException(e, msg);
+        } catch (IOException e) {
+            String msg = "Couldn't stop event streaming";
+            log.error(msg, e);
+            throw new ConnectException(e, msg);
+        }
+    }
+}
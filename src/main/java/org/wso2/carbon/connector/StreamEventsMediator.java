@@ -0,0 +1,149 @@
+/*
+*  Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+package org.wso2.carbon.connector;
+
+
+import org.apache.axiom.om.OMAbstractFactory;
+import org.apache.axiom.om.OMElement;
+import org.apache.axiom.soap.SOAPFactory;
+import org.apache.axiom.soap.SOAPHeader;
+import org.apache.synapse.MessageContext;
+import org.wso2.carbon.connector.core.AbstractConnector;
+import org.wso2.carbon.connector.core.ConnectException;
+import org.wso2.carbon.connector.core.util.ConnectorUtils;
+import org.wso2.carbon.utils.xml.StringUtils;
+
+import javax.xml.stream.XMLStreamException;
+import java.io.IOException;
+import java.time.DateTimeException;
+import java.util.Iterator;
+
+/**
+ * This class used to start streaming subscriptions with Subscribe and GetStreamingEvents Operations.
+ * <p>
+ * One subscription is created for every mailbox in mailboxes, each impersonating its mailbox, or a single one with
+ * the impersonation header parameters when no mailboxes are given. The subscriptions are read over long-lived
+ * connections of up to maxSubscriptionsPerConnection subscriptions each, and every event is mediated through the
+ * eventSequence as soon as it arrives. Invoking the operation again with the same parameters leaves the running
+ * listener untouched, so it can be invoked from a startup task; stopStreamEvents with the same parameters stops it.
+ */
+public class StreamEventsMediator extends AbstractConnector {
+    private static final int DEFAULT_MAX_SUBSCRIPTIONS_PER_CONNECTION = 200;
+    private static final int DEFAULT_CONNECTION_TIMEOUT = 30;
+
+    private SOAPFactory soapFactory = OMAbstractFactory.getSOAP11Factory();
+
+    public void connect(MessageContext messageContext) throws ConnectException {
+        try {
+            EWSStreamingListener listener = createListener(messageContext);
+            EWSStreamingListener.start(listener);
+            messageContext.setProperty(EWSConstants.EWS_SUBSCRIPTION_COUNT, listener.getSubscriptionCount());
+        } catch (XMLStreamException e) {
+            String msg = "Couldn't convert Element Body";
+            log.error(msg, e);
+            throw new ConnectException(e, msg);
+        } catch (DateTimeException e) {
+            String msg = "Couldn't resolve time zone";
+            log.error(msg, e);
+            throw new ConnectException(e, msg);
+        } catch (IOException e) {
+            String msg = "Couldn't start event streaming";
+            log.error(msg, e);
+            throw new ConnectException(e, msg);
+        }
+    }
+
+    /**
+     * Used to create the listener of the parameters, with the key a listener of the same parameters is registered
+     * under, also to stop it
+     *
+     * @param messageContext message context of request
+     * @return listener holding one subscription per mailbox, not started yet
+     */
+    EWSStreamingListener createListener(MessageContext messageContext) throws XMLStreamException, IOException,
+            ConnectException {
+        String sequenceName = (String) ConnectorUtils.lookupTemplateParamater(messageContext, EWSConstants
+                .EVENT_SEQUENCE);
+        if (StringUtils.isEmpty(sequenceName)) {
+            throw new ConnectException("streamEvents requires an eventSequence");
+        }
+        OMElement streamingSubscriptionRequest = EWSUtils.populateSubscriptionRequest(messageContext,
+                EWSConstants.STREAMING_SUBSCRIPTION_REQUEST_ELEMENT);
+        OMElement pullSubscriptionRequest = EWSUtils.populateSubscriptionRequest(messageContext, EWSConstants
+                .PULL_SUBSCRIPTION_REQUEST_ELEMENT);
+        EWSSyncStateStore store = EWSSyncStateStore.forDirectory((String) ConnectorUtils
+                .lookupTemplateParamater(messageContext, EWSConstants.SYNC_STATE_DIRECTORY));
+        String mailboxes = (String) ConnectorUtils.lookupTemplateParamater(messageContext, EWSConstants
+                .MAILBOXES);
+        String subscriptionKey = String.valueOf(messageContext.getProperty(EWSConstants.EWS_API_URL)) + '\n' +
+                pullSubscriptionRequest.toString() + '\n' + sequenceName;
+        EWSStreamingListener listener = new EWSStreamingListener(EWSConstants
+                .STREAMING_SUBSCRIPTION_REQUEST_ELEMENT + '\n' + subscriptionKey + '\n' + mailboxes,
+                EWSClient.forMessage(messageContext).withoutDeadline(), streamingSubscriptionRequest,
+                pullSubscriptionRequest, new EWSSequenceEventHandler(messageContext.getEnvironment(),
+                sequenceName), store,
+                EWSUtils.lookupIntParameter(messageContext, EWSConstants.MAX_SUBSCRIPTIONS_PER_CONNECTION,
+                        DEFAULT_MAX_SUBSCRIPTIONS_PER_CONNECTION),
+                EWSUtils.lookupIntParameter(messageContext, EWSConstants.CONNECTION_TIMEOUT,
+                        DEFAULT_CONNECTION_TIMEOUT));
+        if (StringUtils.isEmpty(mailboxes)) {
+            SOAPHeader soapHeader = populateSoapHeader(messageContext, true);
+            String smtpAddress = (String) ConnectorUtils.lookupTemplateParamater(messageContext, EWSConstants
+                    .SMTP_ADDRESS);
+            listener.addSubscription(smtpAddress, soapHeader, EWSConstants.STREAMING_SUBSCRIPTION_REQUEST_ELEMENT
+                    + '\n' + subscriptionKey + '\n' + soapHeader.toString());
+        } else {
+            SOAPHeader baseHeader = populateSoapHeader(messageContext, false);
+            for (String mailbox : mailboxes.split(",")) {
+                mailbox = mailbox.trim();
+                if (mailbox.isEmpty()) {
+                    continue;
+                }
+                SOAPHeader soapHeader = soapFactory.createSOAPHeader();
+                for (Iterator headerBlocks = baseHeader.getChildElements(); headerBlocks.hasNext(); ) {
+                    EWSUtils.copyElement((OMElement) headerBlocks.next(), soapHeader);
+                }
+                soapHeader.addChild(EWSUtils.buildExchangeImpersonationHeader(null, null, null, mailbox));
+                listener.addSubscription(mailbox, soapHeader, EWSConstants.STREAMING_SUBSCRIPTION_REQUEST_ELEMENT
+                        + '\n' + subscriptionKey + '\n' + mailbox);
+            }
+        }
+        return listener;
+    }
+
+    /**
+     * Used to populate soap headers
+     * @param messageContext message context of request
+     * @param impersonation true to add the impersonation header of the parameters
+     * @return Soap Header
+     * @throws XMLStreamException
+     */
+    private SOAPHeader populateSoapHeader(MessageContext messageContext, boolean impersonation) throws
+            XMLStreamException {
+        SOAPHeader soapHeader = soapFactory.createSOAPHeader();
+        EWSUtils.populateManagementRolesHeader(soapHeader, messageContext);
+        EWSUtils.populateDateTimePrecisionHeader(soapHeader, messageContext);
+        EWSUtils.populateTimeZoneContextHeader(soapHeader, messageContext);
+        EWSUtils.populateRequestedServerVersionHeader(soapHeader, messageContext);
+        EWSUtils.populateMailboxCulture(soapHeader, messageContext);
+        if (impersonation) {
+            EWSUtils.populateExchangeImpersonationHeader(soapHeader, messageContext);
+        }
+        return soapHeader;
+    }
+}
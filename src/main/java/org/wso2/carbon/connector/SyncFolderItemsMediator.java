@@ -0,0 +1,331 @@
+/*
+*  Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+package org.wso2.carbon.connector;
+
+
+import org.apache.axiom.om.OMAbstractFactory;
+import org.apache.axiom.om.OMElement;
+import org.apache.axiom.om.OMNamespace;
+import org.apache.axiom.soap.SOAPEnvelope;
+import org.apache.axiom.soap.SOAPFactory;
+import org.apache.axiom.soap.SOAPHeader;
+import org.apache.axis2.AxisFault;
+import org.apache.synapse.Mediator;
+import org.apache.synapse.MessageContext;
+import org.apache.synapse.util.MessageHelper;
+import org.wso2.carbon.connector.core.AbstractConnector;
+import org.wso2.carbon.connector.core.ConnectException;
+import org.wso2.carbon.connector.core.util.ConnectorUtils;
+import org.wso2.carbon.utils.xml.StringUtils;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLStreamException;
+import java.io.IOException;
+import java.time.DateTimeException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+
+import static org.wso2.carbon.connector.EWSUtils.populateItemShape;
+
+/**
+ * This class used to synchronize the items of a folder with SyncFolderItems Operation.
+ * <p>
+ * The SyncState of every mailbox and folder is kept in a local file store, so each invocation only returns the
+ * Create, Update, Delete and ReadFlagChange changes since the last committed state. Pages of maxChangesReturned
+ * changes are requested until IncludesLastItemInRange or until maxChanges changes were received.
+ * <p>
+ * With a pageSequence, each page is mediated through it on a copy of the message context, and the state of a page
+ * is stored once the sequence has processed it. Without one, at most 10000 changes are merged into a single
+ * response and nothing is stored: the new state is set as EWS_SYNC_STATE and stored by the commitSyncState
+ * operation after the changes have been processed. Until then, or when a call fails, the next invocation returns
+ * the same changes again.
+ */
+public class SyncFolderItemsMediator extends AbstractConnector {
+    private static final int DEFAULT_MAX_CHANGES_RETURNED = 512;
+    private static final long MAX_MERGED_CHANGES = 10000;
+    private static final QName SYNC_STATE = new QName(EWSConstants.MESSAGES_NAME_SPACE, EWSConstants
+            .SYNC_STATE_ELEMENT);
+    private static final QName INCLUDES_LAST_ITEM_IN_RANGE = new QName(EWSConstants.MESSAGES_NAME_SPACE,
+            EWSConstants.INCLUDES_LAST_ITEM_IN_RANGE_ELEMENT);
+    private static final QName MAX_CHANGES_RETURNED = new QName(EWSConstants.MESSAGES_NAME_SPACE, EWSConstants
+            .MAX_CHANGES_RETURNED_ELEMENT);
+    private static final QName CHANGES = new QName(EWSConstants.MESSAGES_NAME_SPACE, EWSConstants.CHANGES_ELEMENT);
+    private static final QName RESPONSE_CLASS = new QName(EWSConstants.RESPONSE_CLASS_ATTRIBUTE);
+
+    private OMNamespace type = EWSUtils.type;
+    private OMNamespace message = EWSUtils.message;
+    private SOAPFactory soapFactory = OMAbstractFactory.getSOAP11Factory();
+
+    public void connect(MessageContext messageContext) throws ConnectException {
+        try {
+            SOAPHeader soapHeader = populateSoapHeader(messageContext);
+            OMElement syncFolderItemsElement = populateSyncFolderItemsElement(messageContext);
+            String syncKey = syncKey(messageContext, soapHeader, syncFolderItemsElement);
+            EWSSyncStateStore store = EWSSyncStateStore.forDirectory((String) ConnectorUtils
+                    .lookupTemplateParamater(messageContext, EWSConstants.SYNC_STATE_DIRECTORY));
+            Lock lock = store.lock(syncKey);
+            lock.lock();
+            try {
+                synchronize(messageContext, store, syncKey, soapHeader, syncFolderItemsElement);
+            } finally {
+                lock.unlock();
+            }
+        } catch (XMLStreamException e) {
+            String msg = "Couldn't convert Element Body";
+            log.error(msg, e);
+            throw new ConnectException(e, msg);
+        } catch (AxisFault axisFault) {
+            String msg = "Couldn't set SOAPEnvelope to MessageContext";
+            log.error(msg, axisFault);
+            throw new ConnectException(axisFault, msg);
+        } catch (DateTimeException e) {
+            String msg = "Couldn't resolve time zone";
+            log.error(msg, e);
+            throw new ConnectException(e, msg);
+        } catch (IOException e) {
+            String msg = "Couldn't synchronize folder items";
+            log.error(msg, e);
+            throw new ConnectException(e, msg);
+        }
+    }
+
+    /**
+     * Used to populate soap headers
+     * @param messageContext message context of request
+     * @return Soap Header
+     * @throws XMLStreamException
+     */
+    private SOAPHeader populateSoapHeader(MessageContext messageContext) throws XMLStreamException {
+        SOAPHeader soapHeader = soapFactory.createSOAPHeader();
+        EWSUtils.populateManagementRolesHeader(soapHeader, messageContext);
+        EWSUtils.populateDateTimePrecisionHeader(soapHeader, messageContext);
+        EWSUtils.populateTimeZoneContextHeader(soapHeader, messageContext);
+        EWSUtils.populateRequestedServerVersionHeader(soapHeader, messageContext);
+        EWSUtils.populateMailboxCulture(soapHeader, messageContext);
+        EWSUtils.populateExchangeImpersonationHeader(soapHeader, messageContext);
+        return soapHeader;
+    }
+
+    /**
+     * Used to populate SyncFolderItems element without its SyncState
+     * @param messageContext message context of request
+     * @return SyncFolderItems element
+     * @throws XMLStreamException
+     */
+    private OMElement populateSyncFolderItemsElement(MessageContext messageContext) throws XMLStreamException {
+        OMElement syncFolderItemsElement = soapFactory.createOMElement(EWSConstants.SYNC_FOLDER_ITEMS_ELEMENT,
+                message);
+        syncFolderItemsElement.addChild(populateItemShape(messageContext));
+        OMElement syncFolderIdElement = soapFactory.createOMElement(EWSConstants.SYNC_FOLDER_ID_ELEMENT, message,
+                syncFolderItemsElement);
+        if (!EWSUtils.populateSyncFolderIdElement(messageContext, syncFolderIdElement)) {
+            throw new XMLStreamException("SyncFolderItems requires a folderId or distinguishedFolderId");
+        }
+        String ignore = (String) ConnectorUtils.lookupTemplateParamater(messageContext, EWSConstants.IGNORE);
+        if (!StringUtils.isEmpty(ignore)) {
+            OMElement ignoreElement = EWSNamespaceRewriter.rewrite(ignore);
+            ignoreElement.setNamespace(message);
+            syncFolderItemsElement.addChild(ignoreElement);
+        }
+        soapFactory.createOMElement(EWSConstants.MAX_CHANGES_RETURNED_ELEMENT, message, syncFolderItemsElement)
+                .setText(Integer.toString(EWSUtils.lookupIntParameter(messageContext, EWSConstants
+                        .MAX_CHANGES_RETURNED, DEFAULT_MAX_CHANGES_RETURNED)));
+        String syncScope = (String) ConnectorUtils.lookupTemplateParamater(messageContext, EWSConstants.SYNC_SCOPE);
+        if (!StringUtils.isEmpty(syncScope)) {
+            soapFactory.createOMElement(EWSConstants.SYNC_SCOPE_ELEMENT, message, syncFolderItemsElement).setText
+                    (syncScope);
+        }
+        return syncFolderItemsElement;
+    }
+
+    /**
+     * The sync key identifies the endpoint, the impersonated mailbox and the folder, unless given explicitly.
+     */
+    private String syncKey(MessageContext messageContext, SOAPHeader soapHeader, OMElement syncFolderItemsElement) {
+        String syncKey = (String) ConnectorUtils.lookupTemplateParamater(messageContext, EWSConstants.SYNC_KEY);
+        if (!StringUtils.isEmpty(syncKey)) {
+            return syncKey;
+        }
+        StringBuilder key = new StringBuilder();
+        key.append(messageContext.getProperty(EWSConstants.EWS_API_URL)).append('\n');
+        OMElement impersonation = soapHeader.getFirstChildWithName(new QName(EWSConstants.TYPE_NAME_SPACE,
+                EWSConstants.EXCHANGE_IMPERSONATION_HEADER));
+        if (impersonation != null) {
+            key.append(impersonation.toString());
+        }
+        key.append('\n').append(syncFolderItemsElement.getFirstChildWithName(new QName(EWSConstants
+                .MESSAGES_NAME_SPACE, EWSConstants.SYNC_FOLDER_ID_ELEMENT)).toString());
+        return key.toString();
+    }
+
+    /**
+     * Used to request the pages of changes since the stored state and either mediate them through the page sequence
+     * or set them merged to the message context
+     * @param messageContext message context of request
+     * @param store sync state store
+     * @param syncKey sync key
+     * @param soapHeader header of every request
+     * @param syncFolderItemsElement SyncFolderItems element without its SyncState
+     * @throws IOException when the endpoint couldn't be reached, the page sequence doesn't exist or the state
+     * couldn't be stored
+     * @throws XMLStreamException when a response couldn't be parsed
+     */
+    private void synchronize(MessageContext messageContext, EWSSyncStateStore store, String syncKey, SOAPHeader
+            soapHeader, OMElement syncFolderItemsElement) throws IOException, XMLStreamException {
+        String syncState = (String) ConnectorUtils.lookupTemplateParamater(messageContext, EWSConstants.SYNC_STATE);
+        if (StringUtils.isEmpty(syncState)) {
+            syncState = store.read(syncKey);
+        }
+        String pageSequence = (String) ConnectorUtils.lookupTemplateParamater(messageContext, EWSConstants
+                .PAGE_SEQUENCE);
+        Mediator sequence = null;
+        if (!StringUtils.isEmpty(pageSequence)) {
+            sequence = messageContext.getSequence(pageSequence);
+            if (sequence == null) {
+                throw new IOException("Page sequence " + pageSequence + " doesn't exist");
+            }
+        }
+        long maxChanges = EWSUtils.lookupLongParameter(messageContext, EWSConstants.MAX_CHANGES, sequence == null ?
+                MAX_MERGED_CHANGES : Long.MAX_VALUE);
+        if (sequence == null && maxChanges > MAX_MERGED_CHANGES) {
+            log.warn("maxChanges " + maxChanges + " is more than a merged response holds, merging at most " +
+                    MAX_MERGED_CHANGES + " changes; use a pageSequence to synchronize larger folders");
+            maxChanges = MAX_MERGED_CHANGES;
+        }
+        EWSClient client = EWSClient.forMessage(messageContext);
+        SOAPEnvelope merged = null;
+        OMElement mergedChanges = null;
+        int changeCount = 0;
+        int pageCount = 0;
+        boolean includesLastItemInRange = false;
+        while (changeCount < maxChanges) {
+            SOAPEnvelope request = EWSBatchDispatcher.createRequest(soapHeader);
+            OMElement requestElement = EWSUtils.copyElement(syncFolderItemsElement, request.getBody());
+            if (!StringUtils.isEmpty(syncState)) {
+                OMElement syncStateElement = soapFactory.createOMElement(EWSConstants.SYNC_STATE_ELEMENT, message);
+                syncStateElement.setText(syncState);
+                requestElement.getFirstChildWithName(new QName(EWSConstants.MESSAGES_NAME_SPACE, EWSConstants
+                        .SYNC_FOLDER_ID_ELEMENT)).insertSiblingAfter(syncStateElement);
+            }
+            OMElement maxChangesReturned = requestElement.getFirstChildWithName(MAX_CHANGES_RETURNED);
+            if (Integer.parseInt(maxChangesReturned.getText()) > maxChanges - changeCount) {
+                maxChangesReturned.setText(Long.toString(maxChanges - changeCount));
+            }
+            SOAPEnvelope response = client.send(EWSConstants.SYNC_FOLDER_ITEMS_ELEMENT, request);
+            OMElement responseMessage = EWSUtils.getResponseMessage(response);
+            if (responseMessage == null || "Error".equals(responseMessage.getAttributeValue(RESPONSE_CLASS))) {
+                if (sequence == null && merged != null) {
+                    // the pages merged so far are returned with their state, so no change gets lost when it's
+                    // committed and the next synchronization asks for the failed page again
+                    log.warn("SyncFolderItems page " + pageCount + " failed, returning the " + changeCount +
+                            " changes of the pages before");
+                } else {
+                    merged = response;
+                }
+                includesLastItemInRange = false;
+                break;
+            }
+            OMElement syncStateElement = responseMessage.getFirstChildWithName(SYNC_STATE);
+            OMElement changes = responseMessage.getFirstChildWithName(CHANGES);
+            List<OMElement> pageChanges = new ArrayList<OMElement>();
+            if (changes != null) {
+                for (Iterator iterator = changes.getChildElements(); iterator.hasNext(); ) {
+                    pageChanges.add((OMElement) iterator.next());
+                }
+            }
+            OMElement includesLastItem = responseMessage.getFirstChildWithName(INCLUDES_LAST_ITEM_IN_RANGE);
+            includesLastItemInRange = includesLastItem == null || Boolean.parseBoolean(includesLastItem.getText()
+                    .trim()) || pageChanges.isEmpty();
+            String pageSyncState = syncStateElement == null ? syncState : syncStateElement.getText();
+            if (sequence != null) {
+                pageCount++;
+                merged = withoutChanges(response, changes);
+                MessageContext pageContext = MessageHelper.cloneMessageContext(messageContext);
+                pageContext.setEnvelope(response);
+                pageContext.setProperty(EWSConstants.EWS_PAGE_INDEX, pageCount - 1);
+                pageContext.setProperty(EWSConstants.EWS_SYNC_KEY, syncKey);
+                pageContext.setProperty(EWSConstants.EWS_SYNC_STATE, pageSyncState);
+                pageContext.setProperty(EWSConstants.EWS_CHANGE_COUNT, pageChanges.size());
+                if (!sequence.mediate(pageContext)) {
+                    log.warn("Page sequence " + pageSequence + " didn't complete page " + (pageCount - 1) +
+                            ", its changes are returned again by the next synchronization");
+                    includesLastItemInRange = false;
+                    break;
+                }
+                if (!StringUtils.isEmpty(pageSyncState)) {
+                    store.write(syncKey, pageSyncState);
+                }
+            } else if (merged == null) {
+                pageCount++;
+                merged = response;
+                mergedChanges = changes;
+            } else {
+                pageCount++;
+                if (mergedChanges != null) {
+                    for (OMElement change : pageChanges) {
+                        change.detach();
+                        mergedChanges.addChild(change);
+                    }
+                }
+                OMElement mergedResponseMessage = EWSUtils.getResponseMessage(merged);
+                replaceText(mergedResponseMessage.getFirstChildWithName(SYNC_STATE), syncStateElement);
+                replaceText(mergedResponseMessage.getFirstChildWithName(INCLUDES_LAST_ITEM_IN_RANGE),
+                        includesLastItem);
+            }
+            changeCount += pageChanges.size();
+            syncState = pageSyncState;
+            if (includesLastItemInRange) {
+                break;
+            }
+        }
+        if (merged != null) {
+            messageContext.setEnvelope(merged);
+        }
+        messageContext.setProperty(EWSConstants.EWS_BATCH_COMPLETED, "true");
+        messageContext.setProperty(EWSConstants.EWS_SYNC_KEY, syncKey);
+        messageContext.setProperty(EWSConstants.EWS_SYNC_STATE, syncState);
+        messageContext.setProperty(EWSConstants.EWS_SYNC_INCLUDES_LAST_ITEM_IN_RANGE, Boolean.toString(
+                includesLastItemInRange));
+        messageContext.setProperty(EWSConstants.EWS_PAGE_COUNT, pageCount);
+        messageContext.setProperty(EWSConstants.EWS_CHANGE_COUNT, changeCount);
+    }
+
+    /**
+     * Copies the response of a page without its changes, to be set as the response once the page was mediated.
+     */
+    private SOAPEnvelope withoutChanges(SOAPEnvelope response, OMElement changes) {
+        if (changes == null) {
+            return MessageHelper.cloneSOAPEnvelope(response);
+        }
+        OMElement emptyChanges = soapFactory.createOMElement(EWSConstants.CHANGES_ELEMENT, message);
+        changes.insertSiblingBefore(emptyChanges);
+        changes.detach();
+        SOAPEnvelope copy = MessageHelper.cloneSOAPEnvelope(response);
+        emptyChanges.insertSiblingBefore(changes);
+        emptyChanges.detach();
+        return copy;
+    }
+
+    private static void replaceText(OMElement target, OMElement source) {
+        if (target != null && source != null) {
+            target.setText(source.getText());
+        }
+    }
+}
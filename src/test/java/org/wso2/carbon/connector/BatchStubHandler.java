@@ -0,0 +1,139 @@
+/*
+*  Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+package org.wso2.carbon.connector;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Stub of an EWS batch operation, which answers each item of a request with a ResponseMessage, or the whole request
+ * with a SOAP fault. Earlier requests are answered later, so that chunks complete out of order, and the requests
+ * in flight at the same time are counted.
+ */
+abstract class BatchStubHandler implements HttpHandler {
+    private static final String ENVELOPE_START = "<s:Envelope xmlns:s=\"http://schemas.xmlsoap.org/soap/envelope/\">" +
+            "<s:Body>";
+    private static final String ENVELOPE_END = "</s:Body></s:Envelope>";
+
+    private final String operation;
+    private final Pattern item;
+    private final List<List<String>> requests = Collections.synchronizedList(new ArrayList<List<String>>());
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+
+    /**
+     * @param operation EWS operation, e.g. GetItem
+     * @param item pattern whose first group is the key of an item in the request
+     */
+    BatchStubHandler(String operation, Pattern item) {
+        this.operation = operation;
+        this.item = item;
+    }
+
+    /**
+     * @return SOAP fault to answer the request of the items with, null to answer each item
+     */
+    String fault(List<String> items) {
+        return null;
+    }
+
+    /**
+     * @return ResponseMessage of an item, without its namespace declarations
+     */
+    abstract String responseMessage(String item);
+
+    public void handle(HttpExchange exchange) throws IOException {
+        int current = inFlight.incrementAndGet();
+        try {
+            int max;
+            while (current > (max = maxInFlight.get()) && !maxInFlight.compareAndSet(max, current)) {
+                continue;
+            }
+            List<String> items = new ArrayList<String>();
+            Matcher matcher = item.matcher(read(exchange.getRequestBody()));
+            while (matcher.find()) {
+                items.add(matcher.group(1));
+            }
+            int index;
+            synchronized (requests) {
+                index = requests.size();
+                requests.add(items);
+            }
+            try {
+                Thread.sleep(Math.max(0, 200 - 50 * index));
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            String fault = fault(items);
+            if (fault != null) {
+                StubServer.respond(exchange, 500, StubServer.XML, ENVELOPE_START + fault + ENVELOPE_END);
+                return;
+            }
+            StringBuilder body = new StringBuilder(ENVELOPE_START).append("<m:").append(operation)
+                    .append("Response xmlns:m=\"").append(EWSConstants.MESSAGES_NAME_SPACE).append("\" xmlns:t=\"")
+                    .append(EWSConstants.TYPE_NAME_SPACE).append("\"><m:ResponseMessages>");
+            for (String key : items) {
+                body.append(responseMessage(key));
+            }
+            body.append("</m:ResponseMessages></m:").append(operation).append("Response>").append(ENVELOPE_END);
+            StubServer.respond(exchange, 200, StubServer.XML, body.toString());
+        } finally {
+            inFlight.decrementAndGet();
+        }
+    }
+
+    /**
+     * @return items of each request, in the order the requests arrived
+     */
+    List<List<String>> getRequests() {
+        synchronized (requests) {
+            return new ArrayList<List<String>>(requests);
+        }
+    }
+
+    int getMaxInFlight() {
+        return maxInFlight.get();
+    }
+
+    static String fault(String responseCode) {
+        return "<s:Fault><faultcode>s:Client</faultcode><faultstring>" + responseCode + "</faultstring><detail>" +
+                "<e:ResponseCode xmlns:e=\"http://schemas.microsoft.com/exchange/services/2006/errors\">" +
+                responseCode + "</e:ResponseCode></detail></s:Fault>";
+    }
+
+    private static String read(InputStream input) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = input.read(buffer)) >= 0) {
+            bytes.write(buffer, 0, read);
+        }
+        return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,254 @@
+/*
+*  Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+package org.wso2.carbon.connector;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.apache.axiom.om.OMElement;
+import org.apache.synapse.MessageContext;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import org.wso2.carbon.connector.core.ConnectException;
+
+import javax.xml.namespace.QName;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Tests that createAttachment only reads attachment files below the configured attachment directory, and that a
+ * streamed attachment is sent without being held in memory.
+ */
+public class CreateAttachmentMediatorTest {
+    private static final byte[] CONTENT = "attachment content".getBytes(StandardCharsets.UTF_8);
+    private static final int LARGE_ATTACHMENT_SIZE = 48 * 1024 * 1024;
+    private static final String HEAP_LIMIT = "-Xmx32m";
+    private static final String STREAM_PROPERTY = "attachmentStream";
+    private static final byte[] RESPONSE = ("<s:Envelope xmlns:s=\"http://schemas.xmlsoap.org/soap/envelope/\">" +
+            "<s:Body><m:CreateAttachmentResponse xmlns:m=\"" + EWSConstants.MESSAGES_NAME_SPACE + "\">" +
+            "<m:ResponseMessages><m:CreateAttachmentResponseMessage ResponseClass=\"Success\"><m:ResponseCode>" +
+            "NoError</m:ResponseCode></m:CreateAttachmentResponseMessage></m:ResponseMessages>" +
+            "</m:CreateAttachmentResponse></s:Body></s:Envelope>").getBytes(StandardCharsets.UTF_8);
+
+    private File root;
+    private File directory;
+    private File outside;
+
+    @BeforeClass
+    public void createFiles() throws IOException {
+        root = File.createTempFile("ews-attachments", "");
+        Assert.assertTrue(root.delete() && root.mkdir());
+        directory = new File(root, "allowed");
+        Assert.assertTrue(new File(directory, "nested").mkdirs());
+        write(new File(directory, "report.txt"));
+        write(new File(directory, "nested/report.txt"));
+        outside = new File(root, "secret.txt");
+        write(outside);
+    }
+
+    @AfterClass
+    public void deleteFiles() {
+        delete(root);
+    }
+
+    @Test(description = "relative and absolute paths inside the directory are resolved")
+    public void testFileInsideDirectory() throws IOException {
+        File expected = new File(directory, "nested/report.txt").getCanonicalFile();
+        Assert.assertEquals(CreateAttachmentMediator.resolveAttachmentFile(directory.getPath(), "nested/report.txt"),
+                expected);
+        Assert.assertEquals(CreateAttachmentMediator.resolveAttachmentFile(directory.getPath(),
+                expected.getPath()), expected);
+        Assert.assertEquals(CreateAttachmentMediator.resolveAttachmentFile(directory.getPath(),
+                "nested/../nested/report.txt"), expected);
+    }
+
+    @Test(expectedExceptions = IOException.class, description = "parent references can't leave the directory")
+    public void testTraversalIsRejected() throws IOException {
+        CreateAttachmentMediator.resolveAttachmentFile(directory.getPath(), "../secret.txt");
+    }
+
+    @Test(expectedExceptions = IOException.class, description = "absolute paths outside the directory are rejected")
+    public void testAbsolutePathOutsideIsRejected() throws IOException {
+        CreateAttachmentMediator.resolveAttachmentFile(directory.getPath(), outside.getAbsolutePath());
+    }
+
+    @Test(expectedExceptions = IOException.class, description = "a sibling sharing the directory name as prefix " +
+            "is outside of it")
+    public void testPrefixSiblingIsRejected() throws IOException {
+        File sibling = new File(root, "allowed-other");
+        Assert.assertTrue(sibling.mkdir());
+        write(new File(sibling, "report.txt"));
+        CreateAttachmentMediator.resolveAttachmentFile(directory.getPath(), "../allowed-other/report.txt");
+    }
+
+    @Test(expectedExceptions = IOException.class, description = "the directory itself isn't an attachment file")
+    public void testDirectoryIsRejected() throws IOException {
+        CreateAttachmentMediator.resolveAttachmentFile(directory.getPath(), ".");
+    }
+
+    @Test(expectedExceptions = FileNotFoundException.class, description = "missing files are reported")
+    public void testMissingFileIsRejected() throws IOException {
+        CreateAttachmentMediator.resolveAttachmentFile(directory.getPath(), "missing.txt");
+    }
+
+    @Test(expectedExceptions = IOException.class, description = "attachmentFile needs a configured directory")
+    public void testNoDirectoryIsRejected() throws IOException {
+        CreateAttachmentMediator.resolveAttachmentFile(null, outside.getAbsolutePath());
+    }
+
+    @Test(description = "the mediator streams a file from the configured directory")
+    public void testMediatorReadsFileInsideDirectory() throws Exception {
+        MessageContext messageContext = messageContext("report.txt");
+        messageContext.setProperty(EWSConstants.EWS_ATTACHMENT_DIRECTORY, directory.getPath());
+        new CreateAttachmentMediator().connect(messageContext);
+        OMElement fileAttachment = messageContext.getEnvelope().getBody().getFirstElement().getFirstChildWithName(
+                new QName(EWSConstants.MESSAGES_NAME_SPACE, EWSConstants.ATTACHMENTS_ELEMENT)).getFirstElement();
+        Assert.assertEquals(fileAttachment.getFirstChildWithName(new QName(EWSConstants.TYPE_NAME_SPACE,
+                EWSConstants.NAME_ELEMENT)).getText(), "report.txt");
+        Assert.assertEquals(Base64.getDecoder().decode(fileAttachment.getFirstChildWithName(new QName(
+                EWSConstants.TYPE_NAME_SPACE, EWSConstants.CONTENT)).getText()), CONTENT);
+    }
+
+    @Test(expectedExceptions = ConnectException.class, description = "the mediator fails for files outside the " +
+            "configured directory")
+    public void testMediatorRejectsFileOutsideDirectory() throws Exception {
+        MessageContext messageContext = messageContext("../secret.txt");
+        messageContext.setProperty(EWSConstants.EWS_ATTACHMENT_DIRECTORY, directory.getPath());
+        new CreateAttachmentMediator().connect(messageContext);
+    }
+
+    @Test(expectedExceptions = ConnectException.class, description = "the mediator fails when no directory is " +
+            "configured")
+    public void testMediatorRejectsFileWithoutDirectory() throws Exception {
+        new CreateAttachmentMediator().connect(messageContext(outside.getAbsolutePath()));
+    }
+
+    @Test(description = "a 48 MB attachment stream is sent with a 32 MB heap")
+    public void testStreamedAttachmentInSmallHeap() throws Exception {
+        String text = SmallHeapJvm.run(CreateAttachmentMediatorTest.class, HEAP_LIMIT);
+        // the base64 encoded content alone is a third larger than the attachment
+        Matcher sent = Pattern.compile("sent (\\d+) bytes").matcher(text);
+        Assert.assertTrue(sent.find(), text);
+        Assert.assertTrue(Long.parseLong(sent.group(1)) > LARGE_ATTACHMENT_SIZE / 3 * 4, text);
+    }
+
+    /**
+     * Sends a CreateAttachment request streaming a 48 MB attachment from a message context property to a stub
+     * server, run by {@link #testStreamedAttachmentInSmallHeap()} in a JVM with a 32 MB heap.
+     */
+    public static void main(String[] args) throws Exception {
+        final long[] received = new long[1];
+        StubServer server = new StubServer().handle("/ews", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                InputStream body = exchange.getRequestBody();
+                byte[] buffer = new byte[64 * 1024];
+                int read;
+                while ((read = body.read(buffer)) > 0) {
+                    received[0] += read;
+                }
+                StubServer.respond(exchange, 200, StubServer.XML, RESPONSE);
+            }
+        }).start();
+        try {
+            Map<String, Object> parameters = new HashMap<String, Object>();
+            parameters.put(EWSConstants.ATTACHMENT_STREAM_PROPERTY, STREAM_PROPERTY);
+            parameters.put(EWSConstants.ATTACHMENT_NAME, "large.bin");
+            MessageContext messageContext = TemplateMessageContexts.create("createAttachment", parameters);
+            messageContext.setProperty(STREAM_PROPERTY, new GeneratedContent(LARGE_ATTACHMENT_SIZE));
+            messageContext.setProperty(EWSConstants.EWS_API_URL, server.url("/ews"));
+            new CreateAttachmentMediator().connect(messageContext);
+            messageContext.setWSAAction(EWSConstants.MESSAGES_NAME_SPACE + "/CreateAttachment");
+            EWSClient.call(messageContext);
+            if (messageContext.getEnvelope().hasFault()) {
+                throw new IllegalStateException("CreateAttachment failed: " + messageContext.getEnvelope());
+            }
+        } finally {
+            server.stop();
+        }
+        System.out.println("sent " + received[0] + " bytes");
+    }
+
+    private static MessageContext messageContext(String attachmentFile) {
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put(EWSConstants.ATTACHMENT_FILE, attachmentFile);
+        return TemplateMessageContexts.create("createAttachment", parameters);
+    }
+
+    private static void write(File file) throws IOException {
+        OutputStream output = new FileOutputStream(file);
+        try {
+            output.write(CONTENT);
+        } finally {
+            output.close();
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * Attachment content which is generated while it is read.
+     */
+    private static final class GeneratedContent extends InputStream {
+        private long remaining;
+
+        private GeneratedContent(long size) {
+            this.remaining = size;
+        }
+
+        @Override
+        public int read() {
+            if (remaining == 0) {
+                return -1;
+            }
+            remaining--;
+            return (int) (remaining & 0xff);
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (remaining == 0) {
+                return -1;
+            }
+            int read = (int) Math.min(length, remaining);
+            for (int i = 0; i < read; i++) {
+                bytes[offset + i] = (byte) (remaining - i);
+            }
+            remaining -= read;
+            return read;
+        }
+    }
+}
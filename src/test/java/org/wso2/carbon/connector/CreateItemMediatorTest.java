@@ -0,0 +1,142 @@
+/*
+*  Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+package org.wso2.carbon.connector;
+
+import org.apache.axiom.om.OMElement;
+import org.apache.axiom.om.util.AXIOMUtil;
+import org.apache.synapse.MessageContext;
+import org.json.JSONException;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Tests that a CreateItem batch creates the listed messages in chunks and merges the created item ids in input order.
+ */
+public class CreateItemMediatorTest {
+    private static final Pattern SUBJECT = Pattern.compile("Subject>(\\w+)<");
+    private static final Pattern RESPONSE_ID = Pattern.compile("ItemId Id=\"(\\w+)\"|ResponseCode>(\\w+)<");
+    private static final String FAILING_SUBJECT = "fail";
+
+    private StubServer server;
+    private BatchStubHandler handler;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        handler = new BatchStubHandler(EWSConstants.CREATE_ITEM_ELEMENT, SUBJECT) {
+            String responseMessage(String item) {
+                if (FAILING_SUBJECT.equals(item)) {
+                    return "<m:CreateItemResponseMessage ResponseClass=\"Error\"><m:MessageText>The quota was " +
+                            "exceeded.</m:MessageText><m:ResponseCode>ErrorQuotaExceeded</m:ResponseCode>" +
+                            "<m:Items/></m:CreateItemResponseMessage>";
+                }
+                return "<m:CreateItemResponseMessage ResponseClass=\"Success\"><m:ResponseCode>NoError" +
+                        "</m:ResponseCode><m:Items><t:Message><t:ItemId Id=\"id_" + item + "\" ChangeKey=\"c\"/>" +
+                        "</t:Message></m:Items></m:CreateItemResponseMessage>";
+            }
+        };
+        server = new StubServer().handle("/ews", handler).start();
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test(description = "a message list with a failing message is created in chunks and merged in input order")
+    public void testMixedBatch() throws Exception {
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put(EWSConstants.MESSAGE_LIST, "[{\"subject\":\"s0\"},{\"subject\":\"s1\"},{\"subject\":\"fail\"}," +
+                "{\"subject\":\"s3\"},{\"subject\":\"s4\"}]");
+        parameters.put(EWSConstants.BATCH_SIZE, "2");
+        MessageContext messageContext = TemplateMessageContexts.create("createItem", parameters);
+        messageContext.setProperty(EWSConstants.EWS_API_URL, server.url("/ews"));
+
+        new CreateItemMediator().connect(messageContext);
+
+        List<List<String>> requests = handler.getRequests();
+        Assert.assertEquals(requests.size(), 3);
+        List<String> sent = new ArrayList<String>();
+        for (List<String> items : requests) {
+            Assert.assertTrue(items.size() <= 2, items.toString());
+            sent.addAll(items);
+        }
+        Assert.assertEquals(sent.size(), 5);
+        Assert.assertEquals(responses(messageContext.getEnvelope().toString()), Arrays.asList("id_s0", "id_s1",
+                "ErrorQuotaExceeded", "id_s3", "id_s4"));
+        Assert.assertEquals(messageContext.getProperty(EWSConstants.EWS_BATCH_ITEM_COUNT), 5);
+        Assert.assertEquals(messageContext.getProperty(EWSConstants.EWS_BATCH_FAILED_INDEXES), "2");
+        Assert.assertEquals(messageContext.getProperty(EWSConstants.EWS_BATCH_FAILED_CODES), "ErrorQuotaExceeded");
+    }
+
+    @Test(description = "JSON object values of a message list become the XML the element form of the list gives")
+    public void testJsonObjectValues() throws Exception {
+        List<Map<String, Object>> json = EWSUtils.parseParameterList("[{\"subject\": \"a < b\", \"body\": " +
+                "{\"BodyType\": \"Text\", \"Content\": \"hi\"}, \"toRecipients\": {\"ToRecipients\": " +
+                "{\"Mailbox\": [{\"EmailAddress\": \"a@x.com\"}, {\"EmailAddress\": \"b@x.com\"}]}}, " +
+                "\"parentFolderId\": {\"ParentFolderId\": {\"DistinguishedFolderId\": {\"@Id\": \"drafts\"}}}, " +
+                "\"categories\": \"<Categories><String>c</String></Categories>\"}]");
+        List<Map<String, Object>> xml = EWSUtils.parseParameterList("<message><subject>a &lt; b</subject><body>" +
+                "<BodyType>Text</BodyType><Content>hi</Content></body><toRecipients><ToRecipients><Mailbox>" +
+                "<EmailAddress>a@x.com</EmailAddress></Mailbox><Mailbox><EmailAddress>b@x.com</EmailAddress>" +
+                "</Mailbox></ToRecipients></toRecipients><parentFolderId><ParentFolderId><DistinguishedFolderId " +
+                "Id=\"drafts\"/></ParentFolderId></parentFolderId><categories><Categories><String>c</String>" +
+                "</Categories></categories></message>");
+        Assert.assertEquals(json.size(), 1);
+        Assert.assertEquals(json.get(0).keySet(), xml.get(0).keySet());
+        Assert.assertEquals(json.get(0).get(EWSConstants.SUBJECT), "a < b");
+        for (String name : Arrays.asList(EWSConstants.BODY, EWSConstants.TO_RECIPIENTS, EWSConstants
+                .PARENT_FOLDER_ID, EWSConstants.CATEGORIES)) {
+            OMElement expected = AXIOMUtil.stringToOM((String) xml.get(0).get(name));
+            OMElement actual = AXIOMUtil.stringToOM((String) json.get(0).get(name));
+            Assert.assertEquals(actual.toString(), expected.toString(), name);
+        }
+    }
+
+    @Test(description = "a JSON array as a message parameter value is rejected", expectedExceptions =
+            JSONException.class, expectedExceptionsMessageRegExp = ".*toRecipients.*array.*")
+    public void testJsonArrayValueIsRejected() throws Exception {
+        EWSUtils.parseParameterList("[{\"toRecipients\": [\"a@x.com\"]}]");
+    }
+
+    /**
+     * @return item id of each successful response message and the response code of each failed one, in order
+     */
+    private static List<String> responses(String envelope) {
+        List<String> responses = new ArrayList<String>();
+        Matcher matcher = RESPONSE_ID.matcher(envelope);
+        while (matcher.find()) {
+            if (matcher.group(1) != null) {
+                responses.add(matcher.group(1));
+            } else if (!"NoError".equals(matcher.group(2))) {
+                responses.add(matcher.group(2));
+            }
+        }
+        return responses;
+    }
+}
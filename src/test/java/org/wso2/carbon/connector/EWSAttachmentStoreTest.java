@@ -0,0 +1,135 @@
+/*
+*  Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+package org.wso2.carbon.connector;
+
+import org.apache.axiom.om.OMElement;
+import org.apache.axiom.om.util.AXIOMUtil;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import javax.xml.namespace.QName;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * Tests the memory and disk bounds, deduplication and statistics of the attachment store.
+ */
+public class EWSAttachmentStoreTest {
+    private static final String SCOPE = "scope";
+
+    private File directory;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        directory = File.createTempFile("ews-store-test", "");
+        Assert.assertTrue(directory.delete() && directory.mkdir());
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test(description = "a stored attachment is served with its properties and content")
+    public void testAttachmentIsServed() throws Exception {
+        EWSAttachmentStore store = new EWSAttachmentStore(10, 1024, 1024 * 1024, 1024 * 1024, directory);
+        store.put(EWSAttachmentStore.key(SCOPE, "a"), fileAttachment("a", "hello".getBytes(StandardCharsets.UTF_8)));
+
+        EWSAttachmentStore.StoredAttachment stored = store.get(EWSAttachmentStore.key(SCOPE, "a"));
+        Assert.assertNotNull(stored);
+        Assert.assertEquals(stored.getSize(), 5);
+        String serialized = stored.getFileAttachment().toString();
+        Assert.assertTrue(serialized.indexOf("a.txt") < serialized.indexOf(Base64.getEncoder().encodeToString(
+                "hello".getBytes(StandardCharsets.UTF_8))), serialized);
+        Assert.assertNull(store.get(EWSAttachmentStore.key("other", "a")));
+        Assert.assertEquals(store.getHitCount(), 1);
+        Assert.assertEquals(store.getMissCount(), 1);
+        Assert.assertEquals(store.getBytesSaved(), 5);
+    }
+
+    @Test(description = "attachments with the same content share it")
+    public void testSameContentIsStoredOnce() throws Exception {
+        EWSAttachmentStore store = new EWSAttachmentStore(10, 1024, 1024 * 1024, 1024 * 1024, directory);
+        byte[] content = "signed pdf".getBytes(StandardCharsets.UTF_8);
+        store.put(EWSAttachmentStore.key(SCOPE, "a"), fileAttachment("a", content));
+        store.put(EWSAttachmentStore.key(SCOPE, "b"), fileAttachment("b", content));
+
+        Assert.assertEquals(store.size(), 2);
+        Assert.assertEquals(store.getContentCount(), 1);
+        Assert.assertEquals(store.getDeduplicatedCount(), 1);
+        Assert.assertEquals(store.getMemoryBytes(), content.length);
+        Assert.assertNotNull(store.get(EWSAttachmentStore.key(SCOPE, "b")));
+    }
+
+    @Test(description = "content above the memory threshold is stored in the store directory")
+    public void testLargeContentIsStoredOnDisk() throws Exception {
+        EWSAttachmentStore store = new EWSAttachmentStore(10, 1024, 1024 * 1024, 1024 * 1024, directory);
+        byte[] content = new byte[4096];
+        Arrays.fill(content, (byte) 7);
+        store.put(EWSAttachmentStore.key(SCOPE, "a"), fileAttachment("a", content));
+
+        Assert.assertEquals(store.getMemoryBytes(), 0);
+        Assert.assertEquals(store.getDiskBytes(), content.length);
+        Assert.assertEquals(directory.list().length, 1);
+        OMElement fileAttachment = store.get(EWSAttachmentStore.key(SCOPE, "a")).getFileAttachment();
+        String encoded = fileAttachment.getFirstChildWithName(new QName(EWSConstants.TYPE_NAME_SPACE, EWSConstants
+                .CONTENT)).getText();
+        Assert.assertEquals(Base64.getDecoder().decode(encoded), content);
+    }
+
+    @Test(description = "the least recently used attachments are evicted and their files deleted")
+    public void testDiskBoundIsKept() throws Exception {
+        EWSAttachmentStore store = new EWSAttachmentStore(100, 512, 1024 * 1024, 16 * 1024, directory);
+        for (int i = 0; i < 30; i++) {
+            byte[] content = new byte[1000];
+            Arrays.fill(content, (byte) i);
+            store.put(EWSAttachmentStore.key(SCOPE, "id" + i), fileAttachment("id" + i, content));
+            store.get(EWSAttachmentStore.key(SCOPE, "id0"));
+        }
+
+        Assert.assertTrue(store.getDiskBytes() <= 16 * 1024);
+        Assert.assertEquals(directory.list().length, store.getContentCount());
+        Assert.assertTrue(store.getEvictionCount() > 0);
+        Assert.assertNotNull(store.get(EWSAttachmentStore.key(SCOPE, "id0")));
+        Assert.assertNull(store.get(EWSAttachmentStore.key(SCOPE, "id1")));
+    }
+
+    @Test(description = "files left by an earlier run are deleted when the store is created")
+    public void testLeftoversAreDeleted() throws Exception {
+        Assert.assertTrue(new File(directory, "ews-attachment-1.tmp").createNewFile());
+        new EWSAttachmentStore(10, 1024, 1024 * 1024, 1024 * 1024, directory);
+        Assert.assertEquals(directory.list().length, 0);
+    }
+
+    private static OMElement fileAttachment(String id, byte[] content) throws Exception {
+        return AXIOMUtil.stringToOM("<t:FileAttachment xmlns:t=\"" + EWSConstants.TYPE_NAME_SPACE + "\">" +
+                "<t:AttachmentId Id=\"" + id + "\"/><t:Name>" + id + ".txt</t:Name><t:Content>" + Base64
+                .getEncoder().encodeToString(content) + "</t:Content></t:FileAttachment>");
+    }
+}
@@ -0,0 +1,111 @@
+/*
+*  Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+package org.wso2.carbon.connector;
+
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Base64;
+import java.util.Random;
+
+/**
+ * Tests that {@link EWSBase64Decoder} decodes base64 text fed in arbitrary chunks like the JDK decoder does.
+ */
+public class EWSBase64DecoderTest {
+
+    @DataProvider(name = "sizes")
+    public Object[][] sizes() {
+        return new Object[][]{{0}, {1}, {2}, {3}, {4}, {8191}, {8192}, {8193}, {100000}};
+    }
+
+    @Test(dataProvider = "sizes", description = "chunked input decodes to the encoded bytes for any chunk size")
+    public void testMatchesJdkDecoder(int size) throws IOException {
+        byte[] content = content(size);
+        char[] text = Base64.getEncoder().encodeToString(content).toCharArray();
+        for (int chunkSize : new int[]{1, 2, 3, 5, 4096, Math.max(1, text.length)}) {
+            Assert.assertEquals(decode(text, chunkSize), content, "chunk size " + chunkSize);
+        }
+    }
+
+    @Test(description = "line breaks and indentation between groups are skipped")
+    public void testSkipsWhitespace() throws IOException {
+        byte[] content = content(10000);
+        char[] text = ("\n    " + Base64.getMimeEncoder().encodeToString(content) + "\n").toCharArray();
+        Assert.assertEquals(decode(text, 77), content);
+    }
+
+    @Test(description = "a trailing group without padding decodes like a padded one")
+    public void testUnpaddedInput() throws IOException {
+        byte[] content = content(10);
+        char[] text = Base64.getEncoder().withoutPadding().encodeToString(content).toCharArray();
+        Assert.assertEquals(decode(text, 3), content);
+    }
+
+    @Test(description = "the target is written through the fixed size buffer")
+    public void testWritesBoundedChunks() throws IOException {
+        final int[] largestWrite = new int[1];
+        ByteArrayOutputStream output = new ByteArrayOutputStream() {
+            @Override
+            public synchronized void write(byte[] bytes, int offset, int length) {
+                largestWrite[0] = Math.max(largestWrite[0], length);
+                super.write(bytes, offset, length);
+            }
+        };
+        byte[] content = content(1024 * 1024);
+        char[] text = Base64.getEncoder().encodeToString(content).toCharArray();
+        EWSBase64Decoder decoder = new EWSBase64Decoder(output);
+        decoder.decode(text, 0, text.length);
+        Assert.assertEquals(decoder.finish(), content.length);
+        Assert.assertEquals(output.toByteArray(), content);
+        Assert.assertTrue(largestWrite[0] <= 8 * 1024, "largest write " + largestWrite[0]);
+    }
+
+    @Test(expectedExceptions = IOException.class, description = "characters outside the alphabet are rejected")
+    public void testInvalidCharacterIsRejected() throws IOException {
+        decode("QUJD*EVG".toCharArray(), 8);
+    }
+
+    @Test(expectedExceptions = IOException.class, description = "content after the padding is rejected")
+    public void testContentAfterPaddingIsRejected() throws IOException {
+        decode("QQ==QUJD".toCharArray(), 8);
+    }
+
+    @Test(expectedExceptions = IOException.class, description = "a single character trailing group is rejected")
+    public void testTruncatedGroupIsRejected() throws IOException {
+        decode("QUJDR".toCharArray(), 5);
+    }
+
+    private static byte[] decode(char[] text, int chunkSize) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        EWSBase64Decoder decoder = new EWSBase64Decoder(output);
+        for (int offset = 0; offset < text.length; offset += chunkSize) {
+            decoder.decode(text, offset, Math.min(chunkSize, text.length - offset));
+        }
+        Assert.assertEquals(decoder.finish(), output.size());
+        return output.toByteArray();
+    }
+
+    private static byte[] content(int size) {
+        byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+        return content;
+    }
+}
@@ -0,0 +1,255 @@
+/*
+*  Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+package org.wso2.carbon.connector;
+
+import org.apache.axiom.om.OMAbstractFactory;
+import org.apache.axiom.om.OMElement;
+import org.apache.axiom.om.OMXMLBuilderFactory;
+import org.apache.axiom.soap.SOAPEnvelope;
+import org.apache.synapse.MessageContext;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import javax.xml.namespace.QName;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+
+/**
+ * Tests that {@link EWSBatchDispatcher} merges one ResponseMessage per item in input order, and turns chunks that
+ * failed or returned the wrong number of ResponseMessages into per item errors.
+ */
+public class EWSBatchDispatcherTest {
+    private static final String ENVELOPE_START = "<s:Envelope xmlns:s=\"http://schemas.xmlsoap.org/soap/envelope/\" " +
+            "xmlns:m=\"" + EWSConstants.MESSAGES_NAME_SPACE + "\"><s:Body>";
+    private static final String ENVELOPE_END = "</s:Body></s:Envelope>";
+
+    @Test(description = "the ResponseMessages of all chunks are merged in order with the failed indexes")
+    public void testChunksAreMergedInOrder() {
+        EWSBatchDispatcher.Result result = EWSBatchDispatcher.merge("GetItem", new SOAPEnvelope[]{
+                response(success("a"), error("ErrorItemNotFound")), null, response(success("d"))}, new Exception[]{
+                null, new IOException("connection reset"), null}, Arrays.asList(2, 1, 1));
+        Assert.assertEquals(result.getItemCount(), 4);
+        Assert.assertEquals(codes(result), Arrays.asList("NoError", "ErrorItemNotFound", "ErrorConnectionFailed",
+                "NoError"));
+        Assert.assertEquals(result.getFailedIndexes(), Arrays.asList(1, 2));
+        Assert.assertEquals(result.getFailedCodes(), Arrays.asList("ErrorItemNotFound", "ErrorConnectionFailed"));
+    }
+
+    @Test(description = "a SOAP fault fails every item of its chunk with the ResponseCode of the fault")
+    public void testFaultFailsChunk() {
+        SOAPEnvelope fault = envelope("<s:Fault><faultcode>s:Client</faultcode><faultstring>busy</faultstring>" +
+                "<detail><e:ResponseCode xmlns:e=\"http://schemas.microsoft.com/exchange/services/2006/errors\">" +
+                "ErrorServerBusy</e:ResponseCode></detail></s:Fault>");
+        EWSBatchDispatcher.Result result = EWSBatchDispatcher.merge("GetItem", new SOAPEnvelope[]{fault,
+                response(success("c"))}, new Exception[2], Arrays.asList(2, 1));
+        Assert.assertEquals(codes(result), Arrays.asList("ErrorServerBusy", "ErrorServerBusy", "NoError"));
+        Assert.assertEquals(result.getFailedIndexes(), Arrays.asList(0, 1));
+    }
+
+    @Test(description = "a chunk with fewer or more ResponseMessages than items fails as a whole")
+    public void testMismatchedChunkFails() {
+        EWSBatchDispatcher.Result result = EWSBatchDispatcher.merge("GetItem", new SOAPEnvelope[]{
+                response(success("a")), response(success("c"), success("d"), success("e")),
+                response(success("f"))}, new Exception[3], Arrays.asList(2, 2, 1));
+        Assert.assertEquals(result.getItemCount(), 5);
+        Assert.assertEquals(codes(result), Arrays.asList("ErrorInternalServerError", "ErrorInternalServerError",
+                "ErrorInternalServerError", "ErrorInternalServerError", "NoError"));
+        Assert.assertEquals(result.getFailedIndexes(), Arrays.asList(0, 1, 2, 3));
+        Assert.assertEquals(ids(result).get(4), "f");
+    }
+
+    @Test(description = "known ResponseMessages are merged with the dispatched ones at their input positions")
+    public void testKnownAreMergedWithDispatched() {
+        EWSBatchDispatcher.Result dispatched = EWSBatchDispatcher.merge("GetItem", new SOAPEnvelope[]{
+                response(error("ErrorItemNotFound"), success("c"))}, new Exception[1], Arrays.asList(2));
+        OMElement[] known = {message(success("a")), null, null, message(success("d"))};
+        EWSBatchDispatcher.Result result = EWSBatchDispatcher.merge("GetItem", known, dispatched);
+        Assert.assertEquals(ids(result), Arrays.asList("a", null, "c", "d"));
+        Assert.assertEquals(result.getFailedIndexes(), Arrays.asList(1));
+        Assert.assertEquals(result.getFailedCodes(), Arrays.asList("ErrorItemNotFound"));
+    }
+
+    @Test(description = "dispatched results that don't match the unknown items become per item errors")
+    public void testMismatchedDispatchedResultFails() {
+        EWSBatchDispatcher.Result dispatched = EWSBatchDispatcher.merge("GetItem", new SOAPEnvelope[]{
+                response(success("b"))}, new Exception[1], Arrays.asList(1));
+        OMElement[] known = {message(success("a")), null, null};
+        EWSBatchDispatcher.Result result = EWSBatchDispatcher.merge("GetItem", known, dispatched);
+        Assert.assertEquals(codes(result), Arrays.asList("NoError", "ErrorInternalServerError",
+                "ErrorInternalServerError"));
+        Assert.assertEquals(result.getFailedIndexes(), Arrays.asList(1, 2));
+        Assert.assertEquals(EWSBatchDispatcher.merge("GetItem", known, null).getFailedIndexes(), Arrays.asList(1,
+                2));
+    }
+
+    @Test(description = "concurrent batches on the shared executor each keep at most their parallelism in flight")
+    public void testConcurrentBatchesOnSharedExecutor() throws Exception {
+        BatchStubHandler first = new SuccessHandler();
+        BatchStubHandler second = new SuccessHandler();
+        StubServer server = new StubServer().handle("/first", first).handle("/second", second).start();
+        ExecutorService callers = Executors.newFixedThreadPool(2);
+        try {
+            Future<EWSBatchDispatcher.Result> firstResult = callers.submit(dispatch(server.url("/first"), "a"));
+            Future<EWSBatchDispatcher.Result> secondResult = callers.submit(dispatch(server.url("/second"), "b"));
+            Assert.assertEquals(ids(firstResult.get()), Arrays.asList("a0", "a1", "a2", "a3", "a4", "a5"));
+            Assert.assertEquals(ids(secondResult.get()), Arrays.asList("b0", "b1", "b2", "b3", "b4", "b5"));
+        } finally {
+            callers.shutdown();
+            server.stop();
+        }
+        Assert.assertEquals(first.getRequests().size(), 6);
+        Assert.assertEquals(second.getRequests().size(), 6);
+        Assert.assertTrue(first.getMaxInFlight() <= 2, String.valueOf(first.getMaxInFlight()));
+        Assert.assertTrue(second.getMaxInFlight() <= 2, String.valueOf(second.getMaxInFlight()));
+    }
+
+    @Test(description = "a chunk whose connection fails becomes one ErrorConnectionFailed per item")
+    public void testConnectionFailureFailsChunk() throws Exception {
+        StubServer server = new StubServer().start();
+        String url = server.url("/ews");
+        // nothing listens on the port anymore, so every chunk fails to connect
+        server.stop();
+        EWSBatchDispatcher.Result result = dispatch(url, "a").call();
+        Assert.assertEquals(result.getItemCount(), 6);
+        Assert.assertEquals(result.getFailedIndexes(), Arrays.asList(0, 1, 2, 3, 4, 5));
+        Assert.assertEquals(result.getFailedCodes(), Collections.nCopies(6, "ErrorConnectionFailed"));
+    }
+
+    /**
+     * @return dispatch of a GetItem batch of six ids with the given prefix, in chunks of one and two in flight
+     */
+    private static Callable<EWSBatchDispatcher.Result> dispatch(final String url, final String prefix) {
+        return new Callable<EWSBatchDispatcher.Result>() {
+            public EWSBatchDispatcher.Result call() throws IOException {
+                MessageContext messageContext = TemplateMessageContexts.create("getItem", new HashMap<String,
+                        Object>());
+                messageContext.setProperty(EWSConstants.EWS_API_URL, url);
+                List<SOAPEnvelope> requests = new ArrayList<SOAPEnvelope>();
+                List<Integer> itemCounts = new ArrayList<Integer>();
+                for (int i = 0; i < 6; i++) {
+                    SOAPEnvelope request = EWSBatchDispatcher.createRequest(OMAbstractFactory.getSOAP11Factory()
+                            .getDefaultEnvelope().getHeader());
+                    Map<String, String> id = new HashMap<String, String>();
+                    id.put(EWSConstants.ID_ATTRIBUTE, prefix + i);
+                    OMElement getItem = OMAbstractFactory.getSOAP11Factory().createOMElement(EWSConstants
+                            .GET_ITEM_ELEMENT, EWSUtils.message, request.getBody());
+                    getItem.addChild(EWSUtils.buildIdList(EWSConstants.ITEM_IDS, EWSUtils.message, EWSConstants
+                            .ITEM_ID_ELEMENT, Collections.singletonList(id)));
+                    requests.add(request);
+                    itemCounts.add(1);
+                }
+                return new EWSBatchDispatcher(EWSClient.forMessage(messageContext), EWSConstants.GET_ITEM_ELEMENT,
+                        2).dispatch(requests, itemCounts);
+            }
+        };
+    }
+
+    /**
+     * Answers each GetItem request with a successful ResponseMessage per ItemId.
+     */
+    private static final class SuccessHandler extends BatchStubHandler {
+        SuccessHandler() {
+            super(EWSConstants.GET_ITEM_ELEMENT, Pattern.compile("ItemId Id=\"(\\w+)\""));
+        }
+
+        String responseMessage(String item) {
+            return success(item);
+        }
+    }
+
+    static String success(String id) {
+        return "<m:GetItemResponseMessage ResponseClass=\"Success\"><m:ResponseCode>NoError</m:ResponseCode>" +
+                "<m:Items><t:Message xmlns:t=\"" + EWSConstants.TYPE_NAME_SPACE + "\"><t:ItemId Id=\"" + id +
+                "\"/></t:Message></m:Items></m:GetItemResponseMessage>";
+    }
+
+    static String error(String responseCode) {
+        return "<m:GetItemResponseMessage ResponseClass=\"Error\"><m:MessageText>failed</m:MessageText>" +
+                "<m:ResponseCode>" + responseCode + "</m:ResponseCode><m:Items/></m:GetItemResponseMessage>";
+    }
+
+    private static SOAPEnvelope response(String... responseMessages) {
+        StringBuilder body = new StringBuilder("<m:GetItemResponse><m:ResponseMessages>");
+        for (String responseMessage : responseMessages) {
+            body.append(responseMessage);
+        }
+        return envelope(body.append("</m:ResponseMessages></m:GetItemResponse>").toString());
+    }
+
+    private static OMElement message(String responseMessage) {
+        return response(responseMessage).getBody().getFirstElement().getFirstElement().getFirstElement();
+    }
+
+    private static SOAPEnvelope envelope(String body) {
+        return OMXMLBuilderFactory.createSOAPModelBuilder(new ByteArrayInputStream((ENVELOPE_START + body +
+                ENVELOPE_END).getBytes(StandardCharsets.UTF_8)), "UTF-8").getSOAPEnvelope();
+    }
+
+    /**
+     * @return ResponseCode of each merged ResponseMessage
+     */
+    static List<String> codes(EWSBatchDispatcher.Result result) {
+        List<String> codes = new ArrayList<String>();
+        for (OMElement responseMessage : responseMessages(result)) {
+            codes.add(responseMessage.getFirstChildWithName(new QName(EWSConstants.MESSAGES_NAME_SPACE,
+                    EWSConstants.RESPONSE_CODE_ELEMENT)).getText());
+        }
+        return codes;
+    }
+
+    /**
+     * @return first ItemId of each merged ResponseMessage, null for those without an item
+     */
+    static List<String> ids(EWSBatchDispatcher.Result result) {
+        List<String> ids = new ArrayList<String>();
+        for (OMElement responseMessage : responseMessages(result)) {
+            String id = null;
+            for (Iterator descendants = responseMessage.getDescendants(false); descendants.hasNext(); ) {
+                Object descendant = descendants.next();
+                if (descendant instanceof OMElement && "ItemId".equals(((OMElement) descendant).getLocalName())) {
+                    id = ((OMElement) descendant).getAttributeValue(new QName(EWSConstants.ID_ATTRIBUTE));
+                    break;
+                }
+            }
+            ids.add(id);
+        }
+        return ids;
+    }
+
+    private static List<OMElement> responseMessages(EWSBatchDispatcher.Result result) {
+        List<OMElement> messages = new ArrayList<OMElement>();
+        for (Iterator children = result.getEnvelope().getBody().getFirstElement().getFirstElement()
+                .getChildElements(); children.hasNext(); ) {
+            messages.add((OMElement) children.next());
+        }
+        return messages;
+    }
+}
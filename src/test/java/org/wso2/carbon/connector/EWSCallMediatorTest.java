@@ -0,0 +1,93 @@
+/*
+*  Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+package org.wso2.carbon.connector;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.apache.synapse.FaultHandler;
+import org.apache.synapse.MessageContext;
+import org.apache.synapse.SynapseConstants;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.HashMap;
+
+/**
+ * Tests that {@link EWSCallMediator} hands a SOAP fault response to the fault handler of the message instead of
+ * raising an error.
+ */
+public class EWSCallMediatorTest {
+    private StubServer server;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        server = new StubServer().handle("/ews", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                StubServer.respond(exchange, 500, StubServer.XML, "<s:Envelope xmlns:s=\"http://schemas.xmlsoap" +
+                        ".org/soap/envelope/\"><s:Body><s:Fault><faultcode>s:Client</faultcode><faultstring>The " +
+                        "specified object was not found in the store.</faultstring><detail><e:ResponseCode " +
+                        "xmlns:e=\"http://schemas.microsoft.com/exchange/services/2006/errors\">ErrorItemNotFound" +
+                        "</e:ResponseCode></detail></s:Fault></s:Body></s:Envelope>");
+            }
+        }).start();
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test(description = "a SOAP fault is set as the message and handed to the fault handler with its reason")
+    public void testFaultGoesToFaultHandler() {
+        MessageContext messageContext = messageContext();
+        final MessageContext[] faulted = new MessageContext[1];
+        messageContext.pushFaultHandler(new FaultHandler() {
+            public void onFault(MessageContext synCtx) {
+                faulted[0] = synCtx;
+            }
+        });
+
+        Assert.assertFalse(new EWSCallMediator().mediate(messageContext));
+
+        Assert.assertSame(faulted[0], messageContext);
+        Assert.assertTrue(messageContext.getEnvelope().hasFault());
+        Assert.assertEquals(messageContext.getProperty(SynapseConstants.ERROR_MESSAGE), "The specified object was " +
+                "not found in the store.");
+        Assert.assertTrue(((String) messageContext.getProperty(SynapseConstants.ERROR_DETAIL)).contains(
+                "ErrorItemNotFound"));
+        Assert.assertEquals(messageContext.getProperty(SynapseConstants.ERROR_CODE), 500000);
+    }
+
+    @Test(description = "without a fault handler the mediation goes on with the SOAP fault as the message")
+    public void testFaultWithoutFaultHandler() {
+        MessageContext messageContext = messageContext();
+        Assert.assertTrue(new EWSCallMediator().mediate(messageContext));
+        Assert.assertTrue(messageContext.getEnvelope().hasFault());
+        Assert.assertNull(messageContext.getProperty(SynapseConstants.ERROR_MESSAGE));
+    }
+
+    private MessageContext messageContext() {
+        MessageContext messageContext = TemplateMessageContexts.create("getItem", new HashMap<String, Object>());
+        messageContext.setProperty(EWSConstants.EWS_API_URL, server.url("/ews"));
+        messageContext.setWSAAction(EWSConstants.MESSAGES_NAME_SPACE + "/GetItem");
+        return messageContext;
+    }
+}
@@ -0,0 +1,192 @@
+/*
+*  Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+package org.wso2.carbon.connector;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.apache.axiom.om.OMAbstractFactory;
+import org.apache.axiom.om.OMElement;
+import org.apache.axiom.om.OMNamespace;
+import org.apache.axiom.soap.SOAPEnvelope;
+import org.apache.axiom.soap.SOAPFactory;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Tests compression of responses and requests against a stub server in place of EWS.
+ */
+public class EWSCompressionTest {
+    private static final String SUBJECT = "Quarterly report with a long, repetitive subject line ";
+
+    private final SOAPFactory soapFactory = OMAbstractFactory.getSOAP11Factory();
+    private StubServer server;
+    private RecordingHandler handler;
+    private String url;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        handler = new RecordingHandler();
+        server = new StubServer().handle("/ews", handler).start();
+        url = server.url("/ews");
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test(description = "gzip responses are asked for and decompressed, and the bytes saved are counted")
+    public void testGzipResponse() throws Exception {
+        handler.responseEncoding = "gzip";
+        long saved = EWSMetrics.get("FindItem").getResponseBytesSaved();
+        SOAPEnvelope response = new EWSClient(url, null, 5000).send("FindItem", request("small"));
+        Assert.assertEquals(handler.acceptEncoding, "gzip, deflate");
+        Assert.assertEquals(countItems(response), 200);
+        Assert.assertTrue(EWSMetrics.get("FindItem").getResponseBytesSaved() - saved > handler.responseBytes / 2);
+    }
+
+    @Test(description = "deflate responses are decompressed")
+    public void testDeflateResponse() throws Exception {
+        handler.responseEncoding = "deflate";
+        SOAPEnvelope response = new EWSClient(url, null, 5000).send("FindItem", request("small"));
+        Assert.assertEquals(countItems(response), 200);
+    }
+
+    @Test(description = "compressed responses aren't asked for when response compression is off")
+    public void testResponseCompressionOff() throws Exception {
+        SOAPEnvelope response = new EWSClient(url, null, 5000).withCompression(false, -1).send("FindItem",
+                request("small"));
+        Assert.assertNull(handler.acceptEncoding);
+        Assert.assertEquals(countItems(response), 200);
+    }
+
+    @Test(description = "requests are gzip compressed from the threshold on")
+    public void testRequestCompression() throws Exception {
+        EWSClient client = new EWSClient(url, null, 5000).withCompression(true, 1024);
+        client.send("CreateItem", request("small"));
+        Assert.assertNull(handler.requestEncoding);
+        Assert.assertTrue(handler.request.contains(">small<"));
+
+        StringBuilder subject = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            subject.append(SUBJECT);
+        }
+        long saved = EWSMetrics.get("CreateItem").getRequestBytesSaved();
+        client.send("CreateItem", request(subject.toString()));
+        Assert.assertEquals(handler.requestEncoding, "gzip");
+        Assert.assertTrue(handler.request.contains(subject.toString()));
+        Assert.assertTrue(handler.requestWireBytes < subject.length() / 4, String.valueOf(handler.requestWireBytes));
+        Assert.assertTrue(EWSMetrics.get("CreateItem").getRequestBytesSaved() - saved > subject.length() / 2);
+    }
+
+    @Test(description = "requests sent chunked are compressed while they are written")
+    public void testChunkedRequestCompression() throws Exception {
+        EWSClient client = new EWSClient(url, null, 5000).withChunkingThreshold(1024).withCompression(true, 0);
+        StringBuilder subject = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            subject.append(SUBJECT);
+        }
+        client.send("CreateItem", request(subject.toString()));
+        Assert.assertEquals(handler.requestEncoding, "gzip");
+        Assert.assertEquals(handler.transferEncoding, "chunked");
+        Assert.assertTrue(handler.request.contains(subject.toString()));
+    }
+
+    private SOAPEnvelope request(String subject) {
+        SOAPEnvelope envelope = soapFactory.getDefaultEnvelope();
+        OMNamespace type = soapFactory.createOMNamespace(EWSConstants.TYPE_NAME_SPACE, "t");
+        OMElement item = soapFactory.createOMElement("Message", type, envelope.getBody());
+        soapFactory.createOMElement(EWSConstants.SUBJECT_ELEMENT, type, item).setText(subject);
+        return envelope;
+    }
+
+    private static int countItems(SOAPEnvelope response) {
+        return response.toString().split("<t:Message>", -1).length - 1;
+    }
+
+    /**
+     * Answers every request with a FindItem response of 200 messages, compressed as asked for by the test, and
+     * records the request.
+     */
+    private static class RecordingHandler implements HttpHandler {
+        private volatile String responseEncoding;
+        private volatile String acceptEncoding;
+        private volatile String requestEncoding;
+        private volatile String transferEncoding;
+        private volatile String request;
+        private volatile long requestWireBytes;
+        private volatile long responseBytes;
+
+        public void handle(HttpExchange exchange) throws IOException {
+            acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+            requestEncoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+            transferEncoding = exchange.getRequestHeaders().getFirst("Transfer-Encoding");
+            byte[] body = read(exchange.getRequestBody());
+            requestWireBytes = body.length;
+            if ("gzip".equals(requestEncoding)) {
+                body = read(new GZIPInputStream(new ByteArrayInputStream(body)));
+            }
+            request = new String(body, StandardCharsets.UTF_8);
+
+            StringBuilder items = new StringBuilder();
+            for (int i = 0; i < 200; i++) {
+                items.append("<t:Message><t:ItemId Id=\"AAMkAGI2TG93AAA").append(i).append("\" ChangeKey=\"" +
+                        "CQAAABYAAAA\"/><t:Subject>").append(SUBJECT).append(i).append("</t:Subject></t:Message>");
+            }
+            byte[] response = ("<s:Envelope xmlns:s=\"http://schemas.xmlsoap.org/soap/envelope/\"><s:Body>" +
+                    "<m:FindItemResponse xmlns:m=\"" + EWSConstants.MESSAGES_NAME_SPACE + "\" xmlns:t=\"" +
+                    EWSConstants.TYPE_NAME_SPACE + "\"><m:ResponseMessages><m:FindItemResponseMessage " +
+                    "ResponseClass=\"Success\"><m:ResponseCode>NoError</m:ResponseCode><m:RootFolder><t:Items>" +
+                    items + "</t:Items></m:RootFolder></m:FindItemResponseMessage></m:ResponseMessages>" +
+                    "</m:FindItemResponse></s:Body></s:Envelope>").getBytes(StandardCharsets.UTF_8);
+            responseBytes = response.length;
+            if (responseEncoding != null && acceptEncoding != null) {
+                ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+                OutputStream output = "gzip".equals(responseEncoding) ? new GZIPOutputStream(compressed) :
+                        new DeflaterOutputStream(compressed);
+                output.write(response);
+                output.close();
+                response = compressed.toByteArray();
+                exchange.getResponseHeaders().add("Content-Encoding", responseEncoding);
+            }
+            StubServer.respond(exchange, 200, StubServer.XML, response);
+        }
+
+        private static byte[] read(InputStream input) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int length;
+            while ((length = input.read(buffer)) > 0) {
+                bytes.write(buffer, 0, length);
+            }
+            return bytes.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/*
+*  Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+package org.wso2.carbon.connector;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.apache.axiom.om.OMAbstractFactory;
+import org.apache.synapse.MessageContext;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests the per account permits, bounded wait and statistics of the concurrency limiter, and that hedged requests
+ * don't wait for permits they no longer need.
+ */
+public class EWSConcurrencyLimiterTest {
+
+    @Test(description = "an account gets no more permits than configured while other accounts aren't held back")
+    public void testPermitsArePerAccount() throws Exception {
+        EWSConcurrencyLimiter limiter = new EWSConcurrencyLimiter(2, 100);
+        EWSConcurrencyLimiter.Permit first = limiter.acquire("a");
+        limiter.acquire("a");
+        limiter.acquire("b").release();
+        try {
+            limiter.acquire("a");
+            Assert.fail("acquired more permits than configured");
+        } catch (IOException e) {
+            Assert.assertEquals(limiter.getTimeoutCount(), 1);
+            Assert.assertEquals(limiter.getWaitCount(), 1);
+            Assert.assertTrue(limiter.getMaxWaitTime() >= 90);
+        }
+        first.release();
+        first.release();
+        limiter.acquire("a").release();
+        Assert.assertEquals(limiter.getActiveAccounts(), 1);
+    }
+
+    @Test(description = "a waiting request gets the permit of a finished request and reports its wait")
+    public void testWaitingRequestIsServed() throws Exception {
+        final EWSConcurrencyLimiter limiter = new EWSConcurrencyLimiter(1, 5000);
+        EWSConcurrencyLimiter.Permit running = limiter.acquire("a");
+        final CountDownLatch served = new CountDownLatch(1);
+        final long[] waited = new long[1];
+        Thread waiting = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    EWSConcurrencyLimiter.Permit permit = limiter.acquire("a");
+                    waited[0] = permit.getWaitTime();
+                    permit.release();
+                    served.countDown();
+                } catch (IOException e) {
+                    Assert.fail(e.getMessage());
+                }
+            }
+        });
+        waiting.start();
+        while (limiter.getQueueDepth() == 0) {
+            Thread.sleep(5);
+        }
+        Thread.sleep(100);
+        running.release();
+
+        Assert.assertTrue(served.await(5, TimeUnit.SECONDS));
+        Assert.assertTrue(waited[0] >= 90);
+        Assert.assertEquals(limiter.getQueueDepth(), 0);
+        Assert.assertEquals(limiter.getActiveAccounts(), 0);
+    }
+
+    @Test(description = "a hedged request that loses while waiting for a permit stops waiting at once")
+    public void testLosingHedgedRequestStopsWaiting() throws Exception {
+        final StubServer server = new StubServer();
+        final String url = server.url("/ews");
+        final CountDownLatch done = new CountDownLatch(1);
+        final Thread waiting = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    EWSConcurrencyLimiter.Permit permit = EWSConcurrencyLimiter.instance.acquire(url);
+                    done.await();
+                    permit.release();
+                } catch (IOException e) {
+                    Assert.fail(e.getMessage());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        server.handle("/ews", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    // another request queues for the account before the request gets hedged, and then gets the
+                    // permit of the first attempt, so the second attempt would wait until it times out
+                    waiting.start();
+                    while (EWSConcurrencyLimiter.instance.getQueueDepth() == 0) {
+                        Thread.sleep(5);
+                    }
+                    Thread.sleep(600);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                StubServer.respond(exchange, 200, StubServer.XML, "<Envelope xmlns=\"http://schemas.xmlsoap.org/" +
+                        "soap/envelope/\"><Body><GetItemResponse xmlns=\"" + EWSConstants.MESSAGES_NAME_SPACE +
+                        "\"/></Body></Envelope>");
+            }
+        }).start();
+        EWSLatencyTracker latency = EWSLatencyTracker.get(url, "GetItem");
+        for (int i = 0; i < 50; i++) {
+            latency.record(200);
+        }
+        // leave a single permit for the request
+        List<EWSConcurrencyLimiter.Permit> held = new ArrayList<EWSConcurrencyLimiter.Permit>();
+        for (int i = 0; i < 9; i++) {
+            held.add(EWSConcurrencyLimiter.instance.acquire(url));
+        }
+        try {
+            MessageContext messageContext = TemplateMessageContexts.create("getItem", new HashMap<String, Object>());
+            messageContext.setProperty(EWSConstants.EWS_API_URL, url);
+            messageContext.setProperty(EWSConstants.EWS_HEDGE_REQUESTS, "true");
+            EWSClient.forMessage(messageContext).send("GetItem", OMAbstractFactory.getSOAP11Factory()
+                    .getDefaultEnvelope());
+            Assert.assertEquals(latency.getHedgeCount(), 1);
+
+            long timeout = System.currentTimeMillis() + 2000;
+            while (EWSConcurrencyLimiter.instance.getQueueDepth() > 0 && System.currentTimeMillis() < timeout) {
+                Thread.sleep(5);
+            }
+            Assert.assertEquals(EWSConcurrencyLimiter.instance.getQueueDepth(), 0);
+        } finally {
+            done.countDown();
+            waiting.join();
+            for (EWSConcurrencyLimiter.Permit permit : held) {
+                permit.release();
+            }
+            server.stop();
+        }
+    }
+}
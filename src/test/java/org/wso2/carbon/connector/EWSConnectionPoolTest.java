@@ -0,0 +1,202 @@
+/*
+*  Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+package org.wso2.carbon.connector;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.apache.axiom.om.util.AXIOMUtil;
+import org.apache.axis2.description.Parameter;
+import org.apache.axis2.description.TransportOutDescription;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tests the connection pools against a local stub server.
+ */
+public class EWSConnectionPoolTest {
+    private StubServer server;
+    private final List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        requests.clear();
+        server = new StubServer().handle("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                requests.add(exchange.getRequestURI() + " " + exchange.getRemoteAddress().getPort() + " " +
+                        exchange.getRequestHeaders().getFirst("Cookie"));
+                exchange.getResponseHeaders().add("Set-Cookie", "X-BackEndOverrideCookie=mbx1; path=/");
+                StubServer.respond(exchange, 200, "text/plain", "ok");
+            }
+        }).start();
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test(description = "a pool is kept while its settings are unchanged and replaced once they change")
+    public void testConfigureReplacesChangedPool() {
+        EWSConnectionPool pool = EWSConnectionPool.configure("configure-test", new EWSConnectionPool.Settings()
+                .setSocketTimeout(5000));
+        Assert.assertSame(EWSConnectionPool.configure("configure-test", new EWSConnectionPool.Settings()
+                .setSocketTimeout(5000)), pool);
+        Assert.assertSame(EWSConnectionPool.get("configure-test"), pool);
+        EWSConnectionPool replaced = EWSConnectionPool.configure("configure-test", new EWSConnectionPool.Settings()
+                .setSocketTimeout(6000));
+        Assert.assertNotSame(replaced, pool);
+        Assert.assertSame(EWSConnectionPool.get("configure-test"), replaced);
+        Assert.assertEquals(replaced.getSocketTimeout(), 6000);
+    }
+
+    @Test(description = "a pool that hasn't been configured is created with the default settings")
+    public void testGetCreatesDefaultPool() {
+        EWSConnectionPool pool = EWSConnectionPool.get("default-test");
+        Assert.assertSame(EWSConnectionPool.get("default-test"), pool);
+        Assert.assertEquals(pool.getSocketTimeout(), EWSConnectionPool.Settings.DEFAULT_SOCKET_TIMEOUT);
+        Assert.assertEquals(pool.getStats().getMax(), EWSConnectionPool.Settings.DEFAULT_MAX_CONNECTIONS);
+    }
+
+    @Test(description = "consecutive requests reuse the kept alive connection")
+    public void testConnectionIsReused() throws Exception {
+        EWSConnectionPool pool = EWSConnectionPool.configure("reuse-test", new EWSConnectionPool.Settings());
+        get(pool, url() + "/first");
+        get(pool, url() + "/second");
+        Assert.assertEquals(requests.size(), 2);
+        Assert.assertEquals(port(requests.get(1)), port(requests.get(0)), requests.toString());
+        Assert.assertEquals(pool.getStats().getLeased(), 0);
+        Assert.assertEquals(pool.getStats().getAvailable(), 1);
+    }
+
+    @Test(description = "cookies set by one response aren't sent with the requests after it")
+    public void testCookiesAreNotKept() throws Exception {
+        EWSConnectionPool pool = EWSConnectionPool.configure("cookie-test", new EWSConnectionPool.Settings());
+        get(pool, url() + "/first");
+        get(pool, url() + "/second");
+        Assert.assertTrue(requests.get(1).endsWith(" null"), requests.toString());
+    }
+
+    @Test(description = "requests go through the proxy of the http.proxyHost and http.proxyPort system properties")
+    public void testSystemProxyIsUsed() throws Exception {
+        System.setProperty("http.proxyHost", "localhost");
+        System.setProperty("http.proxyPort", Integer.toString(server.getPort()));
+        try {
+            EWSConnectionPool pool = EWSConnectionPool.configure("proxy-test", new EWSConnectionPool.Settings());
+            get(pool, "http://ews.example.invalid/EWS/Exchange.asmx");
+        } finally {
+            System.clearProperty("http.proxyHost");
+            System.clearProperty("http.proxyPort");
+        }
+        Assert.assertEquals(requests.size(), 1);
+        Assert.assertTrue(requests.get(0).startsWith("http://ews.example.invalid/EWS/Exchange.asmx "),
+                requests.toString());
+    }
+
+    @Test(description = "requests go through the proxy of the transport sender of axis2.xml")
+    public void testTransportSenderProxyIsUsed() throws Exception {
+        EWSConnectionPool.Settings settings = new EWSConnectionPool.Settings();
+        EWSTransportSenderSettings.apply(sender("http", new Parameter("http.proxyHost", "localhost"), new Parameter(
+                "http.proxyPort", Integer.toString(server.getPort()))), settings);
+        EWSConnectionPool pool = EWSConnectionPool.configure("sender-proxy-test", settings);
+        get(pool, "http://ews.example.invalid/EWS/Exchange.asmx");
+        Assert.assertEquals(requests.size(), 1);
+        Assert.assertTrue(requests.get(0).startsWith("http://ews.example.invalid/EWS/Exchange.asmx "),
+                requests.toString());
+    }
+
+    @Test(description = "the trust store of the https transport sender is loaded, and a missing one fails the pool")
+    public void testTransportSenderTrustStore() throws Exception {
+        File trustStore = File.createTempFile("ews-trust", ".jks");
+        try {
+            KeyStore keyStore = KeyStore.getInstance("JKS");
+            keyStore.load(null, null);
+            OutputStream output = new FileOutputStream(trustStore);
+            try {
+                keyStore.store(output, "secret".toCharArray());
+            } finally {
+                output.close();
+            }
+            EWSConnectionPool.Settings settings = new EWSConnectionPool.Settings();
+            EWSTransportSenderSettings.apply(sender("https", trustStore(trustStore.getPath()), new Parameter(
+                    "HostnameVerifier", "AllowAll")), settings);
+            EWSConnectionPool pool = EWSConnectionPool.configure("sender-tls-test", settings);
+            Assert.assertSame(EWSConnectionPool.configure("sender-tls-test", settings), pool);
+        } finally {
+            Assert.assertTrue(trustStore.delete());
+        }
+        EWSConnectionPool.Settings missing = new EWSConnectionPool.Settings();
+        EWSTransportSenderSettings.apply(sender("https", trustStore(trustStore.getPath())), missing);
+        try {
+            EWSConnectionPool.configure("sender-tls-test", missing);
+            Assert.fail("a missing trust store was ignored");
+        } catch (IllegalStateException expected) {
+            Assert.assertTrue(expected.getMessage().contains("trust store"), expected.getMessage());
+        }
+    }
+
+    @Test(description = "transport sender settings the pool can't apply fail instead of being ignored",
+            expectedExceptions = IOException.class, expectedExceptionsMessageRegExp = "http.nonProxyHosts .*")
+    public void testUnsupportedTransportSenderSettingFails() throws Exception {
+        EWSTransportSenderSettings.apply(sender("http", new Parameter("http.proxyHost", "proxy"), new Parameter(
+                "http.nonProxyHosts", "localhost")), new EWSConnectionPool.Settings());
+    }
+
+    private static TransportOutDescription sender(String name, Parameter... parameters) throws Exception {
+        TransportOutDescription sender = new TransportOutDescription(name);
+        for (Parameter parameter : parameters) {
+            sender.addParameter(parameter);
+        }
+        return sender;
+    }
+
+    private static Parameter trustStore(String location) throws Exception {
+        return new Parameter("truststore", AXIOMUtil.stringToOM("<TrustStore><Location>" + location + "</Location>" +
+                "<Type>JKS</Type><Password>secret</Password></TrustStore>"));
+    }
+
+    private String url() {
+        return server.url("");
+    }
+
+    private static void get(EWSConnectionPool pool, String url) throws IOException {
+        CloseableHttpResponse response = pool.getHttpClient().execute(new HttpGet(url));
+        try {
+            Assert.assertEquals(EntityUtils.toString(response.getEntity()), "ok");
+        } finally {
+            response.close();
+        }
+    }
+
+    private static String port(String request) {
+        return request.split(" ")[1];
+    }
+}
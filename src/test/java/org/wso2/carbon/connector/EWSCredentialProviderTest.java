@@ -0,0 +1,225 @@
+/*
+*  Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+package org.wso2.carbon.connector;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.apache.axiom.om.OMAbstractFactory;
+import org.apache.synapse.MessageContext;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests the credential providers, OAuth2 tokens against a local stub of the token endpoint.
+ */
+public class EWSCredentialProviderTest {
+    private static final String CONNECTION = "credential-test";
+    private static final String JSON = "application/json";
+
+    private StubServer server;
+    private String tokenEndpoint;
+    private List<String> requests;
+    private EWSOAuthCredentialProvider provider;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        server = new StubServer();
+        tokenEndpoint = server.url("/token");
+        requests = Collections.synchronizedList(new ArrayList<String>());
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        if (provider != null) {
+            provider.close();
+        }
+        server.stop();
+    }
+
+    @Test(description = "a token is fetched once with the client credentials and then taken from the cache")
+    public void testTokenIsFetchedOnceAndCached() throws Exception {
+        server.handle("/token", new TokenHandler(3600));
+        server.start();
+        provider = new EWSOAuthCredentialProvider(tokenEndpoint, "client", "secret", "scope", CONNECTION);
+
+        Assert.assertEquals(provider.getAuthorization(), "Bearer token-1");
+        Assert.assertEquals(provider.getAuthorization(), "Bearer token-1");
+        Assert.assertEquals(requests.size(), 1);
+        Assert.assertTrue(requests.get(0).contains("grant_type=client_credentials"));
+        Assert.assertTrue(requests.get(0).contains("client_id=client"));
+        Assert.assertTrue(requests.get(0).contains("client_secret=secret"));
+        Assert.assertTrue(requests.get(0).contains("scope=scope"));
+    }
+
+    @Test(description = "a token is refreshed in the background before it expires")
+    public void testTokenIsRefreshedBeforeExpiry() throws Exception {
+        server.handle("/token", new TokenHandler(2));
+        server.start();
+        provider = new EWSOAuthCredentialProvider(tokenEndpoint, "client", "secret", "scope", CONNECTION);
+        Assert.assertEquals(provider.getAuthorization(), "Bearer token-1");
+
+        Assert.assertEquals(awaitAuthorization("Bearer token-2"), "Bearer token-2", "token wasn't refreshed");
+        Assert.assertEquals(requests.size(), 2, "a request fetched a token itself");
+    }
+
+    @Test(description = "requests take the current token while a refresh is still waiting for the token endpoint")
+    public void testRequestsDoNotWaitForRefresh() throws Exception {
+        final CountDownLatch refreshing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        server.handle("/token", new TokenHandler(4) {
+            @Override
+            void beforeResponse(int count) throws InterruptedException {
+                if (count == 2) {
+                    refreshing.countDown();
+                    release.await(10, TimeUnit.SECONDS);
+                }
+            }
+        });
+        server.start();
+        provider = new EWSOAuthCredentialProvider(tokenEndpoint, "client", "secret", "scope", CONNECTION);
+        Assert.assertEquals(provider.getAuthorization(), "Bearer token-1");
+
+        Assert.assertTrue(refreshing.await(10, TimeUnit.SECONDS), "token wasn't refreshed");
+        long start = System.currentTimeMillis();
+        Assert.assertEquals(provider.getAuthorization(), "Bearer token-1");
+        Assert.assertTrue(System.currentTimeMillis() - start < 500, "request waited for the refresh");
+        release.countDown();
+
+        Assert.assertEquals(awaitAuthorization("Bearer token-2"), "Bearer token-2");
+    }
+
+    @Test(description = "an error of the token endpoint fails the request that needs a token",
+            expectedExceptions = IOException.class, expectedExceptionsMessageRegExp = ".*invalid_client.*")
+    public void testTokenEndpointError() throws Exception {
+        server.handle("/token", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                StubServer.respond(exchange, 401, JSON, "{\"error\":\"invalid_client\",\"error_description\":" +
+                        "\"bad secret\"}");
+            }
+        });
+        server.start();
+        provider = new EWSOAuthCredentialProvider(tokenEndpoint, "client", "wrong", "scope", CONNECTION);
+        provider.getAuthorization();
+    }
+
+    @Test(description = "basic credentials are encoded once per connection and replaced when they change")
+    public void testBasicCredentialsAreCachedPerConnection() throws Exception {
+        EWSCredentialProvider basic = EWSCredentialCache.basic(CONNECTION, "user", "pass");
+        Assert.assertEquals(basic.getAuthorization(), "Basic dXNlcjpwYXNz");
+        Assert.assertSame(EWSCredentialCache.basic(CONNECTION, "user", "pass"), basic);
+        Assert.assertSame(EWSCredentialCache.get(EWSCredentialCache.basicKey(CONNECTION, "user")), basic);
+
+        EWSCredentialProvider changed = EWSCredentialCache.basic(CONNECTION, "user", "other");
+        Assert.assertNotSame(changed, basic);
+        Assert.assertEquals(changed.getAuthorization(), "Basic dXNlcjpvdGhlcg==");
+        Assert.assertSame(EWSCredentialCache.get(EWSCredentialCache.basicKey(CONNECTION, "user")), changed);
+    }
+
+    @Test(description = "two identities configured for one endpoint each send and cache as their own identity")
+    public void testIdentitiesOfOneEndpointAreKeptApart() throws Exception {
+        final List<String> authorizations = Collections.synchronizedList(new ArrayList<String>());
+        server.handle("/ews", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                authorizations.add(exchange.getRequestHeaders().getFirst("Authorization"));
+                StubServer.respond(exchange, 200, StubServer.XML, "<Envelope xmlns=\"http://schemas.xmlsoap.org/" +
+                        "soap/envelope/\"><Body><GetFolderResponse xmlns=\"" + EWSConstants.MESSAGES_NAME_SPACE +
+                        "\"/></Body></Envelope>");
+            }
+        });
+        server.start();
+        String endpointUrl = server.url("/ews");
+        MessageContext alice = configure(endpointUrl, "alice");
+        MessageContext bob = configure(endpointUrl, "bob");
+
+        EWSClient.forMessage(alice).send("GetFolder", OMAbstractFactory.getSOAP11Factory().getDefaultEnvelope());
+        EWSClient.forMessage(bob).send("GetFolder", OMAbstractFactory.getSOAP11Factory().getDefaultEnvelope());
+        Assert.assertEquals(authorizations.toString(), "[Basic YWxpY2U6cGFzcw==, Basic Ym9iOnBhc3M=]");
+        String aliceIdentity = EWSClient.forMessage(alice).getIdentity(alice);
+        String bobIdentity = EWSClient.forMessage(bob).getIdentity(bob);
+        Assert.assertNotEquals(aliceIdentity, bobIdentity);
+        Assert.assertEquals(EWSClient.forMessage(configure(endpointUrl, "alice")).getIdentity(alice), aliceIdentity);
+    }
+
+    private static MessageContext configure(String endpointUrl, String username) throws Exception {
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put(EWSConstants.ENDPOINT_URL, endpointUrl);
+        parameters.put(EWSConstants.USERNAME, username);
+        parameters.put(EWSConstants.PASSWORD, "pass");
+        MessageContext messageContext = TemplateMessageContexts.create("config", parameters);
+        messageContext.setProperty(EWSConstants.EWS_API_URL, endpointUrl);
+        new EWSConfigMediator().connect(messageContext);
+        return messageContext;
+    }
+
+    private String awaitAuthorization(String expected) throws Exception {
+        long deadline = System.currentTimeMillis() + 10000;
+        String authorization = provider.getAuthorization();
+        while (!expected.equals(authorization) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+            authorization = provider.getAuthorization();
+        }
+        return authorization;
+    }
+
+    /**
+     * Stub of the token endpoint, which numbers the tokens it issues.
+     */
+    private class TokenHandler implements HttpHandler {
+        private final int expiresIn;
+
+        private TokenHandler(int expiresIn) {
+            this.expiresIn = expiresIn;
+        }
+
+        void beforeResponse(int count) throws InterruptedException {
+        }
+
+        public void handle(HttpExchange exchange) throws IOException {
+            InputStream input = exchange.getRequestBody();
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int read;
+            while ((read = input.read(buffer)) > 0) {
+                body.write(buffer, 0, read);
+            }
+            requests.add(new String(body.toByteArray(), StandardCharsets.UTF_8));
+            int count = requests.size();
+            try {
+                beforeResponse(count);
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            StubServer.respond(exchange, 200, JSON, "{\"token_type\":\"Bearer\",\"expires_in\":" + expiresIn +
+                    ",\"access_token\":\"token-" + count + "\"}");
+        }
+    }
+}
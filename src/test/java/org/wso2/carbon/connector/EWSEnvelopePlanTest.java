@@ -0,0 +1,144 @@
+/*
+*  Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+package org.wso2.carbon.connector;
+
+import org.apache.axiom.om.OMAbstractFactory;
+import org.apache.axiom.om.OMElement;
+import org.apache.axiom.om.util.AXIOMUtil;
+import org.apache.axiom.soap.SOAPFactory;
+import org.apache.synapse.MessageContext;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import javax.xml.namespace.QName;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tests that an {@link EWSEnvelopePlan} produces the elements the per parameter template code produced, also once
+ * fields are prebuilt.
+ */
+public class EWSEnvelopePlanTest {
+    private static final String TO_RECIPIENTS = "<ToRecipients>\n    <Mailbox>\n        <EmailAddress>" +
+            "john.doe@example.com</EmailAddress>\n    </Mailbox>\n</ToRecipients>";
+    private static final String BODY = "<body><BodyType>HTML</BodyType><Content>&lt;p&gt;Hello&lt;/p&gt;</Content>" +
+            "</body>";
+    private static final String VIEW = "<IndexedPageItemView MaxEntriesReturned=\"50\" Offset=\"0\" " +
+            "BasePoint=\"Beginning\"/>";
+
+    private final SOAPFactory soapFactory = OMAbstractFactory.getSOAP11Factory();
+
+    @Test(description = "the plan output equals the per parameter output, when building and when copying")
+    public void testMatchesTemplateOutput() throws Exception {
+        EWSEnvelopePlan plan = plan();
+        Map<String, Object> parameters = parameters();
+        parameters.put(EWSConstants.MIME_CONTENT, "<MimeContent CharacterSet=\"UTF-8\">" + base64(1024) +
+                "</MimeContent>");
+        MessageContext messageContext = TemplateMessageContexts.create("createItem", parameters);
+        String expected = templateOutput(messageContext).toString();
+        for (int i = 0; i < 3; i++) {
+            OMElement message = soapFactory.createOMElement(EWSConstants.MESSAGE, EWSUtils.type);
+            plan.populate(messageContext, message);
+            Assert.assertEquals(message.toString(), expected, "message " + i);
+        }
+    }
+
+    @Test(description = "a changed value is built again instead of the prebuilt element being copied")
+    public void testChangedValueIsRebuilt() throws Exception {
+        EWSEnvelopePlan plan = plan();
+        Map<String, Object> parameters = parameters();
+        for (int i = 0; i < 3; i++) {
+            plan.populate(TemplateMessageContexts.create("createItem", parameters), soapFactory.createOMElement(
+                    EWSConstants.MESSAGE, EWSUtils.type));
+        }
+        parameters.put(EWSConstants.TO_RECIPIENTS, TO_RECIPIENTS.replace("john.doe", "jane.roe"));
+        MessageContext messageContext = TemplateMessageContexts.create("createItem", parameters);
+        OMElement message = soapFactory.createOMElement(EWSConstants.MESSAGE, EWSUtils.type);
+        plan.populate(messageContext, message);
+        Assert.assertEquals(message.toString(), templateOutput(messageContext).toString());
+        Assert.assertTrue(message.toString().contains("jane.roe@example.com"));
+    }
+
+    @Test(description = "values above the prebuilt limit are never kept by the plan")
+    public void testLargeValueIsNotPrebuilt() throws Exception {
+        EWSEnvelopePlan.Field mimeContent = EWSEnvelopePlan.fragment(EWSConstants.MIME_CONTENT);
+        EWSEnvelopePlan.Field toRecipients = EWSEnvelopePlan.fragment(EWSConstants.TO_RECIPIENTS);
+        EWSEnvelopePlan plan = new EWSEnvelopePlan(mimeContent, toRecipients);
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put(EWSConstants.MIME_CONTENT, "<MimeContent>" + base64(EWSEnvelopePlan.MAX_PREBUILT_LENGTH) +
+                "</MimeContent>");
+        parameters.put(EWSConstants.TO_RECIPIENTS, TO_RECIPIENTS);
+        for (int i = 0; i < 3; i++) {
+            OMElement message = soapFactory.createOMElement(EWSConstants.MESSAGE, EWSUtils.type);
+            plan.populate(parameters, message);
+            Assert.assertNotNull(message.getFirstChildWithName(new QName(EWSConstants.TYPE_NAME_SPACE,
+                    "MimeContent")));
+        }
+        Assert.assertNull(mimeContent.getPrebuiltElement());
+        Assert.assertNotNull(toRecipients.getPrebuiltElement());
+    }
+
+    private static EWSEnvelopePlan plan() {
+        return new EWSEnvelopePlan(
+                EWSEnvelopePlan.fragment(EWSConstants.MIME_CONTENT),
+                EWSEnvelopePlan.element(EWSConstants.SUBJECT, EWSConstants.SUBJECT_ELEMENT),
+                EWSEnvelopePlan.body(EWSConstants.BODY),
+                EWSEnvelopePlan.element(EWSConstants.IMPORTANCE, EWSConstants.IMPORTANCE_ELEMENT),
+                EWSEnvelopePlan.fragment(EWSConstants.TO_RECIPIENTS),
+                EWSEnvelopePlan.fragment(EWSConstants.INDEXED_PAGE_ITEM_VIEW, EWSUtils.message));
+    }
+
+    private static Map<String, Object> parameters() {
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put(EWSConstants.SUBJECT, "Quarterly report");
+        parameters.put(EWSConstants.BODY, BODY);
+        parameters.put(EWSConstants.IMPORTANCE, "High");
+        parameters.put(EWSConstants.TO_RECIPIENTS, TO_RECIPIENTS);
+        parameters.put(EWSConstants.INDEXED_PAGE_ITEM_VIEW, VIEW);
+        return parameters;
+    }
+
+    /**
+     * Builds the fields of {@link #plan()} the way the mediators did before plans, one parameter at a time.
+     */
+    private OMElement templateOutput(MessageContext messageContext) throws Exception {
+        OMElement message = soapFactory.createOMElement(EWSConstants.MESSAGE, EWSUtils.type);
+        EWSUtils.populateDirectElements(messageContext, message, EWSConstants.MIME_CONTENT);
+        EWSUtils.setValueToXMLElement(messageContext, EWSConstants.SUBJECT, message, EWSConstants.SUBJECT_ELEMENT);
+        OMElement bodyElement = AXIOMUtil.stringToOM((String) EWSUtils.lookupTemplateParameters(messageContext)
+                .get(EWSConstants.BODY));
+        OMElement body = soapFactory.createOMElement(EWSConstants.BODY_ELEMENT, EWSUtils.type, message);
+        body.addAttribute(EWSConstants.BODY_TYPE_ATTRIBUTE, bodyElement.getFirstChildWithName(new QName(
+                EWSConstants.BODY_TYPE_ATTRIBUTE)).getText(), null);
+        body.setText(bodyElement.getFirstChildWithName(new QName(EWSConstants.CONTENT)).getText());
+        EWSUtils.setValueToXMLElement(messageContext, EWSConstants.IMPORTANCE, message,
+                EWSConstants.IMPORTANCE_ELEMENT);
+        EWSUtils.populateDirectElements(messageContext, message, EWSConstants.TO_RECIPIENTS);
+        EWSUtils.populateDirectElements(messageContext, message, EWSConstants.INDEXED_PAGE_ITEM_VIEW,
+                EWSUtils.message);
+        return message;
+    }
+
+    private static String base64(int length) {
+        StringBuilder builder = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            builder.append((char) ('A' + i % 26));
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,309 @@
+/*
+*  Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+package org.wso2.carbon.connector;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.apache.axiom.om.OMAbstractFactory;
+import org.apache.axiom.om.OMElement;
+import org.apache.axiom.soap.SOAPFactory;
+import org.apache.synapse.MessageContext;
+import org.apache.synapse.mediators.base.SequenceMediator;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import javax.xml.namespace.QName;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Tests the watermark tracking, the resubscribing and the backoff of {@link EWSEventPoller} against a stub server
+ * serving a pull subscription.
+ */
+public class EWSEventPollerTest {
+    private static final Pattern WATERMARK = Pattern.compile("Watermark>w(\\d+)<");
+    private static final Pattern SUBSCRIPTION_ID = Pattern.compile("SubscriptionId>(sub\\d+)<");
+    private static final String KEY = "inbox";
+
+    private final SOAPFactory soapFactory = OMAbstractFactory.getSOAP11Factory();
+    private StubServer server;
+    private SubscriptionHandler subscription;
+    private RecordingEventHandler events;
+    private String url;
+    private File directory;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        subscription = new SubscriptionHandler();
+        server = new StubServer().handle("/ews", subscription).start();
+        url = server.url("/ews");
+        directory = Files.createTempDirectory("ews-sync-state").toFile();
+        events = new RecordingEventHandler();
+    }
+
+    @AfterMethod
+    public void tearDown() throws IOException {
+        EWSEventPoller.stop(KEY);
+        server.stop();
+        store().delete(KEY);
+        Assert.assertTrue(directory.delete());
+    }
+
+    @Test(description = "all queued events are handled and the watermark of the last one is stored")
+    public void testWatermarkIsStoredAfterEvents() throws Exception {
+        EWSEventPoller poller = poller(30000);
+        Assert.assertTrue(poller.poll());
+        Assert.assertEquals(store().read(KEY), "w0");
+        subscription.eventCount = 3;
+        Assert.assertTrue(poller.poll());
+        Assert.assertEquals(events.watermarks, list("w1", "w2", "w3"));
+        Assert.assertEquals(store().read(KEY), "w3");
+        Assert.assertEquals(subscription.requests, list("Subscribe", "GetEvents sub1 w0", "GetEvents sub1 w0",
+                "GetEvents sub1 w2"));
+
+        subscription.eventCount = 4;
+        Assert.assertTrue(poller.poll());
+        Assert.assertEquals(events.watermarks, list("w1", "w2", "w3", "w4"));
+        Assert.assertEquals(store().read(KEY), "w4");
+    }
+
+    @Test(description = "a dropped subscription is recreated from the last watermark and misses no events")
+    public void testResubscribesFromWatermark() throws Exception {
+        subscription.eventCount = 5;
+        store().write(KEY, "w2");
+        EWSEventPoller poller = poller(30000);
+        Assert.assertTrue(poller.poll());
+        Assert.assertEquals(subscription.requests.get(0), "Subscribe w2");
+        Assert.assertEquals(events.watermarks, list("w3", "w4", "w5"));
+
+        subscription.expired = true;
+        subscription.eventCount = 6;
+        // the server dropped the subscription, which isn't a failure
+        Assert.assertTrue(poller.poll());
+        subscription.requests.clear();
+        Assert.assertTrue(poller.poll());
+        Assert.assertEquals(subscription.requests, list("Subscribe w5", "GetEvents sub2 w5"));
+        Assert.assertEquals(events.watermarks, list("w3", "w4", "w5", "w6"));
+    }
+
+    @Test(description = "a watermark the server no longer knows is dropped and the subscription starts over")
+    public void testInvalidWatermarkStartsOver() throws Exception {
+        subscription.eventCount = 2;
+        store().write(KEY, "w1");
+        subscription.invalidWatermark = true;
+        EWSEventPoller poller = poller(30000);
+        Assert.assertTrue(poller.poll());
+        Assert.assertNull(store().read(KEY));
+        subscription.requests.clear();
+        Assert.assertTrue(poller.poll());
+        Assert.assertEquals(subscription.requests, list("Subscribe", "GetEvents sub2 w2"));
+        Assert.assertEquals(store().read(KEY), "w2");
+    }
+
+    @Test(description = "failed polls double the delay up to the maximum, a successful poll resets it")
+    public void testBackoff() throws Exception {
+        subscription.eventCount = 1;
+        EWSEventPoller poller = poller(10);
+        poller.run();
+        Assert.assertEquals(poller.getDelay(), 10);
+        subscription.failing = true;
+        long[] delays = {2000, 4000, 8000, 16000, 32000, 64000, 128000, 256000, 300000, 300000};
+        for (long delay : delays) {
+            poller.run();
+            Assert.assertEquals(poller.getDelay(), delay);
+        }
+        subscription.failing = false;
+        poller.run();
+        Assert.assertEquals(poller.getDelay(), 10);
+    }
+
+    @Test(description = "a stopped poller unsubscribes, isn't polled again and keeps its watermark")
+    public void testStopUnsubscribes() throws Exception {
+        subscription.eventCount = 1;
+        Assert.assertTrue(EWSEventPoller.start(poller(60000)));
+        Assert.assertFalse(EWSEventPoller.start(poller(60000)));
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!"w1".equals(store().read(KEY))) {
+            Assert.assertTrue(System.currentTimeMillis() < deadline, subscription.requests.toString());
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(EWSEventPoller.stop(KEY));
+        Assert.assertFalse(EWSEventPoller.stop(KEY));
+        Assert.assertEquals(subscription.requests.get(subscription.requests.size() - 1), "Unsubscribe sub1");
+        Assert.assertEquals(store().read(KEY), "w1");
+    }
+
+    @Test(description = "pollers of pullEvents keep polling once the deadline of the message has passed")
+    public void testPullEventsPollersIgnoreMessageDeadline() throws Exception {
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put(EWSConstants.EVENT_SEQUENCE, "events");
+        parameters.put(EWSConstants.FOLDER_IDS, "<FolderIds><DistinguishedFolderId Id=\"inbox\"/></FolderIds>");
+        parameters.put(EWSConstants.EVENT_TYPES, "NewMailEvent");
+        parameters.put(EWSConstants.SYNC_STATE_DIRECTORY, directory.getAbsolutePath());
+        MessageContext messageContext = TemplateMessageContexts.create("pullEvents", parameters);
+        messageContext.setProperty(EWSConstants.EWS_API_URL, url);
+        messageContext.setProperty(EWSConstants.EWS_DEADLINE, System.currentTimeMillis() - 1);
+        messageContext.getConfiguration().addSequence("events", new SequenceMediator());
+        List<EWSEventPoller> pollers = new PullEventsMediator().createPollers(messageContext);
+        Assert.assertEquals(pollers.size(), 1);
+        try {
+            Assert.assertTrue(pollers.get(0).poll(), subscription.requests.toString());
+            Assert.assertEquals(subscription.requests, list("Subscribe", "GetEvents sub1 w0"));
+        } finally {
+            store().delete(pollers.get(0).getKey());
+        }
+    }
+
+    private EWSEventPoller poller(long pollInterval) {
+        OMElement pullSubscriptionRequest = soapFactory.createOMElement(EWSConstants
+                .PULL_SUBSCRIPTION_REQUEST_ELEMENT, EWSUtils.message);
+        OMElement eventTypes = soapFactory.createOMElement(EWSConstants.EVENT_TYPES_ELEMENT, EWSUtils.type,
+                pullSubscriptionRequest);
+        soapFactory.createOMElement(EWSConstants.EVENT_TYPE_ELEMENT, EWSUtils.type, eventTypes).setText(
+                "NewMailEvent");
+        return new EWSEventPoller(KEY, null, new EWSClient(url, null, 5000), soapFactory.createSOAPHeader(),
+                pullSubscriptionRequest, 30, events, store(), pollInterval);
+    }
+
+    private EWSSyncStateStore store() {
+        return EWSSyncStateStore.forDirectory(directory.getAbsolutePath());
+    }
+
+    private static List<String> list(String... values) {
+        List<String> list = new ArrayList<String>();
+        for (String value : values) {
+            list.add(value);
+        }
+        return list;
+    }
+
+    /**
+     * Records the watermarks of the handled events.
+     */
+    private static final class RecordingEventHandler implements EWSEventHandler {
+        private final List<String> watermarks = new ArrayList<String>();
+
+        public boolean isAvailable() {
+            return true;
+        }
+
+        public void handle(String mailbox, OMElement event, String watermark) {
+            Assert.assertEquals(event.getQName(), new QName(EWSConstants.TYPE_NAME_SPACE, "NewMailEvent"));
+            watermarks.add(watermark);
+        }
+    }
+
+    /**
+     * Serves a pull subscription of a mailbox that received eventCount events so far, the event with watermark wN
+     * being the Nth. GetEvents returns at most two events at a time.
+     */
+    private static final class SubscriptionHandler implements HttpHandler {
+        private final List<String> requests = new ArrayList<String>();
+        private int subscriptionCount;
+        private volatile int eventCount;
+        private volatile boolean expired;
+        private volatile boolean invalidWatermark;
+        private volatile boolean failing;
+
+        public synchronized void handle(HttpExchange exchange) throws IOException {
+            InputStream input = exchange.getRequestBody();
+            ByteArrayOutputStream request = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = input.read(buffer)) >= 0) {
+                request.write(buffer, 0, read);
+            }
+            String text = new String(request.toByteArray(), StandardCharsets.UTF_8);
+            Matcher watermark = WATERMARK.matcher(text);
+            Integer position = watermark.find() ? Integer.valueOf(watermark.group(1)) : null;
+            Matcher subscriptionId = SUBSCRIPTION_ID.matcher(text);
+            String operation;
+            String responseMessage;
+            if (text.contains(":Subscribe>") || text.contains("<Subscribe>")) {
+                operation = "Subscribe";
+                requests.add(position == null ? operation : operation + " w" + position);
+                subscriptionCount++;
+                responseMessage = "<m:SubscribeResponseMessage ResponseClass=\"Success\"><m:ResponseCode>NoError" +
+                        "</m:ResponseCode><m:SubscriptionId>sub" + subscriptionCount + "</m:SubscriptionId>" +
+                        "<m:Watermark>w" + (position == null ? eventCount : position) + "</m:Watermark>" +
+                        "</m:SubscribeResponseMessage>";
+            } else if (text.contains("Unsubscribe")) {
+                operation = "Unsubscribe";
+                Assert.assertTrue(subscriptionId.find(), text);
+                requests.add(operation + " " + subscriptionId.group(1));
+                responseMessage = "<m:UnsubscribeResponseMessage ResponseClass=\"Success\"><m:ResponseCode>" +
+                        "NoError</m:ResponseCode></m:UnsubscribeResponseMessage>";
+            } else {
+                operation = "GetEvents";
+                Assert.assertTrue(subscriptionId.find(), text);
+                Assert.assertNotNull(position, text);
+                requests.add(operation + " " + subscriptionId.group(1) + " w" + position);
+                String errorCode = null;
+                if (failing) {
+                    errorCode = "ErrorInternalServerError";
+                } else if (expired) {
+                    expired = false;
+                    errorCode = "ErrorExpiredSubscription";
+                } else if (invalidWatermark) {
+                    invalidWatermark = false;
+                    errorCode = "ErrorInvalidWatermark";
+                }
+                if (errorCode != null) {
+                    responseMessage = "<m:GetEventsResponseMessage ResponseClass=\"Error\"><m:ResponseCode>" +
+                            errorCode + "</m:ResponseCode></m:GetEventsResponseMessage>";
+                } else {
+                    int end = Math.min(eventCount, position + 2);
+                    StringBuilder notification = new StringBuilder();
+                    notification.append("<m:Notification><t:SubscriptionId>").append(subscriptionId.group(1))
+                            .append("</t:SubscriptionId><t:PreviousWatermark>w").append(position)
+                            .append("</t:PreviousWatermark><t:MoreEvents>").append(end < eventCount)
+                            .append("</t:MoreEvents>");
+                    if (end == position) {
+                        notification.append("<t:StatusEvent><t:Watermark>w").append(position)
+                                .append("</t:Watermark></t:StatusEvent>");
+                    }
+                    for (int i = position + 1; i <= end; i++) {
+                        notification.append("<t:NewMailEvent><t:Watermark>w").append(i).append("</t:Watermark>")
+                                .append("<t:ItemId Id=\"item").append(i).append("\"/></t:NewMailEvent>");
+                    }
+                    responseMessage = "<m:GetEventsResponseMessage ResponseClass=\"Success\"><m:ResponseCode>" +
+                            "NoError</m:ResponseCode>" + notification + "</m:Notification>" +
+                            "</m:GetEventsResponseMessage>";
+                }
+            }
+            byte[] body = ("<s:Envelope xmlns:s=\"http://schemas.xmlsoap.org/soap/envelope/\"><s:Body><m:" +
+                    operation + "Response xmlns:m=\"" + EWSConstants.MESSAGES_NAME_SPACE + "\" xmlns:t=\"" +
+                    EWSConstants.TYPE_NAME_SPACE + "\"><m:ResponseMessages>" + responseMessage +
+                    "</m:ResponseMessages></m:" + operation + "Response></s:Body></s:Envelope>").getBytes(
+                    StandardCharsets.UTF_8);
+            StubServer.respond(exchange, 200, StubServer.XML, body);
+        }
+    }
+}
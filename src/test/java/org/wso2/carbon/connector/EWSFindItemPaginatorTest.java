@@ -0,0 +1,273 @@
+/*
+*  Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+package org.wso2.carbon.connector;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.apache.axiom.om.OMAbstractFactory;
+import org.apache.axiom.om.OMElement;
+import org.apache.axiom.soap.SOAPEnvelope;
+import org.apache.axiom.soap.SOAPFactory;
+import org.apache.synapse.MessageContext;
+import org.apache.synapse.mediators.AbstractMediator;
+import org.apache.synapse.mediators.base.SequenceMediator;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import javax.xml.namespace.QName;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Tests the paging of {@link EWSFindItemPaginator} against a stub server serving a FindItem view.
+ */
+public class EWSFindItemPaginatorTest {
+    private static final Pattern OFFSET = Pattern.compile("Offset=\"(\\d+)\"");
+    private static final Pattern MAX_ENTRIES_RETURNED = Pattern.compile("MaxEntriesReturned=\"(\\d+)\"");
+
+    private final SOAPFactory soapFactory = OMAbstractFactory.getSOAP11Factory();
+    private StubServer server;
+    private ViewHandler handler;
+    private String url;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        handler = new ViewHandler();
+        server = new StubServer().handle("/ews", handler).start();
+        url = server.url("/ews");
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test(description = "all pages of the view are returned and merge into one response")
+    public void testWalksAllPages() throws Exception {
+        handler.totalItems = 250;
+        EWSFindItemPaginator paginator = paginator(100, 2, Long.MAX_VALUE);
+        SOAPEnvelope merged = paginator.nextPage();
+        for (SOAPEnvelope page = paginator.nextPage(); page != null; page = paginator.nextPage()) {
+            EWSFindItemPaginator.merge(merged, page);
+        }
+        Assert.assertEquals(paginator.getPageCount(), 3);
+        Assert.assertEquals(paginator.getItemCount(), 250);
+        Assert.assertEquals(paginator.getTotalItemsInView(), 250);
+        Assert.assertTrue(paginator.isDone());
+        Assert.assertEquals(handler.offsets(), list(0, 100, 200));
+        List<OMElement> items = EWSFindItemPaginator.items(merged);
+        Assert.assertEquals(items.size(), 250);
+        for (int i = 0; i < items.size(); i++) {
+            Assert.assertEquals(subject(items.get(i)), "item " + i);
+        }
+        Assert.assertEquals(rootFolder(merged).getAttributeValue(new QName(EWSConstants
+                .INCLUDES_LAST_ITEM_IN_RANGE_ATTRIBUTE)), "true");
+    }
+
+    @Test(description = "no page is requested beyond maxItems and the last page is trimmed to it")
+    public void testMaxItems() throws Exception {
+        handler.totalItems = 1000;
+        EWSFindItemPaginator paginator = paginator(100, 4, 150);
+        List<OMElement> items = new ArrayList<OMElement>();
+        for (SOAPEnvelope page = paginator.nextPage(); page != null; page = paginator.nextPage()) {
+            items.addAll(EWSFindItemPaginator.items(page));
+        }
+        Assert.assertEquals(items.size(), 150);
+        Assert.assertEquals(paginator.getItemCount(), 150);
+        Assert.assertEquals(paginator.getPageCount(), 2);
+        Assert.assertEquals(handler.offsets(), list(0, 100));
+    }
+
+    @Test(description = "prefetched pages are dropped and paging resumes when the server reports another offset")
+    public void testResumesAtReportedOffset() throws Exception {
+        handler.totalItems = 300;
+        // ten items were removed ahead of the first page while it was read
+        handler.reportedOffsets.put(0, 90);
+        EWSFindItemPaginator paginator = paginator(100, 2, Long.MAX_VALUE);
+        Assert.assertEquals(EWSFindItemPaginator.items(paginator.nextPage()).size(), 100);
+        List<OMElement> second = EWSFindItemPaginator.items(paginator.nextPage());
+        Assert.assertEquals(subject(second.get(0)), "item 90");
+        while (paginator.nextPage() != null) {
+            Assert.assertFalse(paginator.getPageCount() > 5, "paging doesn't end");
+        }
+        Assert.assertTrue(handler.offsets().contains(90), handler.offsets().toString());
+        Assert.assertEquals(paginator.getItemCount(), 310);
+    }
+
+    @Test(description = "an error page is returned and ends the paging")
+    public void testErrorPageEndsPaging() throws Exception {
+        handler.totalItems = 500;
+        handler.failingOffset = 100;
+        EWSFindItemPaginator paginator = paginator(100, 1, Long.MAX_VALUE);
+        Assert.assertTrue(EWSFindItemPaginator.isSuccess(paginator.nextPage()));
+        SOAPEnvelope error = paginator.nextPage();
+        Assert.assertFalse(EWSFindItemPaginator.isSuccess(error));
+        Assert.assertTrue(EWSFindItemPaginator.items(error).isEmpty());
+        Assert.assertTrue(paginator.isDone());
+        Assert.assertNull(paginator.nextPage());
+        Assert.assertEquals(handler.offsets(), list(0, 100));
+    }
+
+    @Test(description = "a merged response is capped and a CalendarView isn't sent along with the paging view")
+    public void testMergedResponseIsCapped() throws Exception {
+        handler.totalItems = 20000;
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put(EWSConstants.PAGINATE, "true");
+        parameters.put(EWSConstants.PAGE_SIZE, "1000");
+        parameters.put(EWSConstants.CALENDAR_VIEW, "<CalendarView StartDate=\"2017-01-01T00:00:00Z\" " +
+                "EndDate=\"2017-02-01T00:00:00Z\"/>");
+        MessageContext messageContext = TemplateMessageContexts.create("findItem", parameters);
+        messageContext.setProperty(EWSConstants.EWS_API_URL, url);
+        new FindItemMediator().connect(messageContext);
+        Assert.assertEquals(messageContext.getProperty(EWSConstants.EWS_ITEM_COUNT), 10000L);
+        Assert.assertEquals(EWSFindItemPaginator.items(messageContext.getEnvelope()).size(), 10000);
+        Assert.assertFalse(handler.requests.toString().contains("CalendarView"));
+    }
+
+    @Test(description = "in items mode the items of a page share one copy of the message context")
+    public void testItemsModeCopiesOncePerPage() throws Exception {
+        handler.totalItems = 25;
+        final List<MessageContext> contexts = new ArrayList<MessageContext>();
+        final List<Object> itemIndexes = new ArrayList<Object>();
+        SequenceMediator sequence = new SequenceMediator();
+        sequence.addChild(new AbstractMediator() {
+            public boolean mediate(MessageContext synCtx) {
+                if (!contexts.contains(synCtx)) {
+                    contexts.add(synCtx);
+                }
+                itemIndexes.add(synCtx.getProperty(EWSConstants.EWS_ITEM_INDEX));
+                return true;
+            }
+        });
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put(EWSConstants.PAGINATE, "true");
+        parameters.put(EWSConstants.PAGE_SIZE, "10");
+        parameters.put(EWSConstants.PAGE_SEQUENCE, "itemSequence");
+        parameters.put(EWSConstants.PAGE_MODE, "items");
+        MessageContext messageContext = TemplateMessageContexts.create("findItem", parameters);
+        messageContext.getConfiguration().addSequence("itemSequence", sequence);
+        messageContext.setProperty(EWSConstants.EWS_API_URL, url);
+        new FindItemMediator().connect(messageContext);
+        Assert.assertEquals(itemIndexes.size(), 25);
+        Assert.assertEquals(itemIndexes.get(24), 24L);
+        Assert.assertEquals(contexts.size(), 3);
+    }
+
+    private EWSFindItemPaginator paginator(int pageSize, int maxPagesInFlight, long maxItems) {
+        OMElement findItem = soapFactory.createOMElement(EWSConstants.FIND_ITEM_ELEMENT, EWSUtils.message);
+        OMElement itemShape = soapFactory.createOMElement(EWSConstants.ITEM_SHAPE, EWSUtils.message,
+                findItem);
+        soapFactory.createOMElement("BaseShape", EWSUtils.type, itemShape).setText("IdOnly");
+        return new EWSFindItemPaginator(new EWSClient(url, null, 5000), soapFactory.createSOAPHeader(), findItem, 0,
+                pageSize, maxPagesInFlight, maxItems);
+    }
+
+    private static OMElement rootFolder(SOAPEnvelope page) {
+        return page.getBody().getFirstElement().getFirstElement().getFirstElement().getFirstChildWithName(new QName(
+                EWSConstants.MESSAGES_NAME_SPACE, EWSConstants.ROOT_FOLDER_ELEMENT));
+    }
+
+    private static String subject(OMElement item) {
+        return item.getFirstChildWithName(new QName(EWSConstants.TYPE_NAME_SPACE, EWSConstants.SUBJECT_ELEMENT))
+                .getText();
+    }
+
+    private static List<Integer> list(Integer... values) {
+        List<Integer> list = new ArrayList<Integer>();
+        Collections.addAll(list, values);
+        return list;
+    }
+
+    /**
+     * Serves the requested range of a view of totalItems messages.
+     */
+    private static final class ViewHandler implements HttpHandler {
+        private final List<Integer> offsets = new ArrayList<Integer>();
+        private final StringBuffer requests = new StringBuffer();
+        private final Map<Integer, Integer> reportedOffsets = new HashMap<Integer, Integer>();
+        private volatile int totalItems;
+        private volatile int failingOffset = -1;
+
+        public void handle(HttpExchange exchange) throws IOException {
+            InputStream input = exchange.getRequestBody();
+            ByteArrayOutputStream request = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = input.read(buffer)) >= 0) {
+                request.write(buffer, 0, read);
+            }
+            String text = new String(request.toByteArray(), StandardCharsets.UTF_8);
+            requests.append(text);
+            int offset = number(OFFSET, text);
+            int end = Math.min(totalItems, offset + number(MAX_ENTRIES_RETURNED, text));
+            synchronized (offsets) {
+                offsets.add(offset);
+            }
+            StringBuilder responseMessage = new StringBuilder();
+            if (offset == failingOffset) {
+                responseMessage.append("<m:FindItemResponseMessage ResponseClass=\"Error\"><m:MessageText>The ")
+                        .append("server cannot service this request right now.</m:MessageText><m:ResponseCode>")
+                        .append("ErrorInternalServerTransientError</m:ResponseCode>")
+                        .append("</m:FindItemResponseMessage>");
+            } else {
+                Integer reportedOffset = reportedOffsets.get(offset);
+                responseMessage.append("<m:FindItemResponseMessage ResponseClass=\"Success\"><m:ResponseCode>")
+                        .append("NoError</m:ResponseCode><m:RootFolder IndexedPagingOffset=\"")
+                        .append(reportedOffset == null ? end : reportedOffset).append("\" TotalItemsInView=\"")
+                        .append(totalItems).append("\" IncludesLastItemInRange=\"").append(end >= totalItems)
+                        .append("\"><t:Items>");
+                for (int i = offset; i < end; i++) {
+                    responseMessage.append("<t:Message><t:ItemId Id=\"id").append(i).append("\"/><t:Subject>item ")
+                            .append(i).append("</t:Subject></t:Message>");
+                }
+                responseMessage.append("</t:Items></m:RootFolder></m:FindItemResponseMessage>");
+            }
+            byte[] body = ("<s:Envelope xmlns:s=\"http://schemas.xmlsoap.org/soap/envelope/\"><s:Body>" +
+                    "<m:FindItemResponse xmlns:m=\"" + EWSConstants.MESSAGES_NAME_SPACE + "\" xmlns:t=\"" +
+                    EWSConstants.TYPE_NAME_SPACE + "\"><m:ResponseMessages>" + responseMessage +
+                    "</m:ResponseMessages></m:FindItemResponse></s:Body></s:Envelope>").getBytes(StandardCharsets
+                    .UTF_8);
+            StubServer.respond(exchange, 200, StubServer.XML, body);
+        }
+
+        private List<Integer> offsets() {
+            synchronized (offsets) {
+                List<Integer> sorted = new ArrayList<Integer>(offsets);
+                Collections.sort(sorted);
+                return sorted;
+            }
+        }
+
+        private static int number(Pattern pattern, String text) {
+            Matcher matcher = pattern.matcher(text);
+            Assert.assertTrue(matcher.find(), text);
+            return Integer.parseInt(matcher.group(1));
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*
+*  Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+package org.wso2.carbon.connector;
+
+import org.apache.axiom.om.OMAbstractFactory;
+import org.apache.axiom.om.OMElement;
+import org.apache.axiom.soap.SOAPFactory;
+import org.apache.synapse.MessageContext;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import javax.xml.namespace.QName;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Tests the hits, misses and eviction of {@link EWSHeaderCache} and that a changed account gets its own header.
+ */
+public class EWSHeaderCacheTest {
+    private final SOAPFactory soapFactory = OMAbstractFactory.getSOAP11Factory();
+
+    @Test(description = "a cached block is copied into the header and counted as a hit, an unknown key as a miss")
+    public void testHitAndMiss() {
+        EWSHeaderCache cache = new EWSHeaderCache(4);
+        EWSHeaderCache.Key key = new EWSHeaderCache.Key(EWSConstants.REQUESTED_SERVER_VERSION_HEADER, "Exchange2010");
+        OMElement header = header();
+        Assert.assertFalse(cache.copyTo(key, header));
+        cache.put(key, EWSUtils.buildRequestedServerVersionHeader("Exchange2010"));
+        Assert.assertTrue(cache.copyTo(key, header));
+        Assert.assertTrue(cache.copyTo(new EWSHeaderCache.Key(EWSConstants.REQUESTED_SERVER_VERSION_HEADER,
+                "Exchange2010"), header));
+        Assert.assertEquals(cache.getHitCount(), 2);
+        Assert.assertEquals(cache.getMissCount(), 1);
+        Assert.assertEquals(cache.size(), 1);
+        Assert.assertEquals(count(header), 2);
+        Assert.assertEquals(header.getFirstElement().getAttributeValue(new QName(EWSConstants
+                .VERSION_ATTRIBUTE)), "Exchange2010");
+    }
+
+    @Test(description = "the least recently used block is evicted once the cache is full")
+    public void testLeastRecentlyUsedIsEvicted() {
+        EWSHeaderCache cache = new EWSHeaderCache(2);
+        EWSHeaderCache.Key first = key("Exchange2007");
+        EWSHeaderCache.Key second = key("Exchange2010");
+        EWSHeaderCache.Key third = key("Exchange2013");
+        cache.put(first, EWSUtils.buildRequestedServerVersionHeader("Exchange2007"));
+        cache.put(second, EWSUtils.buildRequestedServerVersionHeader("Exchange2010"));
+        Assert.assertTrue(cache.copyTo(first, header()));
+        cache.put(third, EWSUtils.buildRequestedServerVersionHeader("Exchange2013"));
+        Assert.assertEquals(cache.size(), 2);
+        Assert.assertTrue(cache.copyTo(first, header()));
+        Assert.assertFalse(cache.copyTo(second, header()));
+        Assert.assertTrue(cache.copyTo(third, header()));
+    }
+
+    @Test(description = "a request impersonating another account gets that account's header, not the cached one")
+    public void testChangedImpersonationIsNotServedFromCache() {
+        OMElement alice = header();
+        EWSUtils.populateExchangeImpersonationHeader(alice, impersonating("alice@example.com"));
+        EWSUtils.populateExchangeImpersonationHeader(alice, impersonating("alice@example.com"));
+        OMElement bob = header();
+        EWSUtils.populateExchangeImpersonationHeader(bob, impersonating("bob@example.com"));
+        Assert.assertEquals(count(alice), 2);
+        Assert.assertTrue(alice.toString().contains("alice@example.com"));
+        Assert.assertFalse(alice.toString().contains("bob@example.com"));
+        Assert.assertEquals(count(bob), 1);
+        Assert.assertTrue(bob.toString().contains("bob@example.com"));
+        Assert.assertFalse(bob.toString().contains("alice@example.com"));
+    }
+
+    private static EWSHeaderCache.Key key(String version) {
+        return new EWSHeaderCache.Key(EWSConstants.REQUESTED_SERVER_VERSION_HEADER, version);
+    }
+
+    private static MessageContext impersonating(String primarySmtpAddress) {
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put(EWSConstants.PRIMARY_SMTP_ADDRESS, primarySmtpAddress);
+        return TemplateMessageContexts.create("getItem", parameters);
+    }
+
+    private OMElement header() {
+        return soapFactory.createOMElement("Header", null);
+    }
+
+    private static int count(OMElement header) {
+        int count = 0;
+        for (Iterator children = header.getChildElements(); children.hasNext(); children.next()) {
+            count++;
+        }
+        return count;
+    }
+}
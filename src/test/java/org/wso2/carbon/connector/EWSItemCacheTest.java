@@ -0,0 +1,105 @@
+/*
+*  Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+package org.wso2.carbon.connector;
+
+import org.apache.axiom.om.OMElement;
+import org.apache.axiom.om.util.AXIOMUtil;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the bounds, expiry and statistics of the GetItem response message cache.
+ */
+public class EWSItemCacheTest {
+    private static final String SCOPE = "scope";
+
+    @Test(description = "a cached message is returned as a copy for the same Id and ChangeKey only")
+    public void testMessageIsCachedPerChangeKey() throws Exception {
+        EWSItemCache cache = new EWSItemCache(10, 1024 * 1024, 0);
+        cache.put(EWSItemCache.key(SCOPE, "a", "1"), responseMessage("a", "1"));
+
+        OMElement cached = cache.get(EWSItemCache.key(SCOPE, "a", "1"));
+        Assert.assertNotNull(cached);
+        Assert.assertTrue(cached.toString().contains("subject a"));
+        Assert.assertNotSame(cache.get(EWSItemCache.key(SCOPE, "a", "1")), cached);
+        Assert.assertNull(cache.get(EWSItemCache.key(SCOPE, "a", "2")));
+        Assert.assertNull(cache.get(EWSItemCache.key("other", "a", "1")));
+        Assert.assertEquals(cache.getHitCount(), 2);
+        Assert.assertEquals(cache.getMissCount(), 2);
+        Assert.assertEquals(cache.getHitRate(), 0.5);
+    }
+
+    @Test(description = "an item without a ChangeKey has no key")
+    public void testItemWithoutChangeKeyIsNotCacheable() {
+        Assert.assertNull(EWSItemCache.key(SCOPE, "a", null));
+        Assert.assertNull(EWSItemCache.key(SCOPE, "a", ""));
+    }
+
+    @Test(description = "the least recently used message is evicted when the cache is full")
+    public void testLeastRecentlyUsedIsEvicted() throws Exception {
+        EWSItemCache cache = new EWSItemCache(2, 1024 * 1024, 0);
+        cache.put(EWSItemCache.key(SCOPE, "a", "1"), responseMessage("a", "1"));
+        cache.put(EWSItemCache.key(SCOPE, "b", "1"), responseMessage("b", "1"));
+        Assert.assertNotNull(cache.get(EWSItemCache.key(SCOPE, "a", "1")));
+        cache.put(EWSItemCache.key(SCOPE, "c", "1"), responseMessage("c", "1"));
+
+        Assert.assertEquals(cache.size(), 2);
+        Assert.assertEquals(cache.getEvictionCount(), 1);
+        Assert.assertNotNull(cache.get(EWSItemCache.key(SCOPE, "a", "1")));
+        Assert.assertNull(cache.get(EWSItemCache.key(SCOPE, "b", "1")));
+        Assert.assertNotNull(cache.get(EWSItemCache.key(SCOPE, "c", "1")));
+    }
+
+    @Test(description = "messages are evicted to keep the cache within its memory bound")
+    public void testMemoryBoundIsKept() throws Exception {
+        EWSItemCache cache = new EWSItemCache(1000, 16 * 1024, 0);
+        for (int i = 0; i < 100; i++) {
+            cache.put(EWSItemCache.key(SCOPE, "id" + i, "1"), responseMessage("id" + i, "1"));
+        }
+        Assert.assertTrue(cache.getBytes() <= 16 * 1024);
+        Assert.assertTrue(cache.size() < 100);
+        Assert.assertNotNull(cache.get(EWSItemCache.key(SCOPE, "id99", "1")));
+        Assert.assertNull(cache.get(EWSItemCache.key(SCOPE, "id0", "1")));
+    }
+
+    @Test(description = "a message larger than a sixteenth of the memory bound isn't cached")
+    public void testLargeMessageIsNotCached() throws Exception {
+        EWSItemCache cache = new EWSItemCache(1000, 4 * 1024, 0);
+        cache.put(EWSItemCache.key(SCOPE, "a", "1"), responseMessage("a", "1"));
+        Assert.assertEquals(cache.size(), 0);
+    }
+
+    @Test(description = "a message expires once it has been cached for longer than the ttl")
+    public void testMessageExpires() throws Exception {
+        EWSItemCache cache = new EWSItemCache(10, 1024 * 1024, 100);
+        cache.put(EWSItemCache.key(SCOPE, "a", "1"), responseMessage("a", "1"));
+        Assert.assertNotNull(cache.get(EWSItemCache.key(SCOPE, "a", "1")));
+        Thread.sleep(150);
+
+        Assert.assertNull(cache.get(EWSItemCache.key(SCOPE, "a", "1")));
+        Assert.assertEquals(cache.size(), 0);
+        Assert.assertEquals(cache.getBytes(), 0);
+    }
+
+    private static OMElement responseMessage(String id, String changeKey) throws Exception {
+        return AXIOMUtil.stringToOM("<m:GetItemResponseMessage xmlns:m=\"" + EWSConstants.MESSAGES_NAME_SPACE +
+                "\" xmlns:t=\"" + EWSConstants.TYPE_NAME_SPACE + "\" ResponseClass=\"Success\"><m:ResponseCode>" +
+                "NoError</m:ResponseCode><m:Items><t:Message><t:ItemId Id=\"" + id + "\" ChangeKey=\"" + changeKey +
+                "\"/><t:Subject>subject " + id + "</t:Subject></t:Message></m:Items></m:GetItemResponseMessage>");
+    }
+}
@@ -0,0 +1,148 @@
+/*
+*  Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+package org.wso2.carbon.connector;
+
+import org.apache.axiom.om.util.StAXUtils;
+import org.apache.axis2.Constants;
+import org.apache.synapse.MessageContext;
+import org.apache.synapse.core.axis2.Axis2MessageContext;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import javax.xml.stream.XMLStreamReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Tests the JSON {@link EWSJsonResponseMediator} converts EWS responses and SOAP faults into.
+ */
+public class EWSJsonResponseMediatorTest {
+    private static final String ENVELOPE_START = "<s:Envelope xmlns:s=\"http://schemas.xmlsoap.org/soap/envelope/\">" +
+            "<s:Body>";
+    private static final String ENVELOPE_END = "</s:Body></s:Envelope>";
+    private static final String FIND_ITEM_RESPONSE = ENVELOPE_START + "<m:FindItemResponse " +
+            "xmlns:m=\"http://schemas.microsoft.com/exchange/services/2006/messages\" " +
+            "xmlns:t=\"http://schemas.microsoft.com/exchange/services/2006/types\"><m:ResponseMessages>" +
+            "<m:FindItemResponseMessage ResponseClass=\"Success\"><m:ResponseCode>NoError</m:ResponseCode>" +
+            "<m:RootFolder TotalItemsInView=\"2\" IncludesLastItemInRange=\"true\"><t:Items>" +
+            "<t:Message><t:ItemId Id=\"id1\" ChangeKey=\"ck1\"/><t:Subject>First</t:Subject>" +
+            "<t:Body BodyType=\"HTML\">&lt;p&gt;long&lt;/p&gt;</t:Body></t:Message>" +
+            "<t:CalendarItem><t:ItemId Id=\"id2\" ChangeKey=\"ck2\"/><t:Subject>Second \"quoted\"</t:Subject>" +
+            "<t:Categories><t:String>a</t:String><t:String>b</t:String></t:Categories></t:CalendarItem>" +
+            "</t:Items></m:RootFolder></m:FindItemResponseMessage></m:ResponseMessages></m:FindItemResponse>" +
+            ENVELOPE_END;
+
+    @Test(description = "items are written with their type and only the requested fields")
+    public void testItemsAreProjected() throws Exception {
+        Assert.assertEquals(toJson(FIND_ITEM_RESPONSE, fields("ItemId", "Subject")), "{\"items\":[" +
+                "{\"type\":\"Message\",\"ItemId\":{\"Id\":\"id1\",\"ChangeKey\":\"ck1\"},\"Subject\":\"First\"}," +
+                "{\"type\":\"CalendarItem\",\"ItemId\":{\"Id\":\"id2\",\"ChangeKey\":\"ck2\"}," +
+                "\"Subject\":\"Second \\\"quoted\\\"\"}],\"totalItemsInView\":\"2\",\"includesLastItemInRange\":" +
+                "\"true\"}");
+    }
+
+    @Test(description = "all fields are kept without responseFields, repeated elements become lists")
+    public void testAllFieldsAreKept() throws Exception {
+        Assert.assertEquals(toJson(FIND_ITEM_RESPONSE, null), "{\"items\":[" +
+                "{\"type\":\"Message\",\"ItemId\":{\"Id\":\"id1\",\"ChangeKey\":\"ck1\"},\"Subject\":\"First\"," +
+                "\"Body\":{\"BodyType\":\"HTML\",\"value\":\"<p>long</p>\"}}," +
+                "{\"type\":\"CalendarItem\",\"ItemId\":{\"Id\":\"id2\",\"ChangeKey\":\"ck2\"}," +
+                "\"Subject\":\"Second \\\"quoted\\\"\",\"Categories\":{\"String\":[\"a\",\"b\"]}}]," +
+                "\"totalItemsInView\":\"2\",\"includesLastItemInRange\":\"true\"}");
+    }
+
+    @Test(description = "response messages that aren't successful become errors")
+    public void testErrorResponseMessages() throws Exception {
+        String response = ENVELOPE_START + "<m:GetItemResponse " +
+                "xmlns:m=\"http://schemas.microsoft.com/exchange/services/2006/messages\"><m:ResponseMessages>" +
+                "<m:GetItemResponseMessage ResponseClass=\"Error\"><m:MessageText>The specified object was not " +
+                "found in the store.</m:MessageText><m:ResponseCode>ErrorItemNotFound</m:ResponseCode>" +
+                "<m:Items/></m:GetItemResponseMessage><m:GetItemResponseMessage ResponseClass=\"Warning\">" +
+                "<m:ResponseCode>ErrorBatchProcessingStopped</m:ResponseCode></m:GetItemResponseMessage>" +
+                "</m:ResponseMessages></m:GetItemResponse>" + ENVELOPE_END;
+        Assert.assertEquals(toJson(response, null), "{\"items\":[],\"errors\":[" +
+                "{\"responseClass\":\"Error\",\"messageText\":\"The specified object was not found in the store.\"," +
+                "\"responseCode\":\"ErrorItemNotFound\"}," +
+                "{\"responseClass\":\"Warning\",\"responseCode\":\"ErrorBatchProcessingStopped\"}]}");
+    }
+
+    @Test(description = "a SOAP 1.1 fault becomes an error with its faultcode, faultstring and response code")
+    public void testSoap11Fault() throws Exception {
+        String response = ENVELOPE_START + "<s:Fault><faultcode xmlns:a=\"http://schemas.microsoft.com/exchange/" +
+                "services/2006/types\">a:ErrorSchemaValidation</faultcode><faultstring xml:lang=\"en-US\">The " +
+                "request failed schema validation.</faultstring><detail><e:ResponseCode xmlns:e=\"http://schemas." +
+                "microsoft.com/exchange/services/2006/errors\">ErrorSchemaValidation</e:ResponseCode>" +
+                "<e:Message xmlns:e=\"http://schemas.microsoft.com/exchange/services/2006/errors\">The request " +
+                "failed schema validation.</e:Message></detail></s:Fault>" + ENVELOPE_END;
+        Assert.assertEquals(toJson(response, null), "{\"items\":[],\"errors\":[" +
+                "{\"faultcode\":\"a:ErrorSchemaValidation\",\"faultstring\":\"The request failed schema " +
+                "validation.\",\"responseCode\":\"ErrorSchemaValidation\"}]}");
+    }
+
+    @Test(description = "a SOAP 1.2 fault becomes an error with the value of its code and the text of its reason")
+    public void testSoap12Fault() throws Exception {
+        String response = "<env:Envelope xmlns:env=\"http://www.w3.org/2003/05/soap-envelope\"><env:Body>" +
+                "<env:Fault><env:Code><env:Value>env:Receiver</env:Value><env:Subcode><env:Value>ErrorInternal" +
+                "</env:Value></env:Subcode></env:Code><env:Reason><env:Text xml:lang=\"en\">Internal error" +
+                "</env:Text></env:Reason></env:Fault></env:Body></env:Envelope>";
+        Assert.assertEquals(toJson(response, null), "{\"items\":[],\"errors\":[" +
+                "{\"faultcode\":\"env:Receiver\",\"faultstring\":\"Internal error\"}]}");
+    }
+
+    @Test(description = "the unread response of the connection is read, closed and replaced by a JSON payload")
+    public void testStreamedResponse() throws Exception {
+        final boolean[] closed = new boolean[1];
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put(EWSConstants.RESPONSE_FIELDS, "Subject");
+        MessageContext messageContext = TemplateMessageContexts.create("responseToJson", parameters);
+        messageContext.setProperty(EWSConstants.EWS_RESPONSE_STREAM, StreamedResponses.create(
+                new ByteArrayInputStream(FIND_ITEM_RESPONSE.getBytes(StandardCharsets.UTF_8)) {
+                    @Override
+                    public void close() throws IOException {
+                        closed[0] = true;
+                        super.close();
+                    }
+                }));
+        new EWSJsonResponseMediator().connect(messageContext);
+
+        Assert.assertTrue(closed[0], "response wasn't closed");
+        Assert.assertNull(messageContext.getProperty(EWSConstants.EWS_RESPONSE_STREAM));
+        Assert.assertEquals(((Axis2MessageContext) messageContext).getAxis2MessageContext().getProperty(
+                Constants.Configuration.MESSAGE_TYPE), "application/json");
+    }
+
+    private static String toJson(String response, Set<String> fields) throws Exception {
+        XMLStreamReader reader = StAXUtils.createXMLStreamReader(new ByteArrayInputStream(response.getBytes(
+                StandardCharsets.UTF_8)));
+        try {
+            return EWSJsonResponseMediator.toJson(reader, fields);
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static Set<String> fields(String... fields) {
+        return new HashSet<String>(Arrays.asList(fields));
+    }
+}
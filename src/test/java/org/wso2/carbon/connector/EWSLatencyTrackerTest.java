@@ -0,0 +1,82 @@
+/*
+*  Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+package org.wso2.carbon.connector;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the percentiles, timeouts and sliding window of the latency tracker.
+ */
+public class EWSLatencyTrackerTest {
+
+    @Test(description = "percentiles are unknown until enough requests have been counted")
+    public void testTooFewRequests() {
+        EWSLatencyTracker tracker = new EWSLatencyTracker("test", 60000, 100);
+        for (int i = 0; i < 19; i++) {
+            tracker.record(50);
+        }
+        Assert.assertEquals(tracker.getPercentile(0.5), -1);
+        Assert.assertEquals(tracker.getHedgeDelay(), -1);
+        Assert.assertEquals(tracker.getTimeout(60000), 60000);
+    }
+
+    @Test(description = "percentiles are within a quarter of the latency and give the timeout and hedge delay")
+    public void testPercentiles() {
+        EWSLatencyTracker tracker = new EWSLatencyTracker("test", 60000, 100);
+        for (int i = 0; i < 90; i++) {
+            tracker.record(100);
+        }
+        for (int i = 0; i < 10; i++) {
+            tracker.record(1000);
+        }
+        long median = tracker.getPercentile(0.5);
+        Assert.assertTrue(median >= 100 && median <= 125, String.valueOf(median));
+        long tail = tracker.getPercentile(0.99);
+        Assert.assertTrue(tail >= 1000 && tail <= 1250, String.valueOf(tail));
+        Assert.assertEquals(tracker.getTimeout(60000), tail * 3);
+        Assert.assertEquals(tracker.getTimeout(2000), 2000);
+        Assert.assertTrue(tracker.getHedgeDelay() >= 1000);
+    }
+
+    @Test(description = "the timeout is never below the minimum timeout")
+    public void testMinimumTimeout() {
+        EWSLatencyTracker tracker = new EWSLatencyTracker("test", 60000, 500);
+        for (int i = 0; i < 50; i++) {
+            tracker.record(10);
+        }
+        Assert.assertEquals(tracker.getTimeout(60000), 500);
+    }
+
+    @Test(description = "latencies older than two periods are forgotten")
+    public void testWindowSlides() throws Exception {
+        EWSLatencyTracker tracker = new EWSLatencyTracker("test", 100, 100);
+        for (int i = 0; i < 50; i++) {
+            tracker.record(1000);
+        }
+        Thread.sleep(120);
+        Assert.assertTrue(tracker.getPercentile(0.5) >= 1000);
+        for (int i = 0; i < 50; i++) {
+            tracker.record(10);
+        }
+        Thread.sleep(120);
+        Assert.assertTrue(tracker.getPercentile(0.5) <= 12);
+        Thread.sleep(220);
+        Assert.assertEquals(tracker.getPercentile(0.5), -1);
+    }
+}
@@ -0,0 +1,125 @@
+/*
+*  Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+package org.wso2.carbon.connector;
+
+import org.apache.axiom.om.OMAbstractFactory;
+import org.apache.axiom.om.OMXMLBuilderFactory;
+import org.apache.axiom.soap.SOAPEnvelope;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import javax.management.ObjectName;
+import java.io.ByteArrayInputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+
+/**
+ * Tests the histograms, ResponseCode counts and exposition of the connector metrics.
+ */
+public class EWSMetricsTest {
+    private static final String ENVELOPE_START = "<s:Envelope xmlns:s=\"http://schemas.xmlsoap.org/soap/envelope/\" " +
+            "xmlns:m=\"" + EWSConstants.MESSAGES_NAME_SPACE + "\"><s:Body>";
+    private static final String ENVELOPE_END = "</s:Body></s:Envelope>";
+
+    @Test(description = "percentiles are the upper bound of the power of two bucket they fall in")
+    public void testHistogramPercentiles() {
+        EWSMetrics.Histogram histogram = new EWSMetrics.Histogram();
+        Assert.assertEquals(histogram.getPercentile(0.99), 0);
+        for (int i = 0; i < 99; i++) {
+            histogram.record(100);
+        }
+        histogram.record(5000);
+        Assert.assertEquals(histogram.getCount(), 100);
+        Assert.assertEquals(histogram.getPercentile(0.5), 128);
+        Assert.assertEquals(histogram.getPercentile(0.99), 128);
+        Assert.assertEquals(histogram.getPercentile(1), 8192);
+        Assert.assertEquals(histogram.getMean(), 149.0, 0.001);
+    }
+
+    @Test(description = "the ResponseCode of every ResponseMessage and of faults is counted")
+    public void testResponseCodesAreCounted() throws Exception {
+        EWSMetrics.Operation metrics = EWSMetrics.get("TestCodes");
+        metrics.countResponseCodes(envelope("<m:GetItemResponse><m:ResponseMessages><m:GetItemResponseMessage " +
+                "ResponseClass=\"Success\"><m:ResponseCode>NoError</m:ResponseCode></m:GetItemResponseMessage>" +
+                "<m:GetItemResponseMessage ResponseClass=\"Error\"><m:ResponseCode>ErrorItemNotFound" +
+                "</m:ResponseCode></m:GetItemResponseMessage></m:ResponseMessages></m:GetItemResponse>"));
+        metrics.countResponseCodes(envelope("<s:Fault><faultcode>s:Client</faultcode><faultstring>busy" +
+                "</faultstring><detail><e:ResponseCode xmlns:e=\"http://schemas.microsoft.com/exchange/services/" +
+                "2006/errors\">ErrorServerBusy</e:ResponseCode></detail></s:Fault>"));
+        String text = EWSMetrics.toPrometheus();
+        Assert.assertTrue(text.contains("ews_response_codes_total{operation=\"TestCodes\",code=\"NoError\"} 1\n"));
+        Assert.assertTrue(text.contains("ews_response_codes_total{operation=\"TestCodes\",code=\"ErrorItemNotFound\"}" +
+                " 1\n"));
+        Assert.assertTrue(text.contains("ews_response_codes_total{operation=\"TestCodes\",code=\"ErrorServerBusy\"}" +
+                " 1\n"));
+    }
+
+    @Test(description = "envelope build times are split into header, body and namespace rewriting")
+    public void testBuildTimes() throws Exception {
+        EWSMetrics.Operation metrics = EWSMetrics.get("TestBuild");
+        long start = metrics.startBuild();
+        start = metrics.headerBuilt(start);
+        EWSNamespaceRewriter.rewrite("<ItemId Id=\"1\"/>");
+        metrics.bodyBuilt(start);
+        metrics.requestSent(3000, 3000);
+        String text = EWSMetrics.toPrometheus();
+        Assert.assertTrue(text.contains("ews_envelope_header_seconds_count{operation=\"TestBuild\"} 1\n"));
+        Assert.assertTrue(text.contains("ews_envelope_body_seconds_count{operation=\"TestBuild\"} 1\n"));
+        Assert.assertTrue(text.contains("ews_envelope_namespace_seconds_count{operation=\"TestBuild\"} 1\n"));
+        Assert.assertFalse(text.contains("ews_envelope_namespace_seconds_sum{operation=\"TestBuild\"} 0.0\n"));
+        Assert.assertTrue(text.contains("ews_request_bytes_bucket{operation=\"TestBuild\",le=\"1024\"} 0\n"));
+        Assert.assertTrue(text.contains("ews_request_bytes_bucket{operation=\"TestBuild\",le=\"4096\"} 1\n"));
+        Assert.assertTrue(text.contains("ews_request_bytes_bucket{operation=\"TestBuild\",le=\"+Inf\"} 1\n"));
+        Assert.assertTrue(text.contains("ews_request_bytes_sum{operation=\"TestBuild\"} 3000\n"));
+    }
+
+    @Test(description = "metrics are readable through JMX")
+    public void testJmxAttributes() throws Exception {
+        EWSMetrics.get("TestJmx").responseReceived(System.nanoTime(), 700, 700);
+        Object count = ManagementFactory.getPlatformMBeanServer().getAttribute(new ObjectName(
+                "org.wso2.carbon.connector:type=EWSMetrics"), "TestJmx.responseBytes.count");
+        Assert.assertEquals(count, 1L);
+    }
+
+    @Test(description = "the hits and misses of the header cache are exposed")
+    public void testHeaderCacheMetrics() throws Exception {
+        EWSHeaderCache headerCache = EWSUtils.getHeaderCache();
+        long hits = headerCache.getHitCount();
+        long misses = headerCache.getMissCount();
+        for (int i = 0; i < 3; i++) {
+            EWSUtils.populateRequestedServerVersionHeader(OMAbstractFactory.getSOAP11Factory().getDefaultEnvelope()
+                    .getHeader(), TemplateMessageContexts.create("getItem", Collections.<String, Object>
+                    singletonMap(EWSConstants.REQUESTED_SERVER_VERSION, "TestMetrics")));
+        }
+        Assert.assertTrue(headerCache.getHitCount() >= hits + 2);
+        Assert.assertTrue(headerCache.getMissCount() >= misses + 1);
+        String text = EWSMetrics.toPrometheus();
+        Assert.assertTrue(text.contains("# TYPE ews_header_cache_hits_total counter\n"));
+        Assert.assertTrue(text.contains("ews_header_cache_misses_total "));
+        Assert.assertTrue(text.contains("ews_header_cache_entries "));
+        Object jmxHits = ManagementFactory.getPlatformMBeanServer().getAttribute(new ObjectName(
+                "org.wso2.carbon.connector:type=EWSMetrics"), "header_cache_hits_total");
+        Assert.assertTrue((Long) jmxHits >= hits + 2);
+    }
+
+    private static SOAPEnvelope envelope(String body) {
+        return OMXMLBuilderFactory.createSOAPModelBuilder(new ByteArrayInputStream((ENVELOPE_START + body +
+                ENVELOPE_END).getBytes(StandardCharsets.UTF_8)), "UTF-8").getSOAPEnvelope();
+    }
+}
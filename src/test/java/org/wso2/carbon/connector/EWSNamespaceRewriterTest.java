@@ -0,0 +1,76 @@
+/*
+*  Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+package org.wso2.carbon.connector;
+
+import org.apache.axiom.om.OMElement;
+import org.apache.axiom.om.util.AXIOMUtil;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import javax.xml.stream.XMLStreamException;
+
+/**
+ * Tests that {@link EWSNamespaceRewriter} produces the same tree as the former xslt/namespace.xslt transformation.
+ */
+public class EWSNamespaceRewriterTest {
+
+    @DataProvider(name = "fragments")
+    public Object[][] fragments() {
+        return new Object[][]{
+                {"<ToRecipients>\n    <Mailbox>\n        <Name>John Doe</Name>\n        <EmailAddress>" +
+                        "john.doe@example.com</EmailAddress>\n        <RoutingType>SMTP</RoutingType>\n" +
+                        "    </Mailbox>\n</ToRecipients>"},
+                {"<Restriction><IsEqualTo><FieldURI FieldURI=\"message:IsRead\"/><FieldURIOrConstant>" +
+                        "<Constant Value=\"false\"/></FieldURIOrConstant></IsEqualTo></Restriction>"},
+                {"<AdditionalProperties><FieldURI FieldURI=\"item:Subject\"/><ExtendedFieldURI " +
+                        "PropertyTag=\"0x1000\" PropertyType=\"String\"/></AdditionalProperties>"},
+                {"<Body BodyType=\"HTML\">&lt;p&gt;Hello &amp; welcome&lt;/p&gt;</Body>"},
+                {"<Body BodyType=\"Text\"><![CDATA[<b>kept</b> as text]]></Body>"},
+                {"<Subject>  padded subject  </Subject>"},
+                {"<Items><!-- a comment --><Message><Subject>mixed <Importance>High</Importance> text</Subject>" +
+                        "</Message></Items>"},
+                {"<Attachments xmlns:x=\"urn:extra\"><FileAttachment x:hint=\"large\"><Name>report.txt</Name>" +
+                        "</FileAttachment></Attachments>"},
+                {"<Mailbox xmlns=\"urn:default\"><EmailAddress>shared.box@example.com</EmailAddress></Mailbox>"}
+        };
+    }
+
+    @Test(dataProvider = "fragments", description = "the rewrite matches the xslt output for parameter fragments")
+    public void testMatchesXslt(String fragment) throws Exception {
+        String expected = XsltNamespaceRewrite.canonical(XsltNamespaceRewrite.rewrite(AXIOMUtil.stringToOM(
+                fragment)));
+        Assert.assertEquals(XsltNamespaceRewrite.canonical(EWSNamespaceRewriter.rewrite(fragment)), expected);
+        Assert.assertEquals(XsltNamespaceRewrite.canonical(EWSNamespaceRewriter.rewrite(AXIOMUtil.stringToOM(
+                fragment))), expected);
+    }
+
+    @Test(description = "every element is moved into the types namespace")
+    public void testElementsUseTypesNamespace() throws Exception {
+        OMElement element = EWSNamespaceRewriter.rewrite("<Mailbox><EmailAddress>a@example.com</EmailAddress>" +
+                "</Mailbox>");
+        Assert.assertEquals(element.getNamespace().getNamespaceURI(), EWSConstants.TYPE_NAME_SPACE);
+        Assert.assertEquals(element.getFirstElement().getNamespace().getNamespaceURI(), EWSConstants.TYPE_NAME_SPACE);
+        Assert.assertEquals(element.getFirstElement().getText(), "a@example.com");
+    }
+
+    @Test(expectedExceptions = XMLStreamException.class, description = "fragments without an element are rejected")
+    public void testRejectsTextOnly() throws Exception {
+        EWSNamespaceRewriter.rewrite("just text");
+    }
+}
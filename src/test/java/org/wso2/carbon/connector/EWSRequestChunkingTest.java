@@ -0,0 +1,401 @@
+/*
+*  Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+package org.wso2.carbon.connector;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.apache.axiom.om.OMAbstractFactory;
+import org.apache.axiom.om.OMDataSourceExt;
+import org.apache.axiom.om.OMElement;
+import org.apache.axiom.om.OMNamespace;
+import org.apache.axiom.om.ds.OMDataSourceExtBase;
+import org.apache.axiom.soap.SOAPEnvelope;
+import org.apache.axiom.soap.SOAPFactory;
+import org.apache.http.HttpEntity;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Tests that requests above the chunking threshold are written chunked while they are serialized, against a stub
+ * server in place of EWS.
+ */
+public class EWSRequestChunkingTest {
+    private static final long MB = 1024 * 1024;
+    private static final long LARGE_ATTACHMENT_SIZE = 100 * MB;
+    private static final String HEAP_LIMIT = "-Xmx32m";
+    // the chunk buffer of the client, the most of a streamed request held in memory at a time
+    private static final int MAX_CHUNK = 8 * 1024;
+    private static final byte[] RESPONSE = ("<?xml version=\"1.0\" encoding=\"utf-8\"?><s:Envelope xmlns:s=\"http://" +
+            "schemas.xmlsoap.org/soap/envelope/\"><s:Body><m:CreateAttachmentResponse xmlns:m=\"" + EWSConstants
+            .MESSAGES_NAME_SPACE + "\"><m:ResponseMessages><m:CreateAttachmentResponseMessage ResponseClass=\"" +
+            "Success\"><m:ResponseCode>NoError</m:ResponseCode></m:CreateAttachmentResponseMessage>" +
+            "</m:ResponseMessages></m:CreateAttachmentResponse></s:Body></s:Envelope>").getBytes(StandardCharsets
+            .UTF_8);
+
+    private final SOAPFactory soapFactory = OMAbstractFactory.getSOAP11Factory();
+    private final OMNamespace type = soapFactory.createOMNamespace(EWSConstants.TYPE_NAME_SPACE, "t");
+    private StubServer server;
+    private RecordingHandler handler;
+    private String url;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        handler = new RecordingHandler();
+        server = new StubServer().handle("/ews", handler).start();
+        url = server.url("/ews");
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test(description = "requests below the threshold are buffered and sent with their Content-Length")
+    public void testSmallRequestIsBuffered() throws Exception {
+        EWSClient client = new EWSClient(url, null, 60000).withChunkingThreshold(64 * 1024);
+        SOAPEnvelope response = client.send("CreateAttachment", envelope(content("small attachment")));
+        Assert.assertFalse(response.hasFault());
+        Assert.assertNull(handler.transferEncoding);
+        Assert.assertEquals(handler.contentLength, String.valueOf(handler.bytes));
+    }
+
+    @Test(description = "requests above the threshold are sent chunked and complete")
+    public void testLargeRequestIsChunked() throws Exception {
+        EWSClient client = new EWSClient(url, null, 60000).withChunkingThreshold(100);
+        String text = "attachment text above the threshold ";
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            content.append(text);
+        }
+        SOAPEnvelope request = envelope(content(content.toString()));
+        SOAPEnvelope response = client.send("CreateAttachment", request);
+        Assert.assertFalse(response.hasFault());
+        Assert.assertEquals(handler.transferEncoding, "chunked");
+        Assert.assertNull(handler.contentLength);
+        Assert.assertEquals(handler.bytes, request.toString().getBytes(StandardCharsets.UTF_8).length);
+    }
+
+    @Test(description = "a streamed attachment is written in chunks no larger than the client's output buffer")
+    public void testStreamedRequestFraming() throws Exception {
+        File file = attachment(MB);
+        OMElement content = soapFactory.createOMElement(EWSAttachmentDataSource.forFile(type, file), EWSConstants
+                .CONTENT, type);
+        ServerSocket socket = new ServerSocket(0, 1, InetAddress.getByName("localhost"));
+        ChunkReader reader = new ChunkReader(socket);
+        Thread thread = new Thread(reader);
+        thread.start();
+        try {
+            EWSClient client = new EWSClient("http://localhost:" + socket.getLocalPort() + "/ews", null, 60000)
+                    .withChunkingThreshold(64 * 1024);
+            SOAPEnvelope response = client.send("CreateAttachment", envelope(content));
+            Assert.assertFalse(response.hasFault());
+            thread.join(10000);
+        } finally {
+            socket.close();
+            file.delete();
+        }
+        Assert.assertNull(reader.failure);
+        Assert.assertTrue(reader.headers.contains("\r\ntransfer-encoding: chunked\r\n"), reader.headers);
+        Assert.assertFalse(reader.headers.contains("\r\ncontent-length:"), reader.headers);
+        // the base64 encoded content alone is a third larger than the attachment
+        Assert.assertTrue(reader.bytes > 4 * MB / 3, String.valueOf(reader.bytes));
+        Assert.assertTrue(reader.chunks > 100, String.valueOf(reader.chunks));
+        Assert.assertTrue(reader.maxChunk <= MAX_CHUNK, String.valueOf(reader.maxChunk));
+        Assert.assertTrue(reader.tail.endsWith("</soapenv:Envelope>"), reader.tail);
+    }
+
+    @Test(description = "a request above the threshold is serialized once, the buffered start of it is written as is")
+    public void testLargeRequestIsSerializedOnce() throws Exception {
+        File file = attachment(MB);
+        try {
+            CountingDataSource dataSource = new CountingDataSource(EWSAttachmentDataSource.forFile(type, file));
+            SOAPEnvelope request = envelope(soapFactory.createOMElement(dataSource, EWSConstants.CONTENT, type));
+            long length = request.toString().getBytes(StandardCharsets.UTF_8).length;
+            dataSource.serializations = 0;
+
+            EWSClient client = new EWSClient(url, null, 60000).withChunkingThreshold(64 * 1024);
+            Assert.assertFalse(client.send("CreateAttachment", request).hasFault());
+            Assert.assertEquals(handler.transferEncoding, "chunked");
+            Assert.assertEquals(handler.bytes, length);
+            Assert.assertEquals(dataSource.serializations, 1);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test(description = "the content of a chunked request is streamed from the serialization already under way")
+    public void testChunkedRequestContentIsStreamed() throws Exception {
+        File file = attachment(MB);
+        try {
+            CountingDataSource dataSource = new CountingDataSource(EWSAttachmentDataSource.forFile(type, file));
+            SOAPEnvelope request = envelope(soapFactory.createOMElement(dataSource, EWSConstants.CONTENT, type));
+            String expected = request.toString();
+            dataSource.serializations = 0;
+
+            HttpEntity entity = new EWSClient(url, null, 60000).withChunkingThreshold(64 * 1024).createEntity(
+                    "CreateAttachment", request, false);
+            Assert.assertTrue(entity.isChunked());
+            Assert.assertTrue(entity.isRepeatable());
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            InputStream input = entity.getContent();
+            try {
+                byte[] buffer = new byte[4096];
+                int length;
+                while ((length = input.read(buffer)) >= 0) {
+                    content.write(buffer, 0, length);
+                }
+            } finally {
+                input.close();
+            }
+            Assert.assertEquals(content.toString("UTF-8"), expected);
+            Assert.assertEquals(dataSource.serializations, 1);
+
+            // a retry serializes the envelope again
+            ByteArrayOutputStream retry = new ByteArrayOutputStream();
+            entity.writeTo(retry);
+            Assert.assertEquals(retry.toString("UTF-8"), expected);
+            Assert.assertEquals(dataSource.serializations, 2);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test(description = "a 100 MB attachment is sent chunked by a JVM whose heap is smaller than the request")
+    public void testLargeRequestInSmallHeap() throws Exception {
+        String text = SmallHeapJvm.run(EWSRequestChunkingTest.class, HEAP_LIMIT);
+        Matcher sent = Pattern.compile("sent (\\d+) bytes chunked").matcher(text);
+        Assert.assertTrue(sent.find(), text);
+        // the base64 encoded content alone is a third larger than the attachment
+        Assert.assertTrue(Long.parseLong(sent.group(1)) > LARGE_ATTACHMENT_SIZE / 3 * 4, text);
+    }
+
+    /**
+     * Sends a CreateAttachment request of a 100 MB file to a stub server, run by
+     * {@link #testLargeRequestInSmallHeap()} in a JVM with a 32 MB heap.
+     */
+    public static void main(String[] args) throws Exception {
+        EWSRequestChunkingTest test = new EWSRequestChunkingTest();
+        test.setUp();
+        File file = attachment(LARGE_ATTACHMENT_SIZE);
+        try {
+            OMElement content = test.soapFactory.createOMElement(EWSAttachmentDataSource.forFile(test.type, file),
+                    EWSConstants.CONTENT, test.type);
+            EWSClient client = new EWSClient(test.url, null, 60000).withChunkingThreshold(64 * 1024);
+            SOAPEnvelope response = client.send("CreateAttachment", test.envelope(content));
+            if (response.hasFault()) {
+                throw new IllegalStateException("CreateAttachment failed: " + response);
+            }
+        } finally {
+            file.delete();
+            test.tearDown();
+        }
+        System.out.println("sent " + test.handler.bytes + " bytes " + test.handler.transferEncoding);
+    }
+
+    private static File attachment(long length) throws IOException {
+        File file = File.createTempFile("ews-chunking", ".bin");
+        file.deleteOnExit();
+        RandomAccessFile attachment = new RandomAccessFile(file, "rw");
+        try {
+            attachment.setLength(length);
+        } finally {
+            attachment.close();
+        }
+        return file;
+    }
+
+    private OMElement content(String text) {
+        OMElement content = soapFactory.createOMElement(EWSConstants.CONTENT, type);
+        content.setText(text);
+        return content;
+    }
+
+    private SOAPEnvelope envelope(OMElement content) {
+        SOAPEnvelope envelope = soapFactory.getDefaultEnvelope();
+        OMNamespace message = soapFactory.createOMNamespace(EWSConstants.MESSAGES_NAME_SPACE, "m");
+        OMElement createAttachment = soapFactory.createOMElement(EWSConstants.CREATE_ATTACHMENT_ELEMENT, message,
+                envelope.getBody());
+        OMElement attachments = soapFactory.createOMElement(EWSConstants.ATTACHMENTS_ELEMENT, message,
+                createAttachment);
+        soapFactory.createOMElement(EWSConstants.FILE_ATTACHMENT_ELEMENT, type, attachments).addChild(content);
+        return envelope;
+    }
+
+    /**
+     * Reads the request body in small chunks, recording its headers and size.
+     */
+    private static class RecordingHandler implements HttpHandler {
+        private volatile String transferEncoding;
+        private volatile String contentLength;
+        private volatile long bytes;
+
+        public void handle(HttpExchange exchange) throws IOException {
+            transferEncoding = exchange.getRequestHeaders().getFirst("Transfer-Encoding");
+            contentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+            InputStream body = exchange.getRequestBody();
+            byte[] buffer = new byte[64 * 1024];
+            long read = 0;
+            int length;
+            while ((length = body.read(buffer)) > 0) {
+                read += length;
+            }
+            bytes = read;
+            StubServer.respond(exchange, 200, StubServer.XML, RESPONSE);
+        }
+    }
+
+    /**
+     * Accepts one connection and reads the request off the socket, recording the chunked framing the server API
+     * of the JDK hides.
+     */
+    private static class ChunkReader implements Runnable {
+        private static final int TAIL_LENGTH = 64;
+        private final ServerSocket socket;
+        private volatile String headers;
+        private volatile String tail;
+        private volatile long bytes;
+        private volatile int chunks;
+        private volatile int maxChunk;
+        private volatile Exception failure;
+
+        ChunkReader(ServerSocket socket) {
+            this.socket = socket;
+        }
+
+        public void run() {
+            try {
+                Socket connection = socket.accept();
+                try {
+                    DataInputStream input = new DataInputStream(new BufferedInputStream(connection.getInputStream()));
+                    StringBuilder head = new StringBuilder();
+                    String line;
+                    while ((line = readLine(input)).length() > 0) {
+                        head.append(line.toLowerCase(Locale.ROOT)).append("\r\n");
+                    }
+                    headers = head.toString();
+                    String end = "";
+                    int size;
+                    while ((size = Integer.parseInt(readLine(input).split(";")[0].trim(), 16)) > 0) {
+                        byte[] chunk = new byte[size];
+                        input.readFully(chunk);
+                        end = end + new String(chunk, StandardCharsets.UTF_8);
+                        end = end.substring(Math.max(0, end.length() - TAIL_LENGTH));
+                        readLine(input);
+                        bytes += size;
+                        chunks++;
+                        maxChunk = Math.max(maxChunk, size);
+                    }
+                    readLine(input);
+                    tail = end;
+                    OutputStream output = connection.getOutputStream();
+                    output.write(("HTTP/1.1 200 OK\r\nContent-Type: text/xml; charset=utf-8\r\nContent-Length: " +
+                            RESPONSE.length + "\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+                    output.write(RESPONSE);
+                    output.flush();
+                } finally {
+                    connection.close();
+                }
+            } catch (Exception e) {
+                failure = e;
+            }
+        }
+
+        private static String readLine(DataInputStream input) throws IOException {
+            StringBuilder line = new StringBuilder();
+            int b;
+            while ((b = input.read()) != '\n') {
+                if (b < 0) {
+                    throw new EOFException("Request ended before its last chunk");
+                }
+                if (b != '\r') {
+                    line.append((char) b);
+                }
+            }
+            return line.toString();
+        }
+    }
+
+    /**
+     * Counts how often the content of an attachment is serialized.
+     */
+    private static class CountingDataSource extends OMDataSourceExtBase {
+        private final OMDataSourceExt content;
+        private volatile int serializations;
+
+        CountingDataSource(OMDataSourceExt content) {
+            this.content = content;
+        }
+
+        @Override
+        public void serialize(XMLStreamWriter writer) throws XMLStreamException {
+            serializations++;
+            content.serialize(writer);
+        }
+
+        public XMLStreamReader getReader() throws XMLStreamException {
+            return content.getReader();
+        }
+
+        public Object getObject() {
+            return content.getObject();
+        }
+
+        public boolean isDestructiveRead() {
+            return content.isDestructiveRead();
+        }
+
+        public boolean isDestructiveWrite() {
+            return content.isDestructiveWrite();
+        }
+
+        public byte[] getXMLBytes(String encoding) throws UnsupportedEncodingException {
+            return content.getXMLBytes(encoding);
+        }
+
+        public void close() {
+            content.close();
+        }
+
+        public OMDataSourceExt copy() {
+            return new CountingDataSource(content.copy());
+        }
+    }
+}
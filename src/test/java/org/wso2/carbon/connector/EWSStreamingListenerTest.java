@@ -0,0 +1,482 @@
+/*
+*  Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+package org.wso2.carbon.connector;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.apache.axiom.om.OMAbstractFactory;
+import org.apache.axiom.om.OMElement;
+import org.apache.axiom.soap.SOAPFactory;
+import org.apache.axiom.soap.SOAPHeader;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import javax.xml.namespace.QName;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Tests the streaming listener against a local stub of the EWS endpoint, which streams notification frames over
+ * chunked responses.
+ */
+public class EWSStreamingListenerTest {
+    private static final String KEY = "streaming-test";
+    private static final String RESPONSE_START = "<?xml version=\"1.0\" encoding=\"utf-8\"?>" +
+            "<Envelope xmlns=\"http://schemas.xmlsoap.org/soap/envelope/\"><Body>" +
+            "<m:Response xmlns:m=\"http://schemas.microsoft.com/exchange/services/2006/messages\" " +
+            "xmlns:t=\"http://schemas.microsoft.com/exchange/services/2006/types\"><m:ResponseMessages>";
+    private static final String RESPONSE_END = "</m:ResponseMessages></m:Response></Body></Envelope>";
+    private static final Pattern SUBSCRIPTION_ID = Pattern.compile("SubscriptionId>([^<]+)<");
+    private static final Pattern MAILBOX = Pattern.compile("SmtpAddress>([^<]+)<");
+    private static final Pattern WATERMARK = Pattern.compile("typ:Watermark>([^<]+)<");
+
+    private final SOAPFactory soapFactory = OMAbstractFactory.getSOAP11Factory();
+    private StubServer server;
+    private EWSSyncStateStore store;
+    private RecordingHandler handler;
+    private CountDownLatch release;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        server = new StubServer();
+        store = EWSSyncStateStore.forDirectory(Files.createTempDirectory("ews-streaming").toString());
+        handler = new RecordingHandler();
+        release = new CountDownLatch(1);
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        EWSStreamingListener.stop(KEY);
+        release.countDown();
+        server.stop();
+    }
+
+    @Test(description = "events are handled as soon as their frame arrives, before the connection closes")
+    public void testEventsAreHandledWhileConnectionIsOpen() throws Exception {
+        final CountDownLatch handledBeforeClose = new CountDownLatch(1);
+        final boolean[] handledInTime = new boolean[1];
+        server.handle("/ews", new StubHandler() {
+            void streamingEvents(HttpExchange exchange, List<String> subscriptionIds) throws Exception {
+                OutputStream output = startStream(exchange);
+                frame(output, connectionStatus("OK"));
+                frame(output, notification(subscriptionIds.get(0), "<t:NewMailEvent><t:Watermark>w1</t:Watermark>" +
+                        "<t:ItemId Id=\"item1\"/></t:NewMailEvent><t:StatusEvent><t:Watermark>w2</t:Watermark>" +
+                        "</t:StatusEvent>"));
+                handledInTime[0] = handler.handled.await(10, TimeUnit.SECONDS);
+                frame(output, connectionStatus("Closed"));
+                output.close();
+                handledBeforeClose.countDown();
+                release.await(10, TimeUnit.SECONDS);
+            }
+        });
+        server.start();
+        EWSStreamingListener listener = listener(200);
+        listener.addSubscription("a@example.com", header("a@example.com"), "watermark-a");
+        EWSStreamingListener.start(listener);
+
+        Assert.assertTrue(handledBeforeClose.await(10, TimeUnit.SECONDS));
+        Assert.assertTrue(handledInTime[0], "event wasn't handled while the connection was open");
+        Assert.assertEquals(handler.events, Collections.singletonList("a@example.com NewMailEvent w1 item1"));
+        Assert.assertEquals(awaitWatermark("watermark-a", "w2"), "w2");
+    }
+
+    @Test(description = "subscriptions are packed onto connections up to the limit per connection")
+    public void testSubscriptionsArePackedPerConnection() throws Exception {
+        final List<List<String>> connections = Collections.synchronizedList(new ArrayList<List<String>>());
+        final CountDownLatch opened = new CountDownLatch(3);
+        server.handle("/ews", new StubHandler() {
+            void streamingEvents(HttpExchange exchange, List<String> subscriptionIds) throws Exception {
+                connections.add(subscriptionIds);
+                OutputStream output = startStream(exchange);
+                frame(output, connectionStatus("OK"));
+                opened.countDown();
+                release.await(10, TimeUnit.SECONDS);
+                output.close();
+            }
+        });
+        server.start();
+        EWSStreamingListener listener = listener(2);
+        for (String mailbox : new String[]{"a@example.com", "b@example.com", "c@example.com", "d@example.com",
+                "e@example.com"}) {
+            listener.addSubscription(mailbox, header(mailbox), "watermark-" + mailbox);
+        }
+        EWSStreamingListener.start(listener);
+
+        Assert.assertTrue(opened.await(10, TimeUnit.SECONDS));
+        List<String> subscriptionIds = new ArrayList<String>();
+        for (List<String> connection : connections) {
+            Assert.assertTrue(connection.size() <= 2, "too many subscriptions on a connection: " + connection);
+            subscriptionIds.addAll(connection);
+        }
+        Collections.sort(subscriptionIds);
+        Assert.assertEquals(subscriptionIds.toString(), "[stream-a@example.com-1, stream-b@example.com-1, " +
+                "stream-c@example.com-1, stream-d@example.com-1, stream-e@example.com-1]");
+    }
+
+    @Test(description = "subscriptions are created with server affinity and grouped by the server they are on")
+    public void testSubscriptionsAreGroupedByServer() throws Exception {
+        final List<String> subscribes = Collections.synchronizedList(new ArrayList<String>());
+        final List<String> connections = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch opened = new CountDownLatch(3);
+        server.handle("/ews", new StubHandler() {
+            String backEndServer(String mailbox) {
+                return mailbox.startsWith("b") || mailbox.startsWith("d") ? "mbx2" : "mbx1";
+            }
+
+            void received(String action, Headers headers) {
+                if (action.endsWith("/" + EWSConstants.SUBSCRIBE_ELEMENT + "\"")) {
+                    subscribes.add(headers.getFirst("X-AnchorMailbox") + " " + headers.getFirst(
+                            "X-PreferServerAffinity") + " " + headers.getFirst("Cookie"));
+                }
+            }
+
+            void streamingEvents(HttpExchange exchange, List<String> subscriptionIds) throws Exception {
+                Headers headers = exchange.getRequestHeaders();
+                connections.add(headers.getFirst("Cookie") + " " + headers.getFirst("X-AnchorMailbox") + " " +
+                        headers.getFirst("X-PreferServerAffinity") + " " + subscriptionIds);
+                OutputStream output = startStream(exchange);
+                frame(output, connectionStatus("OK"));
+                opened.countDown();
+                release.await(10, TimeUnit.SECONDS);
+                output.close();
+            }
+        });
+        server.start();
+        EWSStreamingListener listener = listener(2);
+        for (String mailbox : new String[]{"a@example.com", "b@example.com", "c@example.com", "d@example.com",
+                "e@example.com"}) {
+            listener.addSubscription(mailbox, header(mailbox), "watermark-" + mailbox);
+        }
+        EWSStreamingListener.start(listener);
+
+        Assert.assertTrue(opened.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(subscribes.toString(), "[a@example.com true null, b@example.com true null, " +
+                "c@example.com true null, d@example.com true null, e@example.com true null]");
+        List<String> sorted = new ArrayList<String>(connections);
+        Collections.sort(sorted);
+        Assert.assertEquals(sorted.toString(), "[" +
+                "X-BackEndOverrideCookie=mbx1 a@example.com true [stream-a@example.com-1, stream-c@example.com-1], " +
+                "X-BackEndOverrideCookie=mbx1 e@example.com true [stream-e@example.com-1], " +
+                "X-BackEndOverrideCookie=mbx2 b@example.com true [stream-b@example.com-1, stream-d@example.com-1]]");
+    }
+
+    @Test(description = "stopping a listener closes its connections and unsubscribes its subscriptions")
+    public void testStopUnsubscribes() throws Exception {
+        final List<String> unsubscribed = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch opened = new CountDownLatch(1);
+        final CountDownLatch closed = new CountDownLatch(1);
+        server.handle("/ews", new StubHandler() {
+            String unsubscribe(String request) {
+                Matcher subscriptionId = SUBSCRIPTION_ID.matcher(request);
+                subscriptionId.find();
+                unsubscribed.add(subscriptionId.group(1));
+                return super.unsubscribe(request);
+            }
+
+            void streamingEvents(HttpExchange exchange, List<String> subscriptionIds) throws Exception {
+                OutputStream output = startStream(exchange);
+                opened.countDown();
+                try {
+                    // writes fail once the listener has closed the connection
+                    while (!release.await(50, TimeUnit.MILLISECONDS)) {
+                        frame(output, connectionStatus("OK"));
+                    }
+                } catch (IOException e) {
+                    closed.countDown();
+                }
+            }
+        });
+        server.start();
+        EWSStreamingListener listener = listener(200);
+        listener.addSubscription("a@example.com", header("a@example.com"), "watermark-a");
+        listener.addSubscription("b@example.com", header("b@example.com"), "watermark-b");
+        EWSStreamingListener.start(listener);
+
+        Assert.assertTrue(opened.await(10, TimeUnit.SECONDS));
+        Assert.assertTrue(EWSStreamingListener.stop(KEY));
+        Assert.assertFalse(EWSStreamingListener.stop(KEY));
+        Assert.assertTrue(closed.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(unsubscribed.toString(), "[stream-a@example.com-1, stream-b@example.com-1]");
+    }
+
+    @Test(description = "a lost subscription is recreated and the events since the stored watermark are read")
+    public void testLostSubscriptionResumesFromWatermark() throws Exception {
+        final List<String> pullWatermarks = Collections.synchronizedList(new ArrayList<String>());
+        final List<List<String>> connections = Collections.synchronizedList(new ArrayList<List<String>>());
+        final CountDownLatch resumed = new CountDownLatch(1);
+        store.write("watermark-a", "w0");
+        server.handle("/ews", new StubHandler() {
+            String pullSubscribe(String request) {
+                Matcher watermark = WATERMARK.matcher(request);
+                pullWatermarks.add(watermark.find() ? watermark.group(1) : null);
+                return super.pullSubscribe(request);
+            }
+
+            String getEvents(String request) {
+                String watermark = "w" + (pullWatermarks.size() * 10);
+                return "<m:GetEventsResponseMessage ResponseClass=\"Success\"><m:ResponseCode>NoError" +
+                        "</m:ResponseCode><m:Notification><t:SubscriptionId>pull</t:SubscriptionId>" +
+                        "<t:PreviousWatermark>w0</t:PreviousWatermark><t:MoreEvents>false</t:MoreEvents>" +
+                        "<t:CreatedEvent><t:Watermark>" + watermark + "</t:Watermark><t:ItemId Id=\"missed" +
+                        pullWatermarks.size() + "\"/></t:CreatedEvent></m:Notification></m:GetEventsResponseMessage>";
+            }
+
+            void streamingEvents(HttpExchange exchange, List<String> subscriptionIds) throws Exception {
+                connections.add(subscriptionIds);
+                OutputStream output = startStream(exchange);
+                if (connections.size() == 1) {
+                    frame(output, "<m:GetStreamingEventsResponseMessage ResponseClass=\"Error\"><m:MessageText>" +
+                            "Subscription not found</m:MessageText><m:ResponseCode>ErrorSubscriptionNotFound" +
+                            "</m:ResponseCode><m:ErrorSubscriptionIds><m:SubscriptionId>" + subscriptionIds.get(0) +
+                            "</m:SubscriptionId></m:ErrorSubscriptionIds></m:GetStreamingEventsResponseMessage>");
+                    output.close();
+                    return;
+                }
+                frame(output, notification(subscriptionIds.get(0), "<t:ModifiedEvent><t:Watermark>w30" +
+                        "</t:Watermark><t:ItemId Id=\"item2\"/></t:ModifiedEvent>"));
+                resumed.countDown();
+                release.await(10, TimeUnit.SECONDS);
+                output.close();
+            }
+        });
+        server.start();
+        EWSStreamingListener listener = listener(200);
+        listener.addSubscription("a@example.com", header("a@example.com"), "watermark-a");
+        EWSStreamingListener.start(listener);
+
+        Assert.assertTrue(resumed.await(20, TimeUnit.SECONDS));
+        Assert.assertTrue(handler.awaitEvents(3));
+        Assert.assertEquals(pullWatermarks.toString(), "[w0, w10]");
+        Assert.assertEquals(connections.toString(), "[[stream-a@example.com-1], [stream-a@example.com-2]]");
+        Assert.assertEquals(handler.events.toString(), "[a@example.com CreatedEvent w10 missed1, " +
+                "a@example.com CreatedEvent w20 missed2, a@example.com ModifiedEvent w30 item2]");
+        Assert.assertEquals(awaitWatermark("watermark-a", "w30"), "w30");
+    }
+
+    @Test(description = "xml declarations between frames are dropped and the frames get a common root")
+    public void testFrameInputStream() throws Exception {
+        InputStream input = new EWSFrameInputStream(new ByteArrayInputStream(("<?xml version=\"1.0\"?>" +
+                "<a/><?xml version=\"1.0\" encoding=\"utf-8\"?><b>x&lt;?xml</b>").getBytes(StandardCharsets.UTF_8)));
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[3];
+        int read;
+        while ((read = input.read(buffer, 0, buffer.length)) > 0) {
+            output.write(buffer, 0, read);
+        }
+        Assert.assertEquals(output.toString("UTF-8"), "<frames><a/><b>x&lt;?xml</b></frames>");
+    }
+
+    private EWSStreamingListener listener(int maxSubscriptionsPerConnection) {
+        String url = server.url("/ews");
+        OMElement streamingSubscriptionRequest = soapFactory.createOMElement(EWSConstants
+                .STREAMING_SUBSCRIPTION_REQUEST_ELEMENT, EWSUtils.message);
+        OMElement pullSubscriptionRequest = soapFactory.createOMElement(EWSConstants
+                .PULL_SUBSCRIPTION_REQUEST_ELEMENT, EWSUtils.message);
+        return new EWSStreamingListener(KEY, new EWSClient(url, null, 5000), streamingSubscriptionRequest,
+                pullSubscriptionRequest, handler, store, maxSubscriptionsPerConnection, 1);
+    }
+
+    private String awaitWatermark(String key, String expected) throws Exception {
+        long deadline = System.currentTimeMillis() + 10000;
+        String watermark = store.read(key);
+        while (!expected.equals(watermark) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+            watermark = store.read(key);
+        }
+        return watermark;
+    }
+
+    private SOAPHeader header(String mailbox) {
+        SOAPHeader soapHeader = soapFactory.createSOAPHeader();
+        soapHeader.addChild(EWSUtils.buildExchangeImpersonationHeader(null, null, null, mailbox));
+        return soapHeader;
+    }
+
+    private static String connectionStatus(String status) {
+        return "<m:GetStreamingEventsResponseMessage ResponseClass=\"Success\"><m:ResponseCode>NoError" +
+                "</m:ResponseCode><m:ConnectionStatus>" + status + "</m:ConnectionStatus>" +
+                "</m:GetStreamingEventsResponseMessage>";
+    }
+
+    private static String notification(String subscriptionId, String events) {
+        return "<m:GetStreamingEventsResponseMessage ResponseClass=\"Success\"><m:ResponseCode>NoError" +
+                "</m:ResponseCode><m:Notifications><m:Notification><t:SubscriptionId>" + subscriptionId +
+                "</t:SubscriptionId>" + events + "</m:Notification></m:Notifications>" +
+                "</m:GetStreamingEventsResponseMessage>";
+    }
+
+    private static OutputStream startStream(HttpExchange exchange) throws IOException {
+        exchange.getResponseHeaders().add("Content-Type", StubServer.XML);
+        exchange.sendResponseHeaders(200, 0);
+        return exchange.getResponseBody();
+    }
+
+    private static void frame(OutputStream output, String responseMessage) throws IOException {
+        output.write((RESPONSE_START + responseMessage + RESPONSE_END).getBytes(StandardCharsets.UTF_8));
+        output.flush();
+    }
+
+    /**
+     * Records the handled events.
+     */
+    private static class RecordingHandler implements EWSEventHandler {
+        private final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+        private final CountDownLatch handled = new CountDownLatch(1);
+
+        public boolean isAvailable() {
+            return true;
+        }
+
+        public void handle(String mailbox, OMElement event, String watermark) {
+            OMElement itemId = event.getFirstChildWithName(new QName(EWSConstants
+                    .TYPE_NAME_SPACE, "ItemId"));
+            events.add(mailbox + " " + event.getLocalName() + " " + watermark + " " + itemId.getAttributeValue(new
+                    QName(EWSConstants.ID_ATTRIBUTE)));
+            handled.countDown();
+        }
+
+        private boolean awaitEvents(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 10000;
+            while (events.size() < count && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+            return events.size() >= count;
+        }
+    }
+
+    /**
+     * Answers Subscribe, Unsubscribe and GetEvents requests and leaves GetStreamingEvents requests to the test.
+     */
+    private abstract static class StubHandler implements HttpHandler {
+        private final Map<String, Integer> subscriptionCounts = new HashMap<String, Integer>();
+
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                String request = read(exchange.getRequestBody());
+                String action = exchange.getRequestHeaders().getFirst("SOAPAction");
+                received(action, exchange.getRequestHeaders());
+                if (action.contains(EWSConstants.GET_STREAMING_EVENTS_ELEMENT)) {
+                    List<String> subscriptionIds = new ArrayList<String>();
+                    Matcher matcher = SUBSCRIPTION_ID.matcher(request);
+                    while (matcher.find()) {
+                        subscriptionIds.add(matcher.group(1));
+                    }
+                    streamingEvents(exchange, subscriptionIds);
+                    return;
+                }
+                String responseMessage;
+                if (action.contains(EWSConstants.GET_EVENTS_ELEMENT)) {
+                    responseMessage = getEvents(request);
+                } else if (action.contains("/" + EWSConstants.UNSUBSCRIBE_ELEMENT)) {
+                    responseMessage = unsubscribe(request);
+                } else if (request.contains(EWSConstants.STREAMING_SUBSCRIPTION_REQUEST_ELEMENT)) {
+                    Matcher mailbox = MAILBOX.matcher(request);
+                    String server = mailbox.find() ? backEndServer(mailbox.group(1)) : null;
+                    if (server != null) {
+                        exchange.getResponseHeaders().add("Set-Cookie", "X-BackEndOverrideCookie=" + server +
+                                "; path=/EWS; secure; HttpOnly");
+                    }
+                    responseMessage = streamingSubscribe(request);
+                } else {
+                    responseMessage = pullSubscribe(request);
+                }
+                byte[] response = (RESPONSE_START + responseMessage + RESPONSE_END).getBytes(StandardCharsets
+                        .UTF_8);
+                StubServer.respond(exchange, 200, StubServer.XML, response);
+            } catch (Exception e) {
+                exchange.sendResponseHeaders(500, -1);
+            } finally {
+                exchange.close();
+            }
+        }
+
+        String streamingSubscribe(String request) {
+            Matcher mailbox = MAILBOX.matcher(request);
+            mailbox.find();
+            return subscribeResponse("stream-" + mailbox.group(1) + "-" + countFor(mailbox.group(1)), null);
+        }
+
+        String pullSubscribe(String request) {
+            return subscribeResponse("pull", "w0");
+        }
+
+        String unsubscribe(String request) {
+            return "<m:UnsubscribeResponseMessage ResponseClass=\"Success\"><m:ResponseCode>NoError" +
+                    "</m:ResponseCode></m:UnsubscribeResponseMessage>";
+        }
+
+        /**
+         * @return X-BackEndOverrideCookie of the server the streaming subscriptions of the mailbox are created on,
+         * null to set none
+         */
+        String backEndServer(String mailbox) {
+            return null;
+        }
+
+        void received(String action, Headers headers) {
+        }
+
+        String getEvents(String request) {
+            return "<m:GetEventsResponseMessage ResponseClass=\"Success\"><m:ResponseCode>NoError</m:ResponseCode>" +
+                    "<m:Notification><t:SubscriptionId>pull</t:SubscriptionId><t:MoreEvents>false</t:MoreEvents>" +
+                    "</m:Notification></m:GetEventsResponseMessage>";
+        }
+
+        abstract void streamingEvents(HttpExchange exchange, List<String> subscriptionIds) throws Exception;
+
+        private synchronized int countFor(String mailbox) {
+            Integer count = subscriptionCounts.get(mailbox);
+            count = count == null ? 1 : count + 1;
+            subscriptionCounts.put(mailbox, count);
+            return count;
+        }
+
+        private static String subscribeResponse(String subscriptionId, String watermark) {
+            return "<m:SubscribeResponseMessage ResponseClass=\"Success\"><m:ResponseCode>NoError</m:ResponseCode>" +
+                    "<m:SubscriptionId>" + subscriptionId + "</m:SubscriptionId>" + (watermark == null ? "" :
+                    "<m:Watermark>" + watermark + "</m:Watermark>") + "</m:SubscribeResponseMessage>";
+        }
+
+        private static String read(InputStream input) throws IOException {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = input.read(buffer)) > 0) {
+                output.write(buffer, 0, read);
+            }
+            return output.toString("UTF-8");
+        }
+    }
+}
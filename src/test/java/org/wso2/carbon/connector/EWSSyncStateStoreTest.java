@@ -0,0 +1,103 @@
+/*
+*  Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+package org.wso2.carbon.connector;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * Tests reading, replacing and removing states in an {@link EWSSyncStateStore}.
+ */
+public class EWSSyncStateStoreTest {
+    private File directory;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("ews-sync-state").toFile();
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                Assert.assertTrue(file.delete());
+            }
+        }
+        Assert.assertTrue(directory.delete());
+    }
+
+    @Test(description = "a key that hasn't been written has no state")
+    public void testMissingState() throws IOException {
+        Assert.assertNull(store().read("unknown"));
+    }
+
+    @Test(description = "a written state replaces the previous one and leaves no temporary file behind")
+    public void testWriteReplacesState() throws IOException {
+        EWSSyncStateStore store = store();
+        store.write("inbox", "H4sIAAAAAAAEAO29B2AcSZYlJi9tynt/SvVK1+B0ma7Tf/");
+        store.write("inbox", "second state");
+        store.write("sent items", "other state");
+        Assert.assertEquals(store.read("inbox"), "second state");
+        Assert.assertEquals(store.read("sent items"), "other state");
+        Assert.assertEquals(directory.list().length, 2);
+        for (String name : directory.list()) {
+            Assert.assertTrue(name.endsWith(".state"), name);
+        }
+    }
+
+    @Test(description = "states are kept across store instances of the same directory and survive a restart")
+    public void testStateIsPersistent() throws IOException {
+        store().write("endpoint\nmailbox\nfolder", "state");
+        Assert.assertSame(store(), store());
+        Assert.assertEquals(store().read("endpoint\nmailbox\nfolder"), "state");
+    }
+
+    @Test(description = "a removed state is gone, removing it again is no error")
+    public void testDelete() throws IOException {
+        EWSSyncStateStore store = store();
+        store.write("inbox", "state");
+        store.delete("inbox");
+        store.delete("inbox");
+        Assert.assertNull(store.read("inbox"));
+    }
+
+    @Test(description = "the store directory is created on the first write")
+    public void testCreatesDirectory() throws IOException {
+        Assert.assertTrue(directory.delete());
+        store().write("inbox", "state");
+        Assert.assertEquals(store().read("inbox"), "state");
+    }
+
+    @Test(description = "a key always gets the same lock")
+    public void testLockPerKey() {
+        EWSSyncStateStore store = store();
+        Assert.assertSame(store.lock("inbox"), store.lock("inbox"));
+        Assert.assertNotSame(store.lock("inbox"), store.lock("sent items"));
+    }
+
+    private EWSSyncStateStore store() {
+        return EWSSyncStateStore.forDirectory(directory.getAbsolutePath());
+    }
+}
@@ -0,0 +1,92 @@
+/*
+*  Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+package org.wso2.carbon.connector;
+
+import org.apache.axiom.om.OMXMLBuilderFactory;
+import org.apache.axiom.soap.SOAPEnvelope;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Tests the back off and rate adaption of the per account throttle.
+ */
+public class EWSThrottleTest {
+    private static final String ENVELOPE_START = "<s:Envelope xmlns:s=\"http://schemas.xmlsoap.org/soap/envelope/\" " +
+            "xmlns:m=\"" + EWSConstants.MESSAGES_NAME_SPACE + "\" xmlns:t=\"" + EWSConstants.TYPE_NAME_SPACE +
+            "\"><s:Body>";
+    private static final String ENVELOPE_END = "</s:Body></s:Envelope>";
+
+    @Test(description = "the back off of an ErrorServerBusy fault is found")
+    public void testFaultBackOffIsFound() throws Exception {
+        SOAPEnvelope fault = envelope("<s:Fault><faultcode>s:Client</faultcode><faultstring>The server cannot " +
+                "service this request right now.</faultstring><detail><e:ResponseCode xmlns:e=\"http://schemas." +
+                "microsoft.com/exchange/services/2006/errors\">ErrorServerBusy</e:ResponseCode><t:MessageXml>" +
+                "<t:Value Name=\"BackOffMilliseconds\">2500</t:Value></t:MessageXml></detail></s:Fault>");
+        Assert.assertEquals(EWSThrottle.getServerBusyBackOff(fault), 2500);
+    }
+
+    @Test(description = "the back off of an ErrorServerBusy ResponseMessage is found, other errors have none")
+    public void testResponseMessageBackOffIsFound() throws Exception {
+        SOAPEnvelope busy = envelope("<m:GetItemResponse><m:ResponseMessages><m:GetItemResponseMessage " +
+                "ResponseClass=\"Error\"><m:ResponseCode>ErrorServerBusy</m:ResponseCode><m:MessageXml><t:Value " +
+                "Name=\"BackOffMilliseconds\">400</t:Value></m:MessageXml></m:GetItemResponseMessage>" +
+                "</m:ResponseMessages></m:GetItemResponse>");
+        SOAPEnvelope notFound = envelope("<m:GetItemResponse><m:ResponseMessages><m:GetItemResponseMessage " +
+                "ResponseClass=\"Error\"><m:ResponseCode>ErrorItemNotFound</m:ResponseCode>" +
+                "</m:GetItemResponseMessage></m:ResponseMessages></m:GetItemResponse>");
+        Assert.assertEquals(EWSThrottle.getServerBusyBackOff(busy), 400);
+        Assert.assertEquals(EWSThrottle.getServerBusyBackOff(notFound), -1);
+    }
+
+    @Test(description = "requests wait for the back off, and fail when it is longer than the maximum wait")
+    public void testBackOffIsHonored() throws Exception {
+        EWSThrottle throttle = new EWSThrottle("account", 1000, 1000);
+        long start = System.nanoTime();
+        throttle.onServerBusy(200);
+        throttle.acquire();
+        Assert.assertTrue(System.nanoTime() - start >= 150 * 1000000L);
+
+        throttle.onServerBusy(5000);
+        try {
+            throttle.acquire();
+            Assert.fail("acquired a request while backing off");
+        } catch (EWSServerBusyException e) {
+            Assert.assertTrue(e.getBackOff() > 1000);
+        }
+    }
+
+    @Test(description = "the rate is halved once per back off and raised again by successful requests")
+    public void testRateAdapts() {
+        EWSThrottle throttle = new EWSThrottle("account", 40, 1000);
+        throttle.onServerBusy(1000);
+        throttle.onServerBusy(1000);
+        Assert.assertEquals(throttle.getRate(), 20.0);
+        for (int i = 0; i < 100; i++) {
+            throttle.onSuccess();
+        }
+        Assert.assertTrue(throttle.getRate() > 20 && throttle.getRate() <= 40);
+    }
+
+    private static SOAPEnvelope envelope(String body) {
+        return OMXMLBuilderFactory.createSOAPModelBuilder(new ByteArrayInputStream((ENVELOPE_START + body +
+                ENVELOPE_END).getBytes(StandardCharsets.UTF_8)), "UTF-8").getSOAPEnvelope();
+    }
+}
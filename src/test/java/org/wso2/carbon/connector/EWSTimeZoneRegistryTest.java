@@ -0,0 +1,98 @@
+/*
+*  Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+package org.wso2.carbon.connector;
+
+import org.apache.axiom.om.OMElement;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import javax.xml.namespace.QName;
+import java.time.DateTimeException;
+import java.time.ZoneId;
+
+/**
+ * Tests the Windows ids and the TimeZoneDefinition generated by {@link EWSTimeZoneRegistry}.
+ */
+public class EWSTimeZoneRegistryTest {
+
+    @Test(description = "every Windows id maps to a zone which maps back to the same Windows id")
+    public void testWindowsIdRoundTrip() {
+        Assert.assertTrue(EWSTimeZoneRegistry.getWindowsIds().size() > 100);
+        for (String windowsId : EWSTimeZoneRegistry.getWindowsIds()) {
+            OMElement definition = definition(windowsId);
+            Assert.assertEquals(definition.getAttributeValue(new QName(EWSConstants.ID_ATTRIBUTE)), windowsId);
+        }
+    }
+
+    @Test(description = "region ids are sent as their Windows ids")
+    public void testRegionIdsUseWindowsIds() {
+        Assert.assertEquals(windowsId("America/Los_Angeles"), "Pacific Standard Time");
+        Assert.assertEquals(windowsId("Europe/London"), "GMT Standard Time");
+        Assert.assertEquals(windowsId("Asia/Colombo"), "Sri Lanka Standard Time");
+        Assert.assertEquals(windowsId("Australia/Sydney"), "AUS Eastern Standard Time");
+        Assert.assertEquals(windowsId("UTC"), "UTC");
+    }
+
+    @Test(description = "zones without a table entry use the Windows zone following the same rules")
+    public void testOtherZonesUseMatchingRules() {
+        Assert.assertEquals(windowsId("America/Vancouver"), "Pacific Standard Time");
+        Assert.assertEquals(windowsId("Europe/Oslo"), "W. Europe Standard Time");
+        Assert.assertEquals(windowsId("Asia/Calcutta"), "India Standard Time");
+        Assert.assertEquals(windowsId("+05:30"), "India Standard Time");
+        Assert.assertEquals(windowsId("Pacific/Pitcairn"), "UTC-08");
+        Assert.assertEquals(windowsId("Z"), "UTC");
+    }
+
+    @Test(description = "Windows ids and region ids produce the same definition")
+    public void testWindowsIdInput() {
+        Assert.assertEquals(definition("Pacific Standard Time").toString(),
+                definition("America/Los_Angeles").toString());
+    }
+
+    @Test(description = "daylight saving rules become a Standard and a Daylight period with recurring transitions")
+    public void testDaylightSavingDefinition() {
+        OMElement definition = definition("Europe/London");
+        String text = definition.toString();
+        Assert.assertTrue(text.contains("Bias=\"PT0M\" Name=\"Standard\" " +
+                "Id=\"trule:Microsoft/Registry/GMT Standard Time/Standard\""), text);
+        Assert.assertTrue(text.contains("Bias=\"-PT1H\" Name=\"Daylight\" " +
+                "Id=\"trule:Microsoft/Registry/GMT Standard Time/Daylight\""), text);
+        Assert.assertTrue(text.contains("<typ:TimeOffset>PT1H</typ:TimeOffset><typ:Month>3</typ:Month>" +
+                "<typ:DayOfWeek>Sunday</typ:DayOfWeek><typ:Occurrence>-1</typ:Occurrence>"), text);
+        Assert.assertTrue(text.contains("<typ:TimeOffset>PT2H</typ:TimeOffset><typ:Month>10</typ:Month>" +
+                "<typ:DayOfWeek>Sunday</typ:DayOfWeek><typ:Occurrence>-1</typ:Occurrence>"), text);
+    }
+
+    @Test(expectedExceptions = DateTimeException.class, description = "offsets no Windows zone uses are rejected")
+    public void testUnmatchedOffsetIsRejected() {
+        EWSTimeZoneRegistry.getTimeZoneContextHeader("+03:17");
+    }
+
+    @Test(expectedExceptions = DateTimeException.class, description = "unknown ids are rejected")
+    public void testUnknownIdIsRejected() {
+        EWSTimeZoneRegistry.getTimeZoneContextHeader("Mars/Olympus_Mons");
+    }
+
+    private static String windowsId(String zoneId) {
+        return EWSTimeZoneRegistry.toWindowsId(ZoneId.of(zoneId));
+    }
+
+    private static OMElement definition(String timeZoneId) {
+        return EWSTimeZoneRegistry.getTimeZoneContextHeader(timeZoneId).getFirstElement();
+    }
+}
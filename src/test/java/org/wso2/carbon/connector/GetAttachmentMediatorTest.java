@@ -0,0 +1,160 @@
+/*
+*  Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+package org.wso2.carbon.connector;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.apache.synapse.MessageContext;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import javax.activation.DataHandler;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Tests that a GetAttachment batch in stream mode decodes the attachments of each chunk response while it arrives
+ * and only merges the response messages without their content.
+ */
+public class GetAttachmentMediatorTest {
+    private static final Pattern ATTACHMENT_ID = Pattern.compile("Id=\"(a(\\d+))\"");
+    private static final String FAILING_ID = "a4";
+
+    private StubServer server;
+    private final List<List<String>> requests = new ArrayList<List<String>>();
+    private String url;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        server = new StubServer().handle("/ews", new GetAttachmentHandler()).start();
+        url = server.url("/ews");
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test(description = "the chunks of a stream mode batch are decoded one by one into spool buffers")
+    public void testStreamModeBatch() throws Exception {
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put(EWSConstants.ATTACHMENT_ID_LIST, "[\"a0\",\"a1\",\"a2\",\"a3\",\"a4\",\"a5\"]");
+        parameters.put(EWSConstants.RESPONSE_MODE, EWSConstants.STREAM_RESPONSE_MODE);
+        parameters.put(EWSConstants.BATCH_SIZE, "2");
+        parameters.put(EWSConstants.SPOOL_THRESHOLD, "1024");
+        MessageContext messageContext = TemplateMessageContexts.create("getAttachment", parameters);
+        messageContext.setProperty(EWSConstants.EWS_API_URL, url);
+
+        new GetAttachmentMediator().connect(messageContext);
+        String response = messageContext.getEnvelope().toString();
+        // the template runs the response mediator afterwards, which leaves the decoded batch as it is
+        new GetAttachmentResponseMediator().connect(messageContext);
+
+        Assert.assertEquals(requests.size(), 3);
+        for (List<String> ids : requests) {
+            Assert.assertEquals(ids.size(), 2, ids.toString());
+        }
+        Assert.assertEquals(messageContext.getEnvelope().toString(), response);
+        Assert.assertNull(messageContext.getProperty(EWSConstants.EWS_ATTACHMENTS_DECODED));
+        Assert.assertEquals(messageContext.getProperty(EWSConstants.EWS_ATTACHMENT_COUNT), 4);
+        Assert.assertEquals(messageContext.getProperty(EWSConstants.EWS_BATCH_ITEM_COUNT), 6);
+        Assert.assertEquals(messageContext.getProperty(EWSConstants.EWS_BATCH_FAILED_INDEXES), "4,5");
+        Assert.assertEquals(messageContext.getProperty(EWSConstants.EWS_BATCH_FAILED_CODES),
+                "ErrorItemNotFound,ErrorItemNotFound");
+        Assert.assertEquals(response.split("GetAttachmentResponseMessage ", -1).length - 1, 6, response);
+        Assert.assertFalse(response.contains("Content>"), response);
+        for (int i = 0; i < 4; i++) {
+            String suffix = i == 0 ? "" : "_" + i;
+            Assert.assertEquals(messageContext.getProperty(EWSConstants.EWS_ATTACHMENT_NAME + suffix), "a" + i +
+                    ".bin");
+            DataHandler content = (DataHandler) messageContext.getProperty(EWSConstants.EWS_ATTACHMENT_CONTENT +
+                    suffix);
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            content.writeTo(output);
+            Assert.assertEquals(output.toByteArray(), content(i));
+        }
+    }
+
+    private static byte[] content(int index) {
+        byte[] content = new byte[1000 * (index + 1)];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) (i * (index + 7));
+        }
+        return content;
+    }
+
+    /**
+     * Answers GetAttachment requests with a FileAttachment per id, and with a SOAP fault for the chunk holding
+     * {@link #FAILING_ID}.
+     */
+    private final class GetAttachmentHandler implements HttpHandler {
+        public void handle(HttpExchange exchange) throws IOException {
+            InputStream input = exchange.getRequestBody();
+            ByteArrayOutputStream request = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = input.read(buffer)) >= 0) {
+                request.write(buffer, 0, read);
+            }
+            List<String> ids = new ArrayList<String>();
+            StringBuilder attachments = new StringBuilder();
+            Matcher matcher = ATTACHMENT_ID.matcher(new String(request.toByteArray(), StandardCharsets.UTF_8));
+            while (matcher.find()) {
+                ids.add(matcher.group(1));
+                attachments.append("<m:GetAttachmentResponseMessage ResponseClass=\"Success\"><m:ResponseCode>")
+                        .append("NoError</m:ResponseCode><m:Attachments><t:FileAttachment><t:AttachmentId Id=\"")
+                        .append(matcher.group(1)).append("\"/><t:Name>").append(matcher.group(1))
+                        .append(".bin</t:Name><t:Content>").append(Base64.getEncoder().encodeToString(content(
+                        Integer.parseInt(matcher.group(2))))).append("</t:Content></t:FileAttachment>")
+                        .append("</m:Attachments></m:GetAttachmentResponseMessage>");
+            }
+            synchronized (requests) {
+                requests.add(ids);
+            }
+            String response;
+            int status;
+            if (ids.contains(FAILING_ID)) {
+                status = 500;
+                response = "<s:Envelope xmlns:s=\"http://schemas.xmlsoap.org/soap/envelope/\"><s:Body><s:Fault>" +
+                        "<faultcode>s:Client</faultcode><faultstring>The specified object was not found in the " +
+                        "store.</faultstring><detail><e:ResponseCode xmlns:e=\"http://schemas.microsoft.com/" +
+                        "exchange/services/2006/errors\">ErrorItemNotFound</e:ResponseCode></detail></s:Fault>" +
+                        "</s:Body></s:Envelope>";
+            } else {
+                status = 200;
+                response = "<s:Envelope xmlns:s=\"http://schemas.xmlsoap.org/soap/envelope/\"><s:Body>" +
+                        "<m:GetAttachmentResponse xmlns:m=\"" + EWSConstants.MESSAGES_NAME_SPACE + "\" " +
+                        "xmlns:t=\"" + EWSConstants.TYPE_NAME_SPACE + "\"><m:ResponseMessages>" + attachments +
+                        "</m:ResponseMessages></m:GetAttachmentResponse></s:Body></s:Envelope>";
+            }
+            byte[] body = response.getBytes(StandardCharsets.UTF_8);
+            StubServer.respond(exchange, status, StubServer.XML, body);
+        }
+    }
+}
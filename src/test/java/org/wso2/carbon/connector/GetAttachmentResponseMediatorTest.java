@@ -0,0 +1,243 @@
+/*
+*  Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+package org.wso2.carbon.connector;
+
+import org.apache.synapse.MessageContext;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.wso2.carbon.connector.core.ConnectException;
+
+import javax.activation.DataHandler;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.Vector;
+
+/**
+ * Tests that {@link GetAttachmentResponseMediator} decodes attachment content into spool buffers without holding it
+ * in memory, and that the spool files are deleted.
+ */
+public class GetAttachmentResponseMediatorTest {
+    private static final String RESPONSE_START = "<s:Envelope xmlns:s=\"http://schemas.xmlsoap.org/soap/envelope/\">" +
+            "<s:Body><m:GetAttachmentResponse xmlns:m=\"" + EWSConstants.MESSAGES_NAME_SPACE + "\" xmlns:t=\"" +
+            EWSConstants.TYPE_NAME_SPACE + "\"><m:ResponseMessages><m:GetAttachmentResponseMessage " +
+            "ResponseClass=\"Success\"><m:ResponseCode>NoError</m:ResponseCode><m:Attachments>";
+    private static final String RESPONSE_END = "</m:Attachments></m:GetAttachmentResponseMessage>" +
+            "</m:ResponseMessages></m:GetAttachmentResponse></s:Body></s:Envelope>";
+    private static final int LARGE_ATTACHMENT_SIZE = 40 * 1024 * 1024;
+    private static final String HEAP_LIMIT = "-Xmx32m";
+
+    @Test(description = "spooled content is readable once and the spool file is deleted when it has been read")
+    public void testSpoolFileIsDeletedAfterRead() throws Exception {
+        byte[] small = content(100);
+        byte[] large = content(10000);
+        MessageContext messageContext = messageContext("1024", response(encode(small), encode(large)));
+        new GetAttachmentResponseMediator().connect(messageContext);
+        Assert.assertEquals(messageContext.getProperty(EWSConstants.EWS_ATTACHMENT_COUNT), 2);
+        Assert.assertEquals(messageContext.getProperty(EWSConstants.EWS_ATTACHMENT_NAME + "_1"), "attachment-1.bin");
+        Assert.assertEquals(messageContext.getProperty(EWSConstants.EWS_ATTACHMENT_SIZE + "_1"), 10000L);
+        DataHandler smallContent = (DataHandler) messageContext.getProperty(EWSConstants.EWS_ATTACHMENT_CONTENT);
+        DataHandler largeContent = (DataHandler) messageContext.getProperty(EWSConstants.EWS_ATTACHMENT_CONTENT +
+                "_1");
+        EWSSpoolBuffer spoolBuffer = (EWSSpoolBuffer) largeContent.getDataSource();
+        File spoolFile = spoolBuffer.getFile();
+        Assert.assertTrue(spoolFile.isFile());
+        Assert.assertEquals(spoolFile.length(), large.length);
+
+        Assert.assertEquals(read(smallContent), small);
+        Assert.assertEquals(read(largeContent), large);
+        Assert.assertFalse(spoolFile.exists());
+        Assert.assertTrue(spoolBuffer.isDisposed());
+        try {
+            largeContent.getInputStream();
+            Assert.fail("disposed content has been read again");
+        } catch (IOException expected) {
+            // the content has been read once already
+        }
+    }
+
+    @Test(description = "the spool files of a response which couldn't be read are deleted")
+    public void testSpoolFilesAreDeletedOnError() throws Exception {
+        String[] before = spoolFiles();
+        MessageContext messageContext = messageContext("1024", response(encode(content(10000)), "QUJD*EVG"));
+        try {
+            new GetAttachmentResponseMediator().connect(messageContext);
+            Assert.fail("invalid attachment content has been accepted");
+        } catch (ConnectException expected) {
+            // the second attachment isn't base64
+        }
+        Assert.assertNull(messageContext.getProperty(EWSConstants.EWS_ATTACHMENT_CONTENT));
+        Assert.assertNull(messageContext.getProperty(EWSConstants.EWS_ATTACHMENT_CONTENT + "_1"));
+        Assert.assertEquals(spoolFiles(), before);
+    }
+
+    @Test(description = "a 40 MB attachment is decoded with a 32 MB heap")
+    public void testLargeAttachmentInSmallHeap() throws Exception {
+        String text = SmallHeapJvm.run(GetAttachmentResponseMediatorTest.class, HEAP_LIMIT);
+        Assert.assertTrue(text.contains("decoded " + LARGE_ATTACHMENT_SIZE + " bytes"), text);
+    }
+
+    /**
+     * Runs a GetAttachment response with a 40 MB attachment through the mediator, run by
+     * {@link #testLargeAttachmentInSmallHeap()} in a JVM with a 32 MB heap. Neither the response nor the content
+     * is held in memory as a whole.
+     */
+    public static void main(String[] args) throws Exception {
+        GeneratedBase64 generated = new GeneratedBase64(LARGE_ATTACHMENT_SIZE);
+        MessageContext messageContext = messageContext(null, new SequenceInputStream(new Vector<InputStream>(
+                Arrays.asList(stream(RESPONSE_START + attachmentStart(0)), generated, stream(attachmentEnd() +
+                        RESPONSE_END))).elements()));
+        new GetAttachmentResponseMediator().connect(messageContext);
+        DataHandler content = (DataHandler) messageContext.getProperty(EWSConstants.EWS_ATTACHMENT_CONTENT);
+        File spoolFile = ((EWSSpoolBuffer) content.getDataSource()).getFile();
+        if (spoolFile == null || spoolFile.length() != LARGE_ATTACHMENT_SIZE) {
+            throw new IllegalStateException("content hasn't been spooled to disk");
+        }
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        content.writeTo(new DigestOutputStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length) {
+            }
+        }, digest));
+        if (!Arrays.equals(digest.digest(), generated.digest.digest())) {
+            throw new IllegalStateException("decoded content differs from the encoded content");
+        }
+        if (spoolFile.exists()) {
+            throw new IllegalStateException("spool file hasn't been deleted after the content has been read");
+        }
+        System.out.println("decoded " + messageContext.getProperty(EWSConstants.EWS_ATTACHMENT_SIZE) + " bytes");
+    }
+
+    private static MessageContext messageContext(String spoolThreshold, InputStream response) {
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        if (spoolThreshold != null) {
+            parameters.put(EWSConstants.SPOOL_THRESHOLD, spoolThreshold);
+        }
+        MessageContext messageContext = TemplateMessageContexts.create("getAttachment", parameters);
+        messageContext.setProperty(EWSConstants.EWS_RESPONSE_STREAM, StreamedResponses.create(response));
+        return messageContext;
+    }
+
+    private static InputStream response(String... contents) {
+        StringBuilder response = new StringBuilder(RESPONSE_START);
+        for (int i = 0; i < contents.length; i++) {
+            response.append(attachmentStart(i)).append(contents[i]).append(attachmentEnd());
+        }
+        return stream(response.append(RESPONSE_END).toString());
+    }
+
+    private static String attachmentStart(int index) {
+        return "<t:FileAttachment><t:AttachmentId Id=\"attachment-" + index + "\"/><t:Name>attachment-" + index +
+                ".bin</t:Name><t:ContentType>application/octet-stream</t:ContentType><t:Content>";
+    }
+
+    private static String attachmentEnd() {
+        return "</t:Content></t:FileAttachment>";
+    }
+
+    private static InputStream stream(String text) {
+        return new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String encode(byte[] content) {
+        return Base64.getEncoder().encodeToString(content);
+    }
+
+    private static byte[] content(int size) {
+        byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+        return content;
+    }
+
+    private static byte[] read(DataHandler content) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        content.writeTo(output);
+        return output.toByteArray();
+    }
+
+    private static String[] spoolFiles() {
+        String[] files = new File(System.getProperty("java.io.tmpdir")).list(new FilenameFilter() {
+            public boolean accept(File directory, String name) {
+                return name.startsWith("ews-attachment-");
+            }
+        });
+        Arrays.sort(files);
+        return files;
+    }
+
+    /**
+     * Base64 text of random content which is generated while it is read, keeping a digest of the content.
+     */
+    private static final class GeneratedBase64 extends InputStream {
+        private static final int CHUNK_SIZE = 3 * 16 * 1024;
+
+        private final Random random = new Random(LARGE_ATTACHMENT_SIZE);
+        private final MessageDigest digest;
+        private final byte[] chunk = new byte[CHUNK_SIZE];
+        private long remaining;
+        private byte[] encoded = new byte[0];
+        private int position;
+
+        private GeneratedBase64(long size) throws Exception {
+            this.remaining = size;
+            this.digest = MessageDigest.getInstance("SHA-256");
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) < 0 ? -1 : single[0];
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (position == encoded.length) {
+                if (remaining == 0) {
+                    return -1;
+                }
+                int size = (int) Math.min(CHUNK_SIZE, remaining);
+                random.nextBytes(chunk);
+                digest.update(chunk, 0, size);
+                encoded = Base64.getEncoder().encode(size == CHUNK_SIZE ? chunk : Arrays.copyOf(chunk, size));
+                position = 0;
+                remaining -= size;
+            }
+            int read = Math.min(length, encoded.length - position);
+            System.arraycopy(encoded, position, bytes, offset, read);
+            position += read;
+            return read;
+        }
+    }
+}
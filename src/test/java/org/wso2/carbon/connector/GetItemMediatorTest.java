@@ -0,0 +1,118 @@
+/*
+*  Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+package org.wso2.carbon.connector;
+
+import org.apache.synapse.MessageContext;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Tests that a GetItem batch is sent in chunks of at most the batch size, with at most the batch parallelism in
+ * flight, and that the responses of chunks completing out of order are merged in input order.
+ */
+public class GetItemMediatorTest {
+    private static final Pattern ITEM_ID = Pattern.compile("ItemId Id=\"(i\\d+)\"");
+    private static final Pattern RESPONSE_ID = Pattern.compile("ItemId Id=\"(i\\d+)\"|ResponseCode>(\\w+)<");
+    private static final String MISSING_ID = "i3";
+    private static final String FAULTING_ID = "i4";
+
+    private StubServer server;
+    private BatchStubHandler handler;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        handler = new BatchStubHandler(EWSConstants.GET_ITEM_ELEMENT, ITEM_ID) {
+            String fault(List<String> items) {
+                return items.contains(FAULTING_ID) ? fault("ErrorInvalidRequest") : null;
+            }
+
+            String responseMessage(String item) {
+                if (MISSING_ID.equals(item)) {
+                    return "<m:GetItemResponseMessage ResponseClass=\"Error\"><m:MessageText>The specified object " +
+                            "was not found in the store.</m:MessageText><m:ResponseCode>ErrorItemNotFound" +
+                            "</m:ResponseCode><m:Items/></m:GetItemResponseMessage>";
+                }
+                return "<m:GetItemResponseMessage ResponseClass=\"Success\"><m:ResponseCode>NoError" +
+                        "</m:ResponseCode><m:Items><t:Message><t:ItemId Id=\"" + item + "\" ChangeKey=\"c\"/>" +
+                        "</t:Message></m:Items></m:GetItemResponseMessage>";
+            }
+        };
+        server = new StubServer().handle("/ews", handler).start();
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test(description = "a batch with failing items is merged in input order and reports the failed indexes")
+    public void testMixedBatch() throws Exception {
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put(EWSConstants.ITEM_ID_LIST, "[\"i0\",\"i1\",\"i2\",\"i3\",\"i4\",\"i5\",\"i6\"]");
+        parameters.put(EWSConstants.BATCH_SIZE, "2");
+        parameters.put(EWSConstants.BATCH_PARALLELISM, "3");
+        MessageContext messageContext = TemplateMessageContexts.create("getItem", parameters);
+        messageContext.setProperty(EWSConstants.EWS_API_URL, server.url("/ews"));
+
+        new GetItemMediator().connect(messageContext);
+
+        List<List<String>> requests = handler.getRequests();
+        Assert.assertEquals(requests.size(), 4);
+        List<String> sent = new ArrayList<String>();
+        for (List<String> items : requests) {
+            Assert.assertTrue(items.size() <= 2, items.toString());
+            sent.addAll(items);
+        }
+        Assert.assertEquals(sent.size(), 7);
+        Assert.assertTrue(handler.getMaxInFlight() <= 3, String.valueOf(handler.getMaxInFlight()));
+        Assert.assertEquals(responses(messageContext.getEnvelope().toString()), Arrays.asList("i0", "i1", "i2",
+                "ErrorItemNotFound", "ErrorInvalidRequest", "ErrorInvalidRequest", "i6"));
+        Assert.assertEquals(messageContext.getProperty(EWSConstants.EWS_BATCH_ITEM_COUNT), 7);
+        Assert.assertEquals(messageContext.getProperty(EWSConstants.EWS_BATCH_FAILED_COUNT), 3);
+        Assert.assertEquals(messageContext.getProperty(EWSConstants.EWS_BATCH_FAILED_INDEXES), "3,4,5");
+        Assert.assertEquals(messageContext.getProperty(EWSConstants.EWS_BATCH_FAILED_CODES),
+                "ErrorItemNotFound,ErrorInvalidRequest,ErrorInvalidRequest");
+    }
+
+    /**
+     * @return item id of each successful response message and the response code of each failed one, in order
+     */
+    private static List<String> responses(String envelope) {
+        List<String> responses = new ArrayList<String>();
+        Matcher matcher = RESPONSE_ID.matcher(envelope);
+        while (matcher.find()) {
+            if (matcher.group(1) != null) {
+                responses.add(matcher.group(1));
+            } else if (!"NoError".equals(matcher.group(2))) {
+                responses.add(matcher.group(2));
+            }
+        }
+        return responses;
+    }
+}
@@ -0,0 +1,59 @@
+/*
+*  Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+package org.wso2.carbon.connector;
+
+import org.testng.Assert;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Runs the main method of a test class in a JVM with a small heap, to show that data larger than the heap is
+ * streamed instead of being held in memory.
+ */
+final class SmallHeapJvm {
+
+    private SmallHeapJvm() {
+    }
+
+    /**
+     * Runs the main method and fails when the JVM doesn't exit normally.
+     *
+     * @param mainClass class whose main method is run
+     * @param heapLimit maximum heap option, e.g. -Xmx32m
+     * @return output of the JVM
+     */
+    static String run(Class<?> mainClass, String heapLimit) throws Exception {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        Process process = new ProcessBuilder(java, heapLimit, "-cp", System.getProperty("java.class.path"),
+                mainClass.getName()).redirectErrorStream(true).start();
+        process.getOutputStream().close();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        InputStream input = process.getInputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = input.read(buffer)) >= 0) {
+            output.write(buffer, 0, read);
+        }
+        String text = new String(output.toByteArray(), StandardCharsets.UTF_8);
+        Assert.assertEquals(process.waitFor(), 0, text);
+        return text;
+    }
+}
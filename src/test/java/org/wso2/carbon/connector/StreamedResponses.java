@@ -0,0 +1,62 @@
+/*
+*  Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+package org.wso2.carbon.connector;
+
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.message.BasicHttpResponse;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Creates the responses {@link EWSClient} hands to the response mediators in the EWS_RESPONSE_STREAM property, for
+ * tests of those mediators without an EWS endpoint.
+ */
+final class StreamedResponses {
+
+    private StreamedResponses() {
+    }
+
+    /**
+     * Creates a 200 response whose body is read from the given stream.
+     *
+     * @param body response body, closed with the response
+     * @return response
+     */
+    static CloseableHttpResponse create(InputStream body) {
+        Response response = new Response(body);
+        response.setEntity(new InputStreamEntity(body, -1, ContentType.TEXT_XML));
+        return response;
+    }
+
+    private static final class Response extends BasicHttpResponse implements CloseableHttpResponse {
+        private final InputStream body;
+
+        private Response(InputStream body) {
+            super(HttpVersion.HTTP_1_1, 200, "OK");
+            this.body = body;
+        }
+
+        public void close() throws IOException {
+            body.close();
+        }
+    }
+}
@@ -0,0 +1,284 @@
+/*
+*  Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+package org.wso2.carbon.connector;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.apache.axiom.om.OMAbstractFactory;
+import org.apache.axiom.om.OMElement;
+import org.apache.synapse.MessageContext;
+import org.apache.synapse.mediators.AbstractMediator;
+import org.apache.synapse.mediators.base.SequenceMediator;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import javax.xml.namespace.QName;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Tests the paging of {@link SyncFolderItemsMediator} against a stub server serving the changes of a folder, and
+ * that a state is only stored once its changes have been processed.
+ */
+public class SyncFolderItemsMediatorTest {
+    private static final Pattern SYNC_STATE = Pattern.compile("SyncState>s(\\d+)<");
+    private static final Pattern MAX_CHANGES_RETURNED = Pattern.compile("MaxChangesReturned>(\\d+)<");
+    private static final String SYNC_KEY = "inbox";
+
+    private StubServer server;
+    private ChangesHandler handler;
+    private String url;
+    private File directory;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        handler = new ChangesHandler();
+        server = new StubServer().handle("/ews", handler).start();
+        url = server.url("/ews");
+        directory = Files.createTempDirectory("ews-sync-state").toFile();
+    }
+
+    @AfterMethod
+    public void tearDown() throws IOException {
+        server.stop();
+        EWSSyncStateStore.forDirectory(directory.getAbsolutePath()).delete(SYNC_KEY);
+        Assert.assertTrue(directory.delete());
+    }
+
+    @Test(description = "merged pages leave the stored state alone until commitSyncState stores the new state")
+    public void testMergedStateIsCommittedSeparately() throws Exception {
+        handler.totalChanges = 25;
+        MessageContext messageContext = messageContext(parameters("10"));
+        new SyncFolderItemsMediator().connect(messageContext);
+        Assert.assertEquals(handler.requests, list("s0:10", "s10:10", "s20:10"));
+        Assert.assertEquals(messageContext.getProperty(EWSConstants.EWS_CHANGE_COUNT), 25);
+        Assert.assertEquals(messageContext.getProperty(EWSConstants.EWS_PAGE_COUNT), 3);
+        Assert.assertEquals(messageContext.getProperty(EWSConstants.EWS_SYNC_STATE), "s25");
+        Assert.assertEquals(messageContext.getProperty(EWSConstants.EWS_SYNC_INCLUDES_LAST_ITEM_IN_RANGE), "true");
+        String response = messageContext.getEnvelope().toString();
+        Assert.assertEquals(response.split("<t:Create>", -1).length - 1, 25, response);
+        Assert.assertTrue(response.contains("SyncState>s25<"), response);
+        Assert.assertNull(store().read(SYNC_KEY));
+
+        // not committed, so the next call returns the same changes
+        messageContext = messageContext(parameters("10"));
+        new SyncFolderItemsMediator().connect(messageContext);
+        Assert.assertEquals(messageContext.getProperty(EWSConstants.EWS_CHANGE_COUNT), 25);
+
+        Map<String, Object> commitParameters = new HashMap<String, Object>();
+        commitParameters.put(EWSConstants.SYNC_STATE_DIRECTORY, directory.getAbsolutePath());
+        MessageContext commitContext = TemplateMessageContexts.create("commitSyncState", commitParameters);
+        commitContext.setProperty(EWSConstants.EWS_SYNC_KEY, messageContext.getProperty(EWSConstants.EWS_SYNC_KEY));
+        commitContext.setProperty(EWSConstants.EWS_SYNC_STATE, messageContext.getProperty(EWSConstants
+                .EWS_SYNC_STATE));
+        new CommitSyncStateMediator().connect(commitContext);
+        Assert.assertEquals(store().read(SYNC_KEY), "s25");
+
+        handler.totalChanges = 27;
+        messageContext = messageContext(parameters("10"));
+        new SyncFolderItemsMediator().connect(messageContext);
+        Assert.assertEquals(messageContext.getProperty(EWSConstants.EWS_CHANGE_COUNT), 2);
+    }
+
+    @Test(description = "a merged response holds at most maxChanges changes and the last page asks for the rest only")
+    public void testMaxChanges() throws Exception {
+        handler.totalChanges = 100;
+        Map<String, Object> parameters = parameters("10");
+        parameters.put(EWSConstants.MAX_CHANGES, "25");
+        MessageContext messageContext = messageContext(parameters);
+        new SyncFolderItemsMediator().connect(messageContext);
+        Assert.assertEquals(handler.requests, list("s0:10", "s10:10", "s20:5"));
+        Assert.assertEquals(messageContext.getProperty(EWSConstants.EWS_CHANGE_COUNT), 25);
+        Assert.assertEquals(messageContext.getProperty(EWSConstants.EWS_SYNC_STATE), "s25");
+        Assert.assertEquals(messageContext.getProperty(EWSConstants.EWS_SYNC_INCLUDES_LAST_ITEM_IN_RANGE), "false");
+    }
+
+    @Test(description = "an error on a later page returns the pages merged before it with their state")
+    public void testErrorOnLaterPage() throws Exception {
+        handler.totalChanges = 25;
+        handler.failingStart = 10;
+        MessageContext messageContext = messageContext(parameters("10"));
+        new SyncFolderItemsMediator().connect(messageContext);
+        Assert.assertEquals(handler.requests, list("s0:10", "s10:10"));
+        Assert.assertEquals(messageContext.getProperty(EWSConstants.EWS_BATCH_COMPLETED), "true");
+        Assert.assertEquals(messageContext.getProperty(EWSConstants.EWS_CHANGE_COUNT), 10);
+        Assert.assertEquals(messageContext.getProperty(EWSConstants.EWS_PAGE_COUNT), 1);
+        Assert.assertEquals(messageContext.getProperty(EWSConstants.EWS_SYNC_STATE), "s10");
+        Assert.assertEquals(messageContext.getProperty(EWSConstants.EWS_SYNC_INCLUDES_LAST_ITEM_IN_RANGE), "false");
+        String response = messageContext.getEnvelope().toString();
+        Assert.assertEquals(response.split("<t:Create>", -1).length - 1, 10, response);
+        Assert.assertTrue(response.contains("SyncState>s10<"), response);
+        Assert.assertFalse(response.contains("ErrorInvalidSyncStateData"), response);
+        Assert.assertNull(store().read(SYNC_KEY));
+    }
+
+    @Test(description = "an error on the first page is returned as it is with the state unchanged")
+    public void testErrorOnFirstPage() throws Exception {
+        handler.totalChanges = 25;
+        handler.failingStart = 0;
+        MessageContext messageContext = messageContext(parameters("10"));
+        new SyncFolderItemsMediator().connect(messageContext);
+        Assert.assertEquals(handler.requests, list("s0:10"));
+        Assert.assertEquals(messageContext.getProperty(EWSConstants.EWS_CHANGE_COUNT), 0);
+        Assert.assertNull(messageContext.getProperty(EWSConstants.EWS_SYNC_STATE));
+        Assert.assertTrue(messageContext.getEnvelope().toString().contains("ErrorInvalidSyncStateData"));
+    }
+
+    @Test(description = "with a page sequence each page is stored once mediated, up to the page it didn't complete")
+    public void testPageSequenceCommitsProcessedPages() throws Exception {
+        handler.totalChanges = 45;
+        final List<String> pageStates = new ArrayList<String>();
+        final String[] failingState = {"s30"};
+        SequenceMediator sequence = new SequenceMediator();
+        sequence.addChild(new AbstractMediator() {
+            public boolean mediate(MessageContext synCtx) {
+                pageStates.add((String) synCtx.getProperty(EWSConstants.EWS_SYNC_STATE));
+                return !synCtx.getProperty(EWSConstants.EWS_SYNC_STATE).equals(failingState[0]);
+            }
+        });
+        Map<String, Object> parameters = parameters("10");
+        parameters.put(EWSConstants.PAGE_SEQUENCE, "changeSequence");
+        MessageContext messageContext = messageContext(parameters);
+        messageContext.getConfiguration().addSequence("changeSequence", sequence);
+        new SyncFolderItemsMediator().connect(messageContext);
+        Assert.assertEquals(pageStates, list("s10", "s20", "s30"));
+        Assert.assertEquals(store().read(SYNC_KEY), "s20");
+        Assert.assertEquals(messageContext.getProperty(EWSConstants.EWS_SYNC_STATE), "s20");
+        Assert.assertEquals(messageContext.getProperty(EWSConstants.EWS_SYNC_INCLUDES_LAST_ITEM_IN_RANGE), "false");
+        Assert.assertFalse(messageContext.getEnvelope().toString().contains("<t:Create>"));
+
+        pageStates.clear();
+        handler.requests.clear();
+        failingState[0] = null;
+        messageContext = messageContext(parameters);
+        messageContext.getConfiguration().addSequence("changeSequence", sequence);
+        new SyncFolderItemsMediator().connect(messageContext);
+        Assert.assertEquals(handler.requests, list("s20:10", "s30:10", "s40:10"));
+        Assert.assertEquals(pageStates, list("s30", "s40", "s45"));
+        Assert.assertEquals(store().read(SYNC_KEY), "s45");
+    }
+
+    @Test(description = "a DistinguishedFolderId without a Mailbox is kept in SyncFolderId only")
+    public void testDistinguishedFolderIdWithoutMailbox() throws Exception {
+        MessageContext messageContext = messageContext(parameters("10"));
+        OMElement syncFolderId = OMAbstractFactory.getOMFactory().createOMElement(EWSConstants
+                .SYNC_FOLDER_ID_ELEMENT, EWSUtils.message);
+        Assert.assertTrue(EWSUtils.populateSyncFolderIdElement(messageContext, syncFolderId));
+        Assert.assertEquals(syncFolderId.getFirstElement().getLocalName(), EWSConstants
+                .DISTINGUISHED_FOLDER_ID_ELEMENT);
+        Assert.assertEquals(syncFolderId.getFirstElement().getAttributeValue(new QName(EWSConstants.ID_ATTRIBUTE)),
+                "inbox");
+        // createItem, findItem and sendItem only send a DistinguishedFolderId together with its Mailbox
+        OMElement savedItemFolderId = OMAbstractFactory.getOMFactory().createOMElement(EWSConstants
+                .SAVE_ITEM_FOLDER_ID_ELEMENT, EWSUtils.message);
+        Assert.assertFalse(EWSUtils.populateSaveItemFolderIdElement(messageContext, savedItemFolderId));
+    }
+
+    private Map<String, Object> parameters(String maxChangesReturned) {
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put(EWSConstants.DISTINGUISHED_FOLDER_ID, "<DistinguishedFolderId><Id>inbox</Id>" +
+                "</DistinguishedFolderId>");
+        parameters.put(EWSConstants.MAX_CHANGES_RETURNED, maxChangesReturned);
+        parameters.put(EWSConstants.SYNC_STATE_DIRECTORY, directory.getAbsolutePath());
+        parameters.put(EWSConstants.SYNC_KEY, SYNC_KEY);
+        return parameters;
+    }
+
+    private MessageContext messageContext(Map<String, Object> parameters) {
+        MessageContext messageContext = TemplateMessageContexts.create("syncFolderItems", parameters);
+        messageContext.setProperty(EWSConstants.EWS_API_URL, url);
+        return messageContext;
+    }
+
+    private EWSSyncStateStore store() {
+        return EWSSyncStateStore.forDirectory(directory.getAbsolutePath());
+    }
+
+    private static List<String> list(String... values) {
+        List<String> list = new ArrayList<String>();
+        for (String value : values) {
+            list.add(value);
+        }
+        return list;
+    }
+
+    /**
+     * Serves the changes of a folder holding totalChanges items, whose state sN means that N changes were
+     * returned before.
+     */
+    private static final class ChangesHandler implements HttpHandler {
+        private final List<String> requests = new ArrayList<String>();
+        private volatile int totalChanges;
+        private volatile int failingStart = -1;
+
+        public void handle(HttpExchange exchange) throws IOException {
+            InputStream input = exchange.getRequestBody();
+            ByteArrayOutputStream request = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = input.read(buffer)) >= 0) {
+                request.write(buffer, 0, read);
+            }
+            String text = new String(request.toByteArray(), StandardCharsets.UTF_8);
+            Matcher syncState = SYNC_STATE.matcher(text);
+            int start = syncState.find() ? Integer.parseInt(syncState.group(1)) : 0;
+            Matcher maxChangesReturned = MAX_CHANGES_RETURNED.matcher(text);
+            Assert.assertTrue(maxChangesReturned.find(), text);
+            int end = Math.min(totalChanges, start + Integer.parseInt(maxChangesReturned.group(1)));
+            synchronized (requests) {
+                requests.add("s" + start + ":" + maxChangesReturned.group(1));
+            }
+            if (start == failingStart) {
+                StubServer.respond(exchange, 200, StubServer.XML, "<s:Envelope xmlns:s=\"http://schemas.xmlsoap.org/" +
+                        "soap/envelope/\"><s:Body><m:SyncFolderItemsResponse xmlns:m=\"" + EWSConstants
+                        .MESSAGES_NAME_SPACE + "\"><m:ResponseMessages><m:SyncFolderItemsResponseMessage " +
+                        "ResponseClass=\"Error\"><m:MessageText>Synchronization state data is corrupt or otherwise " +
+                        "invalid.</m:MessageText><m:ResponseCode>ErrorInvalidSyncStateData</m:ResponseCode>" +
+                        "</m:SyncFolderItemsResponseMessage></m:ResponseMessages></m:SyncFolderItemsResponse>" +
+                        "</s:Body></s:Envelope>");
+                return;
+            }
+            StringBuilder changes = new StringBuilder();
+            for (int i = start; i < end; i++) {
+                changes.append("<t:Create><t:Message><t:ItemId Id=\"id").append(i).append("\"/></t:Message>")
+                        .append("</t:Create>");
+            }
+            byte[] body = ("<s:Envelope xmlns:s=\"http://schemas.xmlsoap.org/soap/envelope/\"><s:Body>" +
+                    "<m:SyncFolderItemsResponse xmlns:m=\"" + EWSConstants.MESSAGES_NAME_SPACE + "\" xmlns:t=\"" +
+                    EWSConstants.TYPE_NAME_SPACE + "\"><m:ResponseMessages><m:SyncFolderItemsResponseMessage " +
+                    "ResponseClass=\"Success\"><m:ResponseCode>NoError</m:ResponseCode><m:SyncState>s" + end +
+                    "</m:SyncState><m:IncludesLastItemInRange>" + (end >= totalChanges) +
+                    "</m:IncludesLastItemInRange><m:Changes>" + changes + "</m:Changes>" +
+                    "</m:SyncFolderItemsResponseMessage></m:ResponseMessages></m:SyncFolderItemsResponse>" +
+                    "</s:Body></s:Envelope>").getBytes(StandardCharsets.UTF_8);
+            StubServer.respond(exchange, 200, StubServer.XML, body);
+        }
+    }
+}
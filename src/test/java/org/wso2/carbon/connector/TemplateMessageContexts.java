@@ -0,0 +1,84 @@
+/*
+*  Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+package org.wso2.carbon.connector;
+
+import org.apache.axiom.om.OMAbstractFactory;
+import org.apache.axis2.AxisFault;
+import org.apache.synapse.MessageContext;
+import org.apache.synapse.SynapseConstants;
+import org.apache.synapse.config.SynapseConfiguration;
+import org.apache.synapse.core.SynapseEnvironment;
+import org.apache.synapse.core.axis2.Axis2MessageContext;
+import org.apache.synapse.mediators.template.TemplateContext;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.Stack;
+
+/**
+ * Creates in memory synapse message contexts for tests and benchmarks of the mediators.
+ */
+final class TemplateMessageContexts {
+
+    private TemplateMessageContexts() {
+    }
+
+    /**
+     * Creates a message context holding the given template parameters on its function stack.
+     *
+     * @param templateName name of the template the parameters belong to
+     * @param parameters template parameter values
+     * @return message context
+     */
+    static MessageContext create(String templateName, Map<String, Object> parameters) {
+        MessageContext messageContext = create(new SynapseConfiguration());
+        TemplateContext templateContext = new TemplateContext(templateName, parameters.keySet());
+        templateContext.setMappedValues(parameters);
+        Stack<TemplateContext> functionStack = new Stack<TemplateContext>();
+        functionStack.push(templateContext);
+        messageContext.setProperty(SynapseConstants.SYNAPSE__FUNCTION__STACK, functionStack);
+        return messageContext;
+    }
+
+    /**
+     * Creates an empty message context whose environment creates further message contexts, e.g. copies for a
+     * sequence, of the same configuration, and hands out that configuration.
+     */
+    private static MessageContext create(final SynapseConfiguration synapseConfiguration) {
+        SynapseEnvironment environment = (SynapseEnvironment) Proxy.newProxyInstance(SynapseEnvironment.class
+                .getClassLoader(), new Class[]{SynapseEnvironment.class}, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if ("createMessageContext".equals(method.getName())) {
+                    return create(synapseConfiguration);
+                } else if ("getSynapseConfiguration".equals(method.getName())) {
+                    return synapseConfiguration;
+                }
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+        org.apache.axis2.context.MessageContext axis2MessageContext = new org.apache.axis2.context.MessageContext();
+        try {
+            axis2MessageContext.setEnvelope(OMAbstractFactory.getSOAP11Factory().getDefaultEnvelope());
+        } catch (AxisFault axisFault) {
+            throw new IllegalStateException("Couldn't set an empty envelope", axisFault);
+        }
+        return new Axis2MessageContext(axis2MessageContext, synapseConfiguration, environment);
+    }
+}
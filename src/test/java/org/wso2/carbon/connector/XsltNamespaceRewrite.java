@@ -0,0 +1,85 @@
+/*
+*  Copyright (c) 2017, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+package org.wso2.carbon.connector;
+
+import org.apache.axiom.om.OMAttribute;
+import org.apache.axiom.om.OMElement;
+import org.apache.axiom.om.OMNode;
+import org.apache.axiom.om.OMText;
+import org.apache.axiom.om.impl.jaxp.OMSource;
+import org.apache.axiom.om.util.AXIOMUtil;
+
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+import java.io.ByteArrayOutputStream;
+import java.util.Iterator;
+
+/**
+ * The namespace rewrite as it was done before {@link EWSNamespaceRewriter}, kept as the baseline the rewriter is
+ * tested and benchmarked against.
+ */
+final class XsltNamespaceRewrite {
+    private static final String XSLT_FILE_LOCATION = "xslt/namespace.xslt";
+
+    private XsltNamespaceRewrite() {
+    }
+
+    /**
+     * Rewrites the element into the types namespace with xslt/namespace.xslt.
+     */
+    static OMElement rewrite(OMElement element) throws Exception {
+        StreamSource xsltSource = new StreamSource(XsltNamespaceRewrite.class.getClassLoader()
+                .getResourceAsStream(XSLT_FILE_LOCATION));
+        TransformerFactory factory = TransformerFactory.newInstance();
+        Transformer transformer = factory.newTransformer(xsltSource);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        transformer.transform(new OMSource(element), new StreamResult(output));
+        return AXIOMUtil.stringToOM(new String(output.toByteArray()));
+    }
+
+    /**
+     * Renders element names, attributes and trimmed non whitespace text so that both rewrites can be compared
+     * regardless of indentation.
+     */
+    static String canonical(OMElement element) {
+        StringBuilder builder = new StringBuilder();
+        appendCanonical(element, builder);
+        return builder.toString();
+    }
+
+    private static void appendCanonical(OMElement element, StringBuilder builder) {
+        builder.append('<').append(element.getQName());
+        for (Iterator attributes = element.getAllAttributes(); attributes.hasNext(); ) {
+            OMAttribute attribute = (OMAttribute) attributes.next();
+            builder.append(' ').append(attribute.getQName()).append("=\"").append(attribute.getAttributeValue())
+                    .append('"');
+        }
+        builder.append('>');
+        for (Iterator children = element.getChildren(); children.hasNext(); ) {
+            OMNode child = (OMNode) children.next();
+            if (child instanceof OMElement) {
+                appendCanonical((OMElement) child, builder);
+            } else if (child instanceof OMText && ((OMText) child).getText().trim().length() > 0) {
+                builder.append(((OMText) child).getText().trim());
+            }
+        }
+        builder.append("</>");
+    }
+}